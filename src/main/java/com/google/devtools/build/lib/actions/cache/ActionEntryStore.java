@@ -0,0 +1,48 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * Persistent storage for the encoded entries of a {@link CompactPersistentActionCache}, keyed by
+ * the string indexer index of the action key.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+interface ActionEntryStore {
+
+  /** Returns the encoded entry stored under {@code key}, or null. */
+  @Nullable
+  byte[] get(int key);
+
+  void put(int key, byte[] value);
+
+  void remove(int key);
+
+  /** Writes all changes to disk. Returns the size of the data written, in bytes. */
+  long save() throws IOException;
+
+  void clear();
+
+  int size();
+
+  /** Calls {@code consumer} for every stored entry, in no particular order. */
+  void forEach(BiConsumer<Integer, byte[]> consumer);
+
+  /** Releases the files held open by the store. The store must not be used afterwards. */
+  default void close() throws IOException {}
+}
@@ -39,14 +39,19 @@ import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Collection;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 /**
  * An implementation of the ActionCache interface that uses a {@link StringIndexer} to reduce memory
- * footprint and saves cached actions using the {@link PersistentMap}.
+ * footprint and saves cached actions using the {@link PersistentMap}, or optionally in a {@link
+ * MappedActionLog}.
  */
 @ConditionallyThreadSafe // condition: each instance must instantiated with
 // different cache root
@@ -149,19 +154,81 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
-  private final PersistentMap<Integer, byte[]> map;
+  /**
+   * Adapts an {@link ActionMap} to the {@link ActionEntryStore} interface.
+   *
+   * <p>The journal of a {@link PersistentMap} isn't thread-safe, so mutations are serialized.
+   * Read-only operations go straight to the backing map, which must be a {@link ConcurrentMap}, and
+   * so are never blocked by mutations or by writing the journal.
+   */
+  private static final class JournaledActionStore implements ActionEntryStore {
+    private final PersistentMap<Integer, byte[]> map;
+
+    JournaledActionStore(PersistentMap<Integer, byte[]> map) {
+      this.map = map;
+    }
+
+    @Override
+    public byte[] get(int key) {
+      return map.get(key);
+    }
+
+    @Override
+    public synchronized void put(int key, byte[] value) {
+      map.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(int key) {
+      map.remove(key);
+    }
+
+    @Override
+    public synchronized long save() throws IOException {
+      return map.save();
+    }
+
+    @Override
+    public synchronized void clear() {
+      map.clear();
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<Integer, byte[]> consumer) {
+      map.forEach(consumer);
+    }
+  }
+
+  private final ActionEntryStore map;
   private final PersistentStringIndexer indexer;
 
-  private final AtomicInteger hits = new AtomicInteger();
+  // Hits are accounted by every evaluation thread during null builds, so use a LongAdder rather
+  // than a single contended counter.
+  private final LongAdder hits = new LongAdder();
   private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
+    this(cacheRoot, clock, /* useMappedLog= */ false);
+  }
+
+  /**
+   * Creates an action cache in {@code cacheRoot}. If {@code useMappedLog} is set, the entries are
+   * stored in a {@link MappedActionLog}, which is loaded lazily and doesn't need to be rewritten in
+   * full on save, instead of a {@link PersistentMap}.
+   */
+  public CompactPersistentActionCache(Path cacheRoot, Clock clock, boolean useMappedLog)
+      throws IOException {
     Path cacheFile = cacheFile(cacheRoot);
     Path journalFile = journalFile(cacheRoot);
     Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
+    // Dependency checker will manually purge records from the action cache, so the backing map
+    // doesn't need to do so. It must support concurrent lookups though, see JournaledActionStore.
+    Map<Integer, byte[]> backingMap = new ConcurrentHashMap<>();
 
     try {
       indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
@@ -171,18 +238,31 @@ public class CompactPersistentActionCache implements ActionCache {
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      map =
+          useMappedLog
+              ? new MappedActionLog(
+                  logFile(cacheRoot).getPathFile().toPath(), VERSION, indexer.size(), clock)
+              : new JournaledActionStore(
+                  new ActionMap(backingMap, clock, cacheFile, journalFile));
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
     }
 
     // Validate referential integrity between two collections.
-    if (!map.isEmpty()) {
+    if (map.size() > 0) {
       String integrityError = validateIntegrity(indexer.size(), map.get(VALIDATION_KEY));
       if (integrityError != null) {
+        IOException failure =
+            new IOException("Failed action cache referential integrity check: " + integrityError);
+        // The files can't be renamed on Windows while the store holds them open.
+        try {
+          map.close();
+        } catch (IOException e) {
+          failure.addSuppressed(e);
+        }
         renameCorruptedFiles(cacheRoot);
-        throw new IOException("Failed action cache referential integrity check: " + integrityError);
+        throw failure;
       }
     }
 
@@ -249,16 +329,17 @@ public class CompactPersistentActionCache implements ActionCache {
     return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
   }
 
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
   @Override
   public ActionCache.Entry get(String key) {
     int index = indexer.getIndex(key);
     if (index < 0) {
       return null;
     }
-    byte[] data;
-    synchronized (this) {
-      data = map.get(index);
-    }
+    byte[] data = map.get(index);
     try {
       return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
     } catch (IOException e) {
@@ -281,16 +362,15 @@ public class CompactPersistentActionCache implements ActionCache {
     // Note the benign race condition here in which two threads might race on
     // updating the VALIDATION_KEY. If the most recent update loses the race,
     // a value lower than the indexer size will remain in the validation record.
-    // This will still pass the integrity check.
-    synchronized (this) {
-      map.put(VALIDATION_KEY, buffer.array());
-      // Now update record itself.
-      map.put(index, content);
-    }
+    // This will still pass the integrity check. The store serializes the puts themselves, so there
+    // is no need to lock the whole cache here.
+    map.put(VALIDATION_KEY, buffer.array());
+    // Now update record itself.
+    map.put(index, content);
   }
 
   @Override
-  public synchronized void remove(String key) {
+  public void remove(String key) {
     map.remove(indexer.getIndex(key));
   }
 
@@ -314,7 +394,7 @@ public class CompactPersistentActionCache implements ActionCache {
     builder.append("Action cache (" + (map.size() - 1) + " records):\n");
     int size = map.size() > 1000 ? 10 : map.size();
     int ct = 0;
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
+    for (Map.Entry<Integer, byte[]> entry : entries()) {
       if (entry.getKey() == VALIDATION_KEY) { continue; }
       String content;
       try {
@@ -340,7 +420,7 @@ public class CompactPersistentActionCache implements ActionCache {
     out.println("String indexer content:\n");
     out.println(indexer);
     out.println("Action cache (" + map.size() + " records):\n");
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
+    for (Map.Entry<Integer, byte[]> entry : entries()) {
       if (entry.getKey() == VALIDATION_KEY) { continue; }
       String content;
       try {
@@ -353,6 +433,13 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
+  /** Returns a snapshot of the stored entries, ordered by key. */
+  private Iterable<Map.Entry<Integer, byte[]>> entries() {
+    TreeMap<Integer, byte[]> entries = new TreeMap<>();
+    map.forEach(entries::put);
+    return entries.entrySet();
+  }
+
   /**
    * @return action data encoded as a byte[] array.
    */
@@ -444,7 +531,7 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public void accountHit() {
-    hits.incrementAndGet();
+    hits.increment();
   }
 
   @Override
@@ -457,7 +544,7 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
-    builder.setHits(hits.get());
+    builder.setHits(hits.intValue());
 
     int totalMisses = 0;
     for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
@@ -470,7 +557,7 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public void resetStatistics() {
-    hits.set(0);
+    hits.reset();
     for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
       entry.getValue().set(0);
     }
@@ -0,0 +1,659 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.unsafe.UnsafeProvider;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link ActionEntryStore} backed by a memory-mapped, append-only log file.
+ *
+ * <p>Every {@link #put} and {@link #remove} appends a record to the log; nothing is ever rewritten
+ * in place. At startup only the record headers are scanned to find the latest record of every key,
+ * the values themselves are read from the mapping when they are looked up. Lookups don't take any
+ * locks, except while the file is being replaced by compaction, and never do I/O on the calling
+ * thread other than page faults; updates are serialized among themselves.
+ *
+ * <p>Records are buffered in memory and appended to the file when the buffer is full, when the save
+ * interval has elapsed, and on {@link #save}. Once more than half of the file consists of records
+ * that have been superseded, {@link #save} compacts it by writing the live records to a new file.
+ *
+ * <p>The file starts with a {@code long} magic number and a {@code long} version, followed by
+ * records consisting of an {@code int} key, an {@code int} length and the value bytes. A length of
+ * -1 denotes the removal of the key. A truncated record at the end of the file, e.g. after a crash,
+ * is discarded on load. Keys are indices of a string indexer, and a file with a key that is not
+ * below the size of the indexer is corrupted and rejected, before the key sizes the offset table.
+ */
+@ThreadSafe
+final class MappedActionLog implements ActionEntryStore {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final long MAGIC = 0x6163746c6f670001L;
+  private static final int FILE_HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int REMOVED_LENGTH = -1;
+  private static final long NO_OFFSET = -1;
+
+  /**
+   * The file is mapped in segments of this size. Each segment additionally maps the following
+   * {@link #MAX_RECORD_SIZE} bytes, so that every record starting in a segment can be read from it.
+   */
+  private static final long SEGMENT_SIZE = 1L << 30;
+
+  private static final int MAX_RECORD_SIZE = 64 << 20;
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+  private static final long MIN_COMPACTION_SIZE = 1L << 20;
+  private static final long SAVE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(3);
+  private static final byte[] REMOVED = new byte[0];
+
+  /** {@code Unsafe.invokeCleaner}, which only exists on JDK 9 and later, or null. */
+  @Nullable private static final Method INVOKE_CLEANER = getInvokeCleaner();
+
+  @Nullable
+  private static Method getInvokeCleaner() {
+    try {
+      return UnsafeProvider.getInstance().getClass().getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * An open log file together with all of its mappings.
+   *
+   * <p>Windows can neither truncate nor replace a file that is mapped, so the mappings are released
+   * explicitly rather than by garbage collection when the file is closed. Readers register
+   * themselves while they access the mappings, and {@link #close} waits for them to finish.
+   */
+  private static final class MappedFile {
+    private static final int CLOSED = -1;
+
+    private final RandomAccessFile file;
+    /** All mappings of the file, including superseded ones. Guarded by the log's lock. */
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    /** The number of readers accessing the mappings, or {@link #CLOSED}. */
+    private final AtomicInteger readers = new AtomicInteger();
+
+    MappedFile(RandomAccessFile file) {
+      this.file = file;
+    }
+
+    /**
+     * Maps the file up to {@code length}, reusing the mappings of {@code segments} that don't need
+     * to be extended.
+     */
+    MappedByteBuffer[] remap(MappedByteBuffer[] segments, long length) throws IOException {
+      int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      MappedByteBuffer[] result = Arrays.copyOf(segments, count);
+      for (int i = 0; i < count; i++) {
+        long start = i * SEGMENT_SIZE;
+        long size = Math.min(SEGMENT_SIZE + MAX_RECORD_SIZE, length - start);
+        if (result[i] == null || result[i].capacity() < size) {
+          result[i] = file.getChannel().map(MapMode.READ_ONLY, start, size);
+          mappings.add(result[i]);
+        }
+      }
+      return result;
+    }
+
+    /** Releases all mappings. Nobody may be using them. */
+    void unmap() {
+      if (INVOKE_CLEANER != null) {
+        for (MappedByteBuffer mapping : mappings) {
+          try {
+            INVOKE_CLEANER.invoke(UnsafeProvider.getInstance(), mapping);
+          } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      }
+      // Without a cleaner, the mappings are released once they are garbage collected.
+      mappings.clear();
+    }
+
+    /** Registers a reader. Returns false if the file has been closed. */
+    boolean tryAcquire() {
+      while (true) {
+        int count = readers.get();
+        if (count == CLOSED) {
+          return false;
+        }
+        if (readers.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      readers.decrementAndGet();
+    }
+
+    /** Waits for the current readers to finish, then unmaps and closes the file. */
+    void close() throws IOException {
+      while (!readers.compareAndSet(0, CLOSED)) {
+        if (readers.get() == CLOSED) {
+          return;
+        }
+        // Readers only copy a single value out of the mapping.
+        Thread.yield();
+      }
+      unmap();
+      file.close();
+    }
+  }
+
+  /**
+   * The parts of the state that are replaced by flushes and compaction. Readers take a snapshot of
+   * this, so that they always see a mapping and offset table belonging to the same file.
+   */
+  private static final class State {
+    private final MappedFile file;
+    private final MappedByteBuffer[] segments;
+    /** Offsets of the latest record for every non-negative key, or {@link #NO_OFFSET}. */
+    private final AtomicLongArray offsets;
+    /** Offsets of the latest record for every negative key. */
+    private final Map<Integer, Long> negativeKeyOffsets;
+
+    State(
+        MappedFile file,
+        MappedByteBuffer[] segments,
+        AtomicLongArray offsets,
+        Map<Integer, Long> negativeKeyOffsets) {
+      this.file = file;
+      this.segments = segments;
+      this.offsets = offsets;
+      this.negativeKeyOffsets = negativeKeyOffsets;
+    }
+
+    State withOffsets(AtomicLongArray newOffsets) {
+      return new State(file, segments, newOffsets, negativeKeyOffsets);
+    }
+
+    State withSegments(MappedByteBuffer[] newSegments) {
+      return new State(file, newSegments, offsets, negativeKeyOffsets);
+    }
+
+    State withFile(MappedFile newFile, MappedByteBuffer[] newSegments) {
+      return new State(newFile, newSegments, offsets, negativeKeyOffsets);
+    }
+
+    long getOffset(int key) {
+      if (key < 0) {
+        return negativeKeyOffsets.getOrDefault(key, NO_OFFSET);
+      }
+      return key < offsets.length() ? offsets.get(key) : NO_OFFSET;
+    }
+
+    int getInt(long offset) {
+      return segments[segmentIndex(offset)].getInt((int) (offset - segmentStart(offset)));
+    }
+
+    byte[] read(long offset) {
+      byte[] value = new byte[getInt(offset + Integer.BYTES)];
+      // Duplicate so that the position of the shared buffer isn't modified.
+      ByteBuffer segment = segments[segmentIndex(offset)].duplicate();
+      segment.position((int) (offset + RECORD_HEADER_SIZE - segmentStart(offset)));
+      segment.get(value);
+      return value;
+    }
+  }
+
+  private final Path path;
+  private final long version;
+  private final Clock clock;
+
+  private volatile State state;
+
+  /**
+   * Values that have been written since the last flush, or {@link #REMOVED}. Take precedence over
+   * {@link #state}.
+   */
+  private final Map<Integer, byte[]> pending = new ConcurrentHashMap<>();
+
+  // The following fields are guarded by "this".
+  private final ByteArrayOutputStream writeBuffer = new ByteArrayOutputStream();
+  private final DataOutputStream writeOut = new DataOutputStream(writeBuffer);
+  private final Map<Integer, Long> unflushedOffsets = new HashMap<>();
+  private long fileEnd;
+  private long garbageBytes;
+  private int size;
+  private long nextFlushNs;
+  @Nullable private IOException deferredIOFailure;
+
+  /**
+   * Opens or creates the log at {@code path}. Throws an {@link IOException} if the file contains a
+   * non-negative key that is not below {@code keyLimit}.
+   */
+  MappedActionLog(Path path, long version, int keyLimit, Clock clock) throws IOException {
+    this.path = path;
+    this.version = version;
+    this.clock = clock;
+    this.nextFlushNs = clock.nanoTime() + SAVE_INTERVAL_NS;
+    load(keyLimit);
+  }
+
+  private synchronized void load(int keyLimit) throws IOException {
+    Files.createDirectories(path.getParent());
+    // Writes go through a RandomAccessFile rather than a FileChannel, since the latter is closed
+    // when a thread using it is interrupted.
+    RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+    MappedFile file = new MappedFile(raf);
+    long length = raf.length();
+    if (length < FILE_HEADER_SIZE || raf.readLong() != MAGIC || raf.readLong() != version) {
+      if (length > 0) {
+        logger.atInfo().log("Discarding action cache log %s with unknown format", path);
+      }
+      raf.setLength(0);
+      writeFileHeader(raf);
+      length = FILE_HEADER_SIZE;
+    }
+    state =
+        new State(
+            file,
+            file.remap(new MappedByteBuffer[0], length),
+            new AtomicLongArray(0),
+            new ConcurrentHashMap<>());
+
+    long offset = FILE_HEADER_SIZE;
+    while (offset + RECORD_HEADER_SIZE <= length) {
+      int key = state.getInt(offset);
+      int valueLength = state.getInt(offset + Integer.BYTES);
+      if (valueLength < REMOVED_LENGTH || valueLength > MAX_RECORD_SIZE - RECORD_HEADER_SIZE) {
+        break;
+      }
+      long recordSize = RECORD_HEADER_SIZE + Math.max(valueLength, 0);
+      if (offset + recordSize > length) {
+        break;
+      }
+      if (key >= keyLimit) {
+        file.close();
+        throw new IOException(
+            String.format(
+                "Corrupted action cache log %s: key %d at offset %d is not below %d",
+                path, key, offset, keyLimit));
+      }
+      garbageBytes += recordOffset(key, valueLength == REMOVED_LENGTH ? NO_OFFSET : offset);
+      if (valueLength == REMOVED_LENGTH) {
+        garbageBytes += recordSize;
+      }
+      offset += recordSize;
+    }
+    if (offset < length) {
+      logger.atInfo().log("Truncating action cache log %s at offset %d", path, offset);
+      // Nobody has seen the mapping of the truncated part yet, so it's safe to replace it.
+      file.unmap();
+      raf.setLength(offset);
+      state = state.withSegments(file.remap(new MappedByteBuffer[0], offset));
+    }
+    fileEnd = offset;
+    size = countLiveRecords(state);
+  }
+
+  private static int countLiveRecords(State state) {
+    int count = state.negativeKeyOffsets.size();
+    for (int i = 0; i < state.offsets.length(); i++) {
+      if (state.offsets.get(i) != NO_OFFSET) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void writeFileHeader(RandomAccessFile file) throws IOException {
+    file.seek(0);
+    file.writeLong(MAGIC);
+    file.writeLong(version);
+  }
+
+  private static int segmentIndex(long offset) {
+    return (int) (offset / SEGMENT_SIZE);
+  }
+
+  private static long segmentStart(long offset) {
+    return segmentIndex(offset) * SEGMENT_SIZE;
+  }
+
+  /**
+   * Points {@code key} at the record at {@code offset}, or removes it if {@code offset} is {@link
+   * #NO_OFFSET}. Returns the size of the superseded record, if any. Must be called with the lock
+   * held, and the record must be mapped already. Doesn't update {@link #size}.
+   */
+  private long recordOffset(int key, long offset) {
+    State current = state;
+    long previous = current.getOffset(key);
+    long superseded = 0;
+    if (previous != NO_OFFSET) {
+      superseded = RECORD_HEADER_SIZE + current.getInt(previous + Integer.BYTES);
+    }
+    if (key < 0) {
+      if (offset == NO_OFFSET) {
+        current.negativeKeyOffsets.remove(key);
+      } else {
+        current.negativeKeyOffsets.put(key, offset);
+      }
+      return superseded;
+    }
+    AtomicLongArray offsets = current.offsets;
+    if (key >= offsets.length()) {
+      if (offset == NO_OFFSET) {
+        return superseded;
+      }
+      long[] grown = new long[Math.max(key + 1, offsets.length() * 2)];
+      Arrays.fill(grown, NO_OFFSET);
+      for (int i = 0; i < offsets.length(); i++) {
+        grown[i] = offsets.get(i);
+      }
+      offsets = new AtomicLongArray(grown);
+      state = current.withOffsets(offsets);
+    }
+    offsets.set(key, offset);
+    return superseded;
+  }
+
+  @Override
+  @Nullable
+  public byte[] get(int key) {
+    byte[] value = pending.get(key);
+    if (value != null) {
+      return value == REMOVED ? null : value;
+    }
+    State current = acquireState();
+    if (current == null) {
+      return null;
+    }
+    try {
+      long offset = current.getOffset(key);
+      return offset == NO_OFFSET ? null : current.read(offset);
+    } finally {
+      current.file.release();
+    }
+  }
+
+  /**
+   * Returns the current state with its file acquired, or null if the log has been closed or its
+   * file couldn't be reopened after a compaction.
+   */
+  @Nullable
+  private State acquireState() {
+    State current = state;
+    if (current.file.tryAcquire()) {
+      return current;
+    }
+    // The file is being replaced, which happens with the lock held.
+    synchronized (this) {
+      current = state;
+      return current.file.tryAcquire() ? current : null;
+    }
+  }
+
+  @Override
+  public synchronized void put(int key, byte[] value) {
+    Preconditions.checkArgument(
+        value.length <= MAX_RECORD_SIZE - RECORD_HEADER_SIZE,
+        "action cache entry too large: %s bytes",
+        value.length);
+    if (get(key) == null) {
+      size++;
+    }
+    append(key, value);
+    pending.put(key, value);
+    maybeFlush();
+  }
+
+  @Override
+  public synchronized void remove(int key) {
+    if (get(key) == null) {
+      return;
+    }
+    size--;
+    append(key, null);
+    pending.put(key, REMOVED);
+    maybeFlush();
+  }
+
+  /** Appends a record to the write buffer. Must be called with the lock held. */
+  private void append(int key, @Nullable byte[] value) {
+    long offset = fileEnd + writeBuffer.size();
+    try {
+      writeOut.writeInt(key);
+      if (value == null) {
+        writeOut.writeInt(REMOVED_LENGTH);
+      } else {
+        writeOut.writeInt(value.length);
+        writeOut.write(value);
+      }
+    } catch (IOException e) {
+      // This Exception can never be thrown by ByteArrayOutputStream.
+      throw new AssertionError(e);
+    }
+    if (unflushedOffsets.put(key, value == null ? NO_OFFSET : offset) != null) {
+      // Superseding a record that hasn't been flushed yet.
+      // Removal records have been counted as garbage already.
+      byte[] previous = pending.get(key);
+      if (previous != REMOVED) {
+        garbageBytes += RECORD_HEADER_SIZE + previous.length;
+      }
+    }
+    if (value == null) {
+      garbageBytes += RECORD_HEADER_SIZE;
+    }
+  }
+
+  private void maybeFlush() {
+    long now = clock.nanoTime();
+    if (writeBuffer.size() >= WRITE_BUFFER_SIZE || now > nextFlushNs) {
+      nextFlushNs = now + SAVE_INTERVAL_NS;
+      try {
+        flush();
+      } catch (IOException e) {
+        deferredIOFailure = e;
+      }
+    }
+  }
+
+  /**
+   * Appends the write buffer to the file and makes the new records visible through the offset
+   * table. Must be called with the lock held.
+   */
+  private void flush() throws IOException {
+    if (writeBuffer.size() == 0) {
+      return;
+    }
+    State current = state;
+    current.file.file.seek(fileEnd);
+    current.file.file.write(writeBuffer.toByteArray());
+    fileEnd += writeBuffer.size();
+    writeBuffer.reset();
+    state = current.withSegments(current.file.remap(current.segments, fileEnd));
+    for (Map.Entry<Integer, Long> entry : unflushedOffsets.entrySet()) {
+      garbageBytes += recordOffset(entry.getKey(), entry.getValue());
+    }
+    // Only drop the pending values once the offsets are visible to readers.
+    for (Integer key : unflushedOffsets.keySet()) {
+      pending.remove(key);
+    }
+    unflushedOffsets.clear();
+  }
+
+  @Override
+  public synchronized long save() throws IOException {
+    if (deferredIOFailure != null) {
+      IOException e = deferredIOFailure;
+      deferredIOFailure = null;
+      throw e;
+    }
+    flush();
+    nextFlushNs = clock.nanoTime() + SAVE_INTERVAL_NS;
+    if (fileEnd > MIN_COMPACTION_SIZE && garbageBytes * 2 > fileEnd) {
+      long sizeBefore = fileEnd;
+      rewrite(/* keepRecords= */ true);
+      logger.atInfo().log(
+          "Compacted action cache log %s from %d to %d bytes", path, sizeBefore, fileEnd);
+    }
+    return fileEnd;
+  }
+
+  /**
+   * Replaces the log by a new file, containing only the live records if {@code keepRecords} is
+   * set. The new file is written next to the old one and moved into place once the old one has been
+   * closed, which waits for the readers of its mapping. Must be called with the lock held and
+   * nothing pending.
+   */
+  private void rewrite(boolean keepRecords) throws IOException {
+    State current = state;
+    Path tempPath = path.resolveSibling(path.getFileName() + ".compacting");
+    Files.deleteIfExists(tempPath);
+    long[] newOffsets = new long[keepRecords ? current.offsets.length() : 0];
+    Map<Integer, Long> newNegativeKeyOffsets = new ConcurrentHashMap<>();
+    long newEnd = FILE_HEADER_SIZE;
+    try (RandomAccessFile newFile = new RandomAccessFile(tempPath.toFile(), "rw")) {
+      writeFileHeader(newFile);
+      if (keepRecords) {
+        DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(newFile.getFD()), 1 << 16));
+        for (int key = 0; key < newOffsets.length; key++) {
+          long offset = current.offsets.get(key);
+          newOffsets[key] = offset == NO_OFFSET ? NO_OFFSET : newEnd;
+          if (offset != NO_OFFSET) {
+            newEnd += copyRecord(current, key, offset, out);
+          }
+        }
+        for (Map.Entry<Integer, Long> entry : current.negativeKeyOffsets.entrySet()) {
+          newNegativeKeyOffsets.put(entry.getKey(), newEnd);
+          newEnd += copyRecord(current, entry.getKey(), entry.getValue(), out);
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tempPath);
+      throw e;
+    }
+    // Windows can't replace a file that is still open or mapped. Readers wait for the lock until
+    // the new file is in place.
+    current.file.close();
+    boolean moved = false;
+    try {
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+      moved = true;
+    } finally {
+      if (!moved) {
+        Files.deleteIfExists(tempPath);
+      }
+      // If the move failed, the old file is reopened and its offsets are still valid.
+      MappedFile file = new MappedFile(new RandomAccessFile(path.toFile(), "rw"));
+      if (moved) {
+        fileEnd = newEnd;
+        garbageBytes = 0;
+        state =
+            new State(
+                file,
+                file.remap(new MappedByteBuffer[0], newEnd),
+                new AtomicLongArray(newOffsets),
+                newNegativeKeyOffsets);
+      } else {
+        state = current.withFile(file, file.remap(new MappedByteBuffer[0], fileEnd));
+      }
+    }
+  }
+
+  private static long copyRecord(State state, int key, long offset, DataOutputStream out)
+      throws IOException {
+    byte[] value = state.read(offset);
+    out.writeInt(key);
+    out.writeInt(value.length);
+    out.write(value);
+    return RECORD_HEADER_SIZE + value.length;
+  }
+
+  @Override
+  public synchronized void clear() {
+    writeBuffer.reset();
+    unflushedOffsets.clear();
+    size = 0;
+    try {
+      rewrite(/* keepRecords= */ false);
+    } catch (IOException e) {
+      deferredIOFailure = e;
+    }
+    pending.clear();
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  @Override
+  public synchronized void forEach(BiConsumer<Integer, byte[]> consumer) {
+    // The file can't be replaced while the lock is held.
+    State current = state;
+    for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+      if (entry.getValue() != REMOVED) {
+        consumer.accept(entry.getKey(), entry.getValue());
+      }
+    }
+    for (int key = 0; key < current.offsets.length(); key++) {
+      long offset = current.offsets.get(key);
+      if (offset != NO_OFFSET && !pending.containsKey(key)) {
+        consumer.accept(key, current.read(offset));
+      }
+    }
+    for (Map.Entry<Integer, Long> entry : current.negativeKeyOffsets.entrySet()) {
+      if (!pending.containsKey(entry.getKey())) {
+        consumer.accept(entry.getKey(), current.read(entry.getValue()));
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getFileSize() {
+    return fileEnd;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    state.file.close();
+  }
+}
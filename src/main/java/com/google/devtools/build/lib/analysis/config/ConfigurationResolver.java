@@ -105,6 +105,7 @@ public final class ConfigurationResolver {
   }
 
   private final SkyFunction.Environment env;
+  private final ExtendedEventHandler eventHandler;
   private final TargetAndConfiguration ctgValue;
   private final BuildConfiguration hostConfiguration;
   private final BuildOptions defaultBuildOptions;
@@ -116,7 +117,28 @@ public final class ConfigurationResolver {
       BuildConfiguration hostConfiguration,
       BuildOptions defaultBuildOptions,
       ImmutableMap<Label, ConfigMatchingProvider> configConditions) {
+    this(
+        env,
+        env.getListener(),
+        ctgValue,
+        hostConfiguration,
+        defaultBuildOptions,
+        configConditions);
+  }
+
+  /**
+   * Reports the events of the resolution, e.g. those of transitions, to {@code eventHandler}
+   * instead of to {@code env}'s listener.
+   */
+  public ConfigurationResolver(
+      SkyFunction.Environment env,
+      ExtendedEventHandler eventHandler,
+      TargetAndConfiguration ctgValue,
+      BuildConfiguration hostConfiguration,
+      BuildOptions defaultBuildOptions,
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions) {
     this.env = env;
+    this.eventHandler = eventHandler;
     this.ctgValue = ctgValue;
     this.hostConfiguration = hostConfiguration;
     this.defaultBuildOptions = defaultBuildOptions;
@@ -229,8 +251,7 @@ public final class ConfigurationResolver {
           ctgValue.getLabel()
               + " has aspects attached, but these are not supported in retroactive"
               + " trimming mode.";
-      env.getListener()
-          .handle(Event.error(TargetUtils.getLocationMaybe(ctgValue.getTarget()), message));
+      eventHandler.handle(Event.error(TargetUtils.getLocationMaybe(ctgValue.getTarget()), message));
       throw new DependencyEvaluationException(new InvalidConfigurationException(message));
     }
 
@@ -257,7 +278,7 @@ public final class ConfigurationResolver {
               getCurrentConfiguration().getOptions(),
               dependencyKey.getTransition(),
               buildSettingPackages,
-              env.getListener());
+              eventHandler);
     } catch (TransitionException e) {
       throw new DependencyEvaluationException(e);
     }
@@ -361,7 +382,7 @@ public final class ConfigurationResolver {
                 getCurrentConfiguration().getOptions(),
                 baseTransition,
                 buildSettingPackages,
-                env.getListener());
+                eventHandler);
       } catch (TransitionException e) {
         throw new DependencyEvaluationException(e);
       }
@@ -483,7 +504,7 @@ public final class ConfigurationResolver {
               dep.getLabel(),
               attribute == null ? "(null)" : attribute.getName(),
               Joiner.on(", ").join(missing));
-      env.getListener().handle(Event.error(msg));
+      eventHandler.handle(Event.error(msg));
       throw new DependencyEvaluationException(new InvalidConfigurationException(msg));
     }
   }
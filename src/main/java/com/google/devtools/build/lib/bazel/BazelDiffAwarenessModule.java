@@ -20,21 +20,27 @@ import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.WorkspaceBuilder;
 import com.google.devtools.build.lib.skyframe.DiffAwareness;
 import com.google.devtools.build.lib.skyframe.LocalDiffAwareness;
+import com.google.devtools.build.lib.skyframe.WatchmanDiffAwareness;
 import com.google.devtools.common.options.OptionsBase;
 
 /**
- * Provides the {@link DiffAwareness} implementation that uses the Java watch service.
+ * Provides the {@link DiffAwareness} implementations that use a file watching daemon or the
+ * operating system's file watch service.
  */
 public class BazelDiffAwarenessModule extends BlazeModule {
   @Override
   public void workspaceInit(
       BlazeRuntime runtime, BlazeDirectories directories, WorkspaceBuilder builder) {
     // Order here is important - LocalDiffAwareness creation always succeeds, so it must be last.
+    builder.addDiffAwarenessFactory(
+        new WatchmanDiffAwareness.Factory(
+            directories.getOutputBase().getRelative(WatchmanDiffAwareness.CLOCKS_FILE)));
     builder.addDiffAwarenessFactory(new LocalDiffAwareness.Factory(ImmutableList.<String>of()));
   }
 
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
-    return ImmutableList.<Class<? extends OptionsBase>>of(LocalDiffAwareness.Options.class);
+    return ImmutableList.<Class<? extends OptionsBase>>of(
+        LocalDiffAwareness.Options.class, WatchmanDiffAwareness.Options.class);
   }
 }
@@ -428,6 +428,33 @@ public class BuildRequestOptions extends OptionsBase {
       help = "If this flag is set, use a fork join pool in the abstract queue visitor.")
   public boolean useForkJoinPool;
 
+  @Option(
+      name = "experimental_skyframe_critical_path_scheduling",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      metadataTags = OptionMetadataTag.EXPERIMENTAL,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If this flag is set, Skyframe evaluates the nodes that were on the critical path of"
+              + " previous builds in this server first during the execution phase. Has no effect"
+              + " with --experimental_use_fork_join_pool.")
+  public boolean skyframeCriticalPathScheduling;
+
+  @Option(
+      name = "experimental_skyframe_immutable_repositories",
+      converter = Converters.CommaSeparatedOptionListConverter.class,
+      allowMultiple = true,
+      defaultValue = "null",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      metadataTags = OptionMetadataTag.EXPERIMENTAL,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "Names of external repositories whose files are only changed by fetching them. During"
+              + " the execution phase, Skyframe frees the graph edges below their file system"
+              + " nodes, except those to the repositories, through which the nodes are still"
+              + " invalidated when a repository is fetched again.")
+  public List<String> skyframeImmutableRepositories;
+
   @Option(
       name = "experimental_replay_action_out_err",
       defaultValue = "false",
@@ -289,6 +289,11 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnStrategy {
       return lazyInputMapping;
     }
 
+    @Override
+    public SpawnInputExpander getSpawnInputExpander() {
+      return spawnInputExpander;
+    }
+
     @Override
     public void report(ProgressStatus state, String name) {
       ActionExecutionMetadata action = spawn.getResourceOwner();
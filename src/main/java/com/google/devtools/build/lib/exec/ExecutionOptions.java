@@ -408,6 +408,18 @@ public class ExecutionOptions extends OptionsBase {
               + "number of file digests to be cached.")
   public long cacheSizeForComputedFileDigests;
 
+  @Option(
+      name = "experimental_persist_computed_file_digests",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If true and --cache_computed_file_digests is not 0, the cached file digests are also "
+              + "stored in the output base, so that they survive server restarts. Like the "
+              + "in-memory cache, this relies on the path, inode, modification time, change time "
+              + "and size of a file to notice changes to it.")
+  public boolean persistComputedFileDigests;
+
   @Option(
     name = "experimental_enable_critical_path_profiling",
     defaultValue = "true",
@@ -230,9 +230,31 @@ public class SpawnInputExpander {
 
     TreeMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
     addInputs(inputMap, spawn, artifactExpander);
+    addRunfilesAndFilesets(inputMap, spawn, artifactExpander, actionInputFileCache);
+    return inputMap;
+  }
+
+  /**
+   * Like {@link #getInputMapping}, but only returns the runfiles and filesets of the given spawn,
+   * for callers that process {@link Spawn#getInputFiles} themselves. Entries of the returned map
+   * take precedence over input files at the same path.
+   */
+  public SortedMap<PathFragment, ActionInput> getRunfilesAndFilesetMapping(
+      Spawn spawn, ArtifactExpander artifactExpander, MetadataProvider actionInputFileCache)
+      throws IOException {
+    TreeMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+    addRunfilesAndFilesets(inputMap, spawn, artifactExpander, actionInputFileCache);
+    return inputMap;
+  }
+
+  private void addRunfilesAndFilesets(
+      Map<PathFragment, ActionInput> inputMap,
+      Spawn spawn,
+      ArtifactExpander artifactExpander,
+      MetadataProvider actionInputFileCache)
+      throws IOException {
     addRunfilesToInputs(
         inputMap, spawn.getRunfilesSupplier(), actionInputFileCache, artifactExpander);
     addFilesetManifests(spawn.getFilesetMappings(), inputMap);
-    return inputMap;
   }
 }
@@ -200,6 +200,15 @@ public interface SpawnRunner {
 
     SortedMap<PathFragment, ActionInput> getInputMapping() throws IOException;
 
+    /**
+     * Returns the {@link SpawnInputExpander} that computes the {@link #getInputMapping input
+     * mapping}, or {@code null} if it is computed otherwise.
+     */
+    @Nullable
+    default SpawnInputExpander getSpawnInputExpander() {
+      return null;
+    }
+
     /** Reports a progress update to the Spawn strategy. */
     void report(ProgressStatus state, String name);
 
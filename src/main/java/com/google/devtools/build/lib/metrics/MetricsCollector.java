@@ -19,19 +19,29 @@ import com.google.devtools.build.lib.actions.ActionCompletionEvent;
 import com.google.devtools.build.lib.analysis.AnalysisPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.ActionSummary;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.DiskCacheMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.MemoryMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.PackageMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.SkyframeMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.SkyframeMetrics.SkyFunctionStats;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.TargetMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.TimingMetrics;
 import com.google.devtools.build.lib.buildtool.BuildPrecompleteEvent;
 import com.google.devtools.build.lib.metrics.MetricsModule.Options;
+import com.google.devtools.build.lib.profiler.MetricData;
+import com.google.devtools.build.lib.profiler.MetricData.HistogramElement;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics.FunctionStatistics;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 
 class MetricsCollector {
 
@@ -43,6 +53,7 @@ class MetricsCollector {
   private int targetsLoaded;
   private int targetsConfigured;
   private int packagesLoaded;
+  @Nullable private DiskCacheMetrics diskCacheMetrics;
 
   MetricsCollector(CommandEnvironment env) {
     this.env = env;
@@ -70,6 +81,11 @@ class MetricsCollector {
     executedActionCount.incrementAndGet();
   }
 
+  @Subscribe
+  public void onDiskCacheMetrics(DiskCacheMetricsEvent event) {
+    diskCacheMetrics = event.getDiskCacheMetrics();
+  }
+
   @Subscribe
   public void onBuildComplete(BuildPrecompleteEvent event) {
     env.getEventBus().post(new BuildMetricsEvent(createBuildMetrics()));
@@ -82,6 +98,10 @@ class MetricsCollector {
     metrics.setTargetMetrics(createTargetMetrics());
     metrics.setPackageMetrics(createPackageMetrics());
     metrics.setTimingMetrics(createTimingMetrics());
+    metrics.setSkyframeMetrics(createSkyframeMetrics());
+    if (diskCacheMetrics != null) {
+      metrics.setDiskCacheMetrics(diskCacheMetrics);
+    }
     return metrics.build();
   }
 
@@ -118,6 +138,38 @@ class MetricsCollector {
     return PackageMetrics.newBuilder().setPackagesLoaded(packagesLoaded).build();
   }
 
+  private SkyframeMetrics createSkyframeMetrics() {
+    SkyFunctionStatistics statistics = env.getSkyframeExecutor().getSkyFunctionStatistics();
+    SkyframeMetrics.Builder skyframeMetrics =
+        SkyframeMetrics.newBuilder()
+            .setInvalidatedNodes(statistics.getInvalidatedNodes())
+            .setInvalidationTimeInMs(
+                TimeUnit.NANOSECONDS.toMillis(statistics.getInvalidationNanos()));
+    for (FunctionStatistics function : statistics.getStatistics()) {
+      MetricData computeTime = function.getComputeTime();
+      SkyFunctionStats.Builder stats =
+          SkyFunctionStats.newBuilder()
+              .setSkyFunctionName(function.getFunctionName().getName())
+              .setCalls(computeTime.getCount())
+              .setRestarts(function.getDepsPerRestart().getCount())
+              .setComputeTimeInMs(TimeUnit.NANOSECONDS.toMillis(function.getComputeNanos()))
+              .setWastedTimeInMs(TimeUnit.NANOSECONDS.toMillis(function.getWastedNanos()))
+              .setDepsRequestedByRestarts(function.getDepsRequestedByRestarts())
+              .setResumedCalls(function.getResumedCalls())
+              .setNodeRestarts(function.getNodeRestarts());
+      List<HistogramElement> histogram = computeTime.getHistogram();
+      int buckets = histogram.size();
+      while (buckets > 0 && histogram.get(buckets - 1).getCount() == 0) {
+        buckets--;
+      }
+      for (HistogramElement bucket : histogram.subList(0, buckets)) {
+        stats.addComputeTimeHistogram(bucket.getCount());
+      }
+      skyframeMetrics.addSkyFunctionStats(stats);
+    }
+    return skyframeMetrics.build();
+  }
+
   private static TimingMetrics createTimingMetrics() {
     TimingMetrics.Builder timingMetricsBuilder = TimingMetrics.newBuilder();
     Duration elapsedWallTime = Profiler.elapsedTimeMaybe();
@@ -19,14 +19,18 @@ import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.GoogleLogger;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.runtime.InfoItem;
+import com.google.devtools.build.lib.runtime.LoadingPhaseThreadsOption;
 import com.google.devtools.build.lib.runtime.ServerBuilder;
 import com.google.devtools.build.lib.util.StringUtilities;
+import com.google.devtools.build.skyframe.EvaluationAdmissionController;
+import com.google.devtools.build.skyframe.MemoryPressureAdmissionController;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
@@ -76,6 +80,9 @@ public final class PostGCMemoryUseRecorder implements NotificationListener {
   // reported that we were using no memory.
   private boolean memoryUsageReportedZero = false;
 
+  // Reset between commands, so that a command only reacts to its own GCs.
+  private volatile long lastPostGCHeapMemoryUsed = 0;
+
   @VisibleForTesting
   PostGCMemoryUseRecorder(Iterable<GarbageCollectorMXBean> mxBeans) {
     for (GarbageCollectorMXBean mxBean : mxBeans) {
@@ -92,12 +99,21 @@ public final class PostGCMemoryUseRecorder implements NotificationListener {
     return peakPostGCHeapMemoryUsed;
   }
 
+  /**
+   * Returns the heap memory in use after the last full GC since the last {@link #reset}, or 0 if
+   * there was none yet. Cheap enough to be called for every Skyframe evaluation.
+   */
+  public long getLastPostGCHeapMemoryUsed() {
+    return lastPostGCHeapMemoryUsed;
+  }
+
   public synchronized boolean wasMemoryUsageReportedZero() {
     return memoryUsageReportedZero;
   }
 
   public synchronized void reset() {
     peakPostGCHeapMemoryUsed = Optional.empty();
+    lastPostGCHeapMemoryUsed = 0;
     memoryUsageReportedZero = false;
   }
 
@@ -148,6 +164,7 @@ public final class PostGCMemoryUseRecorder implements NotificationListener {
     }
     updatePostGCHeapMemoryUsed(used);
     if (used > 0) {
+      lastPostGCHeapMemoryUsed = used;
       logger.atInfo().log("Memory use after full GC: %d", used);
     } else {
       logger.atInfo().log(
@@ -157,8 +174,31 @@ public final class PostGCMemoryUseRecorder implements NotificationListener {
     }
   }
 
-  /** Module to support "blaze info peak-heap-size". */
+  /**
+   * Module to support "blaze info peak-heap-size" and to throttle Skyframe evaluations when the
+   * heap is nearly full after a GC.
+   */
   public static class PostGCMemoryUseRecorderModule extends BlazeModule {
+
+    /** Command options for throttling Skyframe evaluations. */
+    public static class Options extends OptionsBase {
+      @Option(
+          name = "experimental_skyframe_memory_throttling_threshold",
+          defaultValue = "100",
+          documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+          effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+          help =
+              "If this flag is set to a value less than 100, Bazel runs fewer Skyframe evaluations"
+                  + " at once while more than this percentage of the heap is occupied after a"
+                  + " full GC, so that builds get slower instead of running out of memory.")
+      public int skyframeMemoryThrottlingThreshold;
+    }
+
+    @Override
+    public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+      return ImmutableList.of(Options.class);
+    }
+
     @Override
     public void serverInit(OptionsParsingResult startupOptions, ServerBuilder builder) {
       builder.addInfoItems(new PeakMemInfoItem());
@@ -169,6 +209,37 @@ public final class PostGCMemoryUseRecorder implements NotificationListener {
       if (!env.getCommandName().equals("info")) {
         PostGCMemoryUseRecorder.get().reset();
       }
+      Options options = env.getOptions().getOptions(Options.class);
+      int threshold = options != null ? options.skyframeMemoryThrottlingThreshold : 100;
+      env.getSkyframeExecutor()
+          .setEvaluationAdmissionController(
+              threshold > 0 && threshold < 100
+                  ? new MemoryPressureAdmissionController(
+                      PostGCMemoryUseRecorderModule::heapOccupancy,
+                      threshold / 100.0,
+                      evaluationThreads(env))
+                  : EvaluationAdmissionController.UNLIMITED);
+    }
+
+    /** Returns the most Skyframe evaluations the command runs at once, in any phase. */
+    private static int evaluationThreads(CommandEnvironment env) {
+      int threads = 0;
+      BuildRequestOptions buildRequestOptions =
+          env.getOptions().getOptions(BuildRequestOptions.class);
+      if (buildRequestOptions != null) {
+        threads = Math.max(threads, buildRequestOptions.jobs);
+      }
+      LoadingPhaseThreadsOption loadingPhaseThreadsOption =
+          env.getOptions().getOptions(LoadingPhaseThreadsOption.class);
+      if (loadingPhaseThreadsOption != null) {
+        threads = Math.max(threads, loadingPhaseThreadsOption.threads);
+      }
+      return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static double heapOccupancy() {
+      return (double) PostGCMemoryUseRecorder.get().getLastPostGCHeapMemoryUsed()
+          / Runtime.getRuntime().maxMemory();
     }
   }
 
@@ -16,68 +16,84 @@ package com.google.devtools.build.lib.profiler;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Range;
+import com.google.common.primitives.Ints;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.MetricData.HistogramElement;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A stat recorder that can record time histograms, count of calls, average time, Std. Deviation
  * and max time.
+ *
+ * <p>Recording doesn't lock, so that many threads can record stats at once, e.g. for every
+ * Skyframe evaluation. A snapshot taken while stats are being recorded may thus be slightly
+ * inconsistent, e.g. count a stat that isn't in the histogram yet.
  */
 @ThreadSafe
 public class SingleStatRecorder implements StatRecorder {
 
   private final int buckets;
   private final Object description;
-  private int[] histogram;
-  private int count = 0;
-  private double avg = 0.0;
-  private double m2 = 0.0;
-  private int max = -1;
+  private final LongAdder[] histogram;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final DoubleAdder sumOfSquares = new DoubleAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, -1);
 
   public SingleStatRecorder(Object description, int buckets) {
     this.description = description;
     Preconditions.checkArgument(buckets > 1, "At least two buckets (one for bellow start and one"
         + "for above start) are required");
     this.buckets = buckets;
-    histogram = new int[buckets];
+    histogram = new LongAdder[buckets];
+    for (int i = 0; i < buckets; i++) {
+      histogram[i] = new LongAdder();
+    }
   }
 
   /** Create an snapshot of the stats recorded up to now. */
   public MetricData snapshot() {
-    synchronized (this) {
-      ImmutableList.Builder<HistogramElement> result = ImmutableList.builder();
-      result.add(new HistogramElement(Range.closedOpen(0, 1), histogram[0]));
-      int from = 1;
-      for (int i = 1; i < histogram.length - 1; i++) {
-        int to = from << 1;
-        result.add(new HistogramElement(Range.closedOpen(from, to), histogram[i]));
-        from = to;
-      }
-      result.add(new HistogramElement(Range.atLeast(from), histogram[histogram.length - 1]));
-      return new MetricData(description, result.build(), count, avg,
-          Math.sqrt(m2 / (double) count), max);
+    ImmutableList.Builder<HistogramElement> result = ImmutableList.builder();
+    result.add(new HistogramElement(Range.closedOpen(0, 1), bucketCount(0)));
+    int from = 1;
+    for (int i = 1; i < histogram.length - 1; i++) {
+      int to = from << 1;
+      result.add(new HistogramElement(Range.closedOpen(from, to), bucketCount(i)));
+      from = to;
     }
+    result.add(new HistogramElement(Range.atLeast(from), bucketCount(histogram.length - 1)));
+    long count = this.count.sum();
+    double avg = count == 0 ? 0.0 : (double) sum.sum() / count;
+    // Rounding can make the variance of equal stats slightly negative.
+    double variance = Math.max(0.0, sumOfSquares.sum() / count - avg * avg);
+    return new MetricData(
+        description,
+        result.build(),
+        Ints.saturatedCast(count),
+        avg,
+        Math.sqrt(variance),
+        (int) max.get());
+  }
+
+  private int bucketCount(int bucket) {
+    return Ints.saturatedCast(histogram[bucket].sum());
   }
 
   @Override
   public void addStat(int duration, Object obj) {
     int histogramBucket = Math.min(32 - Integer.numberOfLeadingZeros(duration), buckets - 1);
-    synchronized (this) {
-      count++;
-      double delta = duration - avg;
-      avg += delta / count;
-      double newDelta = duration - avg;
-      m2 += delta * newDelta;
-      if (duration > max) {
-        max = duration;
-      }
-      histogram[histogramBucket]++;
-    }
+    count.increment();
+    sum.add(duration);
+    sumOfSquares.add((double) duration * duration);
+    max.accumulate(duration);
+    histogram[histogramBucket].increment();
   }
 
   @Override
   public boolean isEmpty() {
-    return snapshot().getCount() == 0;
+    return count.sum() == 0;
   }
 
   @Override
@@ -0,0 +1,236 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
+import io.grpc.Context;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MissingDigestsFinder} that coalesces the queries of concurrently executing spawns.
+ *
+ * <p>Digests that are queried within a short window are sent to the server in a single request,
+ * or in requests of at most {@code maxBatchSize} digests. A digest that is part of a request that
+ * has not completed yet is not queried again, and a digest that the server reported as present is
+ * added to a {@link KnownPresentDigests} and not queried again as long as it is in there.
+ */
+@ThreadSafe
+final class BatchingMissingDigestsFinder implements MissingDigestsFinder {
+
+  private final MissingDigestsFinder delegate;
+  private final ScheduledExecutorService scheduler;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  // The requests on behalf of many spawns are attributed to a single, invocation-wide action id.
+  private final Context requestContext;
+
+  private final KnownPresentDigests knownPresent;
+
+  // Futures of the digests that are queued or being queried, completed with whether the digest is
+  // missing.
+  private final Map<Digest, SettableFuture<Boolean>> queries = new HashMap<>();
+  private List<Digest> batch = new ArrayList<>();
+  private boolean flushScheduled;
+
+  private final Stats stats = new Stats();
+
+  BatchingMissingDigestsFinder(
+      MissingDigestsFinder delegate,
+      ScheduledExecutorService scheduler,
+      Duration window,
+      int maxBatchSize,
+      Context requestContext,
+      KnownPresentDigests knownPresent) {
+    Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+    this.delegate = Preconditions.checkNotNull(delegate, "delegate");
+    this.scheduler = Preconditions.checkNotNull(scheduler, "scheduler");
+    this.windowNanos = window.toNanos();
+    this.maxBatchSize = maxBatchSize;
+    this.requestContext = Preconditions.checkNotNull(requestContext, "requestContext");
+    this.knownPresent = Preconditions.checkNotNull(knownPresent, "knownPresent");
+  }
+
+  @Override
+  public ListenableFuture<ImmutableSet<Digest>> findMissingDigests(Iterable<Digest> digests) {
+    Map<Digest, ListenableFuture<Boolean>> results = new HashMap<>();
+    List<List<Digest>> fullBatches = new ArrayList<>();
+    boolean scheduleFlush = false;
+    long requested = 0;
+    synchronized (this) {
+      for (Digest digest : digests) {
+        requested++;
+        if (knownPresent.contains(digest) || results.containsKey(digest)) {
+          continue;
+        }
+        SettableFuture<Boolean> query = queries.get(digest);
+        if (query == null) {
+          query = SettableFuture.create();
+          queries.put(digest, query);
+          batch.add(digest);
+          if (batch.size() == maxBatchSize) {
+            fullBatches.add(batch);
+            batch = new ArrayList<>();
+          }
+        }
+        // Cancelling the result for one spawn must not cancel the query shared with others.
+        results.put(digest, Futures.nonCancellationPropagating(query));
+      }
+      if (!batch.isEmpty() && !flushScheduled) {
+        flushScheduled = true;
+        scheduleFlush = true;
+      }
+    }
+    stats.requests.incrementAndGet();
+    stats.requestedDigests.addAndGet(requested);
+
+    for (List<Digest> fullBatch : fullBatches) {
+      send(fullBatch);
+    }
+    if (scheduleFlush) {
+      scheduler.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    if (results.isEmpty()) {
+      return Futures.immediateFuture(ImmutableSet.of());
+    }
+    return Futures.whenAllSucceed(results.values())
+        .call(
+            () -> {
+              ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+              for (Map.Entry<Digest, ListenableFuture<Boolean>> e : results.entrySet()) {
+                if (Futures.getDone(e.getValue())) {
+                  missing.add(e.getKey());
+                }
+              }
+              return missing.build();
+            },
+            MoreExecutors.directExecutor());
+  }
+
+  private void flush() {
+    List<Digest> toSend;
+    synchronized (this) {
+      flushScheduled = false;
+      toSend = batch;
+      batch = new ArrayList<>();
+    }
+    if (!toSend.isEmpty()) {
+      send(toSend);
+    }
+  }
+
+  private void send(List<Digest> digests) {
+    stats.batches.incrementAndGet();
+    stats.queriedDigests.addAndGet(digests.size());
+    ListenableFuture<ImmutableSet<Digest>> response;
+    try {
+      response = requestContext.call(() -> delegate.findMissingDigests(digests));
+    } catch (Exception e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        response,
+        new FutureCallback<ImmutableSet<Digest>>() {
+          @Override
+          public void onSuccess(ImmutableSet<Digest> missing) {
+            for (Digest digest : digests) {
+              boolean isMissing = missing.contains(digest);
+              if (!isMissing) {
+                knownPresent.add(digest);
+              }
+              complete(digest).set(isMissing);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            for (Digest digest : digests) {
+              complete(digest).setException(t);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private synchronized SettableFuture<Boolean> complete(Digest digest) {
+    return Preconditions.checkNotNull(queries.remove(digest), "no query for %s", digest);
+  }
+
+  Stats getStats() {
+    return stats;
+  }
+
+  /** Counters describing how many round trips a {@link BatchingMissingDigestsFinder} saved. */
+  static final class Stats {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestedDigests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong queriedDigests = new AtomicLong();
+
+    /** Returns the number of calls to {@link BatchingMissingDigestsFinder#findMissingDigests}. */
+    long getRequests() {
+      return requests.get();
+    }
+
+    /** Returns the number of digests that were asked about. */
+    long getRequestedDigests() {
+      return requestedDigests.get();
+    }
+
+    /** Returns the number of batches sent to the server. */
+    long getBatches() {
+      return batches.get();
+    }
+
+    /** Returns the number of digests sent to the server. */
+    long getQueriedDigests() {
+      return queriedDigests.get();
+    }
+
+    /** Returns the number of requests that did not need a round trip of their own. */
+    long getSavedRoundTrips() {
+      return Math.max(0, getRequests() - getBatches());
+    }
+
+    @Override
+    public String toString() {
+      long batches = getBatches();
+      return MoreObjects.toStringHelper(this)
+          .add("requests", getRequests())
+          .add("requestedDigests", getRequestedDigests())
+          .add("batches", batches)
+          .add("queriedDigests", getQueriedDigests())
+          .add("averageBatchSize", batches == 0 ? 0 : getQueriedDigests() / batches)
+          .add("savedRoundTrips", getSavedRoundTrips())
+          .toString();
+    }
+  }
+}
@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.remote;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.lang.String.format;
 import static java.util.Collections.singletonMap;
@@ -50,10 +51,8 @@ import io.netty.util.ReferenceCounted;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -81,9 +80,8 @@ class ByteStreamUploader extends AbstractReferenceCounted {
 
   private final Object lock = new Object();
 
-  /** Contains the hash codes of already uploaded blobs. **/
-  @GuardedBy("lock")
-  private final Set<HashCode> uploadedBlobs = new HashSet<>();
+  /** Contains the hash codes of uploaded blobs and of blobs known to be present. */
+  private final KnownPresentDigests knownPresent;
 
   @GuardedBy("lock")
   private final Map<HashCode, ListenableFuture<Void>> uploadsInProgress = new HashMap<>();
@@ -108,6 +106,26 @@ class ByteStreamUploader extends AbstractReferenceCounted {
       CallCredentialsProvider callCredentialsProvider,
       long callTimeoutSecs,
       RemoteRetrier retrier) {
+    this(
+        instanceName,
+        channel,
+        callCredentialsProvider,
+        callTimeoutSecs,
+        retrier,
+        new KnownPresentDigests());
+  }
+
+  /**
+   * Creates a new instance that records uploaded blobs in {@code knownPresent}, and does not upload
+   * blobs in it again unless forced to.
+   */
+  public ByteStreamUploader(
+      @Nullable String instanceName,
+      ReferenceCountedChannel channel,
+      CallCredentialsProvider callCredentialsProvider,
+      long callTimeoutSecs,
+      RemoteRetrier retrier,
+      KnownPresentDigests knownPresent) {
     checkArgument(callTimeoutSecs > 0, "callTimeoutSecs must be gt 0.");
 
     this.instanceName = instanceName;
@@ -115,6 +133,7 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     this.callCredentialsProvider = callCredentialsProvider;
     this.callTimeoutSecs = callTimeoutSecs;
     this.retrier = retrier;
+    this.knownPresent = checkNotNull(knownPresent, "knownPresent");
   }
 
   /**
@@ -220,7 +239,7 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     synchronized (lock) {
       checkState(!isShutdown, "Must not call uploadBlobs after shutdown.");
 
-      if (!forceUpload && uploadedBlobs.contains(hash)) {
+      if (!forceUpload && knownPresent.contains(hash)) {
         return Futures.immediateFuture(null);
       }
 
@@ -233,9 +252,7 @@ class ByteStreamUploader extends AbstractReferenceCounted {
           Futures.transform(
               startAsyncUpload(hash, chunker),
               (v) -> {
-                synchronized (lock) {
-                  uploadedBlobs.add(hash);
-                }
+                knownPresent.add(hash);
                 return null;
               },
               MoreExecutors.directExecutor());
@@ -268,8 +285,11 @@ class ByteStreamUploader extends AbstractReferenceCounted {
   }
 
   private static String buildUploadResourceName(
-      String instanceName, UUID uuid, HashCode hash, long size) {
-    String resourceName = format("uploads/%s/blobs/%s/%d", uuid, hash, size);
+      String instanceName, UUID uuid, HashCode hash, long size, boolean compressed) {
+    String resourceName =
+        compressed
+            ? format("uploads/%s/compressed-blobs/deflate/%s/%d", uuid, hash, size)
+            : format("uploads/%s/blobs/%s/%d", uuid, hash, size);
     if (!Strings.isNullOrEmpty(instanceName)) {
       resourceName = instanceName + "/" + resourceName;
     }
@@ -285,7 +305,9 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     }
 
     UUID uploadId = UUID.randomUUID();
-    String resourceName = buildUploadResourceName(instanceName, uploadId, hash, chunker.getSize());
+    String resourceName =
+        buildUploadResourceName(
+            instanceName, uploadId, hash, chunker.getSize(), chunker.isCompressed());
     AsyncUpload newUpload =
         new AsyncUpload(
             channel, callCredentialsProvider, callTimeoutSecs, retrier, resourceName, chunker);
@@ -357,7 +379,7 @@ class ByteStreamUploader extends AbstractReferenceCounted {
               () ->
                   retrier.executeAsync(
                       () -> {
-                        if (committedOffset.get() < chunker.getSize()) {
+                        if (!isComplete(committedOffset.get())) {
                           return ctx.call(
                               () -> callAndQueryOnFailure(committedOffset, progressiveBackoff));
                         }
@@ -370,8 +392,8 @@ class ByteStreamUploader extends AbstractReferenceCounted {
           callFuture,
           (result) -> {
             long committedSize = committedOffset.get();
-            long expected = chunker.getSize();
-            if (committedSize != expected) {
+            long expected = chunker.isCompressed() ? chunker.getOffset() : chunker.getSize();
+            if (committedSize != expected && !(chunker.isCompressed() && committedSize == -1)) {
               String message =
                   format(
                       "write incomplete: committed_size %d for %d total", committedSize, expected);
@@ -382,6 +404,18 @@ class ByteStreamUploader extends AbstractReferenceCounted {
           MoreExecutors.directExecutor());
     }
 
+    /**
+     * Returns whether the server has committed the whole blob. The size of compressed data is only
+     * known once the chunker has been consumed, and the server reports a committed size of -1 if a
+     * compressed blob was already present.
+     */
+    private boolean isComplete(long committedSize) {
+      if (!chunker.isCompressed()) {
+        return committedSize >= chunker.getSize();
+      }
+      return committedSize == -1 || (!chunker.hasNext() && committedSize == chunker.getOffset());
+    }
+
     private ByteStreamFutureStub bsFutureStub() {
       return ByteStreamGrpc.newFutureStub(channel)
           .withInterceptors(TracingMetadataUtils.attachMetadataFromContextInterceptor())
@@ -29,13 +29,21 @@ import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 
 /**
  * Splits a data source into one or more {@link Chunk}s of at most {@code chunkSize} bytes.
  *
+ * <p>If the chunker is compressed, the data source is compressed with raw DEFLATE (RFC 1951) as it
+ * is read, and the chunks and their offsets refer to the compressed data. {@link #getSize()} still
+ * returns the size of the uncompressed data. Compression is deterministic, so seeking to an offset
+ * compresses the data source again from the start and skips the compressed bytes before it.
+ *
  * <p>After a data source has been fully consumed, that is until {@link #hasNext()} returns
  * {@code false}, the chunker closes the underlying data source (i.e. file) itself. However, in
  * case of error or when a data source does not get fully consumed, a user must call
@@ -96,6 +104,7 @@ public final class Chunker {
   private final Supplier<InputStream> dataSupplier;
   private final long size;
   private final int chunkSize;
+  private final boolean compressed;
   private final Chunk emptyChunk;
 
   private InputStream data;
@@ -107,9 +116,14 @@ public final class Chunker {
   private boolean initialized;
 
   Chunker(Supplier<InputStream> dataSupplier, long size, int chunkSize) {
+    this(dataSupplier, size, chunkSize, /* compressed= */ false);
+  }
+
+  Chunker(Supplier<InputStream> dataSupplier, long size, int chunkSize, boolean compressed) {
     this.dataSupplier = checkNotNull(dataSupplier);
     this.size = size;
     this.chunkSize = chunkSize;
+    this.compressed = compressed;
     this.emptyChunk = new Chunk(ByteString.EMPTY, 0);
   }
 
@@ -117,10 +131,16 @@ public final class Chunker {
     return offset;
   }
 
+  /** Returns the size of the uncompressed data. */
   public long getSize() {
     return size;
   }
 
+  /** Returns whether the chunks contain compressed data. */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
   /**
    * Reset the {@link Chunker} state to when it was newly constructed.
    *
@@ -173,6 +193,10 @@ public final class Chunker {
 
     maybeInitialize();
 
+    if (compressed) {
+      return nextCompressed();
+    }
+
     if (size == 0) {
       data = null;
       return emptyChunk;
@@ -214,7 +238,34 @@ public final class Chunker {
     return new Chunk(blob, offsetBefore);
   }
 
+  /**
+   * Returns the next chunk of compressed data. The size of the compressed data isn't known in
+   * advance, so the end of the data is detected by reading ahead one byte.
+   */
+  private Chunk nextCompressed() throws IOException {
+    if (chunkCache == null) {
+      chunkCache = new byte[chunkSize];
+    }
+    long offsetBefore = offset;
+    int bytesRead = ByteStreams.read(data, chunkCache, 0, chunkSize);
+    offset += bytesRead;
+    ByteString blob = ByteString.copyFrom(chunkCache, 0, bytesRead);
+
+    int nextByte = data.read();
+    if (nextByte == -1) {
+      data.close();
+      data = null;
+      chunkCache = null;
+    } else {
+      ((PushbackInputStream) data).unread(nextByte);
+    }
+
+    return new Chunk(blob, offsetBefore);
+  }
+
+  /** Returns the number of bytes left to read. Only available for uncompressed chunkers. */
   public long bytesLeft() {
+    checkState(!compressed, "The size of compressed data is not known in advance");
     return getSize() - getOffset();
   }
 
@@ -227,6 +278,9 @@ public final class Chunker {
     checkState(chunkCache == null);
     try {
       data = dataSupplier.get();
+      if (compressed) {
+        data = new PushbackInputStream(new DeflatingInputStream(data));
+      }
     } catch (RuntimeException e) {
       Throwables.propagateIfPossible(e.getCause(), IOException.class);
       throw e;
@@ -234,6 +288,22 @@ public final class Chunker {
     initialized = true;
   }
 
+  /** A {@link DeflaterInputStream} that releases its {@link Deflater} when closed. */
+  private static final class DeflatingInputStream extends DeflaterInputStream {
+    DeflatingInputStream(InputStream in) {
+      super(in, new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true));
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        def.end();
+      }
+    }
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -242,6 +312,7 @@ public final class Chunker {
   public static class Builder {
     private int chunkSize = getDefaultChunkSize();
     private long size;
+    private boolean compressed;
     private Supplier<InputStream> inputStream;
 
     public Builder setInput(byte[] data) {
@@ -303,9 +374,15 @@ public final class Chunker {
       return this;
     }
 
+    /** Whether to compress the data, see {@link Chunker}. */
+    public Builder setCompressed(boolean compressed) {
+      this.compressed = compressed;
+      return this;
+    }
+
     public Chunker build() {
       checkNotNull(inputStream);
-      return new Chunker(inputStream, size, chunkSize);
+      return new Chunker(inputStream, size, chunkSize, compressed);
     }
   }
 }
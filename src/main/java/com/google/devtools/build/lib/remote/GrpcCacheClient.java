@@ -39,6 +39,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -64,10 +65,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
 import javax.annotation.Nullable;
 
 /** A RemoteActionCache implementation that uses gRPC calls to a remote cache server. */
@@ -298,15 +302,19 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
     Context ctx = Context.current();
     AtomicLong offset = new AtomicLong(0);
     ProgressiveBackoff progressiveBackoff = new ProgressiveBackoff(retrier::newBackoff);
+    // The read offset of a compressed blob refers to the uncompressed data, so count the bytes
+    // after decompression.
+    @Nullable
+    CountingOutputStream countingOut =
+        options.cacheCompression ? new CountingOutputStream(out) : null;
+    Callable<ListenableFuture<Void>> read =
+        countingOut != null
+            ? () ->
+                requestCompressedRead(offset, progressiveBackoff, digest, countingOut, hashSupplier)
+            : () -> requestRead(offset, progressiveBackoff, digest, out, hashSupplier);
     ListenableFuture<Void> downloadFuture =
         Utils.refreshIfUnauthenticatedAsync(
-            () ->
-                retrier.executeAsync(
-                    () ->
-                        ctx.call(
-                            () ->
-                                requestRead(offset, progressiveBackoff, digest, out, hashSupplier)),
-                    progressiveBackoff),
+            () -> retrier.executeAsync(() -> ctx.call(read), progressiveBackoff),
             callCredentialsProvider);
 
     return Futures.catchingAsync(
@@ -317,11 +325,47 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
   }
 
   public static String getResourceName(String instanceName, Digest digest) {
+    return getResourceName(instanceName, digest, /* compressed= */ false);
+  }
+
+  private static String getResourceName(String instanceName, Digest digest, boolean compressed) {
     String resourceName = "";
     if (!instanceName.isEmpty()) {
       resourceName += instanceName + "/";
     }
-    return resourceName + "blobs/" + DigestUtil.toString(digest);
+    return resourceName
+        + (compressed ? "compressed-blobs/deflate/" : "blobs/")
+        + DigestUtil.toString(digest);
+  }
+
+  /**
+   * Reads a blob compressed with raw DEFLATE and decompresses it into {@code countingOut}. Every
+   * attempt starts a new compressed stream at {@code offset}, so it needs its own {@link Inflater}.
+   */
+  private ListenableFuture<Void> requestCompressedRead(
+      AtomicLong offset,
+      ProgressiveBackoff progressiveBackoff,
+      Digest digest,
+      CountingOutputStream countingOut,
+      @Nullable Supplier<HashCode> hashSupplier) {
+    Inflater inflater = new Inflater(/* nowrap= */ true);
+    ListenableFuture<Void> read =
+        requestRead(
+            // Counts compressed bytes, which aren't needed.
+            new AtomicLong(offset.get()),
+            progressiveBackoff,
+            digest,
+            new InflaterOutputStream(countingOut, inflater),
+            hashSupplier,
+            /* compressed= */ true);
+    return Futures.whenAllComplete(read)
+        .callAsync(
+            () -> {
+              offset.set(countingOut.getCount());
+              inflater.end();
+              return read;
+            },
+            MoreExecutors.directExecutor());
   }
 
   private ListenableFuture<Void> requestRead(
@@ -330,7 +374,18 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
       Digest digest,
       OutputStream out,
       @Nullable Supplier<HashCode> hashSupplier) {
-    String resourceName = getResourceName(options.remoteInstanceName, digest);
+    return requestRead(
+        offset, progressiveBackoff, digest, out, hashSupplier, /* compressed= */ false);
+  }
+
+  private ListenableFuture<Void> requestRead(
+      AtomicLong offset,
+      ProgressiveBackoff progressiveBackoff,
+      Digest digest,
+      OutputStream out,
+      @Nullable Supplier<HashCode> hashSupplier,
+      boolean compressed) {
+    String resourceName = getResourceName(options.remoteInstanceName, digest, compressed);
     SettableFuture<Void> future = SettableFuture.create();
     bsAsyncStub()
         .read(
@@ -367,6 +422,10 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
               @Override
               public void onCompleted() {
                 try {
+                  if (out instanceof InflaterOutputStream) {
+                    // Write out the rest of the decompressed data.
+                    ((InflaterOutputStream) out).finish();
+                  }
                   if (hashSupplier != null) {
                     Utils.verifyBlobContents(
                         digest.getHash(), DigestUtil.hashCodeToString(hashSupplier.get()));
@@ -385,7 +444,10 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
   public ListenableFuture<Void> uploadFile(Digest digest, Path path) {
     return uploader.uploadBlobAsync(
         HashCode.fromString(digest.getHash()),
-        Chunker.builder().setInput(digest.getSizeBytes(), path).build(),
+        Chunker.builder()
+            .setInput(digest.getSizeBytes(), path)
+            .setCompressed(options.cacheCompression)
+            .build(),
         /* forceUpload= */ true);
   }
 
@@ -393,7 +455,10 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
   public ListenableFuture<Void> uploadBlob(Digest digest, ByteString data) {
     return uploader.uploadBlobAsync(
         HashCode.fromString(digest.getHash()),
-        Chunker.builder().setInput(data.toByteArray()).build(),
+        Chunker.builder()
+            .setInput(data.toByteArray())
+            .setCompressed(options.cacheCompression)
+            .build(),
         /* forceUpload= */ true);
   }
 }
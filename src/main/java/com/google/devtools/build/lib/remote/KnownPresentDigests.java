@@ -0,0 +1,182 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.util.ConcurrentDigestSet;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import java.time.Duration;
+import javax.annotation.Nullable;
+
+/**
+ * A set of digests that are known to be present in the remote cache, either because the server
+ * said so or because they were uploaded. Blobs in the set neither need to be checked for presence
+ * nor uploaded again.
+ *
+ * <p>Only the binary hashes of the digests are kept, in a compact {@link ConcurrentDigestSet}. All
+ * digests of a set are expected to be computed by the same digest function; the length of their
+ * hashes is fixed by the first digest added, and digests of another length are never considered
+ * present. A set for a single invocation never forgets a
+ * digest. A set that is kept across invocations forgets a digest after at most its time to live,
+ * so that blobs evicted by the server in the meantime are uploaded again. Instead of keeping a
+ * timestamp per digest, digests are kept in two generations that are rotated every half of the
+ * time to live.
+ */
+@ThreadSafe
+public final class KnownPresentDigests {
+
+  /** The digests added in a span of time, starting at {@code startNanos}. */
+  private static final class Generation {
+    private final long startNanos;
+    // Allocated by the first add, once the length of the hashes is known.
+    @Nullable private volatile ConcurrentDigestSet hashes;
+
+    Generation(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    boolean contains(byte[] hash) {
+      ConcurrentDigestSet hashes = this.hashes;
+      return hashes != null && hashes.hashLength() == hash.length && hashes.contains(hash);
+    }
+
+    void add(byte[] hash) {
+      ConcurrentDigestSet hashes = this.hashes;
+      if (hashes == null) {
+        synchronized (this) {
+          hashes = this.hashes;
+          if (hashes == null) {
+            hashes = new ConcurrentDigestSet(hash.length);
+            this.hashes = hashes;
+          }
+        }
+      }
+      if (hashes.hashLength() == hash.length) {
+        hashes.add(hash);
+      }
+    }
+
+    int size() {
+      ConcurrentDigestSet hashes = this.hashes;
+      return hashes == null ? 0 : hashes.size();
+    }
+  }
+
+  private static final Generation EMPTY = new Generation(Long.MIN_VALUE);
+
+  private final Clock clock;
+  @Nullable private final Duration ttl;
+  private final String scope;
+
+  private volatile Generation current;
+  private volatile Generation previous = EMPTY;
+
+  /** Creates a set for a single invocation. */
+  public KnownPresentDigests() {
+    this(BlazeClock.instance(), /* ttl= */ null, /* scope= */ "");
+  }
+
+  /**
+   * Creates a set whose digests are forgotten after at most {@code ttl}, or never if it is {@code
+   * null}.
+   *
+   * @param scope identifies the remote cache the digests are present in, see {@link #isCompatible}
+   */
+  public KnownPresentDigests(Clock clock, @Nullable Duration ttl, String scope) {
+    Preconditions.checkArgument(
+        ttl == null || !ttl.isNegative() && !ttl.isZero(), "ttl must be positive: %s", ttl);
+    this.clock = Preconditions.checkNotNull(clock, "clock");
+    this.ttl = ttl;
+    this.scope = Preconditions.checkNotNull(scope, "scope");
+    this.current = new Generation(clock.nanoTime());
+  }
+
+  /**
+   * Returns whether this set can be kept for an invocation that uses the remote cache identified
+   * by {@code scope} and the time to live {@code ttl}.
+   */
+  public boolean isCompatible(String scope, Duration ttl) {
+    return this.scope.equals(scope) && ttl.equals(this.ttl);
+  }
+
+  public boolean contains(Digest digest) {
+    return contains(DigestUtil.toBinaryDigest(digest));
+  }
+
+  public boolean contains(HashCode hash) {
+    return contains(hash.asBytes());
+  }
+
+  private boolean contains(byte[] hash) {
+    long now = clock.nanoTime();
+    maybeRotate(now);
+    if (current.contains(hash)) {
+      return true;
+    }
+    Generation previous = this.previous;
+    return now - previous.startNanos < ttlNanos() && previous.contains(hash);
+  }
+
+  public void add(Digest digest) {
+    add(DigestUtil.toBinaryDigest(digest));
+  }
+
+  public void add(HashCode hash) {
+    add(hash.asBytes());
+  }
+
+  private void add(byte[] hash) {
+    maybeRotate(clock.nanoTime());
+    current.add(hash);
+  }
+
+  public void addAll(Iterable<Digest> digests) {
+    maybeRotate(clock.nanoTime());
+    Generation current = this.current;
+    for (Digest digest : digests) {
+      current.add(DigestUtil.toBinaryDigest(digest));
+    }
+  }
+
+  /** Returns the number of remembered digests, including some that may have expired. */
+  public int size() {
+    return current.size() + previous.size();
+  }
+
+  private long ttlNanos() {
+    return ttl == null ? Long.MAX_VALUE : ttl.toNanos();
+  }
+
+  /**
+   * Starts a new generation if the current one is older than half the time to live, so that the
+   * digests of the current generation are less than half the time to live old, and those of the
+   * previous generation less than the time to live.
+   */
+  private void maybeRotate(long now) {
+    if (ttl == null || now - current.startNanos < ttlNanos() / 2) {
+      return;
+    }
+    synchronized (this) {
+      if (now - current.startNanos >= ttlNanos() / 2) {
+        previous = current;
+        current = new Generation(now);
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.exec.ModuleActionContextRegistry;
 import com.google.devtools.build.lib.exec.SpawnCache;
 import com.google.devtools.build.lib.exec.SpawnStrategyRegistry;
 import com.google.devtools.build.lib.remote.common.RemoteExecutionClient;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
@@ -43,6 +44,7 @@ final class RemoteActionContextProvider implements ExecutorLifecycleListener {
   @Nullable private final ListeningScheduledExecutorService retryScheduler;
   private final DigestUtil digestUtil;
   @Nullable private final Path logDir;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
   private ImmutableSet<ActionInput> filesToDownload = ImmutableSet.of();
 
   private RemoteActionContextProvider(
@@ -51,22 +53,31 @@ final class RemoteActionContextProvider implements ExecutorLifecycleListener {
       @Nullable RemoteExecutionClient executor,
       @Nullable ListeningScheduledExecutorService retryScheduler,
       DigestUtil digestUtil,
-      @Nullable Path logDir) {
+      @Nullable Path logDir,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.env = Preconditions.checkNotNull(env, "env");
     this.cache = Preconditions.checkNotNull(cache, "cache");
     this.executor = executor;
     this.retryScheduler = retryScheduler;
     this.digestUtil = digestUtil;
     this.logDir = logDir;
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   public static RemoteActionContextProvider createForRemoteCaching(
       CommandEnvironment env,
       RemoteCache cache,
       ListeningScheduledExecutorService retryScheduler,
-      DigestUtil digestUtil) {
+      DigestUtil digestUtil,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     return new RemoteActionContextProvider(
-        env, cache, /*executor=*/ null, retryScheduler, digestUtil, /*logDir=*/ null);
+        env,
+        cache,
+        /*executor=*/ null,
+        retryScheduler,
+        digestUtil,
+        /*logDir=*/ null,
+        merkleTreeCache);
   }
 
   public static RemoteActionContextProvider createForRemoteExecution(
@@ -75,9 +86,10 @@ final class RemoteActionContextProvider implements ExecutorLifecycleListener {
       RemoteExecutionClient executor,
       ListeningScheduledExecutorService retryScheduler,
       DigestUtil digestUtil,
-      Path logDir) {
+      Path logDir,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     return new RemoteActionContextProvider(
-        env, cache, executor, retryScheduler, digestUtil, logDir);
+        env, cache, executor, retryScheduler, digestUtil, logDir, merkleTreeCache);
   }
 
   /**
@@ -108,7 +120,8 @@ final class RemoteActionContextProvider implements ExecutorLifecycleListener {
             retryScheduler,
             digestUtil,
             logDir,
-            filesToDownload);
+            filesToDownload,
+            merkleTreeCache);
     registryBuilder.registerStrategy(
         new RemoteSpawnStrategy(env.getExecRoot(), spawnRunner, verboseFailures), "remote");
   }
@@ -129,7 +142,8 @@ final class RemoteActionContextProvider implements ExecutorLifecycleListener {
             env.getCommandId().toString(),
             env.getReporter(),
             digestUtil,
-            filesToDownload);
+            filesToDownload,
+            merkleTreeCache);
     registryBuilder.register(SpawnCache.class, spawnCache, "remote-cache");
   }
 
@@ -53,7 +53,14 @@ public final class RemoteCacheClientFactory {
       RemoteOptions options)
       throws IOException {
     DiskCacheClient diskCacheClient =
-        createDiskCache(workingDirectory, diskCachePath, remoteVerifyDownloads, digestUtil);
+        createDiskCache(
+            workingDirectory,
+            diskCachePath,
+            options.diskCacheMaxSize,
+            options.diskCacheChunkingThreshold,
+            options.diskCacheWriterThreads,
+            remoteVerifyDownloads,
+            digestUtil);
     return new DiskAndRemoteCacheClient(diskCacheClient, remoteCacheClient, options);
   }
 
@@ -88,7 +95,13 @@ public final class RemoteCacheClientFactory {
     }
     if (isDiskCache(options)) {
       return createDiskCache(
-          workingDirectory, options.diskCache, options.remoteVerifyDownloads, digestUtil);
+          workingDirectory,
+          options.diskCache,
+          options.diskCacheMaxSize,
+          options.diskCacheChunkingThreshold,
+          options.diskCacheWriterThreads,
+          options.remoteVerifyDownloads,
+          digestUtil);
     }
     throw new IllegalArgumentException(
         "Unrecognized RemoteOptions configuration: remote Http cache URL and/or local disk cache"
@@ -141,6 +154,9 @@ public final class RemoteCacheClientFactory {
   private static DiskCacheClient createDiskCache(
       Path workingDirectory,
       PathFragment diskCachePath,
+      long maxSizeBytes,
+      long chunkingThresholdBytes,
+      int writerThreads,
       boolean verifyDownloads,
       DigestUtil digestUtil)
       throws IOException {
@@ -149,7 +165,8 @@ public final class RemoteCacheClientFactory {
     if (!cacheDir.exists()) {
       cacheDir.createDirectoryAndParents();
     }
-    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil);
+    return new DiskCacheClient(
+        cacheDir, maxSizeBytes, chunkingThresholdBytes, writerThreads, verifyDownloads, digestUtil);
   }
 
   private static RemoteCacheClient createDiskAndHttpCache(
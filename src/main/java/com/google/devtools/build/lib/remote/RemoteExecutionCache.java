@@ -18,10 +18,13 @@ import static java.lang.String.format;
 
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.flogger.GoogleLogger;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree.PathOrBytes;
@@ -35,10 +38,30 @@ import java.util.Map;
 
 /** A {@link RemoteCache} with additional functionality needed for remote execution. */
 public class RemoteExecutionCache extends RemoteCache {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private final MissingDigestsFinder missingDigestsFinder;
+  private final KnownPresentDigests knownPresent;
 
   public RemoteExecutionCache(
       RemoteCacheClient protocolImpl, RemoteOptions options, DigestUtil digestUtil) {
+    this(protocolImpl, protocolImpl, new KnownPresentDigests(), options, digestUtil);
+  }
+
+  /**
+   * Creates a cache that asks {@code missingDigestsFinder} which inputs of a spawn need to be
+   * uploaded, e.g. to batch the queries of concurrent spawns. Inputs in {@code knownPresent} are
+   * neither checked nor uploaded, and inputs that have been checked or uploaded are added to it.
+   */
+  public RemoteExecutionCache(
+      RemoteCacheClient protocolImpl,
+      MissingDigestsFinder missingDigestsFinder,
+      KnownPresentDigests knownPresent,
+      RemoteOptions options,
+      DigestUtil digestUtil) {
     super(protocolImpl, options, digestUtil);
+    this.missingDigestsFinder = missingDigestsFinder;
+    this.knownPresent = knownPresent;
   }
 
   /**
@@ -55,10 +78,16 @@ public class RemoteExecutionCache extends RemoteCache {
    */
   public void ensureInputsPresent(MerkleTree merkleTree, Map<Digest, Message> additionalInputs)
       throws IOException, InterruptedException {
-    Iterable<Digest> allDigests =
-        Iterables.concat(merkleTree.getAllDigests(), additionalInputs.keySet());
+    ImmutableList<Digest> unknownDigests =
+        ImmutableList.copyOf(
+            Iterables.filter(
+                Iterables.concat(merkleTree.getAllDigests(), additionalInputs.keySet()),
+                digest -> !knownPresent.contains(digest)));
+    if (unknownDigests.isEmpty()) {
+      return;
+    }
     ImmutableSet<Digest> missingDigests =
-        getFromFuture(cacheProtocol.findMissingDigests(allDigests));
+        getFromFuture(missingDigestsFinder.findMissingDigests(unknownDigests));
 
     List<ListenableFuture<Void>> uploadFutures = new ArrayList<>();
     for (Digest missingDigest : missingDigests) {
@@ -66,6 +95,17 @@ public class RemoteExecutionCache extends RemoteCache {
     }
 
     waitForBulkTransfer(uploadFutures, /* cancelRemainingOnInterrupt=*/ false);
+    knownPresent.addAll(unknownDigests);
+  }
+
+  @Override
+  public void close() {
+    if (missingDigestsFinder instanceof BatchingMissingDigestsFinder) {
+      logger.atInfo().log(
+          "Batched FindMissingBlobs: %s",
+          ((BatchingMissingDigestsFinder) missingDigestsFinder).getStats());
+    }
+    super.close();
   }
 
   private ListenableFuture<Void> uploadBlob(
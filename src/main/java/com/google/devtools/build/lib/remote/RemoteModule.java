@@ -25,6 +25,8 @@ import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.flogger.GoogleLogger;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -49,9 +51,11 @@ import com.google.devtools.build.lib.authandtls.NetrcCredentials;
 import com.google.devtools.build.lib.authandtls.NetrcParser;
 import com.google.devtools.build.lib.bazel.repository.downloader.Downloader;
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.DiskCacheMetrics;
 import com.google.devtools.build.lib.buildeventstream.LocalFilesArtifactUploader;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
+import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
@@ -59,11 +63,17 @@ import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.exec.ModuleActionContextRegistry;
 import com.google.devtools.build.lib.exec.SpawnStrategyRegistry;
+import com.google.devtools.build.lib.metrics.DiskCacheMetricsEvent;
 import com.google.devtools.build.lib.packages.TargetUtils;
 import com.google.devtools.build.lib.remote.RemoteServerCapabilities.ServerCapabilitiesRequirement;
+import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskAndRemoteCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheStats;
 import com.google.devtools.build.lib.remote.downloader.GrpcRemoteDownloader;
 import com.google.devtools.build.lib.remote.logging.LoggingInterceptor;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -97,12 +107,14 @@ import io.grpc.ClientInterceptor;
 import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
 public final class RemoteModule extends BlazeModule {
@@ -118,6 +130,12 @@ public final class RemoteModule extends BlazeModule {
   private RemoteActionInputFetcher actionInputFetcher;
   private RemoteOutputsMode remoteOutputsMode;
   private RemoteOutputService remoteOutputService;
+  // Only valid for a single command, as nested sets don't change when the files in them do.
+  @Nullable private MerkleTreeCache merkleTreeCache;
+  // Kept across commands if a time to live is set, see updateKnownPresentDigests.
+  @Nullable private KnownPresentDigests knownPresentDigests;
+  @Nullable private DiskCacheClient diskCacheClient;
+  @Nullable private EventBus eventBus;
 
   private ChannelFactory channelFactory =
       new ChannelFactory() {
@@ -214,10 +232,74 @@ public final class RemoteModule extends BlazeModule {
       handleInitFailure(env, e, Code.CACHE_INIT_FAILURE);
       return;
     }
+    diskCacheClient = findDiskCacheClient(cacheClient);
     RemoteCache remoteCache = new RemoteCache(cacheClient, remoteOptions, digestUtil);
     actionContextProvider =
         RemoteActionContextProvider.createForRemoteCaching(
-            env, remoteCache, /* retryScheduler= */ null, digestUtil);
+            env, remoteCache, /* retryScheduler= */ null, digestUtil, merkleTreeCache);
+  }
+
+  @Nullable
+  private static DiskCacheClient findDiskCacheClient(RemoteCacheClient cacheClient) {
+    if (cacheClient instanceof DiskCacheClient) {
+      return (DiskCacheClient) cacheClient;
+    }
+    if (cacheClient instanceof DiskAndRemoteCacheClient) {
+      return ((DiskAndRemoteCacheClient) cacheClient).getDiskCacheClient();
+    }
+    return null;
+  }
+
+  /**
+   * Reports the activity of the disk cache to the build metrics. Background writes are waited for
+   * first, as they would be at the end of the command anyway.
+   */
+  @Subscribe
+  public void executionPhaseComplete(ExecutionPhaseCompleteEvent event) {
+    DiskCacheClient diskCacheClient = this.diskCacheClient;
+    if (diskCacheClient == null) {
+      return;
+    }
+    try {
+      diskCacheClient.drainWrites();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    DiskCacheStats stats = diskCacheClient.getStats();
+    eventBus.post(
+        new DiskCacheMetricsEvent(
+            DiskCacheMetrics.newBuilder()
+                .setHits(stats.getHits())
+                .setMisses(stats.getMisses())
+                .setEvictedEntries(stats.getEvictedEntries())
+                .setEvictedBytes(stats.getEvictedBytes())
+                .setChunkedBytes(stats.getChunkedBytes())
+                .setDeduplicatedBytes(stats.getDeduplicatedBytes())
+                .setAsyncWrites(stats.getAsyncWrites())
+                .setFailedWrites(stats.getFailedWrites())
+                .build()));
+  }
+
+  /**
+   * Keeps the digests known to be present in the remote cache across commands if they have a time
+   * to live and are for the same remote cache, otherwise starts with an empty set.
+   */
+  private void updateKnownPresentDigests(
+      CommandEnvironment env, RemoteOptions remoteOptions, DigestUtil digestUtil) {
+    Duration ttl = remoteOptions.remoteKnownPresentDigestsTtl;
+    if (ttl.isZero()) {
+      knownPresentDigests = new KnownPresentDigests();
+      return;
+    }
+    String scope =
+        String.join(
+            "/",
+            remoteOptions.remoteCache,
+            remoteOptions.remoteInstanceName,
+            digestUtil.getDigestFunction().toString());
+    if (knownPresentDigests == null || !knownPresentDigests.isCompatible(scope, ttl)) {
+      knownPresentDigests = new KnownPresentDigests(env.getRuntime().getClock(), ttl, scope);
+    }
   }
 
   @Override
@@ -272,7 +354,8 @@ public final class RemoteModule extends BlazeModule {
           FailureDetails.RemoteOptions.Code.EXECUTION_WITH_INVALID_CACHE);
     }
 
-    env.getEventBus().register(this);
+    eventBus = env.getEventBus();
+    eventBus.register(this);
     String invocationId = env.getCommandId().toString();
     String buildRequestId = env.getBuildRequestId();
     env.getReporter().handle(Event.info(String.format("Invocation ID: %s", invocationId)));
@@ -281,6 +364,10 @@ public final class RemoteModule extends BlazeModule {
         env.getOutputBase().getRelative(env.getRuntime().getProductName() + "-remote-logs");
     cleanAndCreateRemoteLogsDir(logDir);
 
+    if (remoteOptions.remoteMerkleTreeCache && remoteOptions.remoteMerkleTreeCacheSize > 0) {
+      merkleTreeCache = new MerkleTreeCache(digestUtil, remoteOptions.remoteMerkleTreeCacheSize);
+    }
+
     if ((enableHttpCache || enableDiskCache) && !enableGrpcCache) {
       initHttpAndDiskCache(env, authAndTlsOptions, remoteOptions, digestUtil);
       return;
@@ -475,13 +562,15 @@ public final class RemoteModule extends BlazeModule {
       }
     }
 
+    updateKnownPresentDigests(env, remoteOptions, digestUtil);
     ByteStreamUploader uploader =
         new ByteStreamUploader(
             remoteOptions.remoteInstanceName,
             cacheChannel.retain(),
             callCredentialsProvider,
             remoteOptions.remoteTimeout.getSeconds(),
-            retrier);
+            retrier,
+            knownPresentDigests);
 
     cacheChannel.release();
     RemoteCacheClient cacheClient =
@@ -516,11 +605,30 @@ public final class RemoteModule extends BlazeModule {
       GrpcRemoteExecutor remoteExecutor =
           new GrpcRemoteExecutor(execChannel.retain(), callCredentialsProvider, execRetrier);
       execChannel.release();
+      MissingDigestsFinder missingDigestsFinder = cacheClient;
+      if (!remoteOptions.findMissingBlobsBatchWindow.isZero()) {
+        missingDigestsFinder =
+            new BatchingMissingDigestsFinder(
+                cacheClient,
+                retryScheduler,
+                remoteOptions.findMissingBlobsBatchWindow,
+                Math.max(1, remoteOptions.findMissingBlobsBatchSize),
+                TracingMetadataUtils.contextWithMetadata(
+                    buildRequestId, invocationId, "find-missing-blobs"),
+                knownPresentDigests);
+      }
       RemoteExecutionCache remoteCache =
-          new RemoteExecutionCache(cacheClient, remoteOptions, digestUtil);
+          new RemoteExecutionCache(
+              cacheClient, missingDigestsFinder, knownPresentDigests, remoteOptions, digestUtil);
       actionContextProvider =
           RemoteActionContextProvider.createForRemoteExecution(
-              env, remoteCache, remoteExecutor, retryScheduler, digestUtil, logDir);
+              env,
+              remoteCache,
+              remoteExecutor,
+              retryScheduler,
+              digestUtil,
+              logDir,
+              merkleTreeCache);
       repositoryRemoteExecutorFactoryDelegate.init(
           new RemoteRepositoryRemoteExecutorFactory(
               remoteCache,
@@ -546,10 +654,11 @@ public final class RemoteModule extends BlazeModule {
         }
       }
 
+      diskCacheClient = findDiskCacheClient(cacheClient);
       RemoteCache remoteCache = new RemoteCache(cacheClient, remoteOptions, digestUtil);
       actionContextProvider =
           RemoteActionContextProvider.createForRemoteCaching(
-              env, remoteCache, retryScheduler, digestUtil);
+              env, remoteCache, retryScheduler, digestUtil, merkleTreeCache);
     }
 
     if (enableRemoteDownloader) {
@@ -752,6 +861,9 @@ public final class RemoteModule extends BlazeModule {
     remoteDownloaderSupplier.set(null);
     actionContextProvider = null;
     actionInputFetcher = null;
+    diskCacheClient = null;
+    merkleTreeCache = null;
+    eventBus = null;
     remoteOutputsMode = null;
     remoteOutputService = null;
 
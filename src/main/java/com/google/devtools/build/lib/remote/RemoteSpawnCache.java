@@ -50,6 +50,7 @@ import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -65,7 +66,6 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
 import javax.annotation.Nullable;
 
 /** A remote {@link SpawnCache} implementation. */
@@ -92,6 +92,8 @@ final class RemoteSpawnCache implements SpawnCache {
    */
   private final ImmutableSet<ActionInput> filesToDownload;
 
+  @Nullable private final MerkleTreeCache merkleTreeCache;
+
   RemoteSpawnCache(
       Path execRoot,
       RemoteOptions options,
@@ -101,7 +103,8 @@ final class RemoteSpawnCache implements SpawnCache {
       String commandId,
       @Nullable Reporter cmdlineReporter,
       DigestUtil digestUtil,
-      ImmutableSet<ActionInput> filesToDownload) {
+      ImmutableSet<ActionInput> filesToDownload,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.options = options;
     this.verboseFailures = verboseFailures;
@@ -111,6 +114,7 @@ final class RemoteSpawnCache implements SpawnCache {
     this.commandId = commandId;
     this.digestUtil = digestUtil;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   @Override
@@ -126,9 +130,9 @@ final class RemoteSpawnCache implements SpawnCache {
     NetworkTime networkTime = new NetworkTime();
     Stopwatch totalTime = Stopwatch.createStarted();
 
-    SortedMap<PathFragment, ActionInput> inputMap = context.getInputMapping();
     MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+        RemoteSpawnRunner.buildInputMerkleTree(
+            spawn, context, execRoot, digestUtil, merkleTreeCache);
     SpawnMetrics.Builder spawnMetrics =
         SpawnMetrics.Builder.forRemoteExec()
             .setInputBytes(merkleTree.getInputBytes())
@@ -304,7 +308,7 @@ final class RemoteSpawnCache implements SpawnCache {
         public void close() {}
 
         private void checkForConcurrentModifications() throws IOException {
-          for (ActionInput input : inputMap.values()) {
+          for (ActionInput input : context.getInputMapping().values()) {
             if (input instanceof VirtualActionInput) {
               continue;
             }
@@ -62,6 +62,7 @@ import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.AbstractSpawnStrategy;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.RemoteLocalFallbackRegistry;
+import com.google.devtools.build.lib.exec.SpawnInputExpander;
 import com.google.devtools.build.lib.exec.SpawnRunner;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
@@ -70,6 +71,7 @@ import com.google.devtools.build.lib.remote.common.OperationObserver;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.common.RemoteExecutionClient;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -166,6 +168,8 @@ public class RemoteSpawnRunner implements SpawnRunner {
    */
   private final ImmutableSet<ActionInput> filesToDownload;
 
+  @Nullable private final MerkleTreeCache merkleTreeCache;
+
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
@@ -182,7 +186,8 @@ public class RemoteSpawnRunner implements SpawnRunner {
       ListeningScheduledExecutorService retryService,
       DigestUtil digestUtil,
       Path logDir,
-      ImmutableSet<ActionInput> filesToDownload) {
+      ImmutableSet<ActionInput> filesToDownload,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.remoteOptions = remoteOptions;
     this.executionOptions = executionOptions;
@@ -196,6 +201,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
     this.digestUtil = digestUtil;
     this.logDir = logDir;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   @Override
@@ -250,9 +256,8 @@ public class RemoteSpawnRunner implements SpawnRunner {
 
     context.report(ProgressStatus.SCHEDULING, getName());
     RemoteOutputsMode remoteOutputsMode = remoteOptions.remoteOutputsMode;
-    SortedMap<PathFragment, ActionInput> inputMap = context.getInputMapping();
     final MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+        buildInputMerkleTree(spawn, context, execRoot, digestUtil, merkleTreeCache);
     SpawnMetrics.Builder spawnMetrics =
         SpawnMetrics.Builder.forRemoteExec()
             .setInputBytes(merkleTree.getInputBytes())
@@ -326,7 +331,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
         }
       } catch (IOException e) {
         return execLocallyAndUploadOrFail(
-            spawn, context, inputMap, actionKey, action, command, uploadLocalResults, e);
+            spawn, context, actionKey, action, command, uploadLocalResults, e);
       }
 
       ExecuteRequest.Builder requestBuilder =
@@ -411,7 +416,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
             });
       } catch (IOException e) {
         return execLocallyAndUploadOrFail(
-            spawn, context, inputMap, actionKey, action, command, uploadLocalResults, e);
+            spawn, context, actionKey, action, command, uploadLocalResults, e);
       }
     } finally {
       withMetadata.detach(previous);
@@ -586,7 +591,6 @@ public class RemoteSpawnRunner implements SpawnRunner {
   private SpawnResult execLocallyAndUploadOrFail(
       Spawn spawn,
       SpawnExecutionContext context,
-      SortedMap<PathFragment, ActionInput> inputMap,
       ActionKey actionKey,
       Action action,
       Command command,
@@ -600,7 +604,13 @@ public class RemoteSpawnRunner implements SpawnRunner {
     }
     if (remoteOptions.remoteLocalFallback && !RemoteRetrierUtils.causedByExecTimeout(cause)) {
       return execLocallyAndUpload(
-          spawn, context, inputMap, actionKey, action, command, uploadLocalResults);
+          spawn,
+          context,
+          context.getInputMapping(),
+          actionKey,
+          action,
+          command,
+          uploadLocalResults);
     }
     return handleError(cause, context.getFileOutErr(), actionKey, context);
   }
@@ -680,6 +690,31 @@ public class RemoteSpawnRunner implements SpawnRunner {
         .build();
   }
 
+  /**
+   * Constructs the merkle tree of the inputs of {@code spawn}, reusing the trees of the nested sets
+   * of its input files from {@code merkleTreeCache} if it is not {@code null}.
+   */
+  static MerkleTree buildInputMerkleTree(
+      Spawn spawn,
+      SpawnExecutionContext context,
+      Path execRoot,
+      DigestUtil digestUtil,
+      @Nullable MerkleTreeCache merkleTreeCache)
+      throws IOException {
+    SpawnInputExpander spawnInputExpander = context.getSpawnInputExpander();
+    if (merkleTreeCache == null || spawnInputExpander == null) {
+      return MerkleTree.build(
+          context.getInputMapping(), context.getMetadataProvider(), execRoot, digestUtil);
+    }
+    return merkleTreeCache.build(
+        spawn.getInputFiles(),
+        spawnInputExpander.getRunfilesAndFilesetMapping(
+            spawn, context.getArtifactExpander(), context.getMetadataProvider()),
+        context.getArtifactExpander(),
+        context.getMetadataProvider(),
+        execRoot);
+  }
+
   static Action buildAction(Digest command, Digest inputRoot, Duration timeout, boolean cacheable) {
 
     Action.Builder action = Action.newBuilder();
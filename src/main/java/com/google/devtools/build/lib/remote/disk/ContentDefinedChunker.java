@@ -0,0 +1,136 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Splits a stream into chunks at boundaries determined by its content, so that a local change to
+ * a large blob only changes the chunks around it.
+ *
+ * <p>Boundaries are found with a Gear rolling hash over roughly the last 64 bytes, using a stricter
+ * condition before the average chunk size and a looser one after it (normalized chunking, as in
+ * FastCDC), which keeps the chunk sizes close to the average. Chunks are never smaller than the
+ * minimum size, except for the last one, and never larger than the maximum size.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ContentDefinedChunker {
+
+  /** Receives the chunks of a stream, in order. */
+  interface ChunkConsumer {
+    /** The contents of {@code buffer} are only valid for the duration of the call. */
+    void accept(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  static final int DEFAULT_AVERAGE_SIZE = 512 * 1024;
+
+  /**
+   * Random values by byte value. The seed is fixed so that the same content is split the same way
+   * by every version of Bazel, which is what makes chunks shareable in a long-lived disk cache.
+   */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    SplittableRandom random = new SplittableRandom(0x5ca1ab1e);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private final int minSize;
+  private final int averageSize;
+  private final int maxSize;
+  private final long strictMask;
+  private final long looseMask;
+
+  /** Creates a chunker with the given average chunk size, which must be a power of two. */
+  ContentDefinedChunker(int averageSize) {
+    Preconditions.checkArgument(
+        averageSize >= 64 && Integer.bitCount(averageSize) == 1,
+        "average chunk size must be a power of two of at least 64: %s",
+        averageSize);
+    this.minSize = averageSize / 4;
+    this.averageSize = averageSize;
+    this.maxSize = averageSize * 8;
+    int bits = Integer.numberOfTrailingZeros(averageSize);
+    // The low bits of a Gear hash only depend on the last few bytes, so test the high ones.
+    this.strictMask = -1L << (Long.SIZE - bits - 1);
+    this.looseMask = -1L << (Long.SIZE - bits + 1);
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /** Reads {@code in} to the end and passes its chunks to {@code consumer}. */
+  void chunk(InputStream in, ChunkConsumer consumer) throws IOException {
+    // Twice the maximum size, so that the buffer only needs to be compacted every few chunks.
+    byte[] buffer = new byte[2 * maxSize];
+    int start = 0;
+    int end = 0;
+    boolean eof = false;
+    while (true) {
+      if (!eof && end - start < maxSize) {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+          int read = in.read(buffer, end, buffer.length - end);
+          if (read < 0) {
+            eof = true;
+            break;
+          }
+          end += read;
+        }
+      }
+      if (start == end) {
+        return;
+      }
+      int length = nextChunkLength(buffer, start, end - start);
+      consumer.accept(buffer, start, length);
+      start += length;
+    }
+  }
+
+  /**
+   * Returns the length of the chunk starting at {@code offset}. Unless the end of the stream has
+   * been reached, at least {@link #maxSize} bytes must be available.
+   */
+  private int nextChunkLength(byte[] buffer, int offset, int available) {
+    if (available <= minSize) {
+      return available;
+    }
+    int limit = Math.min(available, maxSize);
+    int normalLimit = Math.min(limit, averageSize);
+    long hash = 0;
+    int i = minSize;
+    for (; i < normalLimit; i++) {
+      hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+      if ((hash & strictMask) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < limit; i++) {
+      hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+      if ((hash & looseMask) == 0) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+}
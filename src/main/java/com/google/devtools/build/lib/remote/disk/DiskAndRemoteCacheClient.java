@@ -20,6 +20,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.vfs.Path;
@@ -47,6 +48,11 @@ public final class DiskAndRemoteCacheClient implements RemoteCacheClient {
     this.options = options;
   }
 
+  /** Returns the disk cache that this client consults before the remote cache. */
+  public DiskCacheClient getDiskCacheClient() {
+    return diskCache;
+  }
+
   @Override
   public void uploadActionResult(ActionKey actionKey, ActionResult actionResult)
       throws IOException, InterruptedException {
@@ -129,9 +135,18 @@ public final class DiskAndRemoteCacheClient implements RemoteCacheClient {
   @Override
   public ListenableFuture<Void> downloadBlob(Digest digest, OutputStream out) {
     if (diskCache.contains(digest)) {
-      return diskCache.downloadBlob(digest, out);
+      // A blob stored in chunks turns out to be missing if one of its chunks was evicted. Nothing
+      // has been written to out in that case, so fall back to the remote cache.
+      return Futures.catchingAsync(
+          diskCache.downloadBlob(digest, out),
+          CacheNotFoundException.class,
+          (e) -> downloadBlobFromRemote(digest, out),
+          MoreExecutors.directExecutor());
     }
+    return downloadBlobFromRemote(digest, out);
+  }
 
+  private ListenableFuture<Void> downloadBlobFromRemote(Digest digest, OutputStream out) {
     Path tempPath = newTempPath();
     final OutputStream tempOut;
     try {
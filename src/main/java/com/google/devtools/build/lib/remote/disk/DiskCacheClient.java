@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.remote.disk;
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Digest;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
@@ -25,33 +27,131 @@ import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.Utils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
 import javax.annotation.Nullable;
 
-/** A on-disk store for the remote action cache. */
+/**
+ * A on-disk store for the remote action cache.
+ *
+ * <p>If a maximum size is given, the least recently used entries are evicted in the background
+ * once the cache grows beyond it. See {@link DiskCacheGarbageCollector}.
+ *
+ * <p>If a chunking threshold is given, CAS blobs of at least that size are split by a {@link
+ * ContentDefinedChunker} and stored as a manifest listing the digests of their chunks, which are
+ * themselves stored as ordinary CAS blobs. Blobs that only differ in a few places then share most
+ * of their chunks. The manifest of a blob is stored next to where the blob would be, with a {@code
+ * .chunks} suffix, so caches written with and without chunking can be mixed.
+ *
+ * <p>If writer threads are given, uploads return immediately and the entries are written in the
+ * background by a {@link DiskCacheWriter}, which is drained when the client is closed. Uploaded
+ * files are then verified against their digest while they are copied, as they may have changed
+ * since the upload. They are not hard linked into the cache: that would bump their ctime after
+ * Bazel recorded it, so that they would look modified to the next build, and the cache entry would
+ * change with the file if it is modified in place.
+ */
 public class DiskCacheClient implements RemoteCacheClient {
 
-  private static final String AC_DIRECTORY = "ac";
-  private static final String CAS_DIRECTORY = "cas";
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  static final String AC_DIRECTORY = "ac";
+  static final String CAS_DIRECTORY = "cas";
+  static final String CHUNK_MANIFEST_SUFFIX = ".chunks";
+  // Bounds the memory held by blobs waiting to be written.
+  private static final int MAX_PENDING_WRITES_PER_THREAD = 64;
 
   private final Path root;
   private final boolean verifyDownloads;
   private final DigestUtil digestUtil;
+  private final DiskCacheStats stats = new DiskCacheStats();
+  private final DiskCachePresenceIndex presenceIndex;
+  @Nullable private final DiskCacheGarbageCollector gc;
+  private final long chunkingThresholdBytes;
+  private final ContentDefinedChunker chunker =
+      new ContentDefinedChunker(ContentDefinedChunker.DEFAULT_AVERAGE_SIZE);
+  @Nullable private final DiskCacheWriter writer;
 
   public DiskCacheClient(Path root, boolean verifyDownloads, DigestUtil digestUtil) {
+    this(
+        root,
+        /* maxSizeBytes= */ 0,
+        /* chunkingThresholdBytes= */ 0,
+        /* writerThreads= */ 0,
+        verifyDownloads,
+        digestUtil);
+  }
+
+  /**
+   * Creates a disk cache at {@code root}. If {@code maxSizeBytes} is positive, the cache is garbage
+   * collected to stay below that size, otherwise it grows without bounds. If {@code
+   * chunkingThresholdBytes} is positive, CAS blobs of at least that size are stored in chunks. If
+   * {@code writerThreads} is positive, entries are written asynchronously by that many threads.
+   */
+  public DiskCacheClient(
+      Path root,
+      long maxSizeBytes,
+      long chunkingThresholdBytes,
+      int writerThreads,
+      boolean verifyDownloads,
+      DigestUtil digestUtil) {
     this.root = root;
     this.verifyDownloads = verifyDownloads;
     this.digestUtil = digestUtil;
+    this.chunkingThresholdBytes = chunkingThresholdBytes;
+    this.presenceIndex = DiskCachePresenceIndex.get(root, digestUtil.getHashLength());
+    this.gc =
+        maxSizeBytes > 0
+            ? DiskCacheGarbageCollector.get(root, maxSizeBytes, presenceIndex)
+            : null;
+    this.writer =
+        writerThreads > 0
+            ? new DiskCacheWriter(
+                writerThreads, writerThreads * MAX_PENDING_WRITES_PER_THREAD, stats)
+            : null;
   }
 
-  /** Returns {@code true} if the provided {@code key} is stored in the CAS. */
+  /** Returns the hit, miss and eviction counters of this cache. */
+  public DiskCacheStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Blocks until the entries that are being written in the background have been written, so that
+   * {@link #getStats} accounts for them.
+   */
+  public void drainWrites() throws InterruptedException {
+    if (writer != null) {
+      writer.drain();
+    }
+  }
+
+  /**
+   * Returns {@code true} if the provided {@code key} is stored in the CAS. Blobs that the {@link
+   * DiskCachePresenceIndex} knows to be missing are reported missing without checking the file
+   * system, all others are checked, since they may have been deleted outside of Bazel.
+   */
   public boolean contains(Digest digest) {
-    return toPath(digest.getHash(), /* actionResult= */ false).exists();
+    String hash = digest.getHash();
+    if (!presenceIndex.mayContain(hash)) {
+      return false;
+    }
+    if (toPath(hash, /* actionResult= */ false).exists() || toChunkManifestPath(hash).exists()) {
+      return true;
+    }
+    presenceIndex.remove(hash);
+    return false;
   }
 
   /** Returns {@code true} if the provided {@code key} is stored in the Action Cache. */
@@ -60,16 +160,37 @@ public class DiskCacheClient implements RemoteCacheClient {
   }
 
   public void captureFile(Path src, Digest digest, boolean isActionCache) throws IOException {
+    if (!isActionCache && shouldChunk(digest)) {
+      try (InputStream in = src.getInputStream()) {
+        saveChunked(digest, in, /* verify= */ false);
+      }
+      src.delete();
+      return;
+    }
     Path target = toPath(digest.getHash(), isActionCache);
     target.getParentDirectory().createDirectoryAndParents();
-    src.renameTo(target);
+    commit(digest.getHash(), src, target, !isActionCache, src.getFileSize());
   }
 
   private ListenableFuture<Void> download(Digest digest, OutputStream out, boolean isActionCache) {
     Path p = toPath(digest.getHash(), isActionCache);
+    if (!p.exists() && !isActionCache) {
+      Path manifest = toChunkManifestPath(digest.getHash());
+      if (manifest.exists()) {
+        return downloadChunked(digest, manifest, out);
+      }
+    }
     if (!p.exists()) {
+      stats.recordMiss();
+      if (!isActionCache) {
+        presenceIndex.remove(digest.getHash());
+      }
       return Futures.immediateFailedFuture(new CacheNotFoundException(digest));
     } else {
+      stats.recordHit();
+      if (gc != null) {
+        gc.recordAccess(p.relativeTo(root).getPathString());
+      }
       try (InputStream in = p.getInputStream()) {
         ByteStreams.copy(in, out);
         return Futures.immediateFuture(null);
@@ -79,6 +200,54 @@ public class DiskCacheClient implements RemoteCacheClient {
     }
   }
 
+  private ListenableFuture<Void> downloadChunked(Digest digest, Path manifest, OutputStream out) {
+    List<Path> chunks;
+    try {
+      chunks = readChunkManifest(manifest);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    // Check that all chunks are still there before writing anything, so that a blob with an
+    // evicted chunk is a plain cache miss.
+    for (Path chunk : chunks) {
+      if (!chunk.exists()) {
+        stats.recordMiss();
+        presenceIndex.remove(digest.getHash());
+        try {
+          manifest.delete();
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Failed to delete chunk manifest %s", manifest);
+        }
+        return Futures.immediateFailedFuture(new CacheNotFoundException(digest));
+      }
+    }
+    stats.recordHit();
+    recordChunkedAccess(manifest, chunks);
+    try {
+      for (Path chunk : chunks) {
+        try (InputStream in = chunk.getInputStream()) {
+          ByteStreams.copy(in, out);
+        }
+      }
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * Marks a chunked blob as accessed. The chunks are touched after the manifest, so that they're
+   * not evicted before any manifest that refers to them.
+   */
+  private void recordChunkedAccess(Path manifest, List<Path> chunks) {
+    if (gc != null) {
+      gc.recordAccess(manifest.relativeTo(root).getPathString());
+      for (Path chunk : chunks) {
+        gc.recordAccess(chunk.relativeTo(root).getPathString());
+      }
+    }
+  }
+
   @Override
   public ListenableFuture<Void> downloadBlob(Digest digest, OutputStream out) {
     @Nullable
@@ -110,39 +279,114 @@ public class DiskCacheClient implements RemoteCacheClient {
   @Override
   public void uploadActionResult(ActionKey actionKey, ActionResult actionResult)
       throws IOException {
-    try (InputStream data = actionResult.toByteString().newInput()) {
-      saveFile(actionKey.getDigest().getHash(), data, /* actionResult= */ true);
+    String key = actionKey.getDigest().getHash();
+    ListenableFuture<Void> result =
+        write(
+            "action result " + key,
+            () -> {
+              try (InputStream data = actionResult.toByteString().newInput()) {
+                saveFile(key, data, /* actionResult= */ true);
+              }
+            },
+            /* afterPending= */ true);
+    try {
+      Utils.getFromFuture(result);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing action result " + key);
     }
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.atWarning().log("Interrupted while waiting for writes to disk cache %s", root);
+      }
+    }
+    logger.atInfo().log("Disk cache %s: %s", root, stats);
+    if (gc != null) {
+      gc.flush();
+    }
+  }
 
   @Override
   public ListenableFuture<Void> uploadFile(Digest digest, Path file) {
-    try (InputStream in = file.getInputStream()) {
-      saveFile(digest.getHash(), in, /* actionResult= */ false);
-    } catch (IOException e) {
-      return Futures.immediateFailedFuture(e);
-    }
-    return Futures.immediateFuture(null);
+    return write(
+        file.getPathString(),
+        () -> {
+          try (InputStream in = file.getInputStream()) {
+            save(digest, in, /* verify= */ writer != null);
+          }
+        },
+        /* afterPending= */ false);
   }
 
   @Override
   public ListenableFuture<Void> uploadBlob(Digest digest, ByteString data) {
-    try (InputStream in = data.newInput()) {
-      saveFile(digest.getHash(), in, /* actionResult= */ false);
+    return write(
+        "blob " + digest.getHash(),
+        () -> {
+          try (InputStream in = data.newInput()) {
+            save(digest, in, /* verify= */ false);
+          }
+        },
+        /* afterPending= */ false);
+  }
+
+  /**
+   * Runs {@code write} on the {@link DiskCacheWriter} and returns a completed future, or runs it on
+   * the calling thread if there is no writer or it was closed already.
+   */
+  private ListenableFuture<Void> write(
+      String description, DiskCacheWriter.Write write, boolean afterPending) {
+    if (writer != null) {
+      try {
+        if (afterPending) {
+          writer.submitAfterPending(description, write);
+        } else {
+          writer.submit(description, write);
+        }
+        return Futures.immediateFuture(null);
+      } catch (RejectedExecutionException e) {
+        // Closed at the end of the build, write synchronously.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+    try {
+      write.run();
     } catch (IOException e) {
       return Futures.immediateFailedFuture(e);
     }
     return Futures.immediateFuture(null);
   }
 
+  /**
+   * Stores the blob read from {@code in}. If {@code verify} is true, the blob is only stored if it
+   * matches {@code digest}.
+   */
+  private void save(Digest digest, InputStream in, boolean verify) throws IOException {
+    if (shouldChunk(digest)) {
+      saveChunked(digest, in, verify);
+    } else {
+      saveFile(digest.getHash(), in, /* actionResult= */ false, verify ? digest : null);
+    }
+  }
+
   @Override
   public ListenableFuture<ImmutableSet<Digest>> findMissingDigests(Iterable<Digest> digests) {
-    // Both upload and download check if the file exists before doing I/O. So we don't
-    // have to do it here.
-    return Futures.immediateFuture(ImmutableSet.copyOf(digests));
+    ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+    for (Digest digest : digests) {
+      if (!contains(digest)) {
+        missing.add(digest);
+      }
+    }
+    return Futures.immediateFuture(missing.build());
   }
 
   protected Path toPathNoSplit(String key) {
@@ -155,20 +399,197 @@ public class DiskCacheClient implements RemoteCacheClient {
     return root.getChild(cacheFolder).getChild(key.substring(0, 2)).getChild(key);
   }
 
-  private void saveFile(String key, InputStream in, boolean actionResult) throws IOException {
-    Path target = toPath(key, actionResult);
-    if (target.exists()) {
+  private Path toChunkManifestPath(String key) {
+    return root.getChild(CAS_DIRECTORY)
+        .getChild(key.substring(0, 2))
+        .getChild(key + CHUNK_MANIFEST_SUFFIX);
+  }
+
+  private boolean shouldChunk(Digest digest) {
+    return chunkingThresholdBytes > 0 && digest.getSizeBytes() >= chunkingThresholdBytes;
+  }
+
+  /**
+   * Stores the blob read from {@code in} as chunks and a manifest listing them. Chunks that are
+   * already in the cache are not written again. If {@code verify} is true, the manifest is only
+   * stored if the blob matches {@code digest}.
+   */
+  private void saveChunked(Digest digest, InputStream in, boolean verify) throws IOException {
+    String key = digest.getHash();
+    if (toPath(key, /* actionResult= */ false).exists()) {
+      // Stored in one piece before chunking was enabled.
+      saveFile(key, in, /* actionResult= */ false, verify ? digest : null);
       return;
     }
-    target.getParentDirectory().createDirectoryAndParents();
+    Path manifest = toChunkManifestPath(key);
+    if (recordIfPresent(key, manifest, /* isCas= */ true)) {
+      recordChunkedAccess(manifest, readChunkManifest(manifest));
+      return;
+    }
+    StringBuilder manifestContent = new StringBuilder();
+    List<Path> chunks = new ArrayList<>();
+    HashingOutputStream blobHashOut =
+        digestUtil.newHashingOutputStream(ByteStreams.nullOutputStream());
+    long[] blobSize = {0};
+    chunker.chunk(
+        in,
+        (buffer, offset, length) -> {
+          if (verify) {
+            blobHashOut.write(buffer, offset, length);
+            blobSize[0] += length;
+          }
+          HashingOutputStream hashOut =
+              digestUtil.newHashingOutputStream(ByteStreams.nullOutputStream());
+          hashOut.write(buffer, offset, length);
+          String chunkKey = DigestUtil.hashCodeToString(hashOut.hash());
+          boolean written =
+              saveFile(
+                  chunkKey,
+                  new ByteArrayInputStream(buffer, offset, length),
+                  /* actionResult= */ false);
+          stats.recordChunk(length, /* deduplicated= */ !written);
+          manifestContent.append(chunkKey).append('\n');
+          chunks.add(toPath(chunkKey, /* actionResult= */ false));
+        });
+    if (verify) {
+      // The chunks that were written are stored under their own digests, so only the manifest
+      // must not be stored.
+      verifyContents(digest, blobHashOut.hash(), blobSize[0]);
+    }
+    manifest.getParentDirectory().createDirectoryAndParents();
+    byte[] manifestBytes = manifestContent.toString().getBytes(StandardCharsets.UTF_8);
+    Path temp = writeTemporary(new ByteArrayInputStream(manifestBytes));
+    commit(key, temp, manifest, /* isCas= */ true, manifestBytes.length);
+    recordChunkedAccess(manifest, chunks);
+  }
 
+  /** Returns the paths of the chunks listed in a chunk manifest, in order. */
+  private List<Path> readChunkManifest(Path manifest) throws IOException {
+    List<Path> chunks = new ArrayList<>();
+    for (String line : FileSystemUtils.readLines(manifest, StandardCharsets.UTF_8)) {
+      if (line.length() != digestUtil.getHashLength() * 2) {
+        throw new IOException("Corrupted chunk manifest " + manifest);
+      }
+      chunks.add(toPath(line, /* actionResult= */ false));
+    }
+    return chunks;
+  }
+
+  private boolean saveFile(String key, InputStream in, boolean actionResult) throws IOException {
+    return saveFile(key, in, actionResult, /* expectedDigest= */ null);
+  }
+
+  /**
+   * Stores the contents of {@code in}, if they match {@code expectedDigest} unless it is null.
+   * Returns false if the entry was already stored.
+   */
+  private boolean saveFile(
+      String key, InputStream in, boolean actionResult, @Nullable Digest expectedDigest)
+      throws IOException {
+    Path target = toPath(key, actionResult);
+    if (recordIfPresent(key, target, !actionResult)) {
+      return false;
+    }
+    target.getParentDirectory().createDirectoryAndParents();
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
+    Path temp = writeTemporary(in, expectedDigest);
+    commit(key, temp, target, !actionResult, temp.getFileSize());
+    return true;
+  }
+
+  /**
+   * Records an access to the entry at {@code target} of the blob or action result with {@code key}
+   * if it exists. Returns false if it doesn't.
+   *
+   * <p>The check is done with the lock of the entry held, so that the garbage collector either
+   * evicts the entry before or sees the access and keeps it.
+   */
+  private boolean recordIfPresent(String key, Path target, boolean isCas) {
+    Lock lock = presenceIndex.lockFor(key);
+    lock.lock();
+    try {
+      if (!target.exists()) {
+        return false;
+      }
+      if (isCas) {
+        presenceIndex.add(key);
+      }
+      if (gc != null) {
+        gc.recordAccess(target.relativeTo(root).getPathString());
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the complete file {@code file} of {@code size} bytes to {@code target} and records it,
+   * with the lock of the entry held so that the garbage collector can't interleave.
+   */
+  private void commit(String key, Path file, Path target, boolean isCas, long size)
+      throws IOException {
+    Lock lock = presenceIndex.lockFor(key);
+    lock.lock();
+    try {
+      file.renameTo(target);
+      if (isCas) {
+        presenceIndex.add(key);
+      }
+      if (gc != null) {
+        gc.recordWrite(target.relativeTo(root).getPathString(), size, stats);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Path writeTemporary(InputStream in) throws IOException {
+    return writeTemporary(in, /* expectedDigest= */ null);
+  }
+
+  /**
+   * Writes the contents of {@code in} to a new temporary file in the cache root. If {@code
+   * expectedDigest} isn't null, the file is deleted and an exception thrown unless the contents
+   * match it.
+   */
+  private Path writeTemporary(InputStream in, @Nullable Digest expectedDigest)
+      throws IOException {
     Path temp = toPathNoSplit(UUID.randomUUID().toString());
+    HashingOutputStream hashOut = null;
     try (OutputStream out = temp.getOutputStream()) {
-      ByteStreams.copy(in, out);
+      if (expectedDigest != null) {
+        hashOut = digestUtil.newHashingOutputStream(out);
+        ByteStreams.copy(in, hashOut);
+      } else {
+        ByteStreams.copy(in, out);
+      }
+    }
+    if (hashOut != null) {
+      try {
+        verifyContents(expectedDigest, hashOut.hash(), temp.getFileSize());
+      } catch (IOException e) {
+        temp.delete();
+        throw e;
+      }
     }
     // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
     // crashes (the OS may reorder the writes and the rename).
-    temp.renameTo(target);
+    return temp;
+  }
+
+  /**
+   * Throws if a blob with {@code hash} and {@code size} doesn't match {@code expected}, because it
+   * was modified since its digest was computed.
+   */
+  private static void verifyContents(Digest expected, HashCode hash, long size)
+      throws IOException {
+    String hashString = DigestUtil.hashCodeToString(hash);
+    if (size != expected.getSizeBytes() || !hashString.equals(expected.getHash())) {
+      throw new IOException(
+          String.format(
+              "Contents changed before being written to the disk cache: expected %s, got %s/%s",
+              DigestUtil.toString(expected), hashString, size));
+    }
   }
 }
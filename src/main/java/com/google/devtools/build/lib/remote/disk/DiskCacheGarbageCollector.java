@@ -0,0 +1,304 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the size of a disk cache below a configurable limit by evicting the least recently used
+ * entries.
+ *
+ * <p>Eviction happens on a dedicated background thread, so callers that add entries to the cache
+ * never block on it. The entries are tracked in a {@link DiskCacheIndex} which is loaded from disk
+ * once per server and cache directory, and persisted whenever a garbage collection finishes and at
+ * the end of every command. After it is loaded, and then at most every {@link
+ * #RECONCILE_INTERVAL_MILLIS}, the index is reconciled with the cache directory on the same thread,
+ * which picks up the entries that were written since the index was last saved or by other servers,
+ * and temporary files that were left behind by crashed writers are deleted.
+ *
+ * <p>Once the total size of the cache exceeds the maximum size, entries are evicted until it drops
+ * below {@link #LOW_WATERMARK} of the maximum size, to avoid collecting on every write.
+ */
+final class DiskCacheGarbageCollector {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+
+  @VisibleForTesting static final long RECONCILE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * Temporary files younger than this may still be written to, by this or another server, and are
+   * not deleted.
+   */
+  @VisibleForTesting static final long ORPHANED_FILE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** Garbage collectors by cache root. They outlive commands so that the index is loaded once. */
+  private static final ConcurrentHashMap<Path, DiskCacheGarbageCollector> instances =
+      new ConcurrentHashMap<>();
+
+  private final Path root;
+  private final Clock clock;
+  private final DiskCacheIndex index;
+  @Nullable private volatile DiskCachePresenceIndex presenceIndex;
+  private final ExecutorService executor;
+  private final Future<?> initialized;
+  private final AtomicBoolean collectionPending = new AtomicBoolean();
+  private volatile long maxSizeBytes;
+  // Only accessed on the background thread.
+  private long lastReconcileMillis;
+
+  @VisibleForTesting
+  DiskCacheGarbageCollector(
+      Path root,
+      long maxSizeBytes,
+      @Nullable DiskCachePresenceIndex presenceIndex,
+      Clock clock) {
+    this.root = root;
+    this.presenceIndex = presenceIndex;
+    this.clock = clock;
+    this.maxSizeBytes = maxSizeBytes;
+    this.index = new DiskCacheIndex(root);
+    this.executor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-gc-%d")
+                .setDaemon(true)
+                .build());
+    this.initialized = executor.submit(this::initialize);
+  }
+
+  /**
+   * Returns the garbage collector for the disk cache at {@code root}, creating it if necessary, and
+   * sets its maximum size to {@code maxSizeBytes}. Evicted blobs are removed from {@code
+   * presenceIndex}, which replaces the index given to previous calls.
+   */
+  static DiskCacheGarbageCollector get(
+      Path root, long maxSizeBytes, DiskCachePresenceIndex presenceIndex) {
+    DiskCacheGarbageCollector gc =
+        instances.computeIfAbsent(
+            root,
+            r ->
+                new DiskCacheGarbageCollector(
+                    r, maxSizeBytes, presenceIndex, BlazeClock.instance()));
+    gc.maxSizeBytes = maxSizeBytes;
+    gc.presenceIndex = presenceIndex;
+    return gc;
+  }
+
+  private void initialize() {
+    index.load();
+    reconcile();
+  }
+
+  /**
+   * Reconciles the index with the cache directory, deletes orphaned temporary files and saves the
+   * index.
+   */
+  private void reconcile() {
+    long startMillis = clock.currentTimeMillis();
+    lastReconcileMillis = startMillis;
+    try {
+      DiskCacheIndex.ReconcileResult result = index.reconcile(startMillis);
+      int deleted = deleteOrphanedTemporaryFiles(startMillis);
+      logger.atInfo().log(
+          "Reconciled the disk cache index at %s in %d ms: %d entries added, %d removed, %d"
+              + " orphaned temporary files deleted",
+          root,
+          clock.currentTimeMillis() - startMillis,
+          result.addedEntries,
+          result.removedEntries,
+          deleted);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to index the disk cache at %s", root);
+    }
+    saveIndex();
+  }
+
+  /**
+   * Deletes the temporary files in the cache root that were last modified more than {@link
+   * #ORPHANED_FILE_AGE_MILLIS} before {@code nowMillis}. Returns the number of deleted files.
+   */
+  private int deleteOrphanedTemporaryFiles(long nowMillis) throws IOException {
+    int deleted = 0;
+    for (Dirent dirent : root.readdir(Symlinks.NOFOLLOW)) {
+      if (dirent.getType() != Dirent.Type.FILE || !isTemporaryFileName(dirent.getName())) {
+        continue;
+      }
+      Path path = root.getChild(dirent.getName());
+      FileStatus status = path.statIfFound(Symlinks.NOFOLLOW);
+      if (status == null || nowMillis - status.getLastModifiedTime() < ORPHANED_FILE_AGE_MILLIS) {
+        continue;
+      }
+      try {
+        if (path.delete()) {
+          deleted++;
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to delete orphaned temporary file %s", path);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Returns whether {@code name} is the name of a file that {@link DiskCacheClient} or {@link
+   * DiskCacheIndex} writes before renaming it into place.
+   */
+  @VisibleForTesting
+  static boolean isTemporaryFileName(String name) {
+    if (name.startsWith(DiskCacheIndex.TEMP_FILENAME_PREFIX)) {
+      name = name.substring(DiskCacheIndex.TEMP_FILENAME_PREFIX.length());
+    }
+    if (name.length() != 36) {
+      return false;
+    }
+    try {
+      UUID.fromString(name);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /** Records that the entry at {@code key} was added and may trigger a garbage collection. */
+  void recordWrite(String key, long size, DiskCacheStats stats) {
+    index.add(key, size, clock.currentTimeMillis());
+    maybeCollect(stats);
+  }
+
+  /** Records that the entry at {@code key} was read. */
+  void recordAccess(String key) {
+    index.touch(key, clock.currentTimeMillis());
+  }
+
+  private void maybeCollect(DiskCacheStats stats) {
+    if (index.getTotalSize() > maxSizeBytes && collectionPending.compareAndSet(false, true)) {
+      executor.execute(() -> collect(stats));
+    }
+  }
+
+  private void collect(DiskCacheStats stats) {
+    collectionPending.set(false);
+    long targetSize = (long) (maxSizeBytes * LOW_WATERMARK);
+    if (index.getTotalSize() <= targetSize) {
+      return;
+    }
+    long startMillis = clock.currentTimeMillis();
+    DiskCachePresenceIndex presenceIndex = this.presenceIndex;
+    for (DiskCacheIndex.Entry entry : index.getEntriesByLastAccess()) {
+      if (index.getTotalSize() <= targetSize) {
+        break;
+      }
+      Path path = root.getRelative(entry.getKey());
+      String hash = DiskCachePresenceIndex.hashOf(path.getBaseName());
+      Lock lock = presenceIndex != null ? presenceIndex.lockFor(hash) : null;
+      if (lock != null) {
+        lock.lock();
+      }
+      try {
+        evict(entry, path, hash, startMillis, presenceIndex, stats);
+      } finally {
+        if (lock != null) {
+          lock.unlock();
+        }
+      }
+    }
+    saveIndex();
+  }
+
+  /**
+   * Deletes the file of {@code entry}, unless it was written or read since the collection started.
+   * Called with the lock of the entry's blob held, so that concurrent writes either see the file
+   * gone or keep it from being evicted.
+   */
+  private void evict(
+      DiskCacheIndex.Entry entry,
+      Path path,
+      String hash,
+      long startMillis,
+      @Nullable DiskCachePresenceIndex presenceIndex,
+      DiskCacheStats stats) {
+    if (!index.isCurrent(entry) || entry.getLastAccessMillis() >= startMillis) {
+      return;
+    }
+    if (presenceIndex != null && entry.getKey().startsWith(DiskCacheClient.CAS_DIRECTORY)) {
+      presenceIndex.remove(hash);
+    }
+    boolean deleted;
+    try {
+      // The file is already gone if another server evicted it.
+      deleted = path.delete();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to evict %s from disk cache", entry.getKey());
+      return;
+    }
+    if (index.remove(entry) && deleted) {
+      stats.recordEviction(entry.getSize());
+    }
+  }
+
+  /**
+   * Schedules the index to be written to disk, after reconciling it if that was last done more than
+   * {@link #RECONCILE_INTERVAL_MILLIS} ago.
+   */
+  void flush() {
+    executor.execute(
+        () -> {
+          if (clock.currentTimeMillis() - lastReconcileMillis >= RECONCILE_INTERVAL_MILLIS) {
+            reconcile();
+          } else {
+            saveIndex();
+          }
+        });
+  }
+
+  private void saveIndex() {
+    try {
+      index.save();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to save the disk cache index at %s", root);
+    }
+  }
+
+  /** Blocks until all pending work on the background thread has finished. */
+  @VisibleForTesting
+  void awaitIdle() throws Exception {
+    initialized.get();
+    executor.submit(() -> {}).get();
+  }
+
+  @VisibleForTesting
+  DiskCacheIndex getIndex() {
+    return index;
+  }
+}
@@ -0,0 +1,293 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory index of the entries of a {@link DiskCacheClient}, recording the size and the last
+ * access time of every file so that the least recently used entries can be evicted without walking
+ * the cache directory.
+ *
+ * <p>The index is persisted to a single file in the cache root so that it can be reloaded at server
+ * startup. Entries are keyed by their path relative to the cache root. Several servers may share a
+ * cache directory, so saving the index merges the entries and access times that other servers
+ * saved since. As the index can still miss entries, e.g. when a server crashed before saving, or
+ * track entries that another server evicted, it is periodically {@link #reconcile reconciled} with
+ * the cache directory.
+ *
+ * <p>This class is thread-safe.
+ */
+final class DiskCacheIndex {
+
+  @VisibleForTesting static final String INDEX_FILENAME = "index";
+  static final String TEMP_FILENAME_PREFIX = INDEX_FILENAME + ".";
+
+  private static final long MAGIC = 0x6469736b63616368L; // "diskcach"
+  private static final int VERSION = 1;
+
+  /** The size and last access time of a single cache file. */
+  static final class Entry {
+    private final String key;
+    private final long size;
+    private volatile long lastAccessMillis;
+
+    private Entry(String key, long size, long lastAccessMillis) {
+      this.key = key;
+      this.size = size;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+
+    String getKey() {
+      return key;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getLastAccessMillis() {
+      return lastAccessMillis;
+    }
+  }
+
+  private final Path root;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicLong totalSize = new AtomicLong();
+  // Keys removed since the index was last saved, which must not be merged back from the index file.
+  private final Set<String> removedKeys = ConcurrentHashMap.newKeySet();
+
+  DiskCacheIndex(Path root) {
+    this.root = root;
+  }
+
+  /** Records a newly added file of the given size. Replaces any previous entry for {@code key}. */
+  void add(String key, long size, long nowMillis) {
+    Entry previous = entries.put(key, new Entry(key, size, nowMillis));
+    totalSize.addAndGet(previous == null ? size : size - previous.size);
+    removedKeys.remove(key);
+  }
+
+  /** Updates the last access time of {@code key}, if it is tracked. */
+  void touch(String key, long nowMillis) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entry.lastAccessMillis = nowMillis;
+    }
+  }
+
+  /** Stops tracking {@code entry}. Returns {@code false} if it was replaced or removed already. */
+  boolean remove(Entry entry) {
+    if (entries.remove(entry.key, entry)) {
+      totalSize.addAndGet(-entry.size);
+      removedKeys.add(entry.key);
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns whether {@code entry} is still tracked, and wasn't replaced by a newer entry. */
+  boolean isCurrent(Entry entry) {
+    return entries.get(entry.key) == entry;
+  }
+
+  boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  long getTotalSize() {
+    return totalSize.get();
+  }
+
+  /** Returns a snapshot of all entries, least recently used first. */
+  List<Entry> getEntriesByLastAccess() {
+    List<Entry> snapshot = new ArrayList<>(entries.values());
+    snapshot.sort(Comparator.comparingLong(Entry::getLastAccessMillis));
+    return snapshot;
+  }
+
+  /**
+   * Populates the index from the persisted index file. Returns {@code false} if there is no index
+   * file or it could not be read, in which case the caller is expected to call {@link #reconcile}.
+   */
+  boolean load() {
+    List<Entry> loaded = read();
+    if (loaded == null) {
+      return false;
+    }
+    for (Entry entry : loaded) {
+      // Don't overwrite entries that were added concurrently, they are more recent.
+      putIfAbsent(entry);
+    }
+    return true;
+  }
+
+  /** Returns the entries of the index file, or null if there is none or it could not be read. */
+  @Nullable
+  private List<Entry> read() {
+    Path indexFile = root.getChild(INDEX_FILENAME);
+    if (!indexFile.exists()) {
+      return null;
+    }
+    List<Entry> loaded = new ArrayList<>();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(indexFile.getInputStream()))) {
+      if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        long size = in.readLong();
+        long lastAccessMillis = in.readLong();
+        loaded.add(new Entry(key, size, lastAccessMillis));
+      }
+    } catch (IOException e) {
+      // E.g. a truncated index due to a crash while saving it. Treat it as missing.
+      return null;
+    }
+    return loaded;
+  }
+
+  private boolean putIfAbsent(Entry entry) {
+    if (entries.putIfAbsent(entry.key, entry) == null) {
+      totalSize.addAndGet(entry.size);
+      return true;
+    }
+    return false;
+  }
+
+  /** The changes that {@link #reconcile} made to the index. */
+  static final class ReconcileResult {
+    final int addedEntries;
+    final int removedEntries;
+
+    private ReconcileResult(int addedEntries, int removedEntries) {
+      this.addedEntries = addedEntries;
+      this.removedEntries = removedEntries;
+    }
+  }
+
+  /**
+   * Makes the index match the cache directory by walking it. Files that aren't tracked are added,
+   * with their modification time as their initial access time, and entries whose file is gone are
+   * removed, unless they were written or read since {@code startMillis}, as their file may have
+   * been added after the walk passed its directory.
+   */
+  ReconcileResult reconcile(long startMillis) throws IOException {
+    Set<String> seen = new HashSet<>();
+    int added = 0;
+    for (String directory :
+        ImmutableList.of(DiskCacheClient.AC_DIRECTORY, DiskCacheClient.CAS_DIRECTORY)) {
+      Path dir = root.getChild(directory);
+      if (!dir.isDirectory()) {
+        continue;
+      }
+      for (Dirent prefix : dir.readdir(Symlinks.NOFOLLOW)) {
+        if (prefix.getType() != Dirent.Type.DIRECTORY) {
+          continue;
+        }
+        Path prefixDir = dir.getChild(prefix.getName());
+        for (Dirent file : prefixDir.readdir(Symlinks.NOFOLLOW)) {
+          if (file.getType() != Dirent.Type.FILE) {
+            continue;
+          }
+          Path path = prefixDir.getChild(file.getName());
+          String key = path.relativeTo(root).getPathString();
+          seen.add(key);
+          if (entries.containsKey(key)) {
+            continue;
+          }
+          FileStatus status = path.statIfFound(Symlinks.NOFOLLOW);
+          if (status != null
+              && putIfAbsent(new Entry(key, status.getSize(), status.getLastModifiedTime()))) {
+            added++;
+          }
+        }
+      }
+    }
+    int removed = 0;
+    for (Entry entry : entries.values()) {
+      if (!seen.contains(entry.key)
+          && entry.lastAccessMillis < startMillis
+          && remove(entry)) {
+        removed++;
+      }
+    }
+    return new ReconcileResult(added, removed);
+  }
+
+  /**
+   * Atomically writes the index file. Entries that another server saved to it since it was read
+   * are added to this index, unless they were removed from it, and the later of both access times
+   * is kept for entries that both track.
+   */
+  void save() throws IOException {
+    Set<String> removedBeforeSave = ImmutableSet.copyOf(removedKeys);
+    List<Entry> onDisk = read();
+    if (onDisk != null) {
+      for (Entry other : onDisk) {
+        Entry entry = entries.get(other.key);
+        if (entry != null) {
+          if (other.lastAccessMillis > entry.lastAccessMillis) {
+            entry.lastAccessMillis = other.lastAccessMillis;
+          }
+        } else if (!removedBeforeSave.contains(other.key)) {
+          putIfAbsent(other);
+        }
+      }
+    }
+    List<Entry> snapshot = new ArrayList<>(entries.values());
+    Path temp = root.getChild(TEMP_FILENAME_PREFIX + UUID.randomUUID());
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(temp.getOutputStream()))) {
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(snapshot.size());
+      for (Entry entry : snapshot) {
+        out.writeUTF(entry.key);
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastAccessMillis);
+      }
+    }
+    temp.renameTo(root.getChild(INDEX_FILENAME));
+    // Removals since the snapshot are still missing from the index file.
+    removedKeys.removeAll(removedBeforeSave);
+  }
+}
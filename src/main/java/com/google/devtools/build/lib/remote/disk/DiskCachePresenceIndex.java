@@ -0,0 +1,211 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+import com.google.devtools.build.lib.remote.util.ConcurrentDigestSet;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory record of the blobs stored in the CAS of a {@link DiskCacheClient}, so that
+ * existence checks of missing blobs don't need a {@code stat} call.
+ *
+ * <p>The index is populated by listing the CAS directory on a background thread when it is first
+ * requested for a cache directory, and then kept for the lifetime of the server. Once the listing
+ * has finished, the index is only used as a negative cache: {@link #mayContain} is false for blobs
+ * that are certainly missing, and the caller has to check the file system for the others, since
+ * blobs may have been deleted behind the back of the index, e.g. by a manual cleanup or the garbage
+ * collection of another server sharing the cache. Blobs added to the cache directory by other
+ * processes after the listing are reported missing, which only costs a redundant write, since
+ * writes to the cache are idempotent.
+ *
+ * <p>Writes to and evictions from the cache are serialized per blob with {@link #lockFor}, so that
+ * an eviction can't delete a blob that a concurrent write found to be present already.
+ *
+ * <p>This class is thread-safe.
+ */
+final class DiskCachePresenceIndex {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int LOCK_STRIPES = 256;
+
+  /** Indices by cache root. */
+  private static final ConcurrentHashMap<Path, DiskCachePresenceIndex> instances =
+      new ConcurrentHashMap<>();
+
+  private final Path casRoot;
+  private final int hashLength;
+  private final ConcurrentDigestSet hashes;
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+  // Hashes removed while the listing is in progress, which it must not add back. Guarded by the
+  // lock of each hash.
+  private final Set<String> removedWhilePopulating = ConcurrentHashMap.newKeySet();
+  private volatile boolean complete;
+
+  @VisibleForTesting
+  DiskCachePresenceIndex(Path root, int hashLength) {
+    this.casRoot = root.getChild(DiskCacheClient.CAS_DIRECTORY);
+    this.hashLength = hashLength;
+    this.hashes = new ConcurrentDigestSet(hashLength);
+  }
+
+  private void startPopulating() {
+    Thread populator = new Thread(this::populate, "disk-cache-presence-index");
+    populator.setDaemon(true);
+    populator.start();
+  }
+
+  /**
+   * Returns the presence index for the disk cache at {@code root}, creating it if necessary. A new
+   * index is created if the digest function changed since the existing one was created.
+   */
+  static DiskCachePresenceIndex get(Path root, int hashLength) {
+    return instances.compute(
+        root,
+        (r, index) -> {
+          if (index != null && index.hashLength == hashLength) {
+            return index;
+          }
+          DiskCachePresenceIndex newIndex = new DiskCachePresenceIndex(r, hashLength);
+          newIndex.startPopulating();
+          return newIndex;
+        });
+  }
+
+  @VisibleForTesting
+  void populate() {
+    try {
+      if (casRoot.isDirectory()) {
+        for (Dirent prefix : casRoot.readdir(Symlinks.NOFOLLOW)) {
+          if (prefix.getType() != Dirent.Type.DIRECTORY) {
+            continue;
+          }
+          for (Dirent file : casRoot.getChild(prefix.getName()).readdir(Symlinks.NOFOLLOW)) {
+            addListed(hashOf(file.getName()));
+          }
+        }
+      }
+      complete = true;
+      removedWhilePopulating.clear();
+    } catch (IOException e) {
+      // Leave the index incomplete, so that lookups keep falling back to the file system.
+      logger.atWarning().withCause(e).log("Failed to list the disk cache at %s", casRoot);
+    }
+  }
+
+  private void addListed(String hash) {
+    byte[] binaryHash = decode(hash);
+    if (binaryHash == null) {
+      return;
+    }
+    Lock lock = lockFor(hash);
+    lock.lock();
+    try {
+      if (!removedWhilePopulating.contains(hash)) {
+        hashes.add(binaryHash);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns false if the blob with {@code hash} is certainly not in the cache. Otherwise, the
+   * caller has to check the file system.
+   */
+  boolean mayContain(String hash) {
+    if (!complete) {
+      return true;
+    }
+    byte[] binaryHash = decode(hash);
+    return binaryHash == null || hashes.contains(binaryHash);
+  }
+
+  /**
+   * Returns the lock to hold while writing or evicting the blob with {@code hash} and updating the
+   * index accordingly.
+   */
+  Lock lockFor(String hash) {
+    return locks.get(hash);
+  }
+
+  /** Records that a blob with {@code hash} was added. */
+  void add(String hash) {
+    byte[] binaryHash = decode(hash);
+    if (binaryHash == null) {
+      return;
+    }
+    Lock lock = lockFor(hash);
+    lock.lock();
+    try {
+      hashes.add(binaryHash);
+      removedWhilePopulating.remove(hash);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Records that the blob with {@code hash} was removed or found to be missing. */
+  void remove(String hash) {
+    byte[] binaryHash = decode(hash);
+    if (binaryHash == null) {
+      return;
+    }
+    Lock lock = lockFor(hash);
+    lock.lock();
+    try {
+      hashes.remove(binaryHash);
+      if (!complete) {
+        removedWhilePopulating.add(hash);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the hash of the blob stored in a CAS file, which may be a chunk manifest. */
+  static String hashOf(String fileName) {
+    return fileName.endsWith(DiskCacheClient.CHUNK_MANIFEST_SUFFIX)
+        ? fileName.substring(0, fileName.length() - DiskCacheClient.CHUNK_MANIFEST_SUFFIX.length())
+        : fileName;
+  }
+
+  @VisibleForTesting
+  boolean isComplete() {
+    return complete;
+  }
+
+  @Nullable
+  private byte[] decode(String hash) {
+    if (hash.length() != hashLength * 2) {
+      return null;
+    }
+    try {
+      return BaseEncoding.base16().lowerCase().decode(hash);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
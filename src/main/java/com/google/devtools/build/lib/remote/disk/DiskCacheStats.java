@@ -0,0 +1,112 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.base.MoreObjects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters describing the activity of a {@link DiskCacheClient}. This class is thread-safe. */
+public final class DiskCacheStats {
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictedEntries = new AtomicLong();
+  private final AtomicLong evictedBytes = new AtomicLong();
+  private final AtomicLong chunkedBytes = new AtomicLong();
+  private final AtomicLong deduplicatedBytes = new AtomicLong();
+  private final AtomicLong asyncWrites = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+
+  void recordHit() {
+    hits.incrementAndGet();
+  }
+
+  void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  void recordEviction(long size) {
+    evictedEntries.incrementAndGet();
+    evictedBytes.addAndGet(size);
+  }
+
+  void recordChunk(long size, boolean deduplicated) {
+    chunkedBytes.addAndGet(size);
+    if (deduplicated) {
+      deduplicatedBytes.addAndGet(size);
+    }
+  }
+
+  void recordAsyncWrite() {
+    asyncWrites.incrementAndGet();
+  }
+
+  void recordFailedWrite() {
+    failedWrites.incrementAndGet();
+  }
+
+  /** Returns the number of successful lookups. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups for entries that are not in the cache. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Returns the number of entries removed by garbage collection. */
+  public long getEvictedEntries() {
+    return evictedEntries.get();
+  }
+
+  /** Returns the total size of the entries removed by garbage collection. */
+  public long getEvictedBytes() {
+    return evictedBytes.get();
+  }
+
+  /** Returns the total size of the chunks of all blobs that were stored in chunks. */
+  public long getChunkedBytes() {
+    return chunkedBytes.get();
+  }
+
+  /** Returns the total size of the chunks that didn't need to be written, as they were cached. */
+  public long getDeduplicatedBytes() {
+    return deduplicatedBytes.get();
+  }
+
+  /** Returns the number of writes that were run on background threads. */
+  public long getAsyncWrites() {
+    return asyncWrites.get();
+  }
+
+  /** Returns the number of background writes that failed. */
+  public long getFailedWrites() {
+    return failedWrites.get();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("hits", getHits())
+        .add("misses", getMisses())
+        .add("evictedEntries", getEvictedEntries())
+        .add("evictedBytes", getEvictedBytes())
+        .add("chunkedBytes", getChunkedBytes())
+        .add("deduplicatedBytes", getDeduplicatedBytes())
+        .add("asyncWrites", getAsyncWrites())
+        .add("failedWrites", getFailedWrites())
+        .toString();
+  }
+}
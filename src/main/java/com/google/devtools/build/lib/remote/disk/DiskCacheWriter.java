@@ -0,0 +1,158 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the writes of a {@link DiskCacheClient} on a bounded pool of background threads, so that
+ * the threads executing actions don't wait for their outputs to be copied into the cache.
+ *
+ * <p>At most {@code maxPendingWrites} writes are queued or running at a time, and callers block
+ * once that many are pending. A write submitted with {@link #submitAfterPending} only starts once
+ * all writes submitted before it have finished, so that an action cache entry is never visible
+ * before the outputs it refers to. Failed writes are logged and counted, as the disk cache is best
+ * effort.
+ */
+final class DiskCacheWriter {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** A write to the disk cache. */
+  interface Write {
+    void run() throws IOException;
+  }
+
+  private final ListeningExecutorService executor;
+  private final Semaphore permits;
+  private final DiskCacheStats stats;
+  private final Set<ListenableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+
+  DiskCacheWriter(int threads, int maxPendingWrites, DiskCacheStats stats) {
+    Preconditions.checkArgument(threads > 0, "threads must be positive");
+    Preconditions.checkArgument(maxPendingWrites > 0, "maxPendingWrites must be positive");
+    this.executor =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                    .setNameFormat("disk-cache-writer-%d")
+                    .setDaemon(true)
+                    .build()));
+    this.permits = new Semaphore(maxPendingWrites);
+    this.stats = stats;
+  }
+
+  /**
+   * Schedules {@code write}, blocking while too many writes are pending.
+   *
+   * @throws RejectedExecutionException if this writer was closed
+   */
+  void submit(String description, Write write) throws InterruptedException {
+    submit(description, write, /* afterPending= */ false);
+  }
+
+  /**
+   * Schedules {@code write} to run after all writes submitted before it have finished, blocking
+   * while too many writes are pending.
+   *
+   * @throws RejectedExecutionException if this writer was closed
+   */
+  void submitAfterPending(String description, Write write) throws InterruptedException {
+    submit(description, write, /* afterPending= */ true);
+  }
+
+  private void submit(String description, Write write, boolean afterPending)
+      throws InterruptedException {
+    if (executor.isShutdown()) {
+      throw new RejectedExecutionException("Disk cache writer was closed");
+    }
+    permits.acquire();
+    Callable<Void> task =
+        () -> {
+          write.run();
+          return null;
+        };
+    ListenableFuture<Void> future;
+    try {
+      future =
+          afterPending
+              ? Futures.whenAllComplete(ImmutableList.copyOf(pending)).call(task, executor)
+              : executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+    stats.recordAsyncWrite();
+    Futures.addCallback(
+        future,
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void unused) {}
+
+          @Override
+          public void onFailure(Throwable t) {
+            stats.recordFailedWrite();
+            logger.atWarning().withCause(t).log(
+                "Failed to write %s to the disk cache", description);
+          }
+        },
+        MoreExecutors.directExecutor());
+    pending.add(future);
+    // Registered last, so that the write is only drained once the callbacks above have run, and
+    // after adding the future to pending, so that it's removed even if it's done already.
+    future.addListener(
+        () -> {
+          pending.remove(future);
+          permits.release();
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Blocks until all writes submitted so far have finished. */
+  void drain() throws InterruptedException {
+    while (!pending.isEmpty()) {
+      try {
+        Futures.successfulAsList(ImmutableList.copyOf(pending)).get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("successfulAsList never fails", e);
+      }
+    }
+  }
+
+  /** Waits for all pending writes to finish and stops the background threads. */
+  void close() throws InterruptedException {
+    try {
+      drain();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
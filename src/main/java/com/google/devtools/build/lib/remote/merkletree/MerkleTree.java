@@ -19,6 +19,7 @@ import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.actions.ActionInput;
@@ -30,10 +31,14 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.TreeMap;
 import javax.annotation.Nullable;
 
 /** A merkle tree representation as defined by the remote execution api. */
@@ -66,21 +71,30 @@ public class MerkleTree {
     }
   }
 
-  private final Map<Digest, Directory> digestDirectoryMap;
-  private final Map<Digest, PathOrBytes> digestFileMap;
+  private final Directory rootProto;
   private final Digest rootDigest;
+  // The files directly in the root directory, by digest.
+  private final Map<Digest, PathOrBytes> files;
+  // The subdirectories of the root directory, by name.
+  private final SortedMap<String, MerkleTree> directories;
   private final long inputFiles;
   private final long inputBytes;
 
+  // Computed on first use by flatten(), as they are only needed to upload missing inputs.
+  @Nullable private Map<Digest, Directory> digestDirectoryMap;
+  @Nullable private Map<Digest, PathOrBytes> digestFileMap;
+
   private MerkleTree(
-      Map<Digest, Directory> digestDirectoryMap,
-      Map<Digest, PathOrBytes> digestFileMap,
+      Directory rootProto,
       Digest rootDigest,
+      Map<Digest, PathOrBytes> files,
+      SortedMap<String, MerkleTree> directories,
       long inputFiles,
       long inputBytes) {
-    this.digestDirectoryMap = digestDirectoryMap;
-    this.digestFileMap = digestFileMap;
+    this.rootProto = rootProto;
     this.rootDigest = rootDigest;
+    this.files = files;
+    this.directories = directories;
     this.inputFiles = inputFiles;
     this.inputBytes = inputBytes;
   }
@@ -102,11 +116,13 @@ public class MerkleTree {
 
   @Nullable
   public Directory getDirectoryByDigest(Digest digest) {
+    flatten();
     return digestDirectoryMap.get(digest);
   }
 
   @Nullable
   public PathOrBytes getFileByDigest(Digest digest) {
+    flatten();
     return digestFileMap.get(digest);
   }
 
@@ -115,9 +131,40 @@ public class MerkleTree {
    * Directory} protobufs and {@link ActionInput} files.
    */
   public Iterable<Digest> getAllDigests() {
+    flatten();
     return Iterables.concat(digestDirectoryMap.keySet(), digestFileMap.keySet());
   }
 
+  private boolean isEmpty() {
+    return rootProto.getFilesCount() == 0 && rootProto.getDirectoriesCount() == 0;
+  }
+
+  /** Collects the directories and files of the whole tree by digest. */
+  private synchronized void flatten() {
+    if (digestDirectoryMap != null) {
+      return;
+    }
+    Map<Digest, Directory> directoryMap = new HashMap<>();
+    Map<Digest, PathOrBytes> fileMap = new HashMap<>();
+    if (!isEmpty()) {
+      flatten(this, directoryMap, fileMap);
+    }
+    digestFileMap = fileMap;
+    digestDirectoryMap = directoryMap;
+  }
+
+  private static void flatten(
+      MerkleTree tree, Map<Digest, Directory> directoryMap, Map<Digest, PathOrBytes> fileMap) {
+    if (directoryMap.put(tree.rootDigest, tree.rootProto) != null) {
+      // An equal directory was visited already.
+      return;
+    }
+    fileMap.putAll(tree.files);
+    for (MerkleTree directory : tree.directories.values()) {
+      flatten(directory, directoryMap, fileMap);
+    }
+  }
+
   /**
    * Constructs a merkle tree from a lexicographically sorted map of inputs (files).
    *
@@ -160,38 +207,115 @@ public class MerkleTree {
   private static MerkleTree build(DirectoryTree tree, DigestUtil digestUtil) {
     Preconditions.checkNotNull(tree);
     if (tree.isEmpty()) {
-      return new MerkleTree(
-          ImmutableMap.of(), ImmutableMap.of(), digestUtil.compute(new byte[0]), 0, 0);
-    }
-    Map<Digest, Directory> digestDirectoryMap =
-        Maps.newHashMapWithExpectedSize(tree.numDirectories());
-    Map<Digest, PathOrBytes> digestPathMap = Maps.newHashMapWithExpectedSize(tree.numFiles());
-    Map<PathFragment, Digest> m = new HashMap<>();
-    AtomicLong inputBytes = new AtomicLong(0);
+      return empty(digestUtil);
+    }
+    Map<PathFragment, MerkleTree> m = new HashMap<>();
     tree.visit(
         (dirname, files, dirs) -> {
-          Directory.Builder b = Directory.newBuilder();
+          List<FileNode> fileNodes = new ArrayList<>(files.size());
+          Map<Digest, PathOrBytes> fileMap = Maps.newHashMapWithExpectedSize(files.size());
           for (DirectoryTree.FileNode file : files) {
-            b.addFiles(buildProto(file));
-            digestPathMap.put(file.getDigest(), toPathOrBytes(file));
-            inputBytes.addAndGet(file.getDigest().getSizeBytes());
+            fileNodes.add(buildProto(file));
+            fileMap.put(file.getDigest(), toPathOrBytes(file));
           }
+          SortedMap<String, MerkleTree> directories = new TreeMap<>();
           for (DirectoryTree.DirectoryNode dir : dirs) {
             PathFragment subDirname = dirname.getRelative(dir.getPathSegment());
-            Digest protoDirDigest =
-                Preconditions.checkNotNull(m.remove(subDirname), "protoDirDigest was null");
-            b.addDirectories(buildProto(dir, protoDirDigest));
-            inputBytes.addAndGet(protoDirDigest.getSizeBytes());
+            directories.put(
+                dir.getPathSegment(),
+                Preconditions.checkNotNull(m.remove(subDirname), "subtree was null"));
           }
-          Directory protoDir = b.build();
-          Digest protoDirDigest = digestUtil.compute(protoDir);
-          digestDirectoryMap.put(protoDirDigest, protoDir);
-          m.put(dirname, protoDirDigest);
+          m.put(dirname, create(fileNodes, fileMap, directories, digestUtil));
         });
-    Digest rootDigest = m.get(PathFragment.EMPTY_FRAGMENT);
-    inputBytes.addAndGet(rootDigest.getSizeBytes());
+    return m.get(PathFragment.EMPTY_FRAGMENT);
+  }
+
+  /** Returns a merkle tree without any files. */
+  static MerkleTree empty(DigestUtil digestUtil) {
     return new MerkleTree(
-        digestDirectoryMap, digestPathMap, rootDigest, tree.numFiles(), inputBytes.get());
+        Directory.getDefaultInstance(),
+        digestUtil.compute(new byte[0]),
+        ImmutableMap.of(),
+        ImmutableSortedMap.of(),
+        0,
+        0);
+  }
+
+  /**
+   * Creates the tree of a directory that contains {@code fileNodes}, sorted by name, whose contents
+   * are in {@code files}, and {@code directories}.
+   */
+  private static MerkleTree create(
+      Collection<FileNode> fileNodes,
+      Map<Digest, PathOrBytes> files,
+      SortedMap<String, MerkleTree> directories,
+      DigestUtil digestUtil) {
+    Directory.Builder b = Directory.newBuilder().addAllFiles(fileNodes);
+    long inputFiles = fileNodes.size();
+    long inputBytes = 0;
+    for (FileNode file : fileNodes) {
+      inputBytes += file.getDigest().getSizeBytes();
+    }
+    for (Map.Entry<String, MerkleTree> dir : directories.entrySet()) {
+      MerkleTree subtree = dir.getValue();
+      b.addDirectories(buildProto(dir.getKey(), subtree.rootDigest));
+      inputFiles += subtree.inputFiles;
+      inputBytes += subtree.inputBytes;
+    }
+    Directory protoDir = b.build();
+    Digest protoDirDigest = digestUtil.compute(protoDir);
+    return new MerkleTree(
+        protoDir,
+        protoDirDigest,
+        files,
+        directories,
+        inputFiles,
+        inputBytes + protoDirDigest.getSizeBytes());
+  }
+
+  /**
+   * Merges {@code trees} into a single tree that contains the files of all of them. If several
+   * trees contain a file at the same path, the one of the last of them is kept.
+   *
+   * <p>Subdirectories that only occur in one of the trees, or that are equal in all trees they
+   * occur in, are reused without visiting them, so the cost of a merge is proportional to the size
+   * of the directories that the trees have in common, rather than to the size of the trees.
+   */
+  public static MerkleTree merge(List<MerkleTree> trees, DigestUtil digestUtil) {
+    Map<Digest, MerkleTree> distinct = new LinkedHashMap<>();
+    for (MerkleTree tree : trees) {
+      if (!tree.isEmpty()) {
+        distinct.putIfAbsent(tree.rootDigest, tree);
+      }
+    }
+    if (distinct.isEmpty()) {
+      return empty(digestUtil);
+    }
+    if (distinct.size() == 1) {
+      return Iterables.getOnlyElement(distinct.values());
+    }
+    SortedMap<String, FileNode> fileNodes = new TreeMap<>();
+    Map<Digest, PathOrBytes> allFiles = new HashMap<>();
+    SortedMap<String, List<MerkleTree>> subtrees = new TreeMap<>();
+    for (MerkleTree tree : distinct.values()) {
+      for (FileNode file : tree.rootProto.getFilesList()) {
+        fileNodes.put(file.getName(), file);
+      }
+      allFiles.putAll(tree.files);
+      for (Map.Entry<String, MerkleTree> dir : tree.directories.entrySet()) {
+        subtrees.computeIfAbsent(dir.getKey(), k -> new ArrayList<>()).add(dir.getValue());
+      }
+    }
+    // Only keep the contents of the files that weren't replaced by others.
+    Map<Digest, PathOrBytes> files = Maps.newHashMapWithExpectedSize(fileNodes.size());
+    for (FileNode file : fileNodes.values()) {
+      files.put(file.getDigest(), allFiles.get(file.getDigest()));
+    }
+    SortedMap<String, MerkleTree> directories = new TreeMap<>();
+    for (Map.Entry<String, List<MerkleTree>> subtree : subtrees.entrySet()) {
+      directories.put(subtree.getKey(), merge(subtree.getValue(), digestUtil));
+    }
+    return create(fileNodes.values(), files, directories, digestUtil);
   }
 
   private static FileNode buildProto(DirectoryTree.FileNode file) {
@@ -202,11 +326,8 @@ public class MerkleTree {
         .build();
   }
 
-  private static DirectoryNode buildProto(DirectoryTree.DirectoryNode dir, Digest protoDirDigest) {
-    return DirectoryNode.newBuilder()
-        .setName(dir.getPathSegment())
-        .setDigest(protoDirDigest)
-        .build();
+  private static DirectoryNode buildProto(String name, Digest protoDirDigest) {
+    return DirectoryNode.newBuilder().setName(name).setDigest(protoDirDigest).build();
   }
 
   private static PathOrBytes toPathOrBytes(DirectoryTree.FileNode file) {
@@ -0,0 +1,146 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.merkletree;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.SilentCloseable;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of the merkle trees of the nodes of the {@link NestedSet}s of spawn inputs.
+ *
+ * <p>Most inputs of a spawn, such as toolchains and the transitive inputs of its dependencies,
+ * come from nested set nodes that are shared by many spawns. The merkle tree of a node is built
+ * once from the node's own elements and the cached trees of its successors, and the tree of a spawn
+ * is the merge of the trees of its input nodes. Merging reuses the subtrees that don't overlap, so
+ * only the directories that contain inputs of several nodes are hashed again for each spawn.
+ *
+ * <p>Nodes are keyed by identity, see {@link NestedSet.Node}, so there are no false hits. However,
+ * a node does not change when the contents of the files in it do, so a cache must only be used for
+ * a single build.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class MerkleTreeCache {
+
+  private final DigestUtil digestUtil;
+  private final Cache<NestedSet.Node, MerkleTree> cache;
+
+  /** Creates a cache of at most {@code maxSize} trees, hashed with {@code digestUtil}. */
+  public MerkleTreeCache(DigestUtil digestUtil, long maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive: %s", maxSize);
+    this.digestUtil = Preconditions.checkNotNull(digestUtil, "digestUtil");
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+  }
+
+  /**
+   * Constructs the merkle tree of the expanded {@code inputs} and of {@code otherInputs}, such as
+   * runfiles and filesets, which take precedence over files at the same path in {@code inputs}.
+   *
+   * @see MerkleTree#build(SortedMap, MetadataProvider, Path, DigestUtil)
+   */
+  public MerkleTree build(
+      NestedSet<? extends ActionInput> inputs,
+      SortedMap<PathFragment, ActionInput> otherInputs,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot)
+      throws IOException {
+    try (SilentCloseable c = Profiler.instance().profile("MerkleTreeCache.build")) {
+      MerkleTree inputsTree = build(inputs, artifactExpander, metadataProvider, execRoot);
+      MerkleTree otherTree = MerkleTree.build(otherInputs, metadataProvider, execRoot, digestUtil);
+      return MerkleTree.merge(ImmutableList.of(inputsTree, otherTree), digestUtil);
+    }
+  }
+
+  private MerkleTree build(
+      NestedSet<? extends ActionInput> inputs,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot)
+      throws IOException {
+    if (inputs.isEmpty()) {
+      return MerkleTree.empty(digestUtil);
+    }
+    if (inputs.isSingleton()) {
+      // Not worth caching, and keyed by the element rather than by identity.
+      return buildLeaves(
+          ImmutableList.of(inputs.getSingleton()), artifactExpander, metadataProvider, execRoot);
+    }
+    try {
+      return cache.get(
+          inputs.toNode(), () -> buildNode(inputs, artifactExpander, metadataProvider, execRoot));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private MerkleTree buildNode(
+      NestedSet<? extends ActionInput> inputs,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot)
+      throws IOException {
+    List<MerkleTree> trees = new ArrayList<>();
+    for (NestedSet<? extends ActionInput> successor : inputs.getNonLeaves()) {
+      trees.add(build(successor, artifactExpander, metadataProvider, execRoot));
+    }
+    trees.add(buildLeaves(inputs.getLeaves(), artifactExpander, metadataProvider, execRoot));
+    return MerkleTree.merge(trees, digestUtil);
+  }
+
+  private MerkleTree buildLeaves(
+      List<? extends ActionInput> leaves,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot)
+      throws IOException {
+    SortedMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+    for (ActionInput input :
+        ActionInputHelper.expandArtifacts(
+            NestedSetBuilder.wrap(Order.STABLE_ORDER, leaves), artifactExpander)) {
+      inputMap.put(input.getExecPath(), input);
+    }
+    return MerkleTree.build(inputMap, metadataProvider, execRoot, digestUtil);
+  }
+
+  /** Returns the number of cached trees. */
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+}
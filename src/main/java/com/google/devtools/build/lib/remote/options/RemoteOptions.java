@@ -275,6 +275,42 @@ public final class RemoteOptions extends OptionsBase {
               + "If the directory does not exist, it will be created.")
   public PathFragment diskCache;
 
+  @Option(
+      name = "experimental_disk_cache_max_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The maximum size of the --disk_cache in bytes. Once the cache grows beyond this size,"
+              + " the least recently used entries are deleted in the background. If set to 0, the"
+              + " size of the disk cache is unbounded.")
+  public long diskCacheMaxSize;
+
+  @Option(
+      name = "experimental_disk_cache_chunking_threshold",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to a positive value, blobs of at least this many bytes are split into chunks at"
+              + " content-defined boundaries when they are stored in the --disk_cache, and chunks"
+              + " that are already cached are shared. A small change to a large output then only"
+              + " costs disk space proportional to the change.")
+  public long diskCacheChunkingThreshold;
+
+  @Option(
+      name = "experimental_disk_cache_writer_threads",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set to a positive value, entries are written to the --disk_cache by this many"
+              + " background threads instead of by the threads executing actions, and the build"
+              + " waits for pending writes when the execution phase ends. Files that changed"
+              + " between being uploaded and being written are not stored. If too many writes are"
+              + " pending, actions wait for some of them to finish.")
+  public int diskCacheWriterThreads;
+
   @Option(
       name = "experimental_guard_against_concurrent_changes",
       defaultValue = "false",
@@ -460,6 +496,78 @@ public final class RemoteOptions extends OptionsBase {
               + " discard the remotely cached values if they don't match the expected value.")
   public boolean remoteVerifyDownloads;
 
+  @Option(
+      name = "experimental_remote_cache_compression",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If enabled, blobs are uploaded to and downloaded from a gRPC remote cache compressed"
+              + " with raw DEFLATE, using compressed-blobs/deflate ByteStream resource names. The"
+              + " remote cache must support them, as the remote execution API version used by"
+              + " Bazel has no way for the server to advertise the compressors it supports.")
+  public boolean cacheCompression;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If enabled, the merkle trees of the nested sets of inputs of remotely cached and"
+              + " executed spawns are cached during a build, so that the input roots of spawns"
+              + " share the directories of inputs they have in common, such as those of"
+              + " toolchains, instead of hashing them again for each spawn.")
+  public boolean remoteMerkleTreeCache;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache_size",
+      defaultValue = "100000",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "The maximum number of merkle trees kept by --experimental_remote_merkle_tree_cache."
+              + " A value of 0 or less disables the cache.")
+  public long remoteMerkleTreeCacheSize;
+
+  @Option(
+      name = "experimental_remote_find_missing_blobs_batch_window",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      converter = Converters.DurationConverter.class,
+      help =
+          "If greater than zero, the inputs of concurrently executing spawns that are checked for"
+              + " presence in the remote cache within this window are checked in a single"
+              + " FindMissingBlobs call, and inputs that were found to be present are not checked"
+              + " again during the invocation. Following units can be used: Days (d), hours (h),"
+              + " minutes (m), seconds (s), and milliseconds (ms).")
+  public Duration findMissingBlobsBatchWindow;
+
+  @Option(
+      name = "experimental_remote_find_missing_blobs_batch_size",
+      defaultValue = "10000",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "The number of digests after which a batch of FindMissingBlobs queries is sent without"
+              + " waiting for --experimental_remote_find_missing_blobs_batch_window to pass.")
+  public int findMissingBlobsBatchSize;
+
+  @Option(
+      name = "experimental_remote_known_present_digests_ttl",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      converter = Converters.DurationConverter.class,
+      help =
+          "Blobs that are known to be present in the remote cache, because they were uploaded or"
+              + " found to be present, are not checked for or uploaded again during an invocation."
+              + " If greater than zero, they are also remembered across invocations that use the"
+              + " same remote cache, for at most this long. Following units can be used: Days (d),"
+              + " hours (h), minutes (m), seconds (s), and milliseconds (ms).")
+  public Duration remoteKnownPresentDigestsTtl;
+
   @Option(
       name = "remote_download_symlink_template",
       defaultValue = "",
@@ -0,0 +1,215 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * A compact, thread-safe set of binary digest hashes.
+ *
+ * <p>Hashes are stored back to back in primitive arrays using open addressing, so that an entry
+ * costs {@code hashLength + 1} bytes plus the unused capacity, instead of the several objects per
+ * entry that a {@code Set<Digest>} needs. Since the hashes are the output of a cryptographic hash
+ * function, their leading bytes are used as the hash code directly.
+ *
+ * <p>The set is split into independently locked stripes to reduce contention.
+ */
+public final class ConcurrentDigestSet {
+
+  private static final int STRIPE_BITS = 6;
+  private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+  private final int hashLength;
+  private final Stripe[] stripes;
+
+  /** Creates a set of hashes that are {@code hashLength} bytes long. */
+  public ConcurrentDigestSet(int hashLength) {
+    checkArgument(hashLength >= Long.BYTES, "hashLength too short: %s", hashLength);
+    this.hashLength = hashLength;
+    this.stripes = new Stripe[1 << STRIPE_BITS];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /** Returns the length in bytes of the hashes in the set. */
+  public int hashLength() {
+    return hashLength;
+  }
+
+  /** Adds {@code hash} to the set. Returns {@code true} if it wasn't present before. */
+  public boolean add(byte[] hash) {
+    long code = hashCode(hash);
+    return stripeFor(code).add(hash, code);
+  }
+
+  /** Returns whether {@code hash} is in the set. */
+  public boolean contains(byte[] hash) {
+    long code = hashCode(hash);
+    return stripeFor(code).contains(hash, code);
+  }
+
+  /** Removes {@code hash} from the set. Returns {@code true} if it was present. */
+  public boolean remove(byte[] hash) {
+    long code = hashCode(hash);
+    return stripeFor(code).remove(hash, code);
+  }
+
+  /** Returns the number of hashes in the set. */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /** Removes all hashes from the set. */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  private long hashCode(byte[] hash) {
+    checkArgument(
+        hash.length == hashLength, "expected hash of %s bytes, got %s", hashLength, hash.length);
+    return Longs.fromBytes(hash[0], hash[1], hash[2], hash[3], hash[4], hash[5], hash[6], hash[7]);
+  }
+
+  private Stripe stripeFor(long code) {
+    return stripes[(int) (code >>> (Long.SIZE - STRIPE_BITS))];
+  }
+
+  /** An open addressing hash table with linear probing. */
+  private final class Stripe {
+    private static final byte FREE = 0;
+    private static final byte FULL = 1;
+    private static final byte REMOVED = 2;
+
+    private byte[] states;
+    private byte[] hashes;
+    private int size;
+    private int used;
+
+    Stripe() {
+      allocate(INITIAL_STRIPE_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+      states = new byte[capacity];
+      hashes = new byte[capacity * hashLength];
+      size = 0;
+      used = 0;
+    }
+
+    synchronized boolean add(byte[] hash, long code) {
+      if (find(hash, code) >= 0) {
+        return false;
+      }
+      if ((used + 1) * 4 > states.length * 3) {
+        // Grow if the table is mostly occupied by live entries, otherwise just purge removals.
+        rehash(size * 2 > states.length ? states.length * 2 : states.length);
+      }
+      int mask = states.length - 1;
+      for (int slot = (int) code & mask; ; slot = (slot + 1) & mask) {
+        if (states[slot] != FULL) {
+          if (states[slot] == FREE) {
+            used++;
+          }
+          states[slot] = FULL;
+          System.arraycopy(hash, 0, hashes, slot * hashLength, hashLength);
+          size++;
+          return true;
+        }
+      }
+    }
+
+    synchronized boolean contains(byte[] hash, long code) {
+      return find(hash, code) >= 0;
+    }
+
+    synchronized boolean remove(byte[] hash, long code) {
+      int slot = find(hash, code);
+      if (slot < 0) {
+        return false;
+      }
+      states[slot] = REMOVED;
+      size--;
+      return true;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void clear() {
+      allocate(INITIAL_STRIPE_CAPACITY);
+    }
+
+    /** Returns the slot containing {@code hash}, or -1. */
+    private int find(byte[] hash, long code) {
+      int mask = states.length - 1;
+      for (int slot = (int) code & mask; states[slot] != FREE; slot = (slot + 1) & mask) {
+        if (states[slot] == FULL && matches(slot, hash)) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    private boolean matches(int slot, byte[] hash) {
+      int offset = slot * hashLength;
+      for (int i = 0; i < hashLength; i++) {
+        if (hashes[offset + i] != hash[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rehash(int capacity) {
+      byte[] oldStates = states;
+      byte[] oldHashes = hashes;
+      allocate(capacity);
+      int mask = capacity - 1;
+      for (int i = 0; i < oldStates.length; i++) {
+        if (oldStates[i] != FULL) {
+          continue;
+        }
+        int offset = i * hashLength;
+        long code =
+            Longs.fromBytes(
+                oldHashes[offset],
+                oldHashes[offset + 1],
+                oldHashes[offset + 2],
+                oldHashes[offset + 3],
+                oldHashes[offset + 4],
+                oldHashes[offset + 5],
+                oldHashes[offset + 6],
+                oldHashes[offset + 7]);
+        int slot = (int) code & mask;
+        while (states[slot] != FREE) {
+          slot = (slot + 1) & mask;
+        }
+        states[slot] = FULL;
+        System.arraycopy(oldHashes, offset, hashes, slot * hashLength, hashLength);
+        size++;
+        used++;
+      }
+    }
+  }
+}
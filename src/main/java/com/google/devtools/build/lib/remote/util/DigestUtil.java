@@ -52,6 +52,11 @@ public class DigestUtil {
     return DigestFunction.Value.UNKNOWN;
   }
 
+  /** Returns the length in bytes of the binary hashes computed by the digest function. */
+  public int getHashLength() {
+    return hashFn.getHashFunction().bits() / Byte.SIZE;
+  }
+
   public Digest compute(byte[] blob) {
     return buildDigest(hashFn.getHashFunction().hashBytes(blob).toString(), blob.length);
   }
@@ -64,6 +64,7 @@ public final class BlazeWorkspace {
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
+  private boolean actionCacheUsesMappedLog;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
 
@@ -233,13 +234,21 @@ public final class BlazeWorkspace {
   /**
    * Returns reference to the lazily instantiated persistent action cache instance. Note, that
    * method may recreate instance between different build requests, so return value should not be
-   * cached.
+   * cached. The instance is also recreated if {@code useMappedLog} differs from the previous call.
    */
-  ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+  ActionCache getPersistentActionCache(Reporter reporter, boolean useMappedLog)
+      throws IOException {
+    if (actionCache != null && actionCacheUsesMappedLog != useMappedLog) {
+      actionCache.save();
+      actionCache = null;
+    }
     if (actionCache == null) {
+      actionCacheUsesMappedLog = useMappedLog;
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache =
+              new CompactPersistentActionCache(
+                  getCacheDirectory(), runtime.getClock(), useMappedLog);
         } catch (IOException e) {
           logger.atWarning().withCause(e).log("Failed to load action cache");
           LoggingUtil.logToRemote(
@@ -252,7 +261,9 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache =
+              new CompactPersistentActionCache(
+                  getCacheDirectory(), runtime.getClock(), useMappedLog);
         }
       }
     }
@@ -21,12 +21,17 @@ import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.vfs.DigestUtils;
+import java.io.IOException;
+import java.nio.file.Path;
 
 /** Enables the caching of file digests in {@link DigestUtils}. */
 public class CacheFileDigestsModule extends BlazeModule {
 
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
+  /** Name of the file in the output base that persists the cache. */
+  private static final String PERSISTENT_CACHE_FILE = "file_digest_cache";
+
   /** Stats gathered at the beginning of a command, to compute deltas on completion. */
   private CacheStats stats;
 
@@ -61,6 +66,21 @@ public class CacheFileDigestsModule extends BlazeModule {
       lastKnownCacheSize = options.cacheSizeForComputedFileDigests;
     }
 
+    if (options.cacheSizeForComputedFileDigests != 0 && options.persistComputedFileDigests) {
+      Path file = env.getOutputBase().getRelative(PERSISTENT_CACHE_FILE).getPathFile().toPath();
+      if (!file.equals(DigestUtils.getPersistentCacheFile())) {
+        try {
+          DigestUtils.configurePersistentCache(
+              file, env.getRuntime().getFileSystem().getDigestFunction());
+          logger.atInfo().log("Loaded persistent cache from %s", file);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Failed to load persistent cache from %s", file);
+        }
+      }
+    } else {
+      DigestUtils.closePersistentCache();
+    }
+
     if (options.cacheSizeForComputedFileDigests == 0) {
       stats = null;
       logger.atInfo().log("Disabled cache");
@@ -79,5 +99,15 @@ public class CacheFileDigestsModule extends BlazeModule {
       logStats("Cache stats for finished command", newStats.minus(stats));
       stats = null; // Silence stats until next command that uses the executor.
     }
+    try {
+      DigestUtils.savePersistentCache();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to save persistent cache");
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    DigestUtils.closePersistentCache();
   }
 }
@@ -564,7 +564,8 @@ public class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    return workspace.getPersistentActionCache(
+        reporter, options.getOptions(CommonCommandOptions.class).mmapActionCache);
   }
 
   /** Returns the top-down action cache to use, or null. */
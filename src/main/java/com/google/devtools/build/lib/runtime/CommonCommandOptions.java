@@ -489,6 +489,18 @@ public class CommonCommandOptions extends OptionsBase {
               + "one.")
   public boolean keepStateAfterBuild;
 
+  @Option(
+      name = "experimental_mmap_action_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If true, the action cache is stored in a memory-mapped, append-only log that is read "
+              + "lazily, instead of being loaded into memory in full and rewritten on save. The two "
+              + "formats are stored in separate files, so entries written in one format are not "
+              + "visible in the other.")
+  public boolean mmapActionCache;
+
   /** The option converter to check that the user can only specify legal profiler tasks. */
   public static class ProfilerTaskConverter extends EnumConverter<ProfilerTask> {
     public ProfilerTaskConverter() {
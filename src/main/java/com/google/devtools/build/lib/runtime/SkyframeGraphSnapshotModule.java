@@ -0,0 +1,214 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.packages.RuleClassProvider;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.skyframe.GraphSnapshot;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionsBase;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Writes the Skyframe graph to the output base once the server has been idle for a while after a
+ * command, and when it shuts down, and reads it back in the first command of the next server, see
+ * {@link GraphSnapshot}. Writing while idle keeps the snapshot usable if the server is killed
+ * rather than shut down. The views of the filesystem that the next diffs start from are persisted
+ * along with it, see {@link SkyframeExecutor#persistDiffAwarenessViews}.
+ *
+ * <p>A snapshot is only read back by a server with the same binary, startup options and output
+ * base.
+ *
+ * <p>Nodes are only written if their key and value can be serialized with the codecs of {@link
+ * AutoRegistry} and the dependencies available here; all others are evaluated from scratch.
+ */
+public class SkyframeGraphSnapshotModule extends BlazeModule {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** Name of the file in the output base that holds the snapshot. */
+  private static final String SNAPSHOT_FILE = "skyframe_graph_snapshot";
+
+  /** How long the server has to be idle after a command before the snapshot is written. */
+  private static final int IDLE_WRITE_DELAY_SECONDS = 10;
+
+  /** Options for {@link SkyframeGraphSnapshotModule}. */
+  public static class Options extends OptionsBase {
+    @Option(
+        name = "experimental_skyframe_graph_snapshot",
+        defaultValue = "false",
+        documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+        effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+        help =
+            "If true, the Skyframe graph is written to the output base when the server is idle or"
+                + " shuts down, and read back by the next server, so that it doesn't start from"
+                + " scratch.")
+    public boolean graphSnapshot;
+  }
+
+  // Set by the last command that enabled snapshots, null if it disabled them.
+  @Nullable private InMemoryMemoizingEvaluator evaluator;
+  @Nullable private SkyframeExecutor skyframeExecutor;
+  @Nullable private ObjectCodecs codecs;
+  @Nullable private String compatibilityKey;
+  @Nullable private Path snapshotFile;
+
+  private final ScheduledExecutorService idleWriter =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("skyframe-graph-snapshot-%d")
+              .setDaemon(true)
+              .build());
+
+  // The write scheduled after the last command, if any.
+  @Nullable private ScheduledFuture<?> pendingWrite;
+
+  // Held while the snapshot is written.
+  private final Object writeLock = new Object();
+
+  // Whether the snapshot was written since the last command started. Guarded by writeLock.
+  private boolean snapshotUpToDate;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
+    return ImmutableList.of(Options.class);
+  }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) {
+    // The graph must not be written while it's evaluated.
+    cancelPendingWrite();
+    synchronized (writeLock) {
+      snapshotUpToDate = false;
+    }
+    evaluator = null;
+    Options options = env.getOptions().getOptions(Options.class);
+    HashCode installMd5 = env.getDirectories().getInstallMD5();
+    if (options == null || !options.graphSnapshot || installMd5 == null) {
+      return;
+    }
+    skyframeExecutor = env.getSkyframeExecutor();
+    evaluator = skyframeExecutor.getSnapshottingEvaluator();
+    if (evaluator == null) {
+      return;
+    }
+    Path root = env.getWorkspace() != null ? env.getWorkspace() : env.getOutputBase();
+    codecs =
+        new ObjectCodecs(
+            AutoRegistry.get(),
+            ImmutableMap.of(
+                RuleClassProvider.class,
+                env.getRuntime().getRuleClassProvider(),
+                Root.RootCodecDependencies.class,
+                new Root.RootCodecDependencies(Root.fromPath(root))));
+    compatibilityKey =
+        new Fingerprint()
+            .addString(installMd5.toString())
+            .addStrings(env.getRuntime().getStartupOptionsProvider().canonicalize())
+            .addPath(env.getOutputBase())
+            .hexDigestAndReset();
+    snapshotFile = env.getOutputBase().getRelative(SNAPSHOT_FILE);
+    if (evaluator.canLoadSnapshot() && snapshotFile.exists()) {
+      try (InputStream in = new BufferedInputStream(snapshotFile.getInputStream())) {
+        GraphSnapshot snapshot = GraphSnapshot.read(codecs, compatibilityKey, in);
+        if (snapshot != null) {
+          evaluator.loadSnapshot(snapshot);
+          logger.atInfo().log("Loaded %d nodes from %s", snapshot.size(), snapshotFile);
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to load the graph snapshot %s", snapshotFile);
+      }
+    }
+  }
+
+  @Override
+  public void afterCommand() {
+    if (evaluator != null) {
+      pendingWrite =
+          idleWriter.schedule(this::writeSnapshot, IDLE_WRITE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    cancelPendingWrite();
+    idleWriter.shutdown();
+    if (evaluator != null) {
+      writeSnapshot();
+    }
+  }
+
+  /**
+   * Cancels the write that was scheduled after the last command. If it's running already, it's
+   * interrupted and waited for.
+   */
+  private void cancelPendingWrite() {
+    if (pendingWrite == null) {
+      return;
+    }
+    pendingWrite.cancel(/*mayInterruptIfRunning=*/ true);
+    pendingWrite = null;
+    synchronized (writeLock) {
+      // A write that started before it was cancelled sees the interrupt once it holds the lock.
+    }
+  }
+
+  private void writeSnapshot() {
+    synchronized (writeLock) {
+      if (snapshotUpToDate || Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      Path tmpFile = snapshotFile.getParentDirectory().getChild(SNAPSHOT_FILE + ".tmp");
+      try {
+        int written;
+        try (OutputStream out = new BufferedOutputStream(tmpFile.getOutputStream())) {
+          written = evaluator.writeSnapshot(codecs, compatibilityKey, out);
+        }
+        tmpFile.renameTo(snapshotFile);
+        logger.atInfo().log("Wrote %d nodes to %s", written, snapshotFile);
+        // Only once the graph is written, since the views must not be newer than it.
+        skyframeExecutor.persistDiffAwarenessViews();
+        snapshotUpToDate = true;
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to write the graph snapshot %s", snapshotFile);
+      } catch (InterruptedException e) {
+        logger.atInfo().log("Writing the graph snapshot %s was interrupted", snapshotFile);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
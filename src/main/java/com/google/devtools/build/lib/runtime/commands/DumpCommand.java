@@ -172,7 +172,9 @@ public class DumpCommand implements BlazeCommand {
       converter = SkyframeDumpEnumConverter.class,
       documentationCategory = OptionDocumentationCategory.OUTPUT_SELECTION,
       effectTags = {OptionEffectTag.BAZEL_MONITORING},
-      help = "Dump Skyframe graph: 'off', 'summary', or 'detailed'."
+      help =
+          "Dump Skyframe graph: 'off', 'summary', or 'detailed'; or 'functions' for the time"
+              + " spent in and the restarts of each SkyFunction during the last build."
     )
     public SkyframeDumpOption dumpSkyframe;
   }
@@ -183,7 +185,8 @@ public class DumpCommand implements BlazeCommand {
   public enum SkyframeDumpOption {
     OFF,
     SUMMARY,
-    DETAILED;
+    DETAILED,
+    FUNCTIONS;
   }
 
   /**
@@ -285,7 +288,10 @@ public class DumpCommand implements BlazeCommand {
         }
       }
 
-      if (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF) {
+      if (dumpOptions.dumpSkyframe == SkyframeDumpOption.FUNCTIONS) {
+        env.getSkyframeExecutor().getSkyFunctionStatistics().dump(out);
+        out.println();
+      } else if (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF) {
         dumpSkyframe(
             env.getSkyframeExecutor(), dumpOptions.dumpSkyframe == SkyframeDumpOption.SUMMARY, out);
         out.println();
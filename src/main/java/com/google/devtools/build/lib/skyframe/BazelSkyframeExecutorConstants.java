@@ -20,6 +20,8 @@ import com.google.devtools.build.lib.repository.ExternalPackageHelper;
 import com.google.devtools.build.lib.skyframe.PackageFunction.ActionOnIOExceptionReadingBuildFile;
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 
 /** Hardcoded constants describing bazel-on-skyframe behavior. */
@@ -59,8 +61,23 @@ public class BazelSkyframeExecutorConstants {
       ACTION_ON_IO_EXCEPTION_READING_BUILD_FILE =
           ActionOnIOExceptionReadingBuildFile.UseOriginalIOException.INSTANCE;
 
+  /**
+   * The Skyframe graph implementation. The graph lives as long as the server, so this is chosen at
+   * startup: {@code --host_jvm_args=-Dbazel.skyframe.NodeMap=open_addressing} keeps the nodes in
+   * an open-addressing table instead of a {@link java.util.concurrent.ConcurrentHashMap}, and
+   * {@code --host_jvm_args=-Dbazel.skyframe.ReverseDeps=compact} stores reverse deps as int node
+   * ids instead of references, which mostly pays off on heaps without compressed oops.
+   */
+  public static final EvaluatorSupplier EVALUATOR_SUPPLIER =
+      InMemoryMemoizingEvaluator.supplier(
+          /*openAddressingNodeMap=*/ System.getProperty("bazel.skyframe.NodeMap", "")
+              .equals("open_addressing"),
+          /*compactReverseDeps=*/ System.getProperty("bazel.skyframe.ReverseDeps", "")
+              .equals("compact"));
+
   public static SequencedSkyframeExecutor.Builder newBazelSkyframeExecutorBuilder() {
     return SequencedSkyframeExecutor.builder()
+        .setEvaluatorSupplier(EVALUATOR_SUPPLIER)
         .setIgnoredPackagePrefixesFunction(IGNORED_PACKAGE_PREFIXES_FUNCTION)
         .setActionOnIOExceptionReadingBuildFile(ACTION_ON_IO_EXCEPTION_READING_BUILD_FILE)
         .setCrossRepositoryLabelViolationStrategy(CROSS_REPOSITORY_LABEL_VIOLATION_STRATEGY)
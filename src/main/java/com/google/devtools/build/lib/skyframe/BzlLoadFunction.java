@@ -53,6 +53,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.skyframe.RecordingSkyFunctionEnvironment;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -365,6 +366,16 @@ public class BzlLoadFunction implements SkyFunction {
     cachedBzlLoadDataManager.reset();
   }
 
+  /**
+   * The loads of a bzl, which {@link #computeInternalWithCompiledBzl} doesn't determine again when
+   * it's restarted because some of them weren't loaded yet.
+   */
+  private static class State implements SkyKeyComputeState {
+    @Nullable private ImmutableMap<RepositoryName, RepositoryName> repoMapping;
+    @Nullable private List<Pair<String, Label>> loadLabels;
+    @Nullable private List<BzlLoadValue.Key> loadKeys;
+  }
+
   /**
    * An opaque object that holds state for the bzl inlining computation initiated by {@link
    * #computeInline}.
@@ -631,22 +642,32 @@ public class BzlLoadFunction implements SkyFunction {
       throw BzlLoadFailedException.starlarkErrors(label);
     }
 
-    // Determine dependency BzlLoadValue keys for the load statements in this bzl. Labels are
-    // resolved relative to the current repo mapping.
-    ImmutableMap<RepositoryName, RepositoryName> repoMapping = getRepositoryMapping(key, env);
-    if (repoMapping == null) {
-      return null;
-    }
-    List<Pair<String, Label>> loadLabels =
-        getLoadLabels(env.getListener(), file, label.getPackageIdentifier(), repoMapping);
-    if (loadLabels == null) {
-      // malformed load statements
-      throw BzlLoadFailedException.starlarkErrors(label);
-    }
-    List<BzlLoadValue.Key> loadKeys = Lists.newArrayListWithExpectedSize(loadLabels.size());
-    for (Pair<String, Label> entry : loadLabels) {
-      loadKeys.add(key.getKeyForLoad(entry.second));
+    // When inlining, env belongs to the key that started the inlining, not to this one.
+    State state = inliningState == null ? env.getState(State::new) : new State();
+    if (state.loadKeys == null) {
+      // Determine dependency BzlLoadValue keys for the load statements in this bzl. Labels are
+      // resolved relative to the current repo mapping.
+      ImmutableMap<RepositoryName, RepositoryName> repoMapping = getRepositoryMapping(key, env);
+      if (repoMapping == null) {
+        return null;
+      }
+      List<Pair<String, Label>> loadLabels =
+          getLoadLabels(env.getListener(), file, label.getPackageIdentifier(), repoMapping);
+      if (loadLabels == null) {
+        // malformed load statements
+        throw BzlLoadFailedException.starlarkErrors(label);
+      }
+      List<BzlLoadValue.Key> loadKeys = Lists.newArrayListWithExpectedSize(loadLabels.size());
+      for (Pair<String, Label> entry : loadLabels) {
+        loadKeys.add(key.getKeyForLoad(entry.second));
+      }
+      state.repoMapping = repoMapping;
+      state.loadLabels = loadLabels;
+      state.loadKeys = loadKeys;
     }
+    ImmutableMap<RepositoryName, RepositoryName> repoMapping = state.repoMapping;
+    List<Pair<String, Label>> loadLabels = state.loadLabels;
+    List<BzlLoadValue.Key> loadKeys = state.loadKeys;
 
     // Evaluate the dependency bzls. When not using bzl inlining, this is done in parallel for all
     // loads.
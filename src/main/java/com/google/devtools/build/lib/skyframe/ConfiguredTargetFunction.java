@@ -66,6 +66,7 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.Aspect;
 import com.google.devtools.build.lib.packages.BuildType;
@@ -87,6 +88,7 @@ import com.google.devtools.build.lib.util.DetailedExitCode;
 import com.google.devtools.build.lib.util.DetailedExitCode.DetailedExitCodeComparator;
 import com.google.devtools.build.lib.util.OrderedSetMultimap;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
@@ -172,6 +174,38 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     this.configuredTargetProgress = configuredTargetProgress;
   }
 
+  /**
+   * The results of the steps of {@link #compute} that it doesn't repeat when it's restarted for
+   * missing deps.
+   */
+  private static class State implements SkyKeyComputeState {
+    /** Kept rather than recreated, since the steps that were skipped added to it. */
+    @Nullable private final NestedSetBuilder<Package> transitivePackagesForPackageRootResolution;
+
+    private boolean unloadedToolchainContextsComputed = false;
+    @Nullable private ToolchainCollection<UnloadedToolchainContext> unloadedToolchainContexts;
+    @Nullable private ImmutableMap<Label, ConfigMatchingProvider> configConditions;
+    private final ComputeDependenciesState computeDependenciesState =
+        new ComputeDependenciesState();
+
+    private State(boolean storeTransitivePackagesForPackageRootResolution) {
+      this.transitivePackagesForPackageRootResolution =
+          storeTransitivePackagesForPackageRootResolution ? NestedSetBuilder.stableOrder() : null;
+    }
+  }
+
+  /**
+   * The results of the steps of {@link #computeDependencies} that it doesn't repeat when its caller
+   * is restarted for missing deps.
+   */
+  static class ComputeDependenciesState {
+    /** The deps with their configurations, once all of them could be resolved without errors. */
+    @Nullable private OrderedSetMultimap<DependencyKind, Dependency> resolvedDependencies;
+
+    /** The events reported while resolving the configurations of the deps, e.g. by transitions. */
+    private StoredEventHandler resolutionEvents;
+  }
+
   private void acquireWithLogging(SkyKey key) throws InterruptedException {
     Stopwatch stopwatch = Stopwatch.createStarted();
     cpuBoundSemaphore.acquire();
@@ -193,8 +227,9 @@ public final class ConfiguredTargetFunction implements SkyFunction {
               /*postFetch=*/ () -> acquireWithLogging(key));
     }
     SkyframeBuildView view = buildViewProvider.getSkyframeBuildView();
+    State state = env.getState(() -> new State(storeTransitivePackagesForPackageRootResolution));
     NestedSetBuilder<Package> transitivePackagesForPackageRootResolution =
-        storeTransitivePackagesForPackageRootResolution ? NestedSetBuilder.stableOrder() : null;
+        state.transitivePackagesForPackageRootResolution;
     NestedSetBuilder<Cause> transitiveRootCauses = NestedSetBuilder.stableOrder();
 
     ConfiguredTargetKey configuredTargetKey = (ConfiguredTargetKey) key.argument();
@@ -276,29 +311,40 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     acquireWithLogging(key);
     try {
       // Determine what toolchains are needed by this target.
-      unloadedToolchainContexts =
-          computeUnloadedToolchainContexts(
-              env,
-              ruleClassProvider,
-              defaultBuildOptions,
-              ctgValue,
-              configuredTargetKey.getToolchainContextKey());
-      if (env.valuesMissing()) {
-        return null;
+      if (!state.unloadedToolchainContextsComputed) {
+        state.unloadedToolchainContexts =
+            computeUnloadedToolchainContexts(
+                env,
+                ruleClassProvider,
+                defaultBuildOptions,
+                ctgValue,
+                configuredTargetKey.getToolchainContextKey());
+        if (env.valuesMissing()) {
+          return null;
+        }
+        state.unloadedToolchainContextsComputed = true;
       }
+      unloadedToolchainContexts = state.unloadedToolchainContexts;
 
       // Get the configuration targets that trigger this rule's configurable attributes.
-      ImmutableMap<Label, ConfigMatchingProvider> configConditions =
-          getConfigConditions(
-              env,
-              ctgValue,
-              transitivePackagesForPackageRootResolution,
-              unloadedToolchainContexts == null
-                  ? null
-                  : unloadedToolchainContexts.getTargetPlatform(),
-              transitiveRootCauses);
-      if (env.valuesMissing()) {
-        return null;
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions = state.configConditions;
+      if (configConditions == null) {
+        configConditions =
+            getConfigConditions(
+                env,
+                ctgValue,
+                transitivePackagesForPackageRootResolution,
+                unloadedToolchainContexts == null
+                    ? null
+                    : unloadedToolchainContexts.getTargetPlatform(),
+                transitiveRootCauses);
+        if (env.valuesMissing()) {
+          return null;
+        }
+        // Root causes aren't kept, so only skip the step next time if it didn't add any.
+        if (transitiveRootCauses.isEmpty()) {
+          state.configConditions = configConditions;
+        }
       }
       // TODO(ulfjack): ConfiguredAttributeMapper (indirectly used from computeDependencies) isn't
       // safe to use if there are missing config conditions, so we stop here, but only if there are
@@ -321,6 +367,7 @@ public final class ConfiguredTargetFunction implements SkyFunction {
       // Calculate the dependencies of this target.
       OrderedSetMultimap<DependencyKind, ConfiguredTargetAndData> depValueMap =
           computeDependencies(
+              state.computeDependenciesState,
               env,
               resolver,
               ctgValue,
@@ -641,46 +688,120 @@ public final class ConfiguredTargetFunction implements SkyFunction {
       BuildOptions defaultBuildOptions)
       throws DependencyEvaluationException, ConfiguredValueCreationException,
           AspectCreationException, InterruptedException {
-    // Create the map from attributes to set of (target, transition) pairs.
-    OrderedSetMultimap<DependencyKind, DependencyKey> initialDependencies;
+    return computeDependencies(
+        new ComputeDependenciesState(),
+        env,
+        resolver,
+        ctgValue,
+        aspects,
+        configConditions,
+        toolchainContexts,
+        useToolchainTransition,
+        ruleClassProvider,
+        hostConfiguration,
+        transitivePackagesForPackageRootResolution,
+        transitiveRootCauses,
+        defaultBuildOptions);
+  }
+
+  /**
+   * Like {@link #computeDependencies(Environment, SkyframeDependencyResolver,
+   * TargetAndConfiguration, Iterable, ImmutableMap, ToolchainCollection, boolean,
+   * RuleClassProvider, BuildConfiguration, NestedSetBuilder, NestedSetBuilder, BuildOptions)}, but
+   * skips resolving the deps and their configurations if {@code state} already holds them from a
+   * previous call for the same node.
+   */
+  @Nullable
+  private static OrderedSetMultimap<DependencyKind, ConfiguredTargetAndData> computeDependencies(
+      ComputeDependenciesState state,
+      Environment env,
+      SkyframeDependencyResolver resolver,
+      TargetAndConfiguration ctgValue,
+      Iterable<Aspect> aspects,
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions,
+      @Nullable ToolchainCollection<ToolchainContext> toolchainContexts,
+      boolean useToolchainTransition,
+      RuleClassProvider ruleClassProvider,
+      BuildConfiguration hostConfiguration,
+      @Nullable NestedSetBuilder<Package> transitivePackagesForPackageRootResolution,
+      NestedSetBuilder<Cause> transitiveRootCauses,
+      BuildOptions defaultBuildOptions)
+      throws DependencyEvaluationException, ConfiguredValueCreationException,
+          AspectCreationException, InterruptedException {
     BuildConfiguration configuration = ctgValue.getConfiguration();
     Label label = ctgValue.getLabel();
-    try {
-      initialDependencies =
-          resolver.dependentNodeMap(
+    OrderedSetMultimap<DependencyKind, Dependency> depValueNames = state.resolvedDependencies;
+    if (depValueNames != null) {
+      // Events of restarted calls are dropped, so report them again.
+      state.resolutionEvents.replayOn(env.getListener());
+    } else {
+      // Create the map from attributes to set of (target, transition) pairs.
+      OrderedSetMultimap<DependencyKind, DependencyKey> initialDependencies;
+      try {
+        initialDependencies =
+            resolver.dependentNodeMap(
+                ctgValue,
+                hostConfiguration,
+                aspects,
+                configConditions,
+                toolchainContexts,
+                useToolchainTransition,
+                transitiveRootCauses,
+                ((ConfiguredRuleClassProvider) ruleClassProvider).getTrimmingTransitionFactory());
+      } catch (EvalException e) {
+        // EvalException can only be thrown by computed Starlark attributes in the current rule.
+        String msgWithStack = e.getMessageWithStack();
+        env.getListener().handle(Event.error(null, msgWithStack));
+        env.getListener().post(new AnalysisRootCauseEvent(configuration, label, msgWithStack));
+        throw new DependencyEvaluationException(
+            new ConfiguredValueCreationException(msgWithStack, label, configuration));
+      } catch (InconsistentAspectOrderException e) {
+        env.getListener().handle(Event.error(e.getLocation(), e.getMessage()));
+        throw new DependencyEvaluationException(e);
+      }
+      // Trim each dep's configuration so it only includes the fragments needed by its transitive
+      // closure. The events of transitions are recorded so that they can be replayed if the
+      // resolved deps are reused. Progress events go straight to the listener, like those of
+      // SkyFunctionEnvironment, since they aren't dropped when this call is restarted.
+      StoredEventHandler resolutionEvents =
+          new StoredEventHandler() {
+            @Override
+            // Only delegates to thread-safe methods.
+            @SuppressWarnings("UnsynchronizedOverridesSynchronized")
+            public void post(ExtendedEventHandler.Postable e) {
+              if (e instanceof ExtendedEventHandler.ProgressLike) {
+                env.getListener().post(e);
+              } else {
+                super.post(e);
+              }
+            }
+          };
+      ConfigurationResolver configResolver =
+          new ConfigurationResolver(
+              env,
+              resolutionEvents,
               ctgValue,
               hostConfiguration,
-              aspects,
-              configConditions,
-              toolchainContexts,
-              useToolchainTransition,
-              transitiveRootCauses,
-              ((ConfiguredRuleClassProvider) ruleClassProvider).getTrimmingTransitionFactory());
-    } catch (EvalException e) {
-      // EvalException can only be thrown by computed Starlark attributes in the current rule.
-      String msgWithStack = e.getMessageWithStack();
-      env.getListener().handle(Event.error(null, msgWithStack));
-      env.getListener().post(new AnalysisRootCauseEvent(configuration, label, msgWithStack));
-      throw new DependencyEvaluationException(
-          new ConfiguredValueCreationException(msgWithStack, label, configuration));
-    } catch (InconsistentAspectOrderException e) {
-      env.getListener().handle(Event.error(e.getLocation(), e.getMessage()));
-      throw new DependencyEvaluationException(e);
-    }
-    // Trim each dep's configuration so it only includes the fragments needed by its transitive
-    // closure.
-    ConfigurationResolver configResolver =
-        new ConfigurationResolver(
-            env, ctgValue, hostConfiguration, defaultBuildOptions, configConditions);
-    OrderedSetMultimap<DependencyKind, Dependency> depValueNames =
-        configResolver.resolveConfigurations(initialDependencies);
-
-    // Return early in case packages were not loaded yet. In theory, we could start configuring
-    // dependent targets in loaded packages. However, that creates an artificial sync boundary
-    // between loading all dependent packages (fast) and configuring some dependent targets (can
-    // have a long tail).
-    if (env.valuesMissing()) {
-      return null;
+              defaultBuildOptions,
+              configConditions);
+      try {
+        depValueNames = configResolver.resolveConfigurations(initialDependencies);
+      } finally {
+        resolutionEvents.replayOn(env.getListener());
+      }
+
+      // Return early in case packages were not loaded yet. In theory, we could start configuring
+      // dependent targets in loaded packages. However, that creates an artificial sync boundary
+      // between loading all dependent packages (fast) and configuring some dependent targets (can
+      // have a long tail).
+      if (env.valuesMissing()) {
+        return null;
+      }
+      // Root causes aren't kept, so only skip the resolution next time if it didn't add any.
+      if (transitiveRootCauses.isEmpty()) {
+        state.resolvedDependencies = depValueNames;
+        state.resolutionEvents = resolutionEvents;
+      }
     }
 
     // Resolve configured target dependencies and handle errors.
@@ -38,9 +38,11 @@ public interface DiffAwareness extends Closeable {
      *
      * <p>Skyframe has a collection of factories, and will create a {@link DiffAwareness} instance
      * per package path entry using one of the factories that returns a non-null value.
+     *
+     * @param options the options of the command that needs the instance
      */
     @Nullable
-    DiffAwareness maybeCreate(Root pathEntry);
+    DiffAwareness maybeCreate(Root pathEntry, OptionsProvider options);
   }
 
   /** Opaque view of the filesystem under a package path entry at a specific point in time. */
@@ -72,6 +74,23 @@ public interface DiffAwareness extends Closeable {
   ModifiedFileSet getDiff(View oldView, View newView)
       throws IncompatibleViewException, BrokenDiffAwarenessException;
 
+  /**
+   * Returns the view that {@link #persistView} stored for the same package path entry, possibly in
+   * an earlier server, or {@code null}. It may be diffed against the views of this instance. Must
+   * only be called after {@link #getCurrentView}.
+   */
+  @Nullable
+  default View getPersistedView() {
+    return null;
+  }
+
+  /**
+   * Stores {@code view}, a view of this instance, for {@link #getPersistedView}. The state of the
+   * filesystem known to Skyframe must be at least as recent as {@code view}, e.g. because the diff
+   * up to it has been processed.
+   */
+  default void persistView(View view) {}
+
   /** @return the name of this implementation */
   String name();
 
@@ -44,6 +44,8 @@ public final class DiffAwarenessManager {
 
   private static class DiffAwarenessState {
     private final DiffAwareness diffAwareness;
+    /** The index of the factory that created {@link #diffAwareness}. */
+    private final int factoryIndex;
     /**
      * The {@link View} that should be the baseline for the next {@link #getDiff} call, or
      * {@code null} if the next {@link #getDiff} will be the first incremental one.
@@ -51,8 +53,10 @@ public final class DiffAwarenessManager {
     @Nullable
     private View baselineView;
 
-    private DiffAwarenessState(DiffAwareness diffAwareness, @Nullable View baselineView) {
+    private DiffAwarenessState(
+        DiffAwareness diffAwareness, int factoryIndex, @Nullable View baselineView) {
       this.diffAwareness = diffAwareness;
+      this.factoryIndex = factoryIndex;
       this.baselineView = baselineView;
     }
   }
@@ -65,6 +69,18 @@ public final class DiffAwarenessManager {
     currentDiffAwarenessStates.clear();
   }
 
+  /**
+   * Persists the baseline views of all path entries, see {@link DiffAwareness#persistView}. Must
+   * not be called while a diff is being processed.
+   */
+  public void persistBaselineViews() {
+    for (DiffAwarenessState diffAwarenessState : currentDiffAwarenessStates.values()) {
+      if (diffAwarenessState.baselineView != null) {
+        diffAwarenessState.diffAwareness.persistView(diffAwarenessState.baselineView);
+      }
+    }
+  }
+
   /** A set of modified files that should be marked as processed. */
   public interface ProcessableModifiedFileSet {
     ModifiedFileSet getModifiedFileSet();
@@ -82,7 +98,7 @@ public final class DiffAwarenessManager {
    */
   public ProcessableModifiedFileSet getDiff(
       EventHandler eventHandler, Root pathEntry, OptionsProvider options) {
-    DiffAwarenessState diffAwarenessState = maybeGetDiffAwarenessState(pathEntry);
+    DiffAwarenessState diffAwarenessState = maybeGetDiffAwarenessState(pathEntry, options);
     if (diffAwarenessState == null) {
       return BrokenProcessableModifiedFileSet.INSTANCE;
     }
@@ -97,9 +113,15 @@ public final class DiffAwarenessManager {
 
     View baselineView = diffAwarenessState.baselineView;
     if (baselineView == null) {
-      logger.atInfo().log("Initial baseline view for %s is %s", pathEntry, newView);
-      diffAwarenessState.baselineView = newView;
-      return BrokenProcessableModifiedFileSet.INSTANCE;
+      // A persisted view is older than the state of the graph, so diffing against it can only
+      // report more changes than necessary.
+      baselineView = diffAwareness.getPersistedView();
+      if (baselineView == null) {
+        logger.atInfo().log("Initial baseline view for %s is %s", pathEntry, newView);
+        diffAwarenessState.baselineView = newView;
+        return BrokenProcessableModifiedFileSet.INSTANCE;
+      }
+      logger.atInfo().log("Persisted baseline view for %s is %s", pathEntry, baselineView);
     }
 
     ModifiedFileSet diff;
@@ -130,24 +152,36 @@ public final class DiffAwarenessManager {
   /**
    * Returns the current diff awareness for the given path entry, or a fresh one if there is no
    * current one, or otherwise {@code null} if no factory could make a fresh one.
+   *
+   * <p>The factories that come before the one of the current diff awareness are asked again, since
+   * the options of this command may make them accept, e.g. {@code --experimental_watchman_socket}.
+   * A fresh diff awareness from one of them replaces the current one.
    */
   @Nullable
-  private DiffAwarenessState maybeGetDiffAwarenessState(Root pathEntry) {
+  private DiffAwarenessState maybeGetDiffAwarenessState(Root pathEntry, OptionsProvider options) {
     DiffAwarenessState diffAwarenessState = currentDiffAwarenessStates.get(pathEntry);
-    if (diffAwarenessState != null) {
-      return diffAwarenessState;
-    }
-    for (DiffAwareness.Factory factory : diffAwarenessFactories) {
-      DiffAwareness newDiffAwareness = factory.maybeCreate(pathEntry);
+    int numFactoriesToTry =
+        diffAwarenessState == null
+            ? diffAwarenessFactories.size()
+            : diffAwarenessState.factoryIndex;
+    for (int i = 0; i < numFactoriesToTry; i++) {
+      DiffAwareness newDiffAwareness =
+          diffAwarenessFactories.get(i).maybeCreate(pathEntry, options);
       if (newDiffAwareness != null) {
+        if (diffAwarenessState != null) {
+          logger.atInfo().log(
+              "Replacing %s DiffAwareness strategy for %s after an options change",
+              diffAwarenessState.diffAwareness.name(), pathEntry);
+          diffAwarenessState.diffAwareness.close();
+        }
         logger.atInfo().log(
             "Using %s DiffAwareness strategy for %s", newDiffAwareness.name(), pathEntry);
-        diffAwarenessState = new DiffAwarenessState(newDiffAwareness, /*baselineView=*/null);
+        diffAwarenessState = new DiffAwarenessState(newDiffAwareness, i, /*baselineView=*/ null);
         currentDiffAwarenessStates.put(pathEntry, diffAwarenessState);
         return diffAwarenessState;
       }
     }
-    return null;
+    return diffAwarenessState;
   }
 
   private class ProcessableModifiedFileSetImpl implements ProcessableModifiedFileSet {
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -54,6 +55,29 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    @Override
+    public RootedPath getPathToStat(SkyKey key) {
+      return (RootedPath) key.argument();
+    }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValueWithStat(
+        SkyKey key,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      if (statNoFollow == null) {
+        return FileStateValue.NONEXISTENT_FILE_STATE_NODE;
+      }
+      try {
+        return FileStateValue.createWithStatNoFollow(
+            (RootedPath) key.argument(), statNoFollow, /*digestWillBeInjected=*/ false, tsgm);
+      } catch (IOException e) {
+        // See createNewValue.
+        return null;
+      }
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -90,6 +114,21 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    @Override
+    @Nullable
+    public RootedPath getPathToStat(SkyKey key) {
+      return checker.getPathToStat(key);
+    }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValueWithStat(
+        SkyKey key,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.createNewValueWithStat(key, statNoFollow, tsgm);
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -136,6 +175,13 @@ public class DirtinessCheckerUtils {
       throw new UnsupportedOperationException();
     }
 
+    @Nullable
+    @Override
+    public RootedPath getPathToStat(SkyKey key) {
+      // check() is overridden below.
+      return null;
+    }
+
     @Override
     public SkyValueDirtinessChecker.DirtyResult check(
         SkyKey skyKey, SkyValue oldValue, @Nullable TimestampGranularityMonitor tsgm) {
@@ -189,5 +235,31 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    @Override
+    @Nullable
+    public RootedPath getPathToStat(SkyKey key) {
+      return Preconditions.checkNotNull(getChecker(key), key).getPathToStat(key);
+    }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValueWithStat(
+        SkyKey key,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .createNewValueWithStat(key, statNoFollow, tsgm);
+    }
+
+    @Override
+    public DirtyResult checkWithStat(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        @Nullable FileStatusWithDigest statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .checkWithStat(key, oldValue, statNoFollow, tsgm);
+    }
   }
 }
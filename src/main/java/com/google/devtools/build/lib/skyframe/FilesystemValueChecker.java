@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
@@ -48,6 +49,8 @@ import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.Differencer.DiffWithDelta.Delta;
@@ -57,6 +60,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -66,9 +70,13 @@ import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import javax.annotation.Nullable;
@@ -84,6 +92,17 @@ public class FilesystemValueChecker {
   private static final Predicate<SkyKey> ACTION_FILTER =
       SkyFunctionName.functionIs(SkyFunctions.ACTION_EXECUTION);
 
+  /** Maximum number of source files stat-ed by a single call to a {@link BatchStat}. */
+  private static final int STAT_BATCH_SIZE = 256;
+
+  /**
+   * The threads of {@link #getDirtyValues} by thread count, shared by all checkers so that a check
+   * doesn't start and stop up to {@code numThreads} threads each time. Pools are never resized,
+   * since checks with different thread counts may run concurrently. Idle threads time out.
+   */
+  private static final ConcurrentHashMap<Integer, ExecutorService> dirtyValuesExecutors =
+      new ConcurrentHashMap<>();
+
   @Nullable private final TimestampGranularityMonitor tsgm;
   @Nullable private final Range<Long> lastExecutionTimeRange;
   private AtomicInteger modifiedOutputFilesCounter = new AtomicInteger(0);
@@ -575,11 +594,8 @@ public class FilesystemValueChecker {
       final SkyValueDirtinessChecker checker,
       final boolean checkMissingValues)
       throws InterruptedException {
-    ExecutorService executor =
-        Executors.newFixedThreadPool(
-            numThreads,
-            new ThreadFactoryBuilder().setNameFormat("FileSystem Value Invalidator %d").build());
-
+    ExecutorService executor = getDirtyValuesExecutor(numThreads);
+    List<Future<?>> futures = new ArrayList<>();
     ThrowableRecordingRunnableWrapper wrapper =
         new ThrowableRecordingRunnableWrapper("FilesystemValueChecker#getDirtyValues");
     final AtomicInteger numKeysChecked = new AtomicInteger(0);
@@ -593,6 +609,9 @@ public class FilesystemValueChecker {
           }
         };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
+      // Keys that only need a stat are checked in batches, one batch stat call per task.
+      Map<Root, BatchStat> batchStatters = new HashMap<>();
+      Map<Root, List<SkyKey>> pendingBatches = new HashMap<>();
       for (final SkyKey key : keys) {
         if (!checker.applies(key)) {
           continue;
@@ -601,37 +620,187 @@ public class FilesystemValueChecker {
             key.functionName().getHermeticity() == FunctionHermeticity.NONHERMETIC,
             "Only non-hermetic keys can be dirty roots: %s",
             key);
-        executor.execute(
-            wrapper.wrap(
-                () -> {
-                  SkyValue value;
-                  try {
-                    value = fetcher.get(key);
-                  } catch (InterruptedException e) {
-                    // Exit fast. Interrupt is handled below on the main thread.
-                    return;
-                  }
-                  if (!checkMissingValues && value == null) {
-                    return;
-                  }
-
-                  numKeysChecked.incrementAndGet();
-                  DirtyResult result = checker.check(key, value, tsgm);
-                  if (result.isDirty()) {
-                    batchResult.add(key, value, result.getNewValue());
-                  }
-                }));
+        RootedPath pathToStat = checker.getPathToStat(key);
+        BatchStat batchStatter =
+            pathToStat == null ? null : getBatchStatter(batchStatters, pathToStat.getRoot());
+        if (batchStatter == null) {
+          futures.add(
+              executor.submit(
+                  wrapper.wrap(
+                      () -> {
+                        SkyValue value;
+                        try {
+                          value = fetcher.get(key);
+                        } catch (InterruptedException e) {
+                          // Exit fast. Interrupt is handled below on the main thread.
+                          return;
+                        }
+                        if (!checkMissingValues && value == null) {
+                          return;
+                        }
+                        addIfDirty(key, value, checker.check(key, value, tsgm), batchResult);
+                      })));
+          continue;
+        }
+        List<SkyKey> batch =
+            pendingBatches.computeIfAbsent(pathToStat.getRoot(), root -> new ArrayList<>());
+        batch.add(key);
+        if (batch.size() == STAT_BATCH_SIZE) {
+          pendingBatches.remove(pathToStat.getRoot());
+          futures.add(
+              executor.submit(
+                  wrapper.wrap(
+                      () ->
+                          checkBatch(
+                              fetcher,
+                              batch,
+                              batchStatter,
+                              checker,
+                              checkMissingValues,
+                              batchResult))));
+        }
+      }
+      for (Map.Entry<Root, List<SkyKey>> entry : pendingBatches.entrySet()) {
+        BatchStat batchStatter = batchStatters.get(entry.getKey());
+        List<SkyKey> batch = entry.getValue();
+        futures.add(
+            executor.submit(
+                wrapper.wrap(
+                    () ->
+                        checkBatch(
+                            fetcher,
+                            batch,
+                            batchStatter,
+                            checker,
+                            checkMissingValues,
+                            batchResult))));
       }
 
-      boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
+      awaitAll(futures);
       Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-      if (interrupted) {
-        throw new InterruptedException();
-      }
     }
     return batchResult.toImmutable();
   }
 
+  @VisibleForTesting
+  static ExecutorService getDirtyValuesExecutor(int numThreads) {
+    return dirtyValuesExecutors.computeIfAbsent(
+        numThreads, FilesystemValueChecker::newDirtyValuesExecutor);
+  }
+
+  private static ExecutorService newDirtyValuesExecutor(int numThreads) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            numThreads,
+            numThreads,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("FileSystem Value Invalidator " + numThreads + "-%d")
+                .setDaemon(true)
+                .build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Waits for all {@code futures}, whose tasks record their errors themselves. If interrupted,
+   * cancels the tasks that are still pending or running.
+   */
+  private static void awaitAll(List<Future<?>> futures) throws InterruptedException {
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      for (Future<?> future : futures) {
+        future.cancel(/*mayInterruptIfRunning=*/ true);
+      }
+      throw e;
+    } catch (ExecutionException e) {
+      // The tasks are wrapped by a ThrowableRecordingRunnableWrapper, which catches everything.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Nullable
+  private static BatchStat getBatchStatter(Map<Root, BatchStat> batchStatters, Root root) {
+    if (!batchStatters.containsKey(root)) {
+      Path rootPath = root.asPath();
+      batchStatters.put(
+          root, rootPath == null ? null : rootPath.getFileSystem().getBatchStatter(rootPath));
+    }
+    return batchStatters.get(root);
+  }
+
+  /**
+   * Checks {@code batch}, keys for which {@link SkyValueDirtinessChecker#getPathToStat} returns a
+   * path below a common root, with a single call to {@code batchStatter}.
+   */
+  private void checkBatch(
+      ValueFetcher fetcher,
+      List<SkyKey> batch,
+      BatchStat batchStatter,
+      SkyValueDirtinessChecker checker,
+      boolean checkMissingValues,
+      MutableBatchDirtyResult batchResult) {
+    List<SkyKey> keysToCheck = new ArrayList<>(batch.size());
+    List<SkyValue> values = new ArrayList<>(batch.size());
+    List<PathFragment> paths = new ArrayList<>(batch.size());
+    for (SkyKey key : batch) {
+      SkyValue value;
+      try {
+        value = fetcher.get(key);
+      } catch (InterruptedException e) {
+        // Exit fast. Interrupt is handled on the main thread.
+        return;
+      }
+      if (!checkMissingValues && value == null) {
+        continue;
+      }
+      keysToCheck.add(key);
+      values.add(value);
+      paths.add(checker.getPathToStat(key).getRootRelativePath());
+    }
+    if (keysToCheck.isEmpty()) {
+      return;
+    }
+
+    List<FileStatusWithDigest> stats;
+    try {
+      stats =
+          batchStatter.batchStat(/*includeDigest=*/ false, /*includeLinks=*/ true, paths);
+    } catch (IOException e) {
+      // Check the keys one by one, which deals with the error of each path on its own.
+      logger.atInfo().withCause(e).log("Batch stat of %d source files failed", paths.size());
+      for (int i = 0; i < keysToCheck.size(); i++) {
+        SkyKey key = keysToCheck.get(i);
+        SkyValue value = values.get(i);
+        addIfDirty(key, value, checker.check(key, value, tsgm), batchResult);
+      }
+      return;
+    } catch (InterruptedException e) {
+      return;
+    }
+    for (int i = 0; i < keysToCheck.size(); i++) {
+      SkyKey key = keysToCheck.get(i);
+      SkyValue value = values.get(i);
+      addIfDirty(key, value, checker.checkWithStat(key, value, stats.get(i), tsgm), batchResult);
+    }
+  }
+
+  private static void addIfDirty(
+      SkyKey key,
+      @Nullable SkyValue value,
+      DirtyResult result,
+      MutableBatchDirtyResult batchResult) {
+    batchResult.numChecked.incrementAndGet();
+    if (result.isDirty()) {
+      batchResult.add(key, value, result.getNewValue());
+    }
+  }
+
   static class ImmutableBatchDirtyResult implements Differencer.DiffWithDelta {
     private final Collection<SkyKey> dirtyKeysWithoutNewValues;
     private final Map<SkyKey, Delta> dirtyKeysWithNewAndOldValues;
@@ -0,0 +1,503 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
+import com.google.devtools.build.lib.jni.JniLoader;
+import com.google.devtools.build.lib.unix.NativePosixFiles;
+import com.google.devtools.build.lib.unix.NativePosixFiles.Dirents;
+import com.google.devtools.build.lib.unix.NativePosixFiles.ReadTypes;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link DiffAwareness} that uses inotify(7) directly to watch the filesystem, in lieu of {@link
+ * WatchServiceDiffAwareness}.
+ *
+ * <p>Compared to the Java WatchService, directories are registered in parallel and listed without
+ * stat-ing their entries, and a thread drains the kernel's event queue as soon as events arrive so
+ * that it doesn't overflow between builds. After the initial registration, only directories that
+ * are created or moved into the watched tree are traversed.
+ *
+ * <p>Losing events doesn't discard this diff awareness: the diff is {@link
+ * com.google.devtools.build.lib.vfs.ModifiedFileSet#EVERYTHING_MODIFIED} once, while the tree is
+ * walked again to add the watches of directories whose creation was missed. inotify doesn't tell
+ * where events were lost, so that walk can't be limited to some subtrees, but it keeps the existing
+ * watches.
+ */
+public final class LinuxInotifyDiffAwareness extends LocalDiffAwareness {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  // Event bits of inotify(7).
+  private static final int IN_MODIFY = 0x00000002;
+  private static final int IN_ATTRIB = 0x00000004;
+  private static final int IN_MOVED_FROM = 0x00000040;
+  private static final int IN_MOVED_TO = 0x00000080;
+  private static final int IN_CREATE = 0x00000100;
+  private static final int IN_DELETE = 0x00000200;
+  private static final int IN_DELETE_SELF = 0x00000400;
+  private static final int IN_MOVE_SELF = 0x00000800;
+  private static final int IN_Q_OVERFLOW = 0x00004000;
+  private static final int IN_IGNORED = 0x00008000;
+  private static final int IN_ISDIR = 0x40000000;
+
+  /**
+   * How many bytes of events are kept between two calls of {@link #getCurrentView}, about a
+   * million events with short names. More changes than that are handled like an overflow.
+   */
+  private static final long MAX_PENDING_EVENT_BYTES = 32L << 20;
+
+  private static final int REGISTRATION_THREADS =
+      Math.max(4, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Whether the native methods of this class can be linked. Becomes false if the JNI library was
+   * loaded but doesn't have them, e.g. because it was built without inotify support.
+   */
+  private static volatile boolean nativeMethodsLinked = true;
+
+  /** Returns whether the native code of this class is available. */
+  static boolean isAvailable() {
+    // Like MacOSXFsEventsDiffAwareness, this is compiled into the bootstrap binary, which has no
+    // JNI code.
+    return JniLoader.isJniAvailable() && nativeMethodsLinked;
+  }
+
+  /** The watched directories by the watch descriptors that inotify returned for them. */
+  private final Map<Integer, Path> watchedDirs = new ConcurrentHashMap<>();
+
+  /** The inverse of {@link #watchedDirs}. */
+  private final Map<Path, Integer> watchDescriptors = new ConcurrentHashMap<>();
+
+  /** The watched subdirectories of each watched directory, except for empty sets. */
+  private final Map<Path, Set<Path>> watchedSubdirs = new ConcurrentHashMap<>();
+
+  // Keep a pointer to a native structure in the JNI code, which holds the inotify instance and the
+  // events that the run() thread read from it.
+  private long nativePointer;
+
+  // Set by poll() to the System.nanoTime() at which the oldest of the returned events was read
+  // from the kernel, or 0 if there were none.
+  private long oldestEventNanos;
+
+  /**
+   * The time between the oldest event of the last diff being read from the kernel and the diff
+   * being computed, or -1 if there were no events.
+   */
+  private long lastEventLatencyNanos = -1;
+
+  private boolean opened;
+
+  private boolean closed;
+
+  LinuxInotifyDiffAwareness(String watchRoot) {
+    super(watchRoot);
+  }
+
+  /** Creates the inotify instance; throws an {@link IOException} if that fails. */
+  private native void create(long maxPendingBytes) throws IOException;
+
+  /**
+   * Adds a watch for the directory {@code path}.
+   *
+   * @return the watch descriptor, or -1 if {@code path} is no longer a directory
+   * @throws IOException if the watch couldn't be added, e.g. because the limit of watches was hit
+   */
+  private native int addWatch(String path) throws IOException;
+
+  /** Removes the watch with the given descriptor, if the kernel hasn't removed it yet. */
+  private native void removeWatch(int wd);
+
+  /**
+   * Runs the loop that reads inotify events until {@link #doClose} is called.
+   *
+   * @param listening latch that is decremented when the loop is about to start
+   */
+  private native void run(CountDownLatch listening);
+
+  /**
+   * Returns the events since the last call as a sequence of {@code struct inotify_event}s. Events
+   * that had to be dropped are reported as an {@code IN_Q_OVERFLOW} event. Sets {@link
+   * #oldestEventNanos}.
+   */
+  private native byte[] poll();
+
+  /** Stops the run() loop and releases the inotify instance. */
+  private native void doClose();
+
+  private void init() throws IOException {
+    Preconditions.checkState(!opened);
+    try {
+      create(MAX_PENDING_EVENT_BYTES);
+    } catch (UnsatisfiedLinkError e) {
+      // The factory creates a WatchServiceDiffAwareness instead once this one is broken.
+      nativeMethodsLinked = false;
+      throw new IOException("inotify support is missing from the JNI library", e);
+    }
+    opened = true;
+    CountDownLatch listening = new CountDownLatch(1);
+    Thread reader = new Thread(() -> run(listening), "inotify-diff-awareness");
+    reader.setDaemon(true);
+    reader.start();
+    // doClose() must not run before the loop does.
+    Uninterruptibles.awaitUninterruptibly(listening);
+  }
+
+  @Override
+  public View getCurrentView(OptionsProvider options) throws BrokenDiffAwarenessException {
+    if (!isAvailable()) {
+      return EVERYTHING_MODIFIED;
+    }
+    // See WatchServiceDiffAwareness#getCurrentView for an explanation of this logic.
+    boolean watchFs = options.getOptions(Options.class).watchFS;
+    if (watchFs && !opened) {
+      try {
+        init();
+      } catch (IOException e) {
+        throw new BrokenDiffAwarenessException(
+            "Error encountered with local file system watcher " + e);
+      }
+    } else if (!watchFs && opened) {
+      close();
+      throw new BrokenDiffAwarenessException("Switched off --watchfs again");
+    } else if (!opened) {
+      return EVERYTHING_MODIFIED;
+    }
+    Preconditions.checkState(!closed);
+    try {
+      if (isFirstCall()) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        registerSubtrees(ImmutableSet.of(watchRootPath), /*visitedPaths=*/ null);
+        logger.atInfo().log(
+            "Registered %d inotify watches under %s in %d ms",
+            watchedDirs.size(), watchRootPath, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        return newView(ImmutableSet.of());
+      }
+      return collectChanges();
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + e);
+    } catch (BrokenDiffAwarenessException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    if (opened && !closed) {
+      closed = true;
+      doClose();
+    }
+  }
+
+  @Override
+  public String name() {
+    return "inotify";
+  }
+
+  /** Returns the number of directories being watched. */
+  @VisibleForTesting
+  int getWatchCount() {
+    return watchedDirs.size();
+  }
+
+  /**
+   * Returns how long before the end of the last {@link #getCurrentView} call its oldest event was
+   * read from the kernel, in nanoseconds, or -1 if there were no events. The events are read as
+   * soon as the kernel queues them, so this is the latency from the change to the diff.
+   */
+  @VisibleForTesting
+  long getLastEventLatencyNanos() {
+    return lastEventLatencyNanos;
+  }
+
+  /** Returns a view with the changes that the events since the last call report. */
+  private View collectChanges() throws BrokenDiffAwarenessException, IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    oldestEventNanos = 0;
+    ByteBuffer events = ByteBuffer.wrap(poll()).order(ByteOrder.nativeOrder());
+    int numEvents = 0;
+    boolean overflowed = false;
+    Set<Path> createdFilesAndDirectories = new HashSet<>();
+    Set<Path> deletedOrModifiedFilesAndDirectories = new HashSet<>();
+    Set<Path> createdDirectories = new HashSet<>();
+    Set<Path> removedDirectories = new HashSet<>();
+    while (events.hasRemaining()) {
+      numEvents++;
+      int wd = events.getInt();
+      int mask = events.getInt();
+      events.getInt(); // The cookie, which pairs up the two events of a rename.
+      int nameLength = events.getInt();
+      String name = readName(events, nameLength);
+      if ((mask & IN_Q_OVERFLOW) != 0) {
+        overflowed = true;
+        continue;
+      }
+      Path dir = watchedDirs.get(wd);
+      if (dir == null) {
+        // An event for a watch that was removed in the meantime.
+        continue;
+      }
+      if ((mask & IN_IGNORED) != 0) {
+        // The kernel removed the watch because the directory was deleted.
+        forgetWatch(wd, dir);
+        continue;
+      }
+      if ((mask & (IN_DELETE_SELF | IN_MOVE_SELF)) != 0) {
+        // The parent directory reports the change, unless this is the root.
+        if (dir.equals(watchRootPath)) {
+          throw new BrokenDiffAwarenessException(
+              "Root directory " + watchRootPath + " became inaccessible");
+        }
+        continue;
+      }
+      Path path = dir.resolve(name);
+      boolean isDir = (mask & IN_ISDIR) != 0;
+      if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+        createdFilesAndDirectories.add(path);
+        deletedOrModifiedFilesAndDirectories.remove(path);
+        if (isDir) {
+          createdDirectories.add(path);
+        }
+      } else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+        createdFilesAndDirectories.remove(path);
+        deletedOrModifiedFilesAndDirectories.add(path);
+        createdDirectories.remove(path);
+        if (isDir) {
+          removedDirectories.add(path);
+        }
+      } else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0) {
+        // If a file was created and then modified, then the net diff is that it was created.
+        if (!createdFilesAndDirectories.contains(path)) {
+          deletedOrModifiedFilesAndDirectories.add(path);
+        }
+      }
+    }
+
+    if (overflowed) {
+      rewatchAll();
+      recordEventLatency();
+      logger.atInfo().log(
+          "Lost inotify events for %s, watched it again in %d ms: %d watches%s",
+          watchRootPath,
+          stopwatch.elapsed(TimeUnit.MILLISECONDS),
+          watchedDirs.size(),
+          describeEventLatency());
+      return newViewAfterLostEvents();
+    }
+
+    // A directory that was moved away keeps its watches, which would report changes under its old
+    // path. Like with the WatchService, the files below it aren't reported: Skyframe notices that
+    // their ancestor is gone.
+    for (Path removedDirectory : removedDirectories) {
+      unwatchSubtree(removedDirectory);
+    }
+
+    // Changes to new directories before their watches were added have been missed, so report
+    // everything in them.
+    Set<Path> changedPaths = new HashSet<>(deletedOrModifiedFilesAndDirectories);
+    createdFilesAndDirectories.removeAll(createdDirectories);
+    changedPaths.addAll(createdFilesAndDirectories);
+    registerSubtrees(createdDirectories, changedPaths);
+    recordEventLatency();
+
+    logger.atInfo().log(
+        "Processed %d inotify events for %s in %d ms: %d changed paths, %d watches%s",
+        numEvents,
+        watchRootPath,
+        stopwatch.elapsed(TimeUnit.MILLISECONDS),
+        changedPaths.size(),
+        watchedDirs.size(),
+        describeEventLatency());
+    return newView(changedPaths);
+  }
+
+  private void recordEventLatency() {
+    lastEventLatencyNanos = oldestEventNanos == 0 ? -1 : System.nanoTime() - oldestEventNanos;
+  }
+
+  private String describeEventLatency() {
+    return lastEventLatencyNanos < 0
+        ? ""
+        : String.format(
+            ", oldest event %d ms ago", TimeUnit.NANOSECONDS.toMillis(lastEventLatencyNanos));
+  }
+
+  /**
+   * Walks the whole tree again to add the missing watches and forget the stale ones. Adding a watch
+   * for a directory that already has one returns its existing descriptor.
+   */
+  private void rewatchAll() throws IOException {
+    Set<Integer> oldWatchDescriptors = new HashSet<>(watchedDirs.keySet());
+    watchedDirs.clear();
+    watchDescriptors.clear();
+    watchedSubdirs.clear();
+    registerSubtrees(ImmutableSet.of(watchRootPath), /*visitedPaths=*/ null);
+    oldWatchDescriptors.removeAll(watchedDirs.keySet());
+    for (int wd : oldWatchDescriptors) {
+      removeWatch(wd);
+    }
+  }
+
+  private static String readName(ByteBuffer events, int nameLength) {
+    int start = events.position();
+    int end = start;
+    // The name is padded with NULs to the alignment of the next event.
+    while (end < start + nameLength && events.get(end) != 0) {
+      end++;
+    }
+    // Paths are Latin-1 encoded, like everywhere in the JNI code.
+    String name = new String(events.array(), start, end - start, StandardCharsets.ISO_8859_1);
+    events.position(start + nameLength);
+    return name;
+  }
+
+  private void rememberWatch(int wd, Path dir) {
+    watchedDirs.put(wd, dir);
+    watchDescriptors.put(dir, wd);
+    if (!dir.equals(watchRootPath)) {
+      watchedSubdirs.computeIfAbsent(dir.getParent(), k -> ConcurrentHashMap.newKeySet()).add(dir);
+    }
+  }
+
+  private void forgetWatch(int wd, Path dir) {
+    watchedDirs.remove(wd, dir);
+    watchDescriptors.remove(dir, wd);
+    watchedSubdirs.computeIfPresent(
+        dir.getParent(),
+        (parent, subdirs) -> {
+          subdirs.remove(dir);
+          return subdirs.isEmpty() ? null : subdirs;
+        });
+  }
+
+  /** Removes the watches of {@code dir} and of the directories below it. */
+  private void unwatchSubtree(Path dir) {
+    Integer wd = watchDescriptors.get(dir);
+    if (wd != null) {
+      forgetWatch(wd, dir);
+      removeWatch(wd);
+    }
+    Set<Path> subdirs = watchedSubdirs.remove(dir);
+    if (subdirs != null) {
+      for (Path subdir : subdirs) {
+        unwatchSubtree(subdir);
+      }
+    }
+  }
+
+  /**
+   * Adds watches for the given directories and all directories below them, in parallel. If {@code
+   * visitedPaths} isn't null, adds all files and directories that were found to it.
+   */
+  private void registerSubtrees(Set<Path> roots, @Nullable Set<Path> visitedPaths)
+      throws IOException {
+    if (roots.isEmpty()) {
+      return;
+    }
+    Set<Path> concurrentVisitedPaths = visitedPaths == null ? null : ConcurrentHashMap.newKeySet();
+    List<RegisterSubtree> tasks = new ArrayList<>(roots.size());
+    for (Path root : roots) {
+      tasks.add(new RegisterSubtree(root, concurrentVisitedPaths));
+    }
+    ForkJoinPool pool =
+        NamedForkJoinPool.newNamedPool("inotify-watch-registration", REGISTRATION_THREADS);
+    try {
+      pool.invoke(
+          new RecursiveAction() {
+            @Override
+            protected void compute() {
+              invokeAll(tasks);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+    if (visitedPaths != null) {
+      visitedPaths.addAll(concurrentVisitedPaths);
+    }
+  }
+
+  /** Adds a watch for a directory, then lists it and forks the same for its subdirectories. */
+  private final class RegisterSubtree extends RecursiveAction {
+    private final Path dir;
+    @Nullable private final Set<Path> visitedPaths;
+
+    private RegisterSubtree(Path dir, @Nullable Set<Path> visitedPaths) {
+      this.dir = dir;
+      this.visitedPaths = visitedPaths;
+    }
+
+    @Override
+    protected void compute() {
+      String dirString = dir.toString();
+      Dirents dirents;
+      try {
+        // It's important that we register the directory before we list it. This way we are
+        // guaranteed to see new entries either on this #getDiff or the next one.
+        int wd = addWatch(dirString);
+        if (wd == -1) {
+          return;
+        }
+        rememberWatch(wd, dir);
+        dirents = NativePosixFiles.readdir(dirString, ReadTypes.NOFOLLOW);
+      } catch (FileNotFoundException e) {
+        // Deleted in the meantime, which its parent's watch reports.
+        return;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (visitedPaths != null) {
+        visitedPaths.add(dir);
+      }
+      List<RegisterSubtree> subdirs = new ArrayList<>();
+      for (int i = 0; i < dirents.size(); i++) {
+        Path child = dir.resolve(dirents.getName(i));
+        if (dirents.getType(i) == Dirents.Type.DIRECTORY) {
+          subdirs.add(new RegisterSubtree(child, visitedPaths));
+        } else if (visitedPaths != null) {
+          visitedPaths.add(child);
+        }
+      }
+      invokeAll(subdirs);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
 import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
@@ -32,12 +33,13 @@ import java.util.Set;
 
 /**
  * File system watcher for local filesystems. It's able to provide a list of changed files between
- * two consecutive calls. On Linux, uses the standard Java WatchService, which uses 'inotify' and,
- * on OS X, uses {@link MacOSXFsEventsDiffAwareness}, which use FSEvents.
+ * two consecutive calls. On Linux, uses {@link LinuxInotifyDiffAwareness}, which uses 'inotify',
+ * on OS X, uses {@link MacOSXFsEventsDiffAwareness}, which use FSEvents, and elsewhere, the
+ * standard Java WatchService.
  *
  * <p>
- * This is an abstract class, specialized by {@link MacOSXFsEventsDiffAwareness} and
- * {@link WatchServiceDiffAwareness}.
+ * This is an abstract class, specialized by {@link LinuxInotifyDiffAwareness}, {@link
+ * MacOSXFsEventsDiffAwareness} and {@link WatchServiceDiffAwareness}.
  */
 public abstract class LocalDiffAwareness implements DiffAwareness {
   /**
@@ -81,7 +83,7 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
     }
 
     @Override
-    public DiffAwareness maybeCreate(Root pathEntry) {
+    public DiffAwareness maybeCreate(Root pathEntry, OptionsProvider options) {
       com.google.devtools.build.lib.vfs.Path resolvedPathEntry;
       try {
         resolvedPathEntry = pathEntry.asPath().resolveSymbolicLinks();
@@ -100,6 +102,10 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
       if (OS.getCurrent() == OS.DARWIN) {
         return new MacOSXFsEventsDiffAwareness(resolvedPathEntryFragment.toString());
       }
+      // On Linux, uses inotify directly, unless the JNI code isn't available.
+      if (OS.getCurrent() == OS.LINUX && LinuxInotifyDiffAwareness.isAvailable()) {
+        return new LinuxInotifyDiffAwareness(resolvedPathEntryFragment.toString());
+      }
 
       return new WatchServiceDiffAwareness(resolvedPathEntryFragment.toString());
     }
@@ -169,6 +175,17 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
     return new SequentialView(this, numGetCurrentViewCalls, modifiedAbsolutePaths);
   }
 
+  /**
+   * Creates a new view after changes were lost. The diff to this view is {@link
+   * ModifiedFileSet#EVERYTHING_MODIFIED}, but unlike with {@link #EVERYTHING_MODIFIED}, the diff
+   * from this view to the next one is precise again.
+   */
+  protected SequentialView newViewAfterLostEvents() {
+    // Skip a position, so that this view isn't in sequence with the previous one.
+    numGetCurrentViewCalls++;
+    return newView(ImmutableSet.of());
+  }
+
   @Override
   public ModifiedFileSet getDiff(View oldView, View newView)
       throws IncompatibleViewException, BrokenDiffAwarenessException {
@@ -19,7 +19,6 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
-import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -70,6 +69,7 @@ import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -103,8 +103,6 @@ public class PackageFunction implements SkyFunction {
 
   private final PackageFactory packageFactory;
   private final CachingPackageLocator packageLocator;
-  private final Cache<PackageIdentifier, LoadedPackageCacheEntry> packageFunctionCache;
-  private final Cache<PackageIdentifier, StarlarkFile> fileSyntaxCache;
   private final AtomicBoolean showLoadingProgress;
   private final AtomicInteger numPackagesLoaded;
   @Nullable private final PackageProgressReceiver packageProgress;
@@ -121,8 +119,6 @@ public class PackageFunction implements SkyFunction {
       PackageFactory packageFactory,
       CachingPackageLocator pkgLocator,
       AtomicBoolean showLoadingProgress,
-      Cache<PackageIdentifier, LoadedPackageCacheEntry> packageFunctionCache,
-      Cache<PackageIdentifier, StarlarkFile> fileSyntaxCache,
       AtomicInteger numPackagesLoaded,
       @Nullable BzlLoadFunction bzlLoadFunctionForInlining,
       @Nullable PackageProgressReceiver packageProgress,
@@ -133,8 +129,6 @@ public class PackageFunction implements SkyFunction {
     this.packageFactory = packageFactory;
     this.packageLocator = pkgLocator;
     this.showLoadingProgress = showLoadingProgress;
-    this.packageFunctionCache = packageFunctionCache;
-    this.fileSyntaxCache = fileSyntaxCache;
     this.numPackagesLoaded = numPackagesLoaded;
     this.packageProgress = packageProgress;
     this.actionOnIOExceptionReadingBuildFile = actionOnIOExceptionReadingBuildFile;
@@ -147,8 +141,6 @@ public class PackageFunction implements SkyFunction {
       PackageFactory packageFactory,
       CachingPackageLocator pkgLocator,
       AtomicBoolean showLoadingProgress,
-      Cache<PackageIdentifier, LoadedPackageCacheEntry> packageFunctionCache,
-      Cache<PackageIdentifier, StarlarkFile> fileSyntaxCache,
       AtomicInteger numPackagesLoaded,
       @Nullable BzlLoadFunction bzlLoadFunctionForInlining,
       ExternalPackageHelper externalPackageHelper) {
@@ -156,8 +148,6 @@ public class PackageFunction implements SkyFunction {
         packageFactory,
         pkgLocator,
         showLoadingProgress,
-        packageFunctionCache,
-        fileSyntaxCache,
         numPackagesLoaded,
         bzlLoadFunctionForInlining,
         /*packageProgress=*/ null,
@@ -210,14 +200,27 @@ public class PackageFunction implements SkyFunction {
     }
   }
 
-  /** An entry in {@link PackageFunction} internal cache. */
-  public static class LoadedPackageCacheEntry {
+  /**
+   * The parts of loading a package that {@link #compute} doesn't repeat when it's restarted:
+   * parsing the BUILD file, and evaluating it once its loads are available.
+   */
+  private static class State implements SkyKeyComputeState {
+    /**
+     * The parsed BUILD file. Dropped once the package is created from it, since that mutates the
+     * syntax tree.
+     */
+    @Nullable private StarlarkFile file;
+
+    @Nullable private LoadedPackage loadedPackage;
+  }
+
+  /** A package created from its BUILD file, whose glob deps may still be missing. */
+  private static class LoadedPackage {
     private final Package.Builder builder;
     private final Set<SkyKey> globDepKeys;
     private final long loadTimeNanos;
 
-    private LoadedPackageCacheEntry(
-        Package.Builder builder, Set<SkyKey> globDepKeys, long loadTimeNanos) {
+    private LoadedPackage(Package.Builder builder, Set<SkyKey> globDepKeys, long loadTimeNanos) {
       this.builder = builder;
       this.globDepKeys = globDepKeys;
       this.loadTimeNanos = loadTimeNanos;
@@ -359,7 +362,7 @@ public class PackageFunction implements SkyFunction {
     }
 
     // TODO(adonovan): opt: can't all the following statements be moved
-    // into the packageFunctionCache.getIfPresent cache-miss case?
+    // into the state.loadedPackage == null case?
 
     SkyKey packageLookupKey = PackageLookupValue.key(packageId);
     PackageLookupValue packageLookupValue;
@@ -457,9 +460,10 @@ public class PackageFunction implements SkyFunction {
       }
     }
 
-    LoadedPackageCacheEntry packageCacheEntry = packageFunctionCache.getIfPresent(packageId);
-    if (packageCacheEntry == null) {
-      packageCacheEntry =
+    State state = env.getState(State::new);
+    LoadedPackage loadedPackage = state.loadedPackage;
+    if (loadedPackage == null) {
+      loadedPackage =
           loadPackage(
               workspaceName,
               repositoryMapping,
@@ -471,14 +475,15 @@ public class PackageFunction implements SkyFunction {
               starlarkSemantics,
               preludeLabel,
               packageLookupValue.getRoot(),
-              env);
-      if (packageCacheEntry == null) {
+              env,
+              state);
+      if (loadedPackage == null) {
         return null;
       }
-      packageFunctionCache.put(packageId, packageCacheEntry);
+      state.loadedPackage = loadedPackage;
     }
     PackageFunctionException pfeFromLegacyPackageLoading = null;
-    Package.Builder pkgBuilder = packageCacheEntry.builder;
+    Package.Builder pkgBuilder = loadedPackage.builder;
     try {
       pkgBuilder.buildPartial();
     } catch (NoSuchPackageException e) {
@@ -503,7 +508,7 @@ public class PackageFunction implements SkyFunction {
       handleLabelsCrossingSubpackagesAndPropagateInconsistentFilesystemExceptions(
           packageLookupValue.getRoot(), packageId, pkgBuilder, env);
     } catch (InternalInconsistentFilesystemException e) {
-      packageFunctionCache.invalidate(packageId);
+      state.loadedPackage = null;
       PackageLoading.Code packageLoadingCode =
           e.isTransient()
               ? PackageLoading.Code.TRANSIENT_INCONSISTENT_FILESYSTEM_ERROR
@@ -512,12 +517,12 @@ public class PackageFunction implements SkyFunction {
           e.toNoSuchPackageException(packageLoadingCode),
           e.isTransient() ? Transience.TRANSIENT : Transience.PERSISTENT);
     }
-    Set<SkyKey> globKeys = packageCacheEntry.globDepKeys;
+    Set<SkyKey> globKeys = loadedPackage.globDepKeys;
     try {
       handleGlobDepsAndPropagateFilesystemExceptions(
           packageId, globKeys, env, pkgBuilder.containsErrors());
     } catch (InternalInconsistentFilesystemException e) {
-      packageFunctionCache.invalidate(packageId);
+      state.loadedPackage = null;
       PackageLoading.Code packageLoadingCode =
           e.isTransient()
               ? PackageLoading.Code.TRANSIENT_INCONSISTENT_FILESYSTEM_ERROR
@@ -526,7 +531,7 @@ public class PackageFunction implements SkyFunction {
           e.toNoSuchPackageException(packageLoadingCode),
           e.isTransient() ? Transience.TRANSIENT : Transience.PERSISTENT);
     } catch (FileSymlinkException e) {
-      packageFunctionCache.invalidate(packageId);
+      state.loadedPackage = null;
       String message = "Symlink issue while evaluating globs: " + e.getUserFriendlyMessage();
       throw PackageFunctionException.builder()
           .setType(PackageFunctionException.Type.NO_SUCH_PACKAGE)
@@ -540,9 +545,6 @@ public class PackageFunction implements SkyFunction {
       return null;
     }
 
-    // We know this SkyFunction will not be called again, so we can remove the cache entry.
-    packageFunctionCache.invalidate(packageId);
-
     if (pfeFromLegacyPackageLoading != null) {
       throw pfeFromLegacyPackageLoading;
     }
@@ -556,7 +558,7 @@ public class PackageFunction implements SkyFunction {
 
     try {
       packageFactory.afterDoneLoadingPackage(
-          pkg, starlarkSemantics, packageCacheEntry.loadTimeNanos, env.getListener());
+          pkg, starlarkSemantics, loadedPackage.loadTimeNanos, env.getListener());
     } catch (InvalidPackageException e) {
       throw new PackageFunctionException(e, Transience.PERSISTENT);
     }
@@ -1156,7 +1158,7 @@ public class PackageFunction implements SkyFunction {
    * latter indicates that we have a legitimate BUILD file and should actually read its contents.
    */
   @Nullable
-  private LoadedPackageCacheEntry loadPackage(
+  private LoadedPackage loadPackage(
       String workspaceName,
       ImmutableMap<RepositoryName, RepositoryName> repositoryMapping,
       ImmutableSet<PathFragment> repositoryIgnoredPatterns,
@@ -1167,14 +1169,15 @@ public class PackageFunction implements SkyFunction {
       StarlarkSemantics starlarkSemantics,
       @Nullable Label preludeLabel,
       Root packageRoot,
-      Environment env)
+      Environment env,
+      State state)
       throws InterruptedException, PackageFunctionException {
     if (packageProgress != null) {
       packageProgress.startReadPackage(packageId);
     }
     try (SilentCloseable c =
         Profiler.instance().profile(ProfilerTask.CREATE_PACKAGE, packageId.toString())) {
-      StarlarkFile file = fileSyntaxCache.getIfPresent(packageId);
+      StarlarkFile file = state.file;
       Path inputFile = buildFilePath.asPath();
       if (file == null) {
         if (showLoadingProgress.get()) {
@@ -1214,7 +1217,7 @@ public class PackageFunction implements SkyFunction {
             FileOptions.builder()
                 // TODO(adonovan): remove recordScope opt-out. But first we need to fix the
                 // preexisting
-                // problem that fileSyntaxCache shares syntax trees which createPackageFromAst
+                // problem that the compute state shares syntax trees which createPackageFromAst
                 // mutates.
                 .recordScope(false) // don't mutate BUILD syntax
                 .requireLoadStatementsFirst(false)
@@ -1224,7 +1227,7 @@ public class PackageFunction implements SkyFunction {
                         BuildLanguageOptions.INCOMPATIBLE_RESTRICT_STRING_ESCAPES))
                 .build();
         file = StarlarkFile.parse(input, options);
-        fileSyntaxCache.put(packageId, file);
+        state.file = file;
       }
       BzlLoadResult bzlLoadResult = null;
       try {
@@ -1240,9 +1243,6 @@ public class PackageFunction implements SkyFunction {
                 bzlLoadFunctionForInlining);
       } catch (NoSuchPackageException e) {
         throw new PackageFunctionException(e, Transience.PERSISTENT);
-      } catch (InterruptedException e) {
-        fileSyntaxCache.invalidate(packageId);
-        throw e;
       }
       if (bzlLoadResult == null) {
         return null;
@@ -1250,11 +1250,11 @@ public class PackageFunction implements SkyFunction {
       // From here on, either of the following must happen:
       // 1. An InterruptedException or PackageFunctionException gets thrown in the code below
       // before completion of this method.
-      // 2. The packageCacheEnty is successfully created from the AST and put into
-      // packageFunctionCache, so future Skyframe restarts don't need to parse the AST again.
+      // 2. The loaded package is successfully created from the AST and put into the state, so
+      // future Skyframe restarts don't need to parse the AST again.
       //
-      // Therefore, it is safe to invalidate the astCache entry for this packageId here.
-      fileSyntaxCache.invalidate(packageId);
+      // Therefore, it is safe to drop the AST here.
+      state.file = null;
       GlobberWithSkyframeGlobDeps globberWithSkyframeGlobDeps =
           makeGlobber(inputFile, packageId, repositoryIgnoredPatterns, packageRoot, env);
       long startTimeNanos = BlazeClock.nanoTime();
@@ -1271,14 +1271,14 @@ public class PackageFunction implements SkyFunction {
               starlarkSemantics,
               globberWithSkyframeGlobDeps);
       long loadTimeNanos = Math.max(BlazeClock.nanoTime() - startTimeNanos, 0L);
-      LoadedPackageCacheEntry packageCacheEntry =
-          new LoadedPackageCacheEntry(
+      LoadedPackage loadedPackage =
+          new LoadedPackage(
               pkgBuilder, globberWithSkyframeGlobDeps.getGlobDepsRequested(), loadTimeNanos);
       numPackagesLoaded.incrementAndGet();
       if (packageProgress != null) {
         packageProgress.doneReadPackage(packageId);
       }
-      return packageCacheEntry;
+      return loadedPackage;
     } catch (InterruptedException | PackageFunctionException e) {
       if (packageProgress != null) {
         packageProgress.doneReadPackage(packageId);
@@ -212,6 +212,11 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     diffAwarenessManager.reset();
   }
 
+  @Override
+  public void persistDiffAwarenessViews() {
+    diffAwarenessManager.persistBaselineViews();
+  }
+
   @Override
   protected Differencer evaluatorDiffer() {
     return recordingDiffer;
@@ -1066,6 +1071,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     private Iterable<? extends DiffAwareness.Factory> diffAwarenessFactories = ImmutableList.of();
     private Iterable<SkyValueDirtinessChecker> customDirtinessCheckers = ImmutableList.of();
     private Consumer<SkyframeExecutor> skyframeExecutorConsumerOnInit = skyframeExecutor -> {};
+    private EvaluatorSupplier evaluatorSupplier = InMemoryMemoizingEvaluator.SUPPLIER;
     private SkyFunction ignoredPackagePrefixesFunction;
 
     private Builder() {}
@@ -1086,7 +1092,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       SequencedSkyframeExecutor skyframeExecutor =
           new SequencedSkyframeExecutor(
               skyframeExecutorConsumerOnInit,
-              InMemoryMemoizingEvaluator.SUPPLIER,
+              evaluatorSupplier,
               pkgFactory,
               fileSystem,
               directories,
@@ -1187,6 +1193,15 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       return this;
     }
 
+    /**
+     * Sets the implementation of the Skyframe graph, e.g. one returned by {@link
+     * InMemoryMemoizingEvaluator#supplier} for very large graphs.
+     */
+    public Builder setEvaluatorSupplier(EvaluatorSupplier evaluatorSupplier) {
+      this.evaluatorSupplier = evaluatorSupplier;
+      return this;
+    }
+
     public Builder setManagedDirectoriesKnowledge(
         @Nullable ManagedDirectoriesKnowledge managedDirectoriesKnowledge) {
       this.managedDirectoriesKnowledge = managedDirectoriesKnowledge;
@@ -15,6 +15,8 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import javax.annotation.Nullable;
@@ -42,7 +44,42 @@ public abstract class SkyValueDirtinessChecker {
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return compare(oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * If {@code applies(key)}, returns the path whose lstat is all that {@link
+   * #createNewValueWithStat} needs to create the new value for {@code key}, or {@code null} if this
+   * checker can't create the new value from a stat. The stats of such keys can be done in batches.
+   */
+  @Nullable
+  public RootedPath getPathToStat(SkyKey key) {
+    return null;
+  }
+
+  /**
+   * If {@code getPathToStat(key)} is not {@code null}, returns the new value for {@code key} given
+   * the lstat of that path ({@code null} if it doesn't exist), or {@code null} if the checker was
+   * unable to create a new value. By default, ignores the stat and calls {@link #createNewValue}.
+   */
+  @Nullable
+  public SkyValue createNewValueWithStat(
+      SkyKey key,
+      @Nullable FileStatusWithDigest statNoFollow,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    return createNewValue(key, tsgm);
+  }
+
+  /** Like {@link #check}, but given the lstat of {@code getPathToStat(key)}. */
+  public DirtyResult checkWithStat(
+      SkyKey key,
+      @Nullable SkyValue oldValue,
+      @Nullable FileStatusWithDigest statNoFollow,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    return compare(oldValue, createNewValueWithStat(key, statNoFollow, tsgm));
+  }
+
+  private static DirtyResult compare(@Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
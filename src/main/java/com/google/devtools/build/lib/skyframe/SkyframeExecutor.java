@@ -39,6 +39,7 @@ import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
 import com.google.common.flogger.GoogleLogger;
 import com.google.common.hash.HashFunction;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
 import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
@@ -101,6 +102,7 @@ import com.google.devtools.build.lib.analysis.starlark.StarlarkTransition;
 import com.google.devtools.build.lib.analysis.starlark.StarlarkTransition.TransitionException;
 import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.LabelConstants;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
@@ -155,7 +157,6 @@ import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFileAc
 import com.google.devtools.build.lib.skyframe.FileFunction.NonexistentFileReceiver;
 import com.google.devtools.build.lib.skyframe.PackageFunction.ActionOnIOExceptionReadingBuildFile;
 import com.google.devtools.build.lib.skyframe.PackageFunction.IncrementalityIntent;
-import com.google.devtools.build.lib.skyframe.PackageFunction.LoadedPackageCacheEntry;
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
@@ -175,13 +176,16 @@ import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.BuildDriver;
+import com.google.devtools.build.skyframe.CriticalPathSchedulingPolicy;
 import com.google.devtools.build.skyframe.CycleInfo;
 import com.google.devtools.build.skyframe.CyclesReporter;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.Differencer.DiffWithDelta.Delta;
 import com.google.devtools.build.skyframe.ErrorInfo;
+import com.google.devtools.build.skyframe.EvaluationAdmissionController;
 import com.google.devtools.build.skyframe.EvaluationContext;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver.NodeState;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.EventFilter;
 import com.google.devtools.build.skyframe.GraphInconsistencyReceiver;
@@ -191,7 +195,9 @@ import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.NodeEntry;
+import com.google.devtools.build.skyframe.SchedulingPolicy;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
@@ -224,7 +230,6 @@ import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import net.starlark.java.eval.StarlarkSemantics;
-import net.starlark.java.syntax.StarlarkFile;
 
 /**
  * A helper object to support Skyframe-driven execution.
@@ -268,16 +273,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
   // target parsing exception.
   private static final int EXCEPTION_TRAVERSAL_LIMIT = 10;
 
-  // Cache of partially constructed Package instances, stored between reruns of the PackageFunction
-  // (because of missing dependencies, within the same evaluate() run) to avoid loading the same
-  // package twice (first time loading to find load()ed bzl files and declare Skyframe
-  // dependencies).
-  private final Cache<PackageIdentifier, LoadedPackageCacheEntry> packageFunctionCache =
-      newPkgFunctionCache();
-  // Cache of parsed BUILD files, for PackageFunction. Same motivation as above.
-  private final Cache<PackageIdentifier, StarlarkFile> buildFileSyntaxCache =
-      newBuildFileSyntaxCache();
-
   // Cache of parsed bzl files, for use when we're inlining BzlCompileFunction in
   // BzlLoadFunction. See the comments in BzlLoadFunction for motivations and details.
   private final Cache<BzlCompileValue.Key, BzlCompileValue> bzlCompileCache =
@@ -327,9 +322,18 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
 
   private final ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions;
 
+  // Outlives single builds, so that each build is scheduled with the critical paths of the last.
+  private final CriticalPathSchedulingPolicy criticalPathSchedulingPolicy =
+      new CriticalPathSchedulingPolicy();
+
+  private EvaluationAdmissionController evaluationAdmissionController =
+      EvaluationAdmissionController.UNLIMITED;
+
   protected SkyframeIncrementalBuildMonitor incrementalBuildMonitor =
       new SkyframeIncrementalBuildMonitor();
 
+  private final SkyFunctionStatistics skyFunctionStatistics = new SkyFunctionStatistics();
+
   private final SkyFunction ignoredPackagePrefixesFunction;
 
   private final ConfiguredRuleClassProvider ruleClassProvider;
@@ -528,8 +532,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
             pkgFactory,
             packageManager,
             showLoadingProgress,
-            packageFunctionCache,
-            buildFileSyntaxCache,
             numPackagesLoaded,
             bzlLoadFunctionForInliningPackageAndWorkspaceNodes,
             packageProgress,
@@ -771,6 +773,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
             DEFAULT_FILTER_WITH_ACTIONS,
             emittedEventState,
             tracksStateForIncrementality());
+    memoizingEvaluator.setAdmissionController(evaluationAdmissionController);
     buildDriver = createBuildDriver();
     skyframeExecutorConsumerOnInit.accept(this);
   }
@@ -815,6 +818,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
   /** Reinitializes the Skyframe evaluator, dropping all previously computed values. */
   public void resetEvaluator() {
     init();
+    criticalPathSchedulingPolicy.clear();
     emittedEventState.clear();
     clearTrimmingCache();
     skyframeBuildView.reset();
@@ -1118,14 +1122,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     }
   }
 
-  protected Cache<PackageIdentifier, LoadedPackageCacheEntry> newPkgFunctionCache() {
-    return CacheBuilder.newBuilder().build();
-  }
-
-  protected Cache<PackageIdentifier, StarlarkFile> newBuildFileSyntaxCache() {
-    return CacheBuilder.newBuilder().build();
-  }
-
   private void setShowLoadingProgress(boolean showLoadingProgressValue) {
     showLoadingProgress.set(showLoadingProgressValue);
   }
@@ -1381,8 +1377,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     // Clear internal caches used by SkyFunctions used for package loading. If the SkyFunctions
     // never had a chance to restart (e.g. due to user interrupt, or an error in a --nokeep_going
     // build), these may have stale entries.
-    packageFunctionCache.invalidateAll();
-    buildFileSyntaxCache.invalidateAll();
     bzlCompileCache.invalidateAll();
 
     numPackagesLoaded.set(0);
@@ -1434,6 +1428,24 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     this.eventBus.set(eventBus);
   }
 
+  /**
+   * Sets the {@link EvaluationAdmissionController} that decides when Skyframe evaluations may
+   * start, e.g. to hold them back when memory is tight. Survives {@link #resetEvaluator}.
+   */
+  public void setEvaluationAdmissionController(
+      EvaluationAdmissionController evaluationAdmissionController) {
+    this.evaluationAdmissionController = evaluationAdmissionController;
+    memoizingEvaluator.setAdmissionController(evaluationAdmissionController);
+  }
+
+  /**
+   * Returns the per-{@link SkyFunction} statistics of the evaluations since the last package
+   * loading sync, i.e. of the current command.
+   */
+  public SkyFunctionStatistics getSkyFunctionStatistics() {
+    return skyFunctionStatistics;
+  }
+
   public void setClientEnv(Map<String, String> clientEnv) {
     this.skyframeActionExecutor.setClientEnv(clientEnv);
   }
@@ -1546,17 +1558,38 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
       Iterable<SkyKey> testKeys =
           TestCompletionValue.keys(
               parallelTests, topLevelArtifactContext, /*exclusiveTesting=*/ false);
+      BuildRequestOptions buildRequestOptions = options.getOptions(BuildRequestOptions.class);
+      SchedulingPolicy schedulingPolicy =
+          buildRequestOptions.skyframeCriticalPathScheduling
+              ? criticalPathSchedulingPolicy
+              : SchedulingPolicy.DEPTH_FIRST;
       EvaluationContext evaluationContext =
           EvaluationContext.newBuilder()
               .setKeepGoing(options.getOptions(KeepGoingOption.class).keepGoing)
-              .setNumThreads(options.getOptions(BuildRequestOptions.class).jobs)
-              .setUseForkJoinPool(options.getOptions(BuildRequestOptions.class).useForkJoinPool)
+              .setNumThreads(buildRequestOptions.jobs)
+              .setUseForkJoinPool(buildRequestOptions.useForkJoinPool)
               .setEventHandler(reporter)
               .setExecutionPhase()
+              .setSchedulingPolicy(schedulingPolicy)
               .build();
-      return buildDriver.evaluate(
-          Iterables.concat(Artifact.keys(artifactsToBuild), targetKeys, aspectKeys, testKeys),
-          evaluationContext);
+      Thread edgeCompaction =
+          startEdgeCompaction(buildRequestOptions.skyframeImmutableRepositories);
+      Stopwatch timer = Stopwatch.createStarted();
+      try {
+        return buildDriver.evaluate(
+            Iterables.concat(Artifact.keys(artifactsToBuild), targetKeys, aspectKeys, testKeys),
+            evaluationContext);
+      } finally {
+        if (edgeCompaction != null) {
+          Uninterruptibles.joinUninterruptibly(edgeCompaction);
+        }
+        // For comparing the wall time of builds with and without critical path scheduling.
+        logger.atInfo().log(
+            "Execution phase evaluation took %s ms with %s scheduling (%s known critical paths)",
+            timer.elapsed().toMillis(),
+            schedulingPolicy == criticalPathSchedulingPolicy ? "critical path" : "depth-first",
+            criticalPathSchedulingPolicy.size());
+      }
     } finally {
       progressReceiver.executionProgressReceiver = null;
       // Also releases thread locks.
@@ -1566,6 +1599,43 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     }
   }
 
+  /**
+   * Starts freeing the edges below the file system nodes of the given external repositories, which
+   * the user promised to only change by fetching them, alongside the execution phase. Their deps on
+   * the repositories are kept, so that they are still invalidated by a fetch. Returns null if there
+   * are no such repositories.
+   */
+  @Nullable
+  private Thread startEdgeCompaction(List<String> immutableRepositories) {
+    if (immutableRepositories.isEmpty()) {
+      return null;
+    }
+    Path externalDirectory =
+        directories.getOutputBase().getRelative(LabelConstants.EXTERNAL_PATH_PREFIX);
+    ImmutableList<Path> repositoryDirectories =
+        immutableRepositories.stream()
+            .map(externalDirectory::getRelative)
+            .collect(ImmutableList.toImmutableList());
+    Thread thread =
+        new Thread(
+            () ->
+                memoizingEvaluator.compactEdges(
+                    key -> isFileSystemStateUnder(key, repositoryDirectories),
+                    dep -> dep.functionName().equals(SkyFunctions.REPOSITORY_DIRECTORY)),
+            "skyframe-edge-compaction");
+    thread.start();
+    return thread;
+  }
+
+  private static boolean isFileSystemStateUnder(SkyKey key, ImmutableList<Path> directories) {
+    if (!key.functionName().equals(FileStateValue.FILE_STATE)
+        && !key.functionName().equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+      return false;
+    }
+    Path path = ((RootedPath) key.argument()).asPath();
+    return directories.stream().anyMatch(path::startsWith);
+  }
+
   /** Asks the Skyframe evaluator to run a single exclusive test. */
   public EvaluationResult<?> runExclusiveTest(
       Reporter reporter,
@@ -2621,6 +2691,25 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     }
   }
 
+  /**
+   * Returns the evaluator if it can load and write graph snapshots, see {@link
+   * InMemoryMemoizingEvaluator#loadSnapshot}, or null otherwise.
+   */
+  @Nullable
+  public InMemoryMemoizingEvaluator getSnapshottingEvaluator() {
+    if (!(memoizingEvaluator instanceof InMemoryMemoizingEvaluator)
+        || !tracksStateForIncrementality()) {
+      return null;
+    }
+    return (InMemoryMemoizingEvaluator) memoizingEvaluator;
+  }
+
+  /**
+   * Persists the views of the filesystem that the next diffs start from, along with a snapshot of
+   * the graph, see {@link DiffAwareness#persistView}. Must be called between commands.
+   */
+  public void persistDiffAwarenessViews() {}
+
   @VisibleForTesting
   public MemoizingEvaluator getEvaluatorForTesting() {
     return memoizingEvaluator;
@@ -2711,6 +2800,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     }
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
+    skyFunctionStatistics.reset();
     invalidateTransientErrors();
   }
 
@@ -2997,12 +3087,20 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
       trimmingListener.invalidated(skyKey, state);
+      if (state == InvalidationState.DELETED) {
+        criticalPathSchedulingPolicy.forget(skyKey);
+      }
       if (ignoreInvalidations) {
         return;
       }
       skyframeBuildView.getProgressReceiver().invalidated(skyKey, state);
     }
 
+    @Override
+    public void invalidationFinished(long dirtiedNodes, long elapsedTimeNanos) {
+      skyFunctionStatistics.invalidationFinished(dirtiedNodes, elapsedTimeNanos);
+    }
+
     @Override
     public void enqueueing(SkyKey skyKey) {
       trimmingListener.enqueueing(skyKey);
@@ -3015,6 +3113,26 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
       }
     }
 
+    @Override
+    public void stateEnding(SkyKey skyKey, NodeState nodeState, long elapsedTimeNanos) {
+      skyFunctionStatistics.stateEnding(skyKey, nodeState, elapsedTimeNanos);
+    }
+
+    @Override
+    public void restarting(SkyKey skyKey, int newlyRequestedDeps, long elapsedTimeNanos) {
+      skyFunctionStatistics.restarting(skyKey, newlyRequestedDeps, elapsedTimeNanos);
+    }
+
+    @Override
+    public void nodeRestarted(SkyKey skyKey, long elapsedTimeNanos) {
+      skyFunctionStatistics.nodeRestarted(skyKey, elapsedTimeNanos);
+    }
+
+    @Override
+    public void computeStateReused(SkyKey skyKey) {
+      skyFunctionStatistics.computeStateReused(skyKey);
+    }
+
     @Override
     public void evaluated(
         SkyKey skyKey,
@@ -0,0 +1,143 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.unix.NativePosixFiles;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * A client of a Watchman-compatible file watching daemon, which speaks the JSON flavor of the
+ * Watchman protocol: every request is a JSON array on a line of its own, and is answered by a JSON
+ * object.
+ */
+final class WatchmanClient implements Closeable {
+
+  /**
+   * How long to wait for the daemon to accept a request or send a response before giving up on it.
+   * This is much longer than the sync timeout of the requests, so only a hung daemon hits it.
+   */
+  private static final int TIMEOUT_MILLIS = 60_000;
+
+  /** Opens a connection to a daemon. */
+  interface Connector {
+    WatchmanClient connect(String socketPath) throws IOException;
+  }
+
+  private final JsonReader reader;
+  private final OutputStream out;
+  private final Closeable transport;
+
+  WatchmanClient(InputStream in, OutputStream out, Closeable transport) {
+    this.reader = new JsonReader(new InputStreamReader(in, UTF_8));
+    // Responses follow each other in the same stream.
+    this.reader.setLenient(true);
+    this.out = out;
+    this.transport = transport;
+  }
+
+  /** Connects to the daemon listening on the Unix domain socket at {@code socketPath}. */
+  static WatchmanClient connect(String socketPath) throws IOException {
+    return connect(socketPath, TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Connects to the daemon listening on the Unix domain socket at {@code socketPath}. Requests
+   * throw an {@link IOException} if the daemon doesn't answer within {@code timeoutMillis}.
+   */
+  static WatchmanClient connect(String socketPath, int timeoutMillis) throws IOException {
+    int fd = NativePosixFiles.connectUnixSocket(socketPath, timeoutMillis);
+    InputStream in =
+        new InputStream() {
+          @Override
+          public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            return NativePosixFiles.read(fd, b, off, len);
+          }
+        };
+    OutputStream out =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            NativePosixFiles.write(fd, b, off, len);
+          }
+        };
+    return new WatchmanClient(in, out, () -> NativePosixFiles.close(fd, null));
+  }
+
+  /**
+   * Sends a request and waits for its response.
+   *
+   * @param command the command name followed by its arguments
+   * @throws IOException if the connection failed or the daemon answered with an error
+   */
+  JsonObject request(JsonElement... command) throws IOException {
+    JsonArray request = new JsonArray();
+    for (JsonElement element : command) {
+      request.add(element);
+    }
+    out.write((request + "\n").getBytes(UTF_8));
+    out.flush();
+    while (true) {
+      JsonElement response;
+      try {
+        response = new JsonParser().parse(reader);
+      } catch (JsonIOException e) {
+        // E.g. the daemon didn't answer in time.
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+      } catch (JsonParseException e) {
+        throw new IOException("Malformed response from file watching daemon", e);
+      }
+      if (!response.isJsonObject()) {
+        throw new IOException("Unexpected response from file watching daemon: " + response);
+      }
+      JsonObject object = response.getAsJsonObject();
+      if (object.has("unilateral") || object.has("log")) {
+        // Subscriptions and logs may be interleaved with the responses; we use neither.
+        continue;
+      }
+      if (object.has("error")) {
+        throw new IOException("File watching daemon: " + object.get("error").getAsString());
+      }
+      return object;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    transport.close();
+  }
+}
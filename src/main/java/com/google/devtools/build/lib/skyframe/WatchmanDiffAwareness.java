@@ -0,0 +1,329 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link DiffAwareness} that asks a Watchman-compatible file watching daemon which files changed.
+ *
+ * <p>The daemon keeps watching across commands and server restarts, so a diff costs a query whose
+ * size is the number of changed files, and a new server doesn't have to walk the tree to set up
+ * watches. Views are clocks of the daemon, so unlike with {@link LocalDiffAwareness}, any two views
+ * of the same instance can be diffed.
+ *
+ * <p>The baseline clock of every root is persisted in the output base along with the graph
+ * snapshot, so that the next server only needs to query the changes since.
+ */
+public final class WatchmanDiffAwareness implements DiffAwareness {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** How long the daemon may take to catch up with the changes made before a view is taken. */
+  private static final int SYNC_TIMEOUT_MILLIS = 10_000;
+
+  /** Name of the file in the output base that holds the persisted clock of every root. */
+  public static final String CLOCKS_FILE = "watchman_clocks";
+
+  /** Options to use a file watching daemon. */
+  public static final class Options extends OptionsBase {
+    @Option(
+        name = "experimental_watchman_socket",
+        defaultValue = "",
+        documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+        effectTags = {OptionEffectTag.UNKNOWN},
+        help =
+            "If set, the Unix domain socket of a Watchman-compatible file watching daemon that "
+                + "%{product} asks for changed files at the start of each command, instead of "
+                + "watching or scanning every file itself. Takes precedence over --watchfs.")
+    public String watchmanSocket;
+  }
+
+  /** Creates a {@link WatchmanDiffAwareness} if {@code --experimental_watchman_socket} is set. */
+  public static final class Factory implements DiffAwareness.Factory {
+    @Nullable private final Path clocksFile;
+
+    /** Persists clocks to {@code clocksFile}, or nowhere if it is null. */
+    public Factory(@Nullable Path clocksFile) {
+      this.clocksFile = clocksFile;
+    }
+
+    @Override
+    @Nullable
+    public DiffAwareness maybeCreate(Root pathEntry, OptionsProvider options) {
+      Options watchmanOptions = options.getOptions(Options.class);
+      if (watchmanOptions == null || watchmanOptions.watchmanSocket.isEmpty()) {
+        return null;
+      }
+      Path resolvedPathEntry;
+      try {
+        resolvedPathEntry = pathEntry.asPath().resolveSymbolicLinks();
+      } catch (IOException e) {
+        return null;
+      }
+      // Paths are Latin-1 encoded internally, but the daemon speaks UTF-8.
+      return new WatchmanDiffAwareness(
+          new String(resolvedPathEntry.getPathString().getBytes(ISO_8859_1), UTF_8),
+          watchmanOptions.watchmanSocket,
+          WatchmanClient::connect,
+          clocksFile);
+    }
+  }
+
+  /** A clock of the daemon. */
+  private static final class ClockView implements View {
+    private final WatchmanDiffAwareness owner;
+    private final String clock;
+
+    private ClockView(WatchmanDiffAwareness owner, String clock) {
+      this.owner = owner;
+      this.clock = clock;
+    }
+
+    @Override
+    public String toString() {
+      return "ClockView[" + clock + "]";
+    }
+  }
+
+  private final String watchRoot;
+  private final String socketPath;
+  private final WatchmanClient.Connector connector;
+  @Nullable private final Path clocksFile;
+
+  @Nullable private WatchmanClient client;
+
+  /** The root of the daemon's watch, which may be an ancestor of {@link #watchRoot}. */
+  private String watchedProject;
+
+  /** The path of {@link #watchRoot} relative to {@link #watchedProject}, or null if they match. */
+  @Nullable private String relativePath;
+
+  private boolean closed;
+
+  @VisibleForTesting
+  WatchmanDiffAwareness(
+      String watchRoot,
+      String socketPath,
+      WatchmanClient.Connector connector,
+      @Nullable Path clocksFile) {
+    this.watchRoot = watchRoot;
+    this.socketPath = socketPath;
+    this.connector = connector;
+    this.clocksFile = clocksFile;
+  }
+
+  @Override
+  public View getCurrentView(OptionsProvider options) throws BrokenDiffAwarenessException {
+    Preconditions.checkState(!closed);
+    Options watchmanOptions = options.getOptions(Options.class);
+    if (watchmanOptions == null || !socketPath.equals(watchmanOptions.watchmanSocket)) {
+      close();
+      throw new BrokenDiffAwarenessException("Changed --experimental_watchman_socket");
+    }
+    try {
+      if (client == null) {
+        connect();
+      }
+      JsonObject syncOptions = new JsonObject();
+      syncOptions.addProperty("sync_timeout", SYNC_TIMEOUT_MILLIS);
+      JsonObject response =
+          client.request(
+              new JsonPrimitive("clock"), new JsonPrimitive(watchedProject), syncOptions);
+      return new ClockView(this, getString(response, "clock"));
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException("Error encountered with file watching daemon " + e);
+    }
+  }
+
+  private void connect() throws IOException {
+    client = connector.connect(socketPath);
+    JsonObject response =
+        client.request(new JsonPrimitive("watch-project"), new JsonPrimitive(watchRoot));
+    watchedProject = getString(response, "watch");
+    JsonElement relativePathElement = response.get("relative_path");
+    relativePath = relativePathElement == null ? null : relativePathElement.getAsString();
+    logger.atInfo().log(
+        "Watching %s through the file watching daemon at %s", watchRoot, socketPath);
+  }
+
+  @Override
+  public ModifiedFileSet getDiff(View oldView, View newView)
+      throws IncompatibleViewException, BrokenDiffAwarenessException {
+    if (!(oldView instanceof ClockView)
+        || !(newView instanceof ClockView)
+        || ((ClockView) oldView).owner != this
+        || ((ClockView) newView).owner != this) {
+      throw new IncompatibleViewException("Given views are not from this WatchmanDiffAwareness");
+    }
+    Preconditions.checkState(!closed);
+    // The query reports the changes up to now, which may include some after newView. Those are
+    // reported again by the next diff, which starts at newView.
+    JsonObject query = new JsonObject();
+    query.addProperty("since", ((ClockView) oldView).clock);
+    JsonArray fields = new JsonArray();
+    fields.add("name");
+    query.add("fields", fields);
+    query.addProperty("empty_on_fresh_instance", true);
+    if (relativePath != null) {
+      query.addProperty("relative_root", relativePath);
+    }
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    JsonObject response;
+    try {
+      response =
+          client.request(new JsonPrimitive("query"), new JsonPrimitive(watchedProject), query);
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException("Error encountered with file watching daemon " + e);
+    }
+    JsonElement freshInstance = response.get("is_fresh_instance");
+    if (freshInstance != null && freshInstance.getAsBoolean()) {
+      // The daemon restarted or lost track of changes since the old clock.
+      logger.atInfo().log("File watching daemon doesn't know what changed under %s", watchRoot);
+      return ModifiedFileSet.EVERYTHING_MODIFIED;
+    }
+    JsonElement files = response.get("files");
+    if (files == null || !files.isJsonArray()) {
+      close();
+      throw new BrokenDiffAwarenessException("File watching daemon didn't list changed files");
+    }
+    ModifiedFileSet.Builder resultBuilder = ModifiedFileSet.builder();
+    for (JsonElement file : files.getAsJsonArray()) {
+      PathFragment relativeFile =
+          PathFragment.create(new String(file.getAsString().getBytes(UTF_8), ISO_8859_1));
+      if (!relativeFile.isEmpty() && !relativeFile.containsUplevelReferences()) {
+        resultBuilder.modify(relativeFile);
+      }
+    }
+    ModifiedFileSet result = resultBuilder.build();
+    logger.atInfo().log(
+        "File watching daemon reported %d changed paths under %s in %d ms",
+        result.modifiedSourceFiles().size(), watchRoot, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    return result;
+  }
+
+  /**
+   * Returns the clock persisted for the watch root, if it was persisted for the same daemon socket.
+   * A clock of a daemon that restarted since makes the diff report everything as modified.
+   */
+  @Override
+  @Nullable
+  public View getPersistedView() {
+    Preconditions.checkState(!closed);
+    JsonElement entry = readClocks().get(watchRoot);
+    if (entry == null || !entry.isJsonObject()) {
+      return null;
+    }
+    JsonElement socket = entry.getAsJsonObject().get("socket");
+    JsonElement clock = entry.getAsJsonObject().get("clock");
+    if (socket == null
+        || !socket.isJsonPrimitive()
+        || !socket.getAsString().equals(socketPath)
+        || clock == null
+        || !clock.isJsonPrimitive()) {
+      return null;
+    }
+    return new ClockView(this, clock.getAsString());
+  }
+
+  @Override
+  public void persistView(View view) {
+    Preconditions.checkArgument(view instanceof ClockView && ((ClockView) view).owner == this);
+    if (clocksFile == null) {
+      return;
+    }
+    JsonObject clocks = readClocks();
+    JsonObject entry = new JsonObject();
+    entry.addProperty("socket", socketPath);
+    entry.addProperty("clock", ((ClockView) view).clock);
+    clocks.add(watchRoot, entry);
+    Path tmpFile = clocksFile.getParentDirectory().getChild(CLOCKS_FILE + ".tmp");
+    try {
+      FileSystemUtils.writeContent(tmpFile, UTF_8, clocks.toString());
+      tmpFile.renameTo(clocksFile);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to persist the clock of %s", watchRoot);
+    }
+  }
+
+  /** Returns the persisted clocks by watch root, or an empty object if there are none. */
+  private JsonObject readClocks() {
+    if (clocksFile == null || !clocksFile.exists()) {
+      return new JsonObject();
+    }
+    try {
+      JsonElement clocks = new JsonParser().parse(FileSystemUtils.readContent(clocksFile, UTF_8));
+      if (clocks.isJsonObject()) {
+        return clocks.getAsJsonObject();
+      }
+    } catch (IOException | JsonParseException | IllegalStateException e) {
+      logger.atWarning().withCause(e).log("Failed to read the persisted clocks %s", clocksFile);
+    }
+    return new JsonObject();
+  }
+
+  private static String getString(JsonObject response, String key) throws IOException {
+    JsonElement value = response.get(key);
+    if (value == null || !value.isJsonPrimitive()) {
+      throw new IOException("No " + key + " in response of file watching daemon: " + response);
+    }
+    return value.getAsString();
+  }
+
+  @Override
+  public String name() {
+    return "watchman";
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (client != null) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        logger.atInfo().withCause(e).log("Failed to disconnect from %s", socketPath);
+      }
+    }
+  }
+}
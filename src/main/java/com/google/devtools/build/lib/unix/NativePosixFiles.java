@@ -128,6 +128,30 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /** Number of longs per path in the result of {@link #statBatch}. */
+  public static final int STAT_BATCH_FIELDS = 9;
+
+  // Offsets of the fields of a path in the result of statBatch.
+  public static final int STAT_BATCH_ERRNO = 0;
+  public static final int STAT_BATCH_MODE = 1;
+  public static final int STAT_BATCH_SIZE = 2;
+  public static final int STAT_BATCH_MTIME = 3;
+  public static final int STAT_BATCH_MTIME_NANOS = 4;
+  public static final int STAT_BATCH_CTIME = 5;
+  public static final int STAT_BATCH_CTIME_NANOS = 6;
+  public static final int STAT_BATCH_DEV = 7;
+  public static final int STAT_BATCH_INO = 8;
+
+  /**
+   * Calls stat(2) or lstat(2) on each of the given paths in a single JNI call.
+   *
+   * @param paths the files to stat.
+   * @param followSymlinks whether to call stat (true) or lstat (false).
+   * @return {@link #STAT_BATCH_FIELDS} longs per path, at the {@code STAT_BATCH_*} offsets. The
+   *     errno field is 0 if the call succeeded; otherwise the other fields are 0.
+   */
+  public static native long[] statBatch(String[] paths, boolean followSymlinks);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -370,6 +394,27 @@ public final class NativePosixFiles {
   /** Write a segment of data to a file descriptor. */
   public static native int write(int fd, byte[] data, int off, int len) throws IOException;
 
+  /**
+   * Read a segment of data from a file descriptor.
+   *
+   * @return the number of bytes read, which is at least 1 unless {@code len} is 0, or -1 at the
+   *     end of the input
+   */
+  public static native int read(int fd, byte[] data, int off, int len) throws IOException;
+
+  /**
+   * Connect to a Unix domain socket.
+   *
+   * <p>This is a low level API. The caller is responsible for calling {@link close} on the returned
+   * file descriptor, which can be used with {@link #read} and {@link #write}.
+   *
+   * @param path the path of the socket
+   * @param timeoutMillis how long a read or write on the socket may block before it fails, or 0 to
+   *     block indefinitely. A read that times out throws a {@link
+   *     java.net.SocketTimeoutException}.
+   */
+  public static native int connectUnixSocket(String path, int timeoutMillis) throws IOException;
+
   /**
    * Close a file descriptor. Additionally, accept and ignore an object; this can be used to keep a
    * reference alive.
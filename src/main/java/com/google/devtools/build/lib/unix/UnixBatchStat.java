@@ -0,0 +1,159 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BatchStat} that stats all paths with a single call to {@link
+ * NativePosixFiles#statBatch}, instead of one JNI call and one profiler task per path.
+ *
+ * <p>Relative paths are resolved against the root given to {@link
+ * UnixFileSystem#getBatchStatter}; absolute paths are used as they are.
+ */
+final class UnixBatchStat implements BatchStat {
+
+  private static final Profiler profiler = Profiler.instance();
+
+  private final Path root;
+
+  UnixBatchStat(Path root) {
+    this.root = root;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(
+      boolean includeDigest, boolean includeLinks, Iterable<PathFragment> paths)
+      throws IOException {
+    List<Path> resolved = new ArrayList<>();
+    for (PathFragment path : paths) {
+      resolved.add(root.getRelative(path));
+    }
+    String[] names = new String[resolved.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = resolved.get(i).getPathString();
+    }
+
+    long startTime = Profiler.nanoTimeMaybe();
+    long[] fields;
+    try {
+      fields = NativePosixFiles.statBatch(names, /*followSymlinks=*/ !includeLinks);
+    } finally {
+      profiler.logSimpleTask(
+          startTime, ProfilerTask.VFS_STAT, names.length + " paths below " + root);
+    }
+
+    List<FileStatusWithDigest> result = new ArrayList<>(names.length);
+    for (int i = 0; i < names.length; i++) {
+      int offset = i * NativePosixFiles.STAT_BATCH_FIELDS;
+      int errno = (int) fields[offset + NativePosixFiles.STAT_BATCH_ERRNO];
+      if (errno == 0) {
+        byte[] digest = includeDigest ? resolved.get(i).getFastDigest() : null;
+        result.add(new BatchFileStatus(fields, offset, digest));
+      } else if (errno == ErrnoFileStatus.ENOENT || errno == ErrnoFileStatus.ENOTDIR) {
+        result.add(null);
+      } else {
+        // Stat the path again to throw the proper exception. Like in UnixFileSystem#statIfFound,
+        // a transient error may not happen twice, in which case the second result is used.
+        Path path = resolved.get(i);
+        result.add(
+            FileStatusWithDigestAdapter.adapt(
+                path.statIfFound(includeLinks ? Symlinks.NOFOLLOW : Symlinks.FOLLOW)));
+      }
+    }
+    return result;
+  }
+
+  /** A view of the fields of one path in the result of {@link NativePosixFiles#statBatch}. */
+  private static final class BatchFileStatus implements FileStatusWithDigest {
+    private final long[] fields;
+    private final int offset;
+    @Nullable private final byte[] digest;
+
+    BatchFileStatus(long[] fields, int offset, @Nullable byte[] digest) {
+      this.fields = fields;
+      this.offset = offset;
+      this.digest = digest;
+    }
+
+    private long field(int index) {
+      return fields[offset + index];
+    }
+
+    private int mode() {
+      return (int) field(NativePosixFiles.STAT_BATCH_MODE);
+    }
+
+    // The same semantics as UnixFileSystem.UnixFileStatus.
+
+    @Override
+    public boolean isFile() {
+      return !isDirectory() && !isSymbolicLink();
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return FileStatus.isDirectory(mode());
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+      return FileStatus.isSymbolicLink(mode());
+    }
+
+    @Override
+    public boolean isSpecialFile() {
+      return isFile() && (mode() & FileStatus.S_IFMT) != FileStatus.S_IFREG;
+    }
+
+    @Override
+    public long getSize() {
+      return field(NativePosixFiles.STAT_BATCH_SIZE);
+    }
+
+    @Override
+    public long getLastModifiedTime() {
+      return field(NativePosixFiles.STAT_BATCH_MTIME) * 1000
+          + field(NativePosixFiles.STAT_BATCH_MTIME_NANOS) / 1000000;
+    }
+
+    @Override
+    public long getLastChangeTime() {
+      return field(NativePosixFiles.STAT_BATCH_CTIME) * 1000
+          + field(NativePosixFiles.STAT_BATCH_CTIME_NANOS) / 1000000;
+    }
+
+    @Override
+    public long getNodeId() {
+      return field(NativePosixFiles.STAT_BATCH_INO);
+    }
+
+    @Override
+    @Nullable
+    public byte[] getDigest() {
+      return digest;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.unix.NativePosixFiles.Dirents;
 import com.google.devtools.build.lib.unix.NativePosixFiles.ReadTypes;
 import com.google.devtools.build.lib.vfs.AbstractFileSystemWithCustomStat;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
@@ -38,6 +39,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * This class implements the FileSystem interface using direct calls to the UNIX filesystem.
@@ -413,6 +415,13 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     return hashAttributeName.isEmpty() ? null : getxattr(path, hashAttributeName, true);
   }
 
+  @Nullable
+  @Override
+  public BatchStat getBatchStatter(Path root) {
+    // The batch stats bypass statInternal, so subclasses that override it must not get one.
+    return getClass() == UnixFileSystem.class ? new UnixBatchStat(root) : null;
+  }
+
   @Override
   protected byte[] getDigest(Path path) throws IOException {
     String name = path.toString();
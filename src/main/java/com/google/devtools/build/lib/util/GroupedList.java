@@ -68,7 +68,7 @@ public final class GroupedList<T> implements Iterable<List<T>> {
   private int size = 0;
   // Items in this GroupedList. Each element is either of type T or List<T>.
   // Non-final only for #remove.
-  private List<Object> elements;
+  private ArrayList<Object> elements;
 
   private final CollectionView collectionView = new CollectionView();
 
@@ -95,12 +95,19 @@ public final class GroupedList<T> implements Iterable<List<T>> {
    */
   @SuppressWarnings("unchecked") // Cast to T and List<T>.
   public Set<T> append(GroupedListHelper<T> helper) {
-    Preconditions.checkState(helper.currentGroup == null, "%s %s", this, helper);
-    // Do a check to make sure we don't have lists here. Note that if helper.elements is empty,
-    // Iterables.getFirst will return null, and null is not instanceof List.
-    Preconditions.checkState(!(Iterables.getFirst(helper.elements, null) instanceof List),
-        "Cannot make grouped list of lists: %s", helper);
-    Set<T> uniquifier = CompactHashSet.createWithExpectedSize(helper.elements.size());
+    Preconditions.checkState(!helper.inGroup, "%s %s", this, helper);
+    // Most helpers hold no or a single element, and don't need a set to be uniquified.
+    if (helper.numElements == 0) {
+      return ImmutableSet.of();
+    }
+    if (helper.numElements == 1) {
+      Object first = helper.groupedList.get(0);
+      elements.add(first);
+      size++;
+      return ImmutableSet.of((T) first);
+    }
+    elements.ensureCapacity(elements.size() + helper.groupedList.size());
+    Set<T> uniquifier = CompactHashSet.createWithExpectedSize(helper.numElements);
     for (Object item : helper.groupedList) {
       if (item instanceof List) {
         // Optimize for the case that elements in this list are unique.
@@ -166,14 +173,14 @@ public final class GroupedList<T> implements Iterable<List<T>> {
    * Removes everything in toRemove from the list of lists, elements. Called both by GroupedList and
    * GroupedListHelper.
    */
-  private static <E> List<Object> remove(List<Object> elements, Set<E> toRemove) {
+  private static <E> ArrayList<Object> remove(ArrayList<Object> elements, Set<E> toRemove) {
     if (toRemove.isEmpty()) {
       return elements;
     }
     int removedCount = 0;
     // elements.size is an upper bound of the needed size. Since normally removal happens just
     // before the list is finished and compressed, optimizing this size isn't a concern.
-    List<Object> newElements = new ArrayList<>(elements.size());
+    ArrayList<Object> newElements = new ArrayList<>(elements.size());
     for (Object obj : elements) {
       if (obj instanceof List) {
         ImmutableList.Builder<E> newGroup = new ImmutableList.Builder<>();
@@ -418,7 +425,7 @@ public final class GroupedList<T> implements Iterable<List<T>> {
 
     @Override
     public Iterator<T> iterator() {
-      return new UngroupedIterator();
+      return new UngroupedIterator<>(elements, size);
     }
 
     @Override
@@ -427,34 +434,43 @@ public final class GroupedList<T> implements Iterable<List<T>> {
     }
   }
 
-  /** An iterator that loops through every element in each group. */
-  private final class UngroupedIterator implements Iterator<T> {
-    private final Iterator<Object> iter = elements.iterator();
+  /**
+   * An iterator that loops through every element in each group of {@code elements}, which hold
+   * {@code size} elements in total.
+   */
+  private static final class UngroupedIterator<E> implements Iterator<E> {
+    private final Iterator<Object> iter;
+    private final int size;
     int counter = 0;
-    List<T> currentGroup;
+    List<E> currentGroup;
     int listCounter = 0;
 
+    UngroupedIterator(List<Object> elements, int size) {
+      this.iter = elements.iterator();
+      this.size = size;
+    }
+
     @Override
     public boolean hasNext() {
       return counter < size;
     }
 
-    @SuppressWarnings("unchecked") // Cast of Object to List<T> or T.
+    @SuppressWarnings("unchecked") // Cast of Object to List<E> or E.
     @Override
-    public T next() {
+    public E next() {
       counter++;
       if (currentGroup != null && listCounter < currentGroup.size()) {
         return currentGroup.get(listCounter++);
       }
       Object nextGroup = iter.next();
       if (nextGroup instanceof List) {
-        currentGroup = (List<T>) nextGroup;
+        currentGroup = (List<E>) nextGroup;
         listCounter = 1;
         // GroupedLists shouldn't have empty lists stored.
         return currentGroup.get(0);
       } else {
         currentGroup = null;
-        return (T) nextGroup;
+        return (E) nextGroup;
       }
     }
   }
@@ -561,27 +577,34 @@ public final class GroupedList<T> implements Iterable<List<T>> {
    * Builder-like object for GroupedLists. An already-existing grouped list is appended to by
    * constructing a helper, mutating it, and then appending that helper to the grouped list.
    *
+   * <p>The helper stores its elements in the same form as a {@code GroupedList}, so that appending
+   * it doesn't copy its groups. Groups are collected in a buffer that is reused for every group,
+   * since groups of a single element are stored bare and larger groups are copied anyway.
+   *
    * <p>Duplicate elements may be encountered while iterating through this object.
    */
   public static class GroupedListHelper<E> implements Iterable<E> {
     // Non-final only for removal.
-    private List<Object> groupedList;
-    private List<E> currentGroup = null;
-    private final List<E> elements;
+    private ArrayList<Object> groupedList;
+    // Total number of items in groupedList, including duplicates.
+    private int numElements = 0;
+    // The elements of the current group. Created lazily, since single-element helpers have none.
+    private ArrayList<E> groupBuffer = null;
+    private boolean inGroup = false;
 
     public GroupedListHelper() {
       // Optimize for short lists.
       groupedList = new ArrayList<>(1);
-      elements = new ArrayList<>(1);
     }
 
-    /** Create with a copy of the contents of {@code elements} as the initial group. */
+    /** Create with {@code element} as the initial group. */
     private GroupedListHelper(E element) {
       // Optimize for short lists.
+      Preconditions.checkState(
+          !(element instanceof List), "Cannot make grouped list of lists: %s", element);
       groupedList = new ArrayList<>(1);
       groupedList.add(element);
-      this.elements = new ArrayList<>(1);
-      this.elements.add(element);
+      numElements = 1;
     }
 
     /**
@@ -589,11 +612,15 @@ public final class GroupedList<T> implements Iterable<List<T>> {
      * goes in a group of its own.
      */
     public void add(E elt) {
-      elements.add(Preconditions.checkNotNull(elt, "Null add of elt: %s", this));
-      if (currentGroup == null) {
-        groupedList.add(elt);
+      Preconditions.checkNotNull(elt, "Null add of elt: %s", this);
+      // Lists couldn't be told apart from groups.
+      Preconditions.checkState(
+          !(elt instanceof List), "Cannot make grouped list of lists: %s", elt);
+      if (inGroup) {
+        groupBuffer.add(elt);
       } else {
-        currentGroup.add(elt);
+        groupedList.add(elt);
+        numElements++;
       }
     }
 
@@ -603,8 +630,12 @@ public final class GroupedList<T> implements Iterable<List<T>> {
      * called often.
      */
     public void remove(Set<E> toRemove) {
+      Preconditions.checkState(!inGroup, this);
       groupedList = GroupedList.remove(groupedList, toRemove);
-      elements.removeAll(toRemove);
+      numElements = 0;
+      for (Object item : groupedList) {
+        numElements += sizeOf(item);
+      }
     }
 
     /**
@@ -613,15 +644,20 @@ public final class GroupedList<T> implements Iterable<List<T>> {
      * elements added to this group will be silently deduplicated.
      */
     public void startGroup() {
-      Preconditions.checkState(currentGroup == null, this);
-      currentGroup = new ArrayList<>();
+      Preconditions.checkState(!inGroup, this);
+      if (groupBuffer == null) {
+        groupBuffer = new ArrayList<>();
+      }
+      inGroup = true;
     }
 
     /** Ends a group started with {@link #startGroup}. */
     public void endGroup() {
-      Preconditions.checkNotNull(currentGroup);
-      addItem(currentGroup, groupedList);
-      currentGroup = null;
+      Preconditions.checkState(inGroup, this);
+      addItem(groupBuffer, groupedList);
+      numElements += groupBuffer.size();
+      groupBuffer.clear();
+      inGroup = false;
     }
 
     /**
@@ -629,12 +665,19 @@ public final class GroupedList<T> implements Iterable<List<T>> {
      * should not be called routinely.
      */
     public boolean contains(E elt) {
-      return elements.contains(elt);
+      for (Object item : groupedList) {
+        if (item instanceof List ? ((List<?>) item).contains(elt) : item.equals(elt)) {
+          return true;
+        }
+      }
+      return inGroup && groupBuffer.contains(elt);
     }
 
+    /** Iterates over the elements of this list. Must not be called while in a group. */
     @Override
     public Iterator<E> iterator() {
-      return elements.iterator();
+      Preconditions.checkState(!inGroup, this);
+      return new UngroupedIterator<>(groupedList, numElements);
     }
 
     /** Create a GroupedListHelper from a single element. */
@@ -646,8 +689,8 @@ public final class GroupedList<T> implements Iterable<List<T>> {
     public String toString() {
       return MoreObjects.toStringHelper(this)
           .add("groupedList", groupedList)
-          .add("elements", elements)
-          .add("currentGroup", currentGroup)
+          .add("numElements", numElements)
+          .add("currentGroup", inGroup ? groupBuffer : null)
           .toString();
     }
   }
@@ -0,0 +1,345 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.DigestUtils.CacheKey;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * An append-only file that keeps the entries of the digest cache of {@link DigestUtils} across
+ * server restarts.
+ *
+ * <p>The file starts with a {@code long} magic number and the name of the digest function that the
+ * digests were computed with, as an {@code int} length and Latin-1 bytes. A file with another magic
+ * number or digest function is discarded. It is followed by records consisting of an {@code int}
+ * length, the {@code int} CRC32 of the contents, and the contents: the node id, modification time,
+ * change time and size of the file as {@code long}s, the digest preceded by its {@code byte}
+ * length, and the path in Latin-1. Loading stops at the first record that is truncated or doesn't
+ * match its checksum, e.g. after a crash, and truncates the file there.
+ *
+ * <p>Digests are buffered in memory and appended to the file when the buffer is full and on {@link
+ * #save}. If that fails, the buffer is dropped and the log stops recording digests. Records of
+ * files that changed or were evicted from the cache are never removed from the file; instead
+ * {@link #save} replaces it by a file with only the entries of the cache once it has more than
+ * twice as many records.
+ *
+ * <p>The file is never truncated or renamed while it's open or mapped, which Windows doesn't allow.
+ */
+@ThreadSafe
+final class DigestCacheLog {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final long MAGIC = 0x6469676573747301L;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int MIN_CONTENTS_SIZE = 4 * Long.BYTES + 1;
+  private static final int MAX_CONTENTS_SIZE = 64 << 10;
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+  private static final long MIN_COMPACTION_RECORDS = 10000;
+
+  private final Path path;
+  private final String digestFunctionName;
+  private final long minCompactionRecords;
+
+  // The following fields are guarded by "this".
+  private RandomAccessFile file;
+  private final ByteArrayOutputStream writeBuffer = new ByteArrayOutputStream();
+  private final DataOutputStream writeOut = new DataOutputStream(writeBuffer);
+  private long records;
+  @Nullable private IOException deferredIOFailure;
+  private boolean failed;
+
+  private DigestCacheLog(Path path, String digestFunctionName, long minCompactionRecords) {
+    this.path = path;
+    this.digestFunctionName = digestFunctionName;
+    this.minCompactionRecords = minCompactionRecords;
+  }
+
+  /**
+   * Opens the log in {@code path}, creating it if necessary, and passes all entries that were
+   * computed with the digest function {@code digestFunctionName} to {@code consumer}.
+   */
+  static DigestCacheLog load(
+      Path path, String digestFunctionName, BiConsumer<CacheKey, byte[]> consumer)
+      throws IOException {
+    return load(path, digestFunctionName, consumer, MIN_COMPACTION_RECORDS);
+  }
+
+  /**
+   * Like {@link #load(Path, String, BiConsumer)}, but the file is only compacted once it has more
+   * than {@code minCompactionRecords} records.
+   */
+  @VisibleForTesting
+  static DigestCacheLog load(
+      Path path,
+      String digestFunctionName,
+      BiConsumer<CacheKey, byte[]> consumer,
+      long minCompactionRecords)
+      throws IOException {
+    DigestCacheLog log = new DigestCacheLog(path, digestFunctionName, minCompactionRecords);
+    synchronized (log) {
+      log.load(consumer);
+    }
+    return log;
+  }
+
+  private void load(BiConsumer<CacheKey, byte[]> consumer) throws IOException {
+    Files.createDirectories(path.getParent());
+    long length = Files.exists(path) ? Files.size(path) : 0;
+    long end = -1;
+    if (length > 0) {
+      // The file is read instead of mapped, since it can't be truncated while mapped on Windows.
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+        end = readRecords(in, length, consumer);
+      }
+    }
+    file = new RandomAccessFile(path.toFile(), "rw");
+    if (end < 0) {
+      if (length > 0) {
+        logger.atInfo().log("Discarding digest cache %s with unknown format", path);
+      }
+      file.setLength(0);
+      writeFileHeader(file);
+    } else if (end < length) {
+      logger.atInfo().log("Truncating digest cache %s at offset %d", path, end);
+      file.setLength(end);
+    }
+  }
+
+  /**
+   * Passes the records of the file of {@code length} bytes read by {@code in} to {@code consumer},
+   * and returns the offset of the end of the last valid record, or -1 if the file doesn't have a
+   * valid header.
+   */
+  private long readRecords(DataInputStream in, long length, BiConsumer<CacheKey, byte[]> consumer)
+      throws IOException {
+    long end = readFileHeader(in, length);
+    if (end < 0) {
+      return -1;
+    }
+    CRC32 crc = new CRC32();
+    while (length - end >= RECORD_HEADER_SIZE) {
+      int size = in.readInt();
+      int checksum = in.readInt();
+      if (size < MIN_CONTENTS_SIZE
+          || size > MAX_CONTENTS_SIZE
+          || size > length - end - RECORD_HEADER_SIZE) {
+        break;
+      }
+      byte[] contents = new byte[size];
+      in.readFully(contents);
+      crc.reset();
+      crc.update(contents);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      ByteBuffer record = ByteBuffer.wrap(contents);
+      long nodeId = record.getLong();
+      long modifiedTime = record.getLong();
+      long changeTime = record.getLong();
+      long fileSize = record.getLong();
+      byte[] digest = new byte[Byte.toUnsignedInt(record.get())];
+      if (digest.length > record.remaining()) {
+        break;
+      }
+      record.get(digest);
+      String pathString = new String(contents, record.position(), record.remaining(), ISO_8859_1);
+      consumer.accept(
+          new CacheKey(
+              PathFragment.create(pathString), nodeId, modifiedTime, changeTime, fileSize),
+          digest);
+      records++;
+      end += RECORD_HEADER_SIZE + size;
+    }
+    return end;
+  }
+
+  /** Returns the size of the file header read by {@code in}, or -1 if it isn't valid. */
+  private long readFileHeader(DataInputStream in, long length) throws IOException {
+    if (length < Long.BYTES + Integer.BYTES || in.readLong() != MAGIC) {
+      return -1;
+    }
+    int nameLength = in.readInt();
+    long end = Long.BYTES + Integer.BYTES + (long) nameLength;
+    if (nameLength < 0 || end > length) {
+      return -1;
+    }
+    byte[] name = new byte[nameLength];
+    in.readFully(name);
+    return digestFunctionName.equals(new String(name, ISO_8859_1)) ? end : -1;
+  }
+
+  private void writeFileHeader(RandomAccessFile file) throws IOException {
+    byte[] name = digestFunctionName.getBytes(ISO_8859_1);
+    file.seek(0);
+    file.writeLong(MAGIC);
+    file.writeInt(name.length);
+    file.write(name);
+  }
+
+  /** Adds a newly computed digest to the log. */
+  synchronized void append(CacheKey key, byte[] digest) {
+    if (failed) {
+      return;
+    }
+    encode(key, digest);
+    if (writeBuffer.size() >= WRITE_BUFFER_SIZE) {
+      try {
+        flush();
+      } catch (IOException e) {
+        deferredIOFailure = e;
+      }
+    }
+  }
+
+  /** Adds a record to the write buffer. Must be called with the lock held. */
+  private void encode(CacheKey key, byte[] digest) {
+    byte[] pathBytes = key.path.getPathString().getBytes(ISO_8859_1);
+    int size = MIN_CONTENTS_SIZE + digest.length + pathBytes.length;
+    if (size > MAX_CONTENTS_SIZE || digest.length > 255) {
+      return;
+    }
+    ByteBuffer contents = ByteBuffer.allocate(size);
+    contents.putLong(key.nodeId);
+    contents.putLong(key.modifiedTime);
+    contents.putLong(key.changeTime);
+    contents.putLong(key.size);
+    contents.put((byte) digest.length);
+    contents.put(digest);
+    contents.put(pathBytes);
+    CRC32 crc = new CRC32();
+    crc.update(contents.array());
+    try {
+      writeOut.writeInt(size);
+      writeOut.writeInt((int) crc.getValue());
+      writeOut.write(contents.array());
+    } catch (IOException e) {
+      // This Exception can never be thrown by ByteArrayOutputStream.
+      throw new AssertionError(e);
+    }
+    records++;
+  }
+
+  /**
+   * Appends the write buffer to the file. If that fails, drops the buffer and stops recording
+   * digests, since the file may now end with a partial record. Must be called with the lock held.
+   */
+  private void flush() throws IOException {
+    if (failed || writeBuffer.size() == 0) {
+      return;
+    }
+    try {
+      file.seek(file.length());
+      file.write(writeBuffer.toByteArray());
+    } catch (IOException e) {
+      failed = true;
+      throw e;
+    } finally {
+      writeBuffer.reset();
+    }
+  }
+
+  /**
+   * Writes the digests appended since the last call to the file, and compacts it if it has more
+   * than twice as many records as {@code liveEntries}, the current contents of the cache.
+   */
+  synchronized void save(Map<CacheKey, byte[]> liveEntries) throws IOException {
+    if (deferredIOFailure != null) {
+      IOException e = deferredIOFailure;
+      deferredIOFailure = null;
+      throw e;
+    }
+    flush();
+    if (failed) {
+      return;
+    }
+    if (records > minCompactionRecords && records > 2L * liveEntries.size()) {
+      long recordsBefore = records;
+      rewrite(liveEntries);
+      logger.atInfo().log(
+          "Compacted digest cache %s from %d to %d records", path, recordsBefore, records);
+    }
+  }
+
+  /**
+   * Replaces the file by one with only {@code liveEntries}, which is moved into place atomically.
+   * Must be called with the lock held and nothing buffered.
+   */
+  private void rewrite(Map<CacheKey, byte[]> liveEntries) throws IOException {
+    Path tempPath = path.resolveSibling(path.getFileName() + ".compacting");
+    Files.deleteIfExists(tempPath);
+    long recordsBefore = records;
+    records = 0;
+    try (RandomAccessFile newFile = new RandomAccessFile(tempPath.toFile(), "rw")) {
+      writeFileHeader(newFile);
+      for (Map.Entry<CacheKey, byte[]> entry : liveEntries.entrySet()) {
+        encode(entry.getKey(), entry.getValue());
+        if (writeBuffer.size() >= WRITE_BUFFER_SIZE) {
+          newFile.write(writeBuffer.toByteArray());
+          writeBuffer.reset();
+        }
+      }
+      newFile.write(writeBuffer.toByteArray());
+    } catch (IOException e) {
+      records = recordsBefore;
+      Files.deleteIfExists(tempPath);
+      throw e;
+    } finally {
+      writeBuffer.reset();
+    }
+    file.close();
+    try {
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      records = recordsBefore;
+      Files.deleteIfExists(tempPath);
+      throw e;
+    } finally {
+      file = new RandomAccessFile(path.toFile(), "rw");
+    }
+  }
+
+  /** Saves the log and closes the file. The log must not be used afterwards. */
+  synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      file.close();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getRecordCount() {
+    return records;
+  }
+}
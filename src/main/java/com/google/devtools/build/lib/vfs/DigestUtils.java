@@ -18,11 +18,13 @@ import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.flogger.GoogleLogger;
 import com.google.common.primitives.Longs;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * Utility class for getting digests of files.
@@ -42,6 +44,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * fail.
  */
 public class DigestUtils {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
   // Object to synchronize on when serializing large file reads.
   private static final Object DIGEST_LOCK = new Object();
@@ -68,18 +71,21 @@ public class DigestUtils {
    * <p>The cache keys are derived from many properties of the file metadata in an attempt to be
    * able to detect most file changes.
    */
-  private static class CacheKey {
+  static final class CacheKey {
     /** Path to the file. */
-    private final PathFragment path;
+    final PathFragment path;
 
     /** File system identifier of the file (typically the inode number). */
-    private final long nodeId;
+    final long nodeId;
 
     /** Last modification time of the file. */
-    private final long modifiedTime;
+    final long modifiedTime;
+
+    /** Last change time of the file's metadata or contents. */
+    final long changeTime;
 
     /** Size of the file. */
-    private final long size;
+    final long size;
 
     /**
      * Constructs a new cache key.
@@ -88,11 +94,21 @@ public class DigestUtils {
      * @param status file status data from which to obtain the cache key properties
      * @throws IOException if reading the file status data fails
      */
-    public CacheKey(Path path, FileStatus status) throws IOException {
-      this.path = path.asFragment();
-      this.nodeId = status.getNodeId();
-      this.modifiedTime = status.getLastModifiedTime();
-      this.size = status.getSize();
+    CacheKey(Path path, FileStatus status) throws IOException {
+      this(
+          path.asFragment(),
+          status.getNodeId(),
+          status.getLastModifiedTime(),
+          status.getLastChangeTime(),
+          status.getSize());
+    }
+
+    CacheKey(PathFragment path, long nodeId, long modifiedTime, long changeTime, long size) {
+      this.path = path;
+      this.nodeId = nodeId;
+      this.modifiedTime = modifiedTime;
+      this.changeTime = changeTime;
+      this.size = size;
     }
 
     @Override
@@ -106,6 +122,7 @@ public class DigestUtils {
         return path.equals(key.path)
             && nodeId == key.nodeId
             && modifiedTime == key.modifiedTime
+            && changeTime == key.changeTime
             && size == key.size;
       }
     }
@@ -116,6 +133,7 @@ public class DigestUtils {
       result = 31 * result + path.hashCode();
       result = 31 * result + Longs.hashCode(nodeId);
       result = 31 * result + Longs.hashCode(modifiedTime);
+      result = 31 * result + Longs.hashCode(changeTime);
       result = 31 * result + Longs.hashCode(size);
       return result;
     }
@@ -132,6 +150,15 @@ public class DigestUtils {
    */
   private static Cache<CacheKey, byte[]> globalCache = null;
 
+  /**
+   * File that keeps the entries of {@link #globalCache} across server restarts.
+   *
+   * <p>This is null unless enabled by {@link #configurePersistentCache}.
+   */
+  @Nullable private static volatile DigestCacheLog persistentCache = null;
+
+  @Nullable private static java.nio.file.Path persistentCacheFile = null;
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -175,6 +202,7 @@ public class DigestUtils {
    * @param maximumSize maximumSize of the cache in number of entries
    */
   public static void configureCache(long maximumSize) {
+    closePersistentCache();
     if (maximumSize == 0) {
       globalCache = null;
     } else {
@@ -182,6 +210,52 @@ public class DigestUtils {
     }
   }
 
+  /**
+   * Keeps the contents of the cache in {@code file} across server restarts, keyed by the path,
+   * inode, modification time, change time and size of the files.
+   *
+   * <p>The entries in the file that were computed with {@code digestFunction} are loaded into the
+   * cache, and digests computed afterwards are added to the file by {@link #savePersistentCache}.
+   * The cache must have been enabled by a call to {@link #configureCache(long)}, and reconfiguring
+   * it stops persisting it.
+   */
+  public static synchronized void configurePersistentCache(
+      java.nio.file.Path file, DigestHashFunction digestFunction) throws IOException {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    Preconditions.checkNotNull(cache, "configureCache() must have been called with a size > 0");
+    closePersistentCache();
+    persistentCache = DigestCacheLog.load(file, digestFunction.toString(), cache::put);
+    persistentCacheFile = file;
+  }
+
+  /** Returns the file that the cache is persisted in, or null if it isn't. */
+  @Nullable
+  public static synchronized java.nio.file.Path getPersistentCacheFile() {
+    return persistentCacheFile;
+  }
+
+  /** Adds the digests that were computed since the last call to the persistent cache, if any. */
+  public static synchronized void savePersistentCache() throws IOException {
+    if (persistentCache != null) {
+      persistentCache.save(globalCache.asMap());
+    }
+  }
+
+  /** Saves the persistent cache, if any, and stops persisting the cache. */
+  public static synchronized void closePersistentCache() {
+    DigestCacheLog log = persistentCache;
+    if (log == null) {
+      return;
+    }
+    persistentCache = null;
+    persistentCacheFile = null;
+    try {
+      log.close();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to save the persistent digest cache");
+    }
+  }
+
   /**
    * Obtains cache statistics.
    *
@@ -269,6 +343,10 @@ public class DigestUtils {
     Preconditions.checkNotNull(digest, "Missing digest for %s (size %s)", path, fileSize);
     if (cache != null) {
       cache.put(key, digest);
+      DigestCacheLog log = persistentCache;
+      if (log != null) {
+        log.append(key, digest);
+      }
     }
     return digest;
   }
@@ -32,6 +32,7 @@ import java.nio.file.FileAlreadyExistsException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /** This interface models a file system. */
 @ThreadSafe
@@ -310,6 +311,15 @@ public abstract class FileSystem {
     return null;
   }
 
+  /**
+   * Returns a {@link BatchStat} that stats many paths below {@code root} at once, or {@code null}
+   * if this file system can't do better than one {@link Path#statIfFound} call per path.
+   */
+  @Nullable
+  public BatchStat getBatchStatter(Path root) {
+    return null;
+  }
+
   /**
    * Returns the digest of the file denoted by the path, following symbolic links.
    *
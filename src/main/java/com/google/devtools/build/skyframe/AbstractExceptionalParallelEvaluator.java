@@ -95,7 +95,9 @@ public abstract class AbstractExceptionalParallelEvaluator<E extends Exception>
       GraphInconsistencyReceiver graphInconsistencyReceiver,
       Supplier<ExecutorService> executorService,
       CycleDetector cycleDetector,
-      EvaluationVersionBehavior evaluationVersionBehavior) {
+      EvaluationVersionBehavior evaluationVersionBehavior,
+      SchedulingPolicy schedulingPolicy,
+      EvaluationAdmissionController admissionController) {
     super(
         graph,
         graphVersion,
@@ -109,7 +111,9 @@ public abstract class AbstractExceptionalParallelEvaluator<E extends Exception>
         graphInconsistencyReceiver,
         executorService,
         cycleDetector,
-        evaluationVersionBehavior);
+        evaluationVersionBehavior,
+        schedulingPolicy,
+        admissionController);
   }
 
   private void informProgressReceiverThatValueIsDone(SkyKey key, NodeEntry entry)
@@ -75,6 +75,8 @@ abstract class AbstractParallelEvaluator {
   final ParallelEvaluatorContext evaluatorContext;
   protected final CycleDetector cycleDetector;
   private final AtomicInteger globalEnqueuedIndex;
+  private final SchedulingPolicy schedulingPolicy;
+  private final EvaluationAdmissionController admissionController;
 
   AbstractParallelEvaluator(
       ProcessableGraph graph,
@@ -89,9 +91,13 @@ abstract class AbstractParallelEvaluator {
       GraphInconsistencyReceiver graphInconsistencyReceiver,
       Supplier<ExecutorService> executorService,
       CycleDetector cycleDetector,
-      EvaluationVersionBehavior evaluationVersionBehavior) {
+      EvaluationVersionBehavior evaluationVersionBehavior,
+      SchedulingPolicy schedulingPolicy,
+      EvaluationAdmissionController admissionController) {
     this.graph = graph;
     this.cycleDetector = cycleDetector;
+    this.schedulingPolicy = schedulingPolicy;
+    this.admissionController = admissionController;
     evaluatorContext =
         new ParallelEvaluatorContext(
             graph,
@@ -139,25 +145,36 @@ abstract class AbstractParallelEvaluator {
    * together by parent leads to fewer in-flight evaluations and thus lower peak memory usage. Thus
    * we store the {@link #evaluationPriority} (coming from the {@link #globalEnqueuedIndex} and use
    * it for comparisons: later enqueuings should be evaluated earlier, to do a depth-first search,
-   * except for re-enqueued nodes, which always get top priority.
+   * except for re-enqueued nodes, which always get top priority. Before the depth-first order, the
+   * {@link SchedulingPolicy} gets to order the nodes, e.g. to evaluate the critical path first.
    *
    * <p>This is not applicable when using a {@link ForkJoinPool}, since it does not allow for easy
    * work prioritization.
    */
   private class Evaluate implements ParallelEvaluatorContext.ComparableRunnable {
     private final int evaluationPriority;
+    private final long schedulingPriority;
     /** The name of the value to be evaluated. */
     private final SkyKey skyKey;
 
     private Evaluate(int evaluationPriority, SkyKey skyKey) {
       this.evaluationPriority = evaluationPriority;
+      this.schedulingPriority = schedulingPolicy.priority(skyKey);
       this.skyKey = skyKey;
     }
 
     @Override
     public int compareTo(ParallelEvaluatorContext.ComparableRunnable other) {
+      Evaluate that = (Evaluate) other;
       // Put other one first, so larger values come first in priority queue.
-      return Integer.compare(((Evaluate) other).evaluationPriority, this.evaluationPriority);
+      int result =
+          Boolean.compare(
+              that.evaluationPriority == Integer.MAX_VALUE,
+              this.evaluationPriority == Integer.MAX_VALUE);
+      if (result == 0) {
+        result = Long.compare(that.schedulingPriority, this.schedulingPriority);
+      }
+      return result != 0 ? result : Integer.compare(that.evaluationPriority, evaluationPriority);
     }
 
     /**
@@ -427,6 +444,17 @@ abstract class AbstractParallelEvaluator {
 
     @Override
     public void run() {
+      // Restarted nodes and nodes whose deps are done are re-enqueued with top priority.
+      admissionController.admit(
+          skyKey, /*partiallyEvaluated=*/ evaluationPriority == Integer.MAX_VALUE);
+      try {
+        evaluate();
+      } finally {
+        admissionController.done();
+      }
+    }
+
+    private void evaluate() {
       SkyFunctionEnvironment env = null;
       try {
         NodeEntry state =
@@ -471,12 +499,13 @@ abstract class AbstractParallelEvaluator {
 
         SkyValue value = null;
         long startTimeNanos = BlazeClock.instance().nanoTime();
+        long elapsedTimeNanos = 0;
         try {
           try {
             evaluatorContext.getProgressReceiver().stateStarting(skyKey, NodeState.COMPUTE);
             value = factory.compute(skyKey, env);
           } finally {
-            long elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTimeNanos;
+            elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTimeNanos;
             evaluatorContext
                 .getProgressReceiver()
                 .stateEnding(skyKey, NodeState.COMPUTE, elapsedTimeNanos);
@@ -500,6 +529,7 @@ abstract class AbstractParallelEvaluator {
           // Propagated transitive errors are treated the same as missing deps.
           if ((!evaluatorContext.keepGoing() || !env.valuesMissing())
               && reifiedBuilderException.getRootCauseSkyKey().equals(skyKey)) {
+            evaluatorContext.discardComputeState(skyKey);
             boolean shouldFailFast =
                 !evaluatorContext.keepGoing() || builderException.isCatastrophic();
             if (shouldFailFast) {
@@ -569,7 +599,13 @@ abstract class AbstractParallelEvaluator {
           env.doneBuilding();
         }
 
+        // The compute state only lives on if this call is restarted for missing deps.
+        if (value != null) {
+          evaluatorContext.discardComputeState(skyKey);
+        }
+
         if (maybeHandleRestart(skyKey, state, value)) {
+          evaluatorContext.getProgressReceiver().nodeRestarted(skyKey, elapsedTimeNanos);
           cancelExternalDeps(env);
           // Top priority since this node has already been evaluating, so get it off our plate.
           evaluatorContext.getVisitor().enqueueEvaluation(skyKey, Integer.MAX_VALUE);
@@ -597,6 +633,7 @@ abstract class AbstractParallelEvaluator {
               // This node will be signalled again, and so we should return.
               return;
             }
+            schedulingPolicy.evaluated(skyKey, elapsedTimeNanos, state.getTemporaryDirectDeps());
             env.setValue(value);
             env.commit(state, EnqueueParentBehavior.ENQUEUE);
           } finally {
@@ -693,10 +730,15 @@ abstract class AbstractParallelEvaluator {
           // If the child error was catastrophic, committing this parent to the graph is not
           // necessary, but since we don't do error bubbling in catastrophes, it doesn't violate any
           // invariants either.
+          evaluatorContext.discardComputeState(skyKey);
           env.commit(state, EnqueueParentBehavior.ENQUEUE);
           return;
         }
 
+        evaluatorContext
+            .getProgressReceiver()
+            .restarting(skyKey, uniqueNewDeps.size(), elapsedTimeNanos);
+
         // If there are external deps, we register that fact on the NodeEntry before we enqueue
         // child nodes in order to prevent the current node from being re-enqueued between here and
         // the call to registerExternalDeps below.
@@ -921,6 +963,7 @@ abstract class AbstractParallelEvaluator {
     evaluatorContext
         .getGraphInconsistencyReceiver()
         .noteInconsistencyAndMaybeThrow(key, /*otherKeys=*/ null, Inconsistency.RESET_REQUESTED);
+    evaluatorContext.discardComputeState(key);
     entry.resetForRestartFromScratch();
   }
 
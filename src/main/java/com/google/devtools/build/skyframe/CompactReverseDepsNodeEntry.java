@@ -0,0 +1,96 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An {@link InMemoryNodeEntry} that stores two or more reverse deps as the int ids of a {@link
+ * NodeIdTable} rather than as a list of {@link SkyKey} references. Used by an {@link
+ * InMemoryGraphImpl} created with compact reverse deps, which owns the table.
+ *
+ * <p>Reverse deps that have no node, which only tests create, can't be stored as ids. A node with
+ * such reverse deps keeps them as a list of keys until they are written back without them.
+ */
+final class CompactReverseDepsNodeEntry extends InMemoryNodeEntry {
+
+  private final int id;
+  private final NodeIdTable ids;
+
+  CompactReverseDepsNodeEntry(int id, NodeIdTable ids) {
+    this.id = id;
+    this.ids = ids;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  @Override
+  synchronized void setReverseDepsForReverseDepsUtil(List<SkyKey> reverseDeps) {
+    if (reverseDeps.size() > 1 && !(reverseDeps instanceof ReverseDepIdList)) {
+      ReverseDepIdList idList = ReverseDepIdList.copyOf(ids, reverseDeps);
+      if (idList != null) {
+        reverseDeps = idList;
+      }
+    }
+    super.setReverseDepsForReverseDepsUtil(reverseDeps);
+  }
+
+  @Override
+  synchronized void appendReverseDepsForReverseDepsUtil(Collection<SkyKey> newReverseDeps) {
+    Object reverseDeps = getReverseDepsRawForReverseDepsUtil();
+    if (!(reverseDeps instanceof ReverseDepIdList)) {
+      super.appendReverseDepsForReverseDepsUtil(newReverseDeps);
+    } else if (!((ReverseDepIdList) reverseDeps).tryAddAll(newReverseDeps)) {
+      List<SkyKey> keys = new ArrayList<>((ReverseDepIdList) reverseDeps);
+      keys.addAll(newReverseDeps);
+      super.setReverseDepsForReverseDepsUtil(keys);
+    }
+  }
+
+  @Override
+  public synchronized void removeReverseDep(SkyKey reverseDep) {
+    super.removeReverseDep(reverseDep);
+    maybeRemovalPending();
+  }
+
+  @Override
+  public synchronized void removeInProgressReverseDep(SkyKey reverseDep) {
+    super.removeInProgressReverseDep(reverseDep);
+    maybeRemovalPending();
+  }
+
+  private void maybeRemovalPending() {
+    if (getReverseDepsDataToConsolidateForReverseDepsUtil() != null
+        && getReverseDepsRawForReverseDepsUtil() instanceof ReverseDepIdList) {
+      ids.reverseDepRemovalPending(this);
+    }
+  }
+
+  /**
+   * Applies the pending reverse dep operations if this node is done, and then sets the bits of
+   * {@code held} for the ids that this node still holds of those set in {@code released}. Returns
+   * whether there were any. Used by {@link NodeIdTable#recycle}.
+   */
+  synchronized boolean applyRemovalsAndFindReleasedIds(BitSet released, BitSet held) {
+    consolidateReverseDeps();
+    Object reverseDeps = getReverseDepsRawForReverseDepsUtil();
+    return reverseDeps instanceof ReverseDepIdList
+        && ((ReverseDepIdList) reverseDeps).findIds(released, held);
+  }
+}
@@ -36,6 +36,13 @@ public class CompoundEvaluationProgressReceiverBase implements EvaluationProgres
     }
   }
 
+  @Override
+  public void invalidationFinished(long dirtiedNodes, long elapsedTimeNanos) {
+    for (EvaluationProgressReceiver receiver : receivers) {
+      receiver.invalidationFinished(dirtiedNodes, elapsedTimeNanos);
+    }
+  }
+
   @Override
   public void enqueueing(SkyKey skyKey) {
     for (EvaluationProgressReceiver receiver : receivers) {
@@ -57,6 +64,27 @@ public class CompoundEvaluationProgressReceiverBase implements EvaluationProgres
     }
   }
 
+  @Override
+  public void restarting(SkyKey skyKey, int newlyRequestedDeps, long elapsedTimeNanos) {
+    for (EvaluationProgressReceiver receiver : receivers) {
+      receiver.restarting(skyKey, newlyRequestedDeps, elapsedTimeNanos);
+    }
+  }
+
+  @Override
+  public void nodeRestarted(SkyKey skyKey, long elapsedTimeNanos) {
+    for (EvaluationProgressReceiver receiver : receivers) {
+      receiver.nodeRestarted(skyKey, elapsedTimeNanos);
+    }
+  }
+
+  @Override
+  public void computeStateReused(SkyKey skyKey) {
+    for (EvaluationProgressReceiver receiver : receivers) {
+      receiver.computeStateReused(skyKey);
+    }
+  }
+
   @Override
   public void evaluated(
       SkyKey skyKey,
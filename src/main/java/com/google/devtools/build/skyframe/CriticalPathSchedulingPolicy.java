@@ -0,0 +1,75 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SchedulingPolicy} that evaluates the nodes on the critical path first, as far as it is
+ * known from earlier evaluations.
+ *
+ * <p>The critical path of a node is the longest chain of {@link SkyFunction} calls that its
+ * evaluation waited for: the time of its own last call plus the longest critical path of its
+ * direct deps. A node whose critical path was long in the previous build is likely to hold up its
+ * parents again, e.g. because it depends on a long chain of actions, so it gets a higher priority
+ * than siblings that were quick.
+ *
+ * <p>The critical paths are kept for the life of this object, which should thus outlive single
+ * evaluations. To bound memory, only critical paths of at least {@link #MIN_RECORDED_NANOS} are
+ * kept, and only for nodes that are still in the graph: the owner must call {@link #forget} when a
+ * node is deleted and {@link #clear} when the graph is dropped. Nodes without a known critical
+ * path get priority 0.
+ */
+public final class CriticalPathSchedulingPolicy implements SchedulingPolicy {
+
+  static final long MIN_RECORDED_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final ConcurrentHashMap<SkyKey, Long> criticalPathNanos = new ConcurrentHashMap<>();
+
+  @Override
+  public long priority(SkyKey key) {
+    return criticalPathNanos.getOrDefault(key, 0L);
+  }
+
+  @Override
+  public void evaluated(SkyKey key, long computeNanos, GroupedList<SkyKey> directDeps) {
+    long longestDep = 0;
+    for (SkyKey dep : directDeps.getAllElementsAsIterable()) {
+      longestDep = Math.max(longestDep, priority(dep));
+    }
+    long criticalPath = computeNanos + longestDep;
+    if (criticalPath >= MIN_RECORDED_NANOS) {
+      criticalPathNanos.put(key, criticalPath);
+    } else {
+      criticalPathNanos.remove(key);
+    }
+  }
+
+  /** Forgets the critical path of {@code key}, which was deleted from the graph. */
+  public void forget(SkyKey key) {
+    criticalPathNanos.remove(key);
+  }
+
+  /** Forgets all critical paths, e.g. because the graph was dropped. */
+  public void clear() {
+    criticalPathNanos.clear();
+  }
+
+  /** Returns the number of nodes whose critical path is known. */
+  public int size() {
+    return criticalPathNanos.size();
+  }
+}
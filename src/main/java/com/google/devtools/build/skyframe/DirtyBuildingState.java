@@ -34,11 +34,23 @@ public abstract class DirtyBuildingState {
 
   static DirtyBuildingState create(
       DirtyType dirtyType, GroupedList<SkyKey> lastBuildDirectDeps, SkyValue lastBuildValue) {
-    return new FullDirtyBuildingState(dirtyType, lastBuildDirectDeps, lastBuildValue);
+    return new FullDirtyBuildingState(
+        dirtyType, lastBuildDirectDeps, lastBuildValue, /*allowNoDeps=*/ false);
   }
 
   static DirtyBuildingState createNew() {
-    return new FullDirtyBuildingState(DirtyType.CHANGE, null, null);
+    return new FullDirtyBuildingState(DirtyType.CHANGE, null, null, /*allowNoDeps=*/ false);
+  }
+
+  /**
+   * Creates the state of a node that was restored from a {@link GraphSnapshot} and has to be
+   * checked before it's used. Unlike {@link #create}, the node may have no deps, in which case
+   * there is nothing to check and it's verified clean as soon as its evaluation starts.
+   */
+  static DirtyBuildingState createRestored(
+      GroupedList<SkyKey> lastBuildDirectDeps, SkyValue lastBuildValue) {
+    return new FullDirtyBuildingState(
+        DirtyType.DIRTY, lastBuildDirectDeps, lastBuildValue, /*allowNoDeps=*/ true);
   }
 
   /**
@@ -306,6 +318,10 @@ public abstract class DirtyBuildingState {
   void startEvaluating() {
     Preconditions.checkState(!isEvaluating(), this);
     signaledDeps = 0;
+    if (dirtyState == DirtyState.CHECK_DEPENDENCIES && getNumOfGroupsInLastBuildDirectDeps() == 0) {
+      // Only restored nodes can be dirty without deps, see createRestored.
+      dirtyState = DirtyState.VERIFIED_CLEAN;
+    }
   }
 
   public int getLastDirtyDirectDepIndex() {
@@ -344,11 +360,16 @@ public abstract class DirtyBuildingState {
     private final SkyValue lastBuildValue;
 
     private FullDirtyBuildingState(
-        DirtyType dirtyType, GroupedList<SkyKey> lastBuildDirectDeps, SkyValue lastBuildValue) {
+        DirtyType dirtyType,
+        GroupedList<SkyKey> lastBuildDirectDeps,
+        SkyValue lastBuildValue,
+        boolean allowNoDeps) {
       super(dirtyType);
       this.lastBuildDirectDeps = lastBuildDirectDeps;
       Preconditions.checkState(
-          !dirtyType.equals(DirtyType.DIRTY) || getNumOfGroupsInLastBuildDirectDeps() > 0,
+          !dirtyType.equals(DirtyType.DIRTY)
+              || allowNoDeps
+              || getNumOfGroupsInLastBuildDirectDeps() > 0,
           "%s is being marked dirty but has no children that could have dirtied it",
           this);
       this.lastBuildValue = lastBuildValue;
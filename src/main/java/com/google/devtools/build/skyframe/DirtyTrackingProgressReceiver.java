@@ -59,6 +59,13 @@ public class DirtyTrackingProgressReceiver implements EvaluationProgressReceiver
     }
   }
 
+  @Override
+  public void invalidationFinished(long dirtiedNodes, long elapsedTimeNanos) {
+    if (progressReceiver != null) {
+      progressReceiver.invalidationFinished(dirtiedNodes, elapsedTimeNanos);
+    }
+  }
+
   @Override
   public void enqueueing(SkyKey skyKey) {
     enqueueing(skyKey, false);
@@ -105,6 +112,27 @@ public class DirtyTrackingProgressReceiver implements EvaluationProgressReceiver
     }
   }
 
+  @Override
+  public void restarting(SkyKey skyKey, int newlyRequestedDeps, long elapsedTimeNanos) {
+    if (progressReceiver != null) {
+      progressReceiver.restarting(skyKey, newlyRequestedDeps, elapsedTimeNanos);
+    }
+  }
+
+  @Override
+  public void nodeRestarted(SkyKey skyKey, long elapsedTimeNanos) {
+    if (progressReceiver != null) {
+      progressReceiver.nodeRestarted(skyKey, elapsedTimeNanos);
+    }
+  }
+
+  @Override
+  public void computeStateReused(SkyKey skyKey) {
+    if (progressReceiver != null) {
+      progressReceiver.computeStateReused(skyKey);
+    }
+  }
+
   @Override
   public void evaluated(
       SkyKey skyKey,
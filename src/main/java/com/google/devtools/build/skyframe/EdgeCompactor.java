@@ -0,0 +1,89 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Frees edges of done nodes in an {@link InMemoryGraph} that don't change by themselves, such as
+ * the nodes of files in external repositories that are only modified by fetching the repository.
+ *
+ * <p>Such nodes keep their value, versions and reverse deps, so that their parents can still be
+ * invalidated through them and change-pruned against their value. Of their direct deps, they only
+ * keep those through which they are invalidated, such as the dep of a file on its repository, and
+ * the others are dropped together with their entries in the reverse deps of those deps. When a
+ * compacted node is marked dirty through a kept dep, only the kept deps are checked, and if one of
+ * them changed, the node is rebuilt and records all its deps again.
+ *
+ * <p>Compaction only looks at done nodes and may thus run concurrently with an evaluation, but not
+ * with an invalidation, which would miss the dropped edges.
+ */
+final class EdgeCompactor {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private EdgeCompactor() {}
+
+  /**
+   * Drops the edges below the done nodes of {@code graph} for which {@code immutable} holds to
+   * their deps for which {@code keptDep} doesn't hold. A node may only be immutable if its
+   * transitive deps can only change together with one of its kept deps. Returns the number of
+   * dropped edges.
+   */
+  static long compact(
+      InMemoryGraph graph, Predicate<SkyKey> immutable, Predicate<SkyKey> keptDep) {
+    Stopwatch timer = Stopwatch.createStarted();
+    long compactedNodes = 0;
+    long droppedEdges = 0;
+    Map<SkyKey, ? extends NodeEntry> nodes = graph.getAllValuesMutable();
+    for (Map.Entry<SkyKey, ? extends NodeEntry> node : nodes.entrySet()) {
+      SkyKey key = node.getKey();
+      if (!(node.getValue() instanceof InMemoryNodeEntry) || !immutable.test(key)) {
+        continue;
+      }
+      InMemoryNodeEntry entry = (InMemoryNodeEntry) node.getValue();
+      int dropped = 0;
+      // Lock order is always parent before child; evaluations never hold two entry locks.
+      synchronized (entry) {
+        for (SkyKey dep : entry.dropDirectDepsForCompaction(keptDep)) {
+          NodeEntry depEntry = graph.get(key, Reason.OTHER, dep);
+          if (depEntry != null) {
+            try {
+              depEntry.removeReverseDep(key);
+            } catch (InterruptedException e) {
+              throw new IllegalStateException("InMemoryGraph doesn't throw interrupts", e);
+            }
+          }
+          dropped++;
+        }
+      }
+      if (dropped > 0) {
+        compactedNodes++;
+        droppedEdges += dropped;
+      }
+    }
+    // Applies the reverse dep removals above, and any other pending ones.
+    for (NodeEntry entry : nodes.values()) {
+      if (entry instanceof InMemoryNodeEntry) {
+        ((InMemoryNodeEntry) entry).consolidateReverseDeps();
+      }
+    }
+    logger.atInfo().log(
+        "Dropped %d edges of %d immutable nodes in %s", droppedEdges, compactedNodes, timer);
+    return droppedEdges;
+  }
+}
@@ -0,0 +1,48 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+/**
+ * Decides when an evaluation that was picked from the queue may start running its {@link
+ * SkyFunction}, e.g. to bound the number of in-flight evaluations when memory is tight.
+ *
+ * <p>Every {@link #admit} is followed by exactly one {@link #done} on the same thread once the
+ * evaluation has finished or given up. Implementations must not block evaluations forever: an
+ * evaluation that is never admitted hangs the build.
+ */
+public interface EvaluationAdmissionController {
+
+  /** Admits every evaluation right away. */
+  EvaluationAdmissionController UNLIMITED =
+      new EvaluationAdmissionController() {
+        @Override
+        public void admit(SkyKey key, boolean partiallyEvaluated) {}
+
+        @Override
+        public void done() {}
+      };
+
+  /**
+   * Returns once {@code key} may be evaluated, possibly after waiting. {@code partiallyEvaluated}
+   * is true if the node already did part of its work, e.g. it was restarted after its deps were
+   * done: finishing such nodes releases the memory they hold, so they shouldn't be held back.
+   *
+   * <p>If interrupted while waiting, sets the thread's interrupt bit and returns, so that the
+   * evaluation notices the interrupt in the usual way.
+   */
+  void admit(SkyKey key, boolean partiallyEvaluated);
+
+  /** Called when an admitted evaluation finished. */
+  void done();
+}
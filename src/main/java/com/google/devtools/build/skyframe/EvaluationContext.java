@@ -33,6 +33,7 @@ public class EvaluationContext {
   private final ExtendedEventHandler eventHandler;
   private final boolean useForkJoinPool;
   private final boolean isExecutionPhase;
+  private final SchedulingPolicy schedulingPolicy;
 
   protected EvaluationContext(
       int numThreads,
@@ -41,6 +42,24 @@ public class EvaluationContext {
       ExtendedEventHandler eventHandler,
       boolean useForkJoinPool,
       boolean isExecutionPhase) {
+    this(
+        numThreads,
+        executorServiceSupplier,
+        keepGoing,
+        eventHandler,
+        useForkJoinPool,
+        isExecutionPhase,
+        SchedulingPolicy.DEPTH_FIRST);
+  }
+
+  protected EvaluationContext(
+      int numThreads,
+      @Nullable Supplier<ExecutorService> executorServiceSupplier,
+      boolean keepGoing,
+      ExtendedEventHandler eventHandler,
+      boolean useForkJoinPool,
+      boolean isExecutionPhase,
+      SchedulingPolicy schedulingPolicy) {
     Preconditions.checkArgument(0 < numThreads, "numThreads must be positive");
     this.numThreads = numThreads;
     this.executorServiceSupplier = executorServiceSupplier;
@@ -48,6 +67,7 @@ public class EvaluationContext {
     this.eventHandler = Preconditions.checkNotNull(eventHandler);
     this.useForkJoinPool = useForkJoinPool;
     this.isExecutionPhase = isExecutionPhase;
+    this.schedulingPolicy = Preconditions.checkNotNull(schedulingPolicy);
   }
 
   public int getParallelism() {
@@ -76,7 +96,8 @@ public class EvaluationContext {
           keepGoing,
           this.eventHandler,
           this.useForkJoinPool,
-          this.isExecutionPhase);
+          this.isExecutionPhase,
+          this.schedulingPolicy);
     }
   }
 
@@ -88,6 +109,10 @@ public class EvaluationContext {
     return isExecutionPhase;
   }
 
+  public SchedulingPolicy getSchedulingPolicy() {
+    return schedulingPolicy;
+  }
+
   public static Builder newBuilder() {
     return new Builder();
   }
@@ -100,6 +125,7 @@ public class EvaluationContext {
     private ExtendedEventHandler eventHandler;
     private boolean useForkJoinPool;
     private boolean isExecutionPhase = false;
+    private SchedulingPolicy schedulingPolicy = SchedulingPolicy.DEPTH_FIRST;
 
     private Builder() {}
 
@@ -108,6 +134,7 @@ public class EvaluationContext {
       this.executorServiceSupplier = evaluationContext.executorServiceSupplier;
       this.keepGoing = evaluationContext.keepGoing;
       this.eventHandler = evaluationContext.eventHandler;
+      this.schedulingPolicy = evaluationContext.schedulingPolicy;
       return this;
     }
 
@@ -141,6 +168,11 @@ public class EvaluationContext {
       return this;
     }
 
+    public Builder setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+      this.schedulingPolicy = schedulingPolicy;
+      return this;
+    }
+
     public EvaluationContext build() {
       return new EvaluationContext(
           numThreads,
@@ -148,7 +180,8 @@ public class EvaluationContext {
           keepGoing,
           eventHandler,
           useForkJoinPool,
-          isExecutionPhase);
+          isExecutionPhase,
+          schedulingPolicy);
     }
   }
 }
@@ -86,6 +86,13 @@ public interface EvaluationProgressReceiver {
    */
   void invalidated(SkyKey skyKey, InvalidationState state);
 
+  /**
+   * Notifies that an invalidation that dirtied the nodes of a large diff in batches finished, or
+   * was interrupted. {@code dirtiedNodes} is the number of nodes it marked dirty, and {@code
+   * elapsedTimeNanos} the time it took.
+   */
+  default void invalidationFinished(long dirtiedNodes, long elapsedTimeNanos) {}
+
   /**
    * Notifies that {@code skyKey} is about to get queued for evaluation.
    *
@@ -116,6 +123,30 @@ public interface EvaluationProgressReceiver {
    */
   void stateEnding(SkyKey skyKey, NodeState nodeState, long elapsedTimeNanos);
 
+  /**
+   * Notifies that {@link SkyFunction#compute} for {@code skyKey} returned without a value because
+   * deps it requested weren't done, or asked to be restarted, so that it will be called again.
+   *
+   * <p>{@code newlyRequestedDeps} is the number of deps that the call requested for the first time.
+   * {@code elapsedTimeNanos} is the time the call took, which is mostly wasted, since the next call
+   * repeats its work unless the function stashed it in a {@link SkyFunction.SkyKeyComputeState}.
+   */
+  default void restarting(SkyKey skyKey, int newlyRequestedDeps, long elapsedTimeNanos) {}
+
+  /**
+   * Notifies that {@link SkyFunction#compute} for {@code skyKey} returned a {@link
+   * SkyFunction.Restart}, so that the node is reset and evaluated from scratch, e.g. to rewind lost
+   * inputs. {@code elapsedTimeNanos} is the time the call took.
+   */
+  default void nodeRestarted(SkyKey skyKey, long elapsedTimeNanos) {}
+
+  /**
+   * Notifies that a {@link SkyFunction#compute} call for {@code skyKey} got the {@link
+   * SkyFunction.SkyKeyComputeState} that a previous, restarted call left behind. Called at most
+   * once per call.
+   */
+  default void computeStateReused(SkyKey skyKey) {}
+
   /**
    * Notifies that the node for {@code skyKey} has been evaluated.
    *
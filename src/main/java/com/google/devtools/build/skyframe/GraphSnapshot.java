@@ -0,0 +1,407 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.skyframe.serialization.NotSerializableRuntimeException;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.ThinNodeEntry.DirtyType;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * The evaluated nodes of an {@link InMemoryGraph}, written to a stream so that they outlive the
+ * server, and read back lazily by a {@link PersistentInMemoryGraph}.
+ *
+ * <p>A node is written with its value and deps as of its last evaluation, if its key and value can
+ * be serialized with the given {@link ObjectCodecs}, its value carries no events or errors, and all
+ * of its direct deps are written with the values it was computed from. Its reverse deps are
+ * restricted to the written nodes, so the written nodes form a consistent graph. This includes
+ * dirty nodes whose deps haven't changed since, in particular nodes that were read from an earlier
+ * snapshot but not used yet, so that they are carried over to the next snapshot.
+ *
+ * <p>Nodes that are read back are not trusted: each is loaded as a dirty node at a version that is
+ * older than any evaluation, so that it is checked before it's used. Nodes of non-hermetic
+ * functions, which typically read state outside of Skyframe, and nodes whose value can no longer
+ * be deserialized, are loaded as changed and will be re-evaluated. Hermetic nodes are only
+ * re-evaluated if one of their deps changed; those without deps are verified clean when they are
+ * first requested.
+ */
+public final class GraphSnapshot {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x534b5946; // "SKYF"
+  private static final int FORMAT_VERSION = 1;
+
+  /** A node as read from the stream. Its deps and reverse deps are indices into {@link #keys}. */
+  private static final class Node {
+    private final ByteString value;
+    private final int[][] depGroups;
+    private final int[] reverseDeps;
+
+    Node(ByteString value, int[][] depGroups, int[] reverseDeps) {
+      this.value = value;
+      this.depGroups = depGroups;
+      this.reverseDeps = reverseDeps;
+    }
+  }
+
+  /** A node to be written, with its value and deps as of its last evaluation. */
+  private static final class NodeToWrite {
+    private final ByteString key;
+    private final ByteString value;
+    private final GroupedList<SkyKey> deps;
+    private final Version lastChangedVersion;
+    private final Version lastEvaluatedVersion;
+
+    NodeToWrite(
+        ByteString key,
+        ByteString value,
+        GroupedList<SkyKey> deps,
+        Version lastChangedVersion,
+        Version lastEvaluatedVersion) {
+      this.key = key;
+      this.value = value;
+      this.deps = deps;
+      this.lastChangedVersion = lastChangedVersion;
+      this.lastEvaluatedVersion = lastEvaluatedVersion;
+    }
+  }
+
+  /** Stands in for a value that can't be deserialized anymore. Never equal to a new value. */
+  private static final class UnloadableValue implements NotComparableSkyValue {
+    private static final UnloadableValue INSTANCE = new UnloadableValue();
+
+    @Override
+    public String toString() {
+      return "UnloadableValue";
+    }
+  }
+
+  private final ObjectCodecs codecs;
+  private final String compatibilityKey;
+  private final SkyKey[] keys;
+  // Nodes are removed once they are loaded or deleted from the graph.
+  private final ConcurrentHashMap<SkyKey, Node> nodes;
+
+  private GraphSnapshot(
+      ObjectCodecs codecs,
+      String compatibilityKey,
+      SkyKey[] keys,
+      ConcurrentHashMap<SkyKey, Node> nodes) {
+    this.codecs = codecs;
+    this.compatibilityKey = compatibilityKey;
+    this.keys = keys;
+    this.nodes = nodes;
+  }
+
+  /**
+   * Writes the nodes of {@code graph} to {@code out}. If the graph was read from a snapshot, the
+   * nodes that haven't been loaded yet are written too. Must not be called while the graph is being
+   * evaluated or invalidated.
+   *
+   * @param compatibilityKey identifies everything that the serialized form of keys and values
+   *     depends on, e.g. the version of the binary. A snapshot is only read back with the same key.
+   * @return the number of nodes written
+   */
+  public static int write(
+      InMemoryGraph graph, ObjectCodecs codecs, String compatibilityKey, OutputStream out)
+      throws IOException, InterruptedException {
+    Map<SkyKey, NodeToWrite> nodes = new LinkedHashMap<>();
+    Map<SkyKey, ? extends NodeEntry> entries =
+        graph instanceof PersistentInMemoryGraph
+            ? ((PersistentInMemoryGraph) graph).getLoadedNodes()
+            : graph.getAllValues();
+    for (Map.Entry<SkyKey, ? extends NodeEntry> e : entries.entrySet()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (e.getValue() instanceof InMemoryNodeEntry) {
+        NodeToWrite node = toWrite(e.getKey(), (InMemoryNodeEntry) e.getValue(), codecs);
+        if (node != null) {
+          nodes.put(e.getKey(), node);
+        }
+      }
+    }
+    if (graph instanceof PersistentInMemoryGraph) {
+      ((PersistentInMemoryGraph) graph)
+          .getSnapshot()
+          .addUnloadedNodes(nodes, codecs, compatibilityKey);
+    }
+    Map<SkyKey, List<SkyKey>> reverseDeps = removeInconsistentNodes(nodes);
+
+    Map<SkyKey, Integer> indices = new HashMap<>();
+    for (SkyKey key : nodes.keySet()) {
+      indices.put(key, indices.size());
+    }
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+    codedOut.writeInt32NoTag(MAGIC);
+    codedOut.writeInt32NoTag(FORMAT_VERSION);
+    codedOut.writeStringNoTag(compatibilityKey);
+    codedOut.writeUInt32NoTag(indices.size());
+    for (NodeToWrite node : nodes.values()) {
+      codedOut.writeBytesNoTag(node.key);
+    }
+    for (Map.Entry<SkyKey, NodeToWrite> e : nodes.entrySet()) {
+      NodeToWrite node = e.getValue();
+      codedOut.writeBytesNoTag(node.value);
+      codedOut.writeUInt32NoTag(node.deps.listSize());
+      for (List<SkyKey> group : node.deps) {
+        codedOut.writeUInt32NoTag(group.size());
+        for (SkyKey dep : group) {
+          codedOut.writeUInt32NoTag(indices.get(dep));
+        }
+      }
+      List<SkyKey> nodeReverseDeps = reverseDeps.getOrDefault(e.getKey(), ImmutableList.of());
+      codedOut.writeUInt32NoTag(nodeReverseDeps.size());
+      for (SkyKey reverseDep : nodeReverseDeps) {
+        codedOut.writeUInt32NoTag(indices.get(reverseDep));
+      }
+    }
+    codedOut.flush();
+    return indices.size();
+  }
+
+  /**
+   * Returns the node to write for {@code entry}, or null if it has no value from a finished
+   * evaluation or can't be serialized.
+   */
+  @Nullable
+  private static NodeToWrite toWrite(SkyKey key, InMemoryNodeEntry entry, ObjectCodecs codecs)
+      throws InterruptedException {
+    if (key.equals(ErrorTransienceValue.KEY)) {
+      // Changes in every evaluation.
+      return null;
+    }
+    SkyValue value = entry.getLastBuildValueMaybeWithMetadata();
+    if (value == null || value instanceof ValueWithMetadata) {
+      return null;
+    }
+    if (entry.isChanged()
+        && key.functionName().getHermeticity() != FunctionHermeticity.NONHERMETIC) {
+      // The value is known to be outdated, but a hermetic node isn't re-evaluated when it's loaded.
+      return null;
+    }
+    try {
+      return new NodeToWrite(
+          codecs.serialize(key),
+          codecs.serializeMemoized(value),
+          entry.getLastBuildDirectDeps(),
+          entry.getVersion(),
+          entry.getLastEvaluatedVersion());
+    } catch (SerializationException | RuntimeException e) {
+      // Codecs that need a dependency that isn't available fail with arbitrary runtime exceptions.
+      logger.atFine().withCause(e).log("Not writing %s to the graph snapshot", key);
+      return null;
+    }
+  }
+
+  /**
+   * Adds the nodes that haven't been loaded from this snapshot to {@code nodesToWrite}, unless they
+   * are there already. They are only carried over to a snapshot with the same {@code
+   * compatibilityKey}, since their values are copied as they are.
+   */
+  private void addUnloadedNodes(
+      Map<SkyKey, NodeToWrite> nodesToWrite, ObjectCodecs codecs, String compatibilityKey) {
+    if (!this.compatibilityKey.equals(compatibilityKey)) {
+      return;
+    }
+    for (Map.Entry<SkyKey, Node> e : nodes.entrySet()) {
+      SkyKey key = e.getKey();
+      if (nodesToWrite.containsKey(key)) {
+        continue;
+      }
+      Node node = e.getValue();
+      try {
+        nodesToWrite.put(
+            key,
+            new NodeToWrite(
+                codecs.serialize(key),
+                node.value,
+                getDeps(node),
+                MinimalVersion.INSTANCE,
+                MinimalVersion.INSTANCE));
+      } catch (SerializationException | RuntimeException ex) {
+        logger.atFine().withCause(ex).log("Not writing %s to the graph snapshot", key);
+      }
+    }
+  }
+
+  /**
+   * Removes the nodes that have a direct dep that isn't in {@code nodes}, or that changed since the
+   * node was last evaluated, from it, and transitively their reverse deps. Returns the reverse deps
+   * of the remaining nodes.
+   */
+  private static Map<SkyKey, List<SkyKey>> removeInconsistentNodes(Map<SkyKey, NodeToWrite> nodes) {
+    Map<SkyKey, List<SkyKey>> reverseDeps = new HashMap<>();
+    ArrayDeque<SkyKey> toRemove = new ArrayDeque<>();
+    for (Map.Entry<SkyKey, NodeToWrite> e : nodes.entrySet()) {
+      NodeToWrite node = e.getValue();
+      boolean consistent = true;
+      for (SkyKey dep : node.deps.getAllElementsAsIterable()) {
+        reverseDeps.computeIfAbsent(dep, k -> new ArrayList<>()).add(e.getKey());
+        NodeToWrite depNode = nodes.get(dep);
+        consistent &=
+            depNode != null && depNode.lastChangedVersion.atMost(node.lastEvaluatedVersion);
+      }
+      if (!consistent) {
+        toRemove.add(e.getKey());
+      }
+    }
+    while (!toRemove.isEmpty()) {
+      SkyKey key = toRemove.poll();
+      if (nodes.remove(key) != null) {
+        toRemove.addAll(reverseDeps.getOrDefault(key, ImmutableList.of()));
+      }
+    }
+    reverseDeps.keySet().retainAll(nodes.keySet());
+    for (List<SkyKey> nodeReverseDeps : reverseDeps.values()) {
+      nodeReverseDeps.retainAll(nodes.keySet());
+    }
+    return reverseDeps;
+  }
+
+  /**
+   * Reads a snapshot written by {@link #write}. Keys are deserialized right away, values only when
+   * their node is loaded.
+   *
+   * @return the snapshot, or {@code null} if it was written by an incompatible binary
+   * @throws IOException if the stream can't be read or is corrupted
+   */
+  @Nullable
+  public static GraphSnapshot read(ObjectCodecs codecs, String compatibilityKey, InputStream in)
+      throws IOException {
+    CodedInputStream codedIn = CodedInputStream.newInstance(in);
+    codedIn.setSizeLimit(Integer.MAX_VALUE);
+    if (codedIn.readInt32() != MAGIC) {
+      throw new IOException("Not a graph snapshot");
+    }
+    if (codedIn.readInt32() != FORMAT_VERSION
+        || !codedIn.readString().equals(compatibilityKey)) {
+      return null;
+    }
+    int size = codedIn.readUInt32();
+    SkyKey[] keys = new SkyKey[size];
+    try {
+      for (int i = 0; i < size; i++) {
+        keys[i] = (SkyKey) codecs.deserialize(codedIn.readBytes());
+      }
+    } catch (SerializationException | RuntimeException e) {
+      throw new IOException("Failed to deserialize a key of the graph snapshot", e);
+    }
+    ConcurrentHashMap<SkyKey, Node> nodes = new ConcurrentHashMap<>(size);
+    for (int i = 0; i < size; i++) {
+      ByteString value = codedIn.readBytes();
+      int[][] depGroups = new int[codedIn.readUInt32()][];
+      for (int g = 0; g < depGroups.length; g++) {
+        depGroups[g] = readIndices(codedIn, size);
+      }
+      nodes.put(keys[i], new Node(value, depGroups, readIndices(codedIn, size)));
+    }
+    return new GraphSnapshot(codecs, compatibilityKey, keys, nodes);
+  }
+
+  private static int[] readIndices(CodedInputStream codedIn, int size) throws IOException {
+    int[] indices = new int[codedIn.readUInt32()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = codedIn.readUInt32();
+      if (indices[i] < 0 || indices[i] >= size) {
+        throw new IOException("Corrupted graph snapshot, index out of bounds: " + indices[i]);
+      }
+    }
+    return indices;
+  }
+
+  /** Returns the number of nodes that have not been loaded or removed yet. */
+  public int size() {
+    return nodes.size();
+  }
+
+  boolean contains(SkyKey key) {
+    return nodes.containsKey(key);
+  }
+
+  /** Returns the keys of the nodes that have not been loaded or removed yet. */
+  Iterable<SkyKey> getUnloadedKeys() {
+    return nodes.keySet();
+  }
+
+  /** Forgets the node for {@code key}, e.g. because it's deleted from the graph. */
+  void remove(SkyKey key) {
+    nodes.remove(key);
+  }
+
+  /**
+   * Removes the node for {@code key} from this snapshot and returns it as a dirty node entry, or
+   * returns {@code null} if there is no such node. Each node is returned at most once.
+   */
+  @Nullable
+  InMemoryNodeEntry load(SkyKey key) {
+    Node node = nodes.remove(key);
+    if (node == null) {
+      return null;
+    }
+    SkyValue value;
+    try {
+      value = (SkyValue) codecs.deserializeMemoized(node.value);
+    } catch (SerializationException | RuntimeException e) {
+      logger.atWarning().withCause(e).log("Failed to load the value of %s", key);
+      value = UnloadableValue.INSTANCE;
+    }
+    GroupedList<SkyKey> deps = getDeps(node);
+    List<SkyKey> reverseDeps = new ArrayList<>(node.reverseDeps.length);
+    for (int index : node.reverseDeps) {
+      reverseDeps.add(keys[index]);
+    }
+    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    entry.restoreDone(value, deps, reverseDeps);
+    boolean trusted =
+        value != UnloadableValue.INSTANCE
+            && key.functionName().getHermeticity() != FunctionHermeticity.NONHERMETIC;
+    if (trusted) {
+      entry.markRestoredDirty();
+    } else {
+      entry.markDirty(DirtyType.CHANGE);
+    }
+    return entry;
+  }
+
+  private GroupedList<SkyKey> getDeps(Node node) {
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    for (int[] group : node.depGroups) {
+      List<SkyKey> depGroup = new ArrayList<>(group.length);
+      for (int index : group) {
+        depGroup.add(keys[index]);
+      }
+      deps.appendGroup(depGroup);
+    }
+    return deps;
+  }
+}
@@ -46,4 +46,10 @@ public interface InMemoryGraph extends ProcessableGraph {
   Map<SkyKey, ? extends NodeEntry> getAllValues();
 
   Map<SkyKey, ? extends NodeEntry> getAllValuesMutable();
+
+  /**
+   * Called after nodes were deleted from the graph, before it's used by the next evaluation or
+   * invalidation.
+   */
+  default void deletionFinished() {}
 }
@@ -14,6 +14,7 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
@@ -35,8 +36,12 @@ import javax.annotation.Nullable;
  */
 public class InMemoryGraphImpl implements InMemoryGraph {
 
-  protected final ConcurrentMap<SkyKey, NodeEntry> nodeMap = new ConcurrentHashMap<>(1024);
+  private static final int NODE_MAP_CONCURRENCY_LEVEL =
+      Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+  protected final ConcurrentMap<SkyKey, NodeEntry> nodeMap;
   private final boolean keepEdges;
+  @Nullable private final NodeIdTable nodeIds;
 
   @VisibleForTesting
   public InMemoryGraphImpl() {
@@ -44,12 +49,50 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   public InMemoryGraphImpl(boolean keepEdges) {
+    this(keepEdges, /*openAddressingNodeMap=*/ false);
+  }
+
+  /**
+   * If {@code openAddressingNodeMap} is true, nodes are kept in an {@link OpenAddressingNodeMap}
+   * instead of a {@link ConcurrentHashMap}, which needs less than half the memory per node and
+   * grows one segment at a time.
+   */
+  public InMemoryGraphImpl(boolean keepEdges, boolean openAddressingNodeMap) {
+    this(keepEdges, openAddressingNodeMap, /*compactReverseDeps=*/ false);
+  }
+
+  /**
+   * If {@code compactReverseDeps} is true, nodes are assigned int ids and store their reverse deps
+   * as ids, see {@link CompactReverseDepsNodeEntry}. This trades a few bytes per node, for its
+   * id and its slot in the id table, for 4 bytes less per edge without compressed oops and less
+   * work for the garbage collector, and pays off on large graphs. {@link #deletionFinished} must
+   * be called after nodes were deleted, so that their ids can be reused.
+   */
+  public InMemoryGraphImpl(
+      boolean keepEdges, boolean openAddressingNodeMap, boolean compactReverseDeps) {
+    Preconditions.checkArgument(
+        keepEdges || !compactReverseDeps, "Compact reverse deps require keeping edges");
     this.keepEdges = keepEdges;
+    this.nodeMap =
+        openAddressingNodeMap
+            ? new OpenAddressingNodeMap(NODE_MAP_CONCURRENCY_LEVEL, 1024)
+            : new ConcurrentHashMap<>(1024);
+    this.nodeIds = compactReverseDeps ? new NodeIdTable(nodeMap) : null;
   }
 
   @Override
   public void remove(SkyKey skyKey) {
-    nodeMap.remove(skyKey);
+    NodeEntry entry = nodeMap.remove(skyKey);
+    if (entry instanceof CompactReverseDepsNodeEntry) {
+      nodeIds.release(((CompactReverseDepsNodeEntry) entry).getId());
+    }
+  }
+
+  @Override
+  public void deletionFinished() {
+    if (nodeIds != null) {
+      nodeIds.recycle();
+    }
   }
 
   @Override
@@ -73,6 +116,9 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   protected NodeEntry newNodeEntry(SkyKey key) {
+    if (nodeIds != null) {
+      return new CompactReverseDepsNodeEntry(nodeIds.assign(key), nodeIds);
+    }
     return keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
   }
 
@@ -150,4 +196,10 @@ public class InMemoryGraphImpl implements InMemoryGraph {
     return keepEdges;
   }
 
+  @VisibleForTesting
+  @Nullable
+  NodeIdTable getNodeIdsForTesting() {
+    return nodeIds;
+  }
+
 }
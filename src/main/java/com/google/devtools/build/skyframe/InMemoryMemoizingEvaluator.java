@@ -24,11 +24,14 @@ import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.SilentCloseable;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
 import com.google.devtools.build.skyframe.Differencer.Diff;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -50,6 +53,9 @@ import javax.annotation.Nullable;
  */
 public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
+  // Diffs at least this large, e.g. after switching branches, are invalidated in batches.
+  private static final int BATCHED_INVALIDATION_THRESHOLD = 1000;
+
   private final ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions;
   private final DirtyTrackingProgressReceiver progressReceiver;
   // Not final only for testing.
@@ -68,6 +74,7 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
   // Keep edges in graph. Can be false to save memory, in which case incremental builds are
   // not possible.
   private final boolean keepEdges;
+  private final boolean openAddressingNodeMap;
 
   // Values that the caller explicitly specified are assumed to be changed -- they will be
   // re-evaluated even if none of their children are changed.
@@ -77,6 +84,12 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  private volatile EvaluationAdmissionController admissionController =
+      EvaluationAdmissionController.UNLIMITED;
+
+  // Held while invalidating or compacting, which can't run at the same time.
+  private final Object compactionLock = new Object();
+
   public InMemoryMemoizingEvaluator(
       Map<SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -104,14 +117,58 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       EventFilter eventFilter,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        progressReceiver,
+        graphInconsistencyReceiver,
+        eventFilter,
+        emittedEventState,
+        keepEdges,
+        /*openAddressingNodeMap=*/ false);
+  }
+
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      GraphInconsistencyReceiver graphInconsistencyReceiver,
+      EventFilter eventFilter,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      boolean openAddressingNodeMap) {
+    this(
+        skyFunctions,
+        differencer,
+        progressReceiver,
+        graphInconsistencyReceiver,
+        eventFilter,
+        emittedEventState,
+        keepEdges,
+        openAddressingNodeMap,
+        /*compactReverseDeps=*/ false);
+  }
+
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      GraphInconsistencyReceiver graphInconsistencyReceiver,
+      EventFilter eventFilter,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      boolean openAddressingNodeMap,
+      boolean compactReverseDeps) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
     this.graphInconsistencyReceiver = Preconditions.checkNotNull(graphInconsistencyReceiver);
     this.eventFilter = eventFilter;
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph =
+        new InMemoryGraphImpl(keepEdges, openAddressingNodeMap, compactReverseDeps && keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
+    this.openAddressingNodeMap = openAddressingNodeMap;
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -197,7 +254,9 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
                             AbstractQueueVisitor.createExecutorService(
                                 evaluationContext.getParallelism(), "skyframe-evaluator")),
                 new SimpleCycleDetector(),
-                EvaluationVersionBehavior.GRAPH_VERSION);
+                EvaluationVersionBehavior.GRAPH_VERSION,
+                evaluationContext.getSchedulingPolicy(),
+                admissionController);
         result = evaluator.eval(roots);
       }
       return EvaluationResult.<T>builder()
@@ -269,13 +328,21 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
   }
 
   private void performInvalidation() throws InterruptedException {
-    EagerInvalidator.delete(graph, valuesToDelete, progressReceiver, deleterState, keepEdges);
-    // Note that clearing the valuesToDelete would not do an internal resizing. Therefore, if any
-    // build has a large set of dirty values, subsequent operations (even clearing) will be slower.
-    // Instead, just start afresh with a new LinkedHashSet.
-    valuesToDelete = new LinkedHashSet<>();
-
-    EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState);
+    synchronized (compactionLock) {
+      EagerInvalidator.delete(graph, valuesToDelete, progressReceiver, deleterState, keepEdges);
+      graph.deletionFinished();
+      // Note that clearing the valuesToDelete would not do an internal resizing. Therefore, if any
+      // build has a large set of dirty values, subsequent operations (even clearing) will be
+      // slower. Instead, just start afresh with a new LinkedHashSet.
+      valuesToDelete = new LinkedHashSet<>();
+
+      if (valuesToDirty.size() >= BATCHED_INVALIDATION_THRESHOLD) {
+        EagerInvalidator.invalidateInBatches(
+            graph, valuesToDirty, progressReceiver, invalidatorState);
+      } else {
+        EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState);
+      }
+    }
     // Ditto.
     valuesToDirty = new LinkedHashSet<>();
   }
@@ -331,6 +398,21 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return graph.get(null, Reason.OTHER, key);
   }
 
+  @Override
+  public long compactEdges(Predicate<SkyKey> immutable, Predicate<SkyKey> keptDep) {
+    if (!keepEdges) {
+      return 0;
+    }
+    synchronized (compactionLock) {
+      return EdgeCompactor.compact(graph, immutable, keptDep);
+    }
+  }
+
+  @Override
+  public void setAdmissionController(EvaluationAdmissionController admissionController) {
+    this.admissionController = Preconditions.checkNotNull(admissionController);
+  }
+
   @Override
   public void injectGraphTransformerForTesting(GraphTransformerForTesting transformer) {
     this.graph = transformer.transform(this.graph);
@@ -340,6 +422,42 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return graph;
   }
 
+  /**
+   * Makes the nodes of {@code snapshot} available to future evaluations. Must be called before the
+   * first evaluation, on an evaluator that keeps edges.
+   *
+   * <p>The nodes are loaded lazily as dirty nodes, and are thus checked before they are reused.
+   * The new graph stores reverse deps as keys even if this evaluator was created with compact
+   * reverse deps.
+   */
+  public void loadSnapshot(GraphSnapshot snapshot) {
+    Preconditions.checkState(keepEdges, "Snapshots require edges");
+    Preconditions.checkState(
+        canLoadSnapshot(), "Snapshots can only be loaded into an empty graph");
+    this.graph = new PersistentInMemoryGraph(snapshot, openAddressingNodeMap);
+  }
+
+  /** Returns whether {@link #loadSnapshot} may be called. */
+  public boolean canLoadSnapshot() {
+    return keepEdges && lastGraphVersion == null && graph.getAllValues().isEmpty();
+  }
+
+  /**
+   * Writes the evaluated nodes of the graph to {@code out}, see {@link GraphSnapshot#write}. Must
+   * not be called during an evaluation.
+   *
+   * @return the number of nodes written
+   */
+  public int writeSnapshot(ObjectCodecs codecs, String compatibilityKey, OutputStream out)
+      throws IOException, InterruptedException {
+    setAndCheckEvaluateState(true, "writeSnapshot");
+    try {
+      return GraphSnapshot.write(graph, codecs, compatibilityKey, out);
+    } finally {
+      setAndCheckEvaluateState(false, "writeSnapshot");
+    }
+  }
+
   @Override
   public void dump(boolean summarize, PrintStream out) {
     if (summarize) {
@@ -408,4 +526,38 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       };
 
   public static final EvaluatorSupplier SUPPLIER = InMemoryMemoizingEvaluator::new;
+
+  /**
+   * Returns an {@link EvaluatorSupplier} for evaluators whose graph is configured as by {@link
+   * InMemoryGraphImpl#InMemoryGraphImpl(boolean, boolean)}.
+   */
+  public static EvaluatorSupplier supplier(boolean openAddressingNodeMap) {
+    return supplier(openAddressingNodeMap, /*compactReverseDeps=*/ false);
+  }
+
+  /**
+   * Returns an {@link EvaluatorSupplier} for evaluators whose graph is configured as by {@link
+   * InMemoryGraphImpl#InMemoryGraphImpl(boolean, boolean, boolean)}. Compact reverse deps are only
+   * used if edges are kept.
+   */
+  public static EvaluatorSupplier supplier(
+      boolean openAddressingNodeMap, boolean compactReverseDeps) {
+    return (skyFunctions,
+        differencer,
+        progressReceiver,
+        graphInconsistencyReceiver,
+        eventFilter,
+        emittedEventState,
+        keepEdges) ->
+        new InMemoryMemoizingEvaluator(
+            skyFunctions,
+            differencer,
+            progressReceiver,
+            graphInconsistencyReceiver,
+            eventFilter,
+            emittedEventState,
+            keepEdges,
+            openAddressingNodeMap,
+            compactReverseDeps);
+  }
 }
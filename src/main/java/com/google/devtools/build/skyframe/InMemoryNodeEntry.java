@@ -23,8 +23,10 @@ import com.google.devtools.build.skyframe.KeyToConsolidate.Op;
 import com.google.devtools.build.skyframe.KeyToConsolidate.OpToStoreBare;
 import com.google.errorprone.annotations.ForOverride;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 import javax.annotation.Nullable;
 
 /**
@@ -379,6 +381,15 @@ public class InMemoryNodeEntry implements NodeEntry {
     this.reverseDeps = reverseDeps;
   }
 
+  /**
+   * Appends to {@link #reverseDeps}, which must be a list. Does not alter {@link
+   * #reverseDepsDataToConsolidate}.
+   */
+  @SuppressWarnings("unchecked") // Cast to List.
+  synchronized void appendReverseDepsForReverseDepsUtil(Collection<SkyKey> newReverseDeps) {
+    ((List<SkyKey>) this.reverseDeps).addAll(newReverseDeps);
+  }
+
   /** Sets {@link #reverseDepsDataToConsolidate}. Does not alter {@link #reverseDeps}. */
   synchronized void setReverseDepsDataToConsolidateForReverseDepsUtil(
       List<Object> dataToConsolidate) {
@@ -723,6 +734,109 @@ public class InMemoryNodeEntry implements NodeEntry {
     return newEntry;
   }
 
+  /**
+   * Drops the direct deps of this node for which {@code keptDep} doesn't hold if it is done
+   * without an error, and returns them, or returns an empty list if it isn't. Used by {@link
+   * EdgeCompactor}, which removes this node from the reverse deps of the returned deps while
+   * holding this entry's lock, so that no one sees the graph in between.
+   *
+   * <p>Afterwards this node can only be marked dirty through the kept deps, and only those are
+   * checked when it is: if none of them changed, the node is clean, and otherwise it is rebuilt and
+   * requests all its deps again. The dep on {@link ErrorTransienceValue} is always kept.
+   */
+  synchronized List<SkyKey> dropDirectDepsForCompaction(Predicate<SkyKey> keptDep) {
+    if (keepEdges() != KeepEdgesPolicy.ALL
+        || !isDone()
+        || ValueWithMetadata.getMaybeErrorInfo(value) != null) {
+      return ImmutableList.of();
+    }
+    GroupedList<SkyKey> keptDeps = new GroupedList<>();
+    List<SkyKey> droppedDeps = new ArrayList<>();
+    for (List<SkyKey> group : GroupedList.<SkyKey>create(directDeps)) {
+      List<SkyKey> keptGroup = new ArrayList<>(group.size());
+      for (SkyKey dep : group) {
+        if (keptDep.test(dep) || dep.equals(ErrorTransienceValue.KEY)) {
+          keptGroup.add(dep);
+        } else {
+          droppedDeps.add(dep);
+        }
+      }
+      if (!keptGroup.isEmpty()) {
+        keptDeps.appendGroup(keptGroup);
+      }
+    }
+    if (!droppedDeps.isEmpty()) {
+      directDeps = keptDeps.compress();
+    }
+    return droppedDeps;
+  }
+
+  /** Applies the pending reverse dep operations of this done node, freeing their storage. */
+  synchronized void consolidateReverseDeps() {
+    if (keepEdges() == KeepEdgesPolicy.ALL && isDone()) {
+      ReverseDepsUtility.consolidateData(this);
+    }
+  }
+
+  /**
+   * Makes this new entry done with the given value and edges, as if it was last changed and
+   * evaluated at {@link MinimalVersion}. Used to restore nodes from a {@link GraphSnapshot}.
+   */
+  synchronized void restoreDone(
+      SkyValue value, GroupedList<SkyKey> directDeps, Collection<SkyKey> reverseDeps) {
+    Preconditions.checkState(
+        this.value == null && dirtyBuildingState == null && this.directDeps == null,
+        "Only new nodes can be restored: %s",
+        this);
+    this.value = Preconditions.checkNotNull(value);
+    this.directDeps = directDeps.compress();
+    ReverseDepsUtility.addReverseDeps(this, reverseDeps);
+  }
+
+  /**
+   * Marks this entry, which was just restored with {@link #restoreDone}, dirty so that it's checked
+   * before it's used. Unlike {@link #markDirty(DirtyType)}, this also works for a node without
+   * deps, which is verified clean as soon as it's evaluated.
+   */
+  synchronized void markRestoredDirty() {
+    Preconditions.checkState(isDone(), this);
+    dirtyBuildingState =
+        DirtyBuildingState.createRestored(GroupedList.create(directDeps), value);
+    value = null;
+    directDeps = null;
+  }
+
+  /**
+   * Returns the value of this entry as of its last evaluation if it is done, or dirty and its
+   * evaluation hasn't started yet, and null otherwise. Used to write a {@link GraphSnapshot}.
+   */
+  @Nullable
+  synchronized SkyValue getLastBuildValueMaybeWithMetadata() throws InterruptedException {
+    if (isDone()) {
+      return value;
+    }
+    if (dirtyBuildingState == null || dirtyBuildingState.isEvaluating()) {
+      return null;
+    }
+    return dirtyBuildingState.getLastBuildValue();
+  }
+
+  /**
+   * Returns the direct deps of this entry as of its last evaluation. May only be called if {@link
+   * #getLastBuildValueMaybeWithMetadata} returns a value.
+   */
+  synchronized GroupedList<SkyKey> getLastBuildDirectDeps() throws InterruptedException {
+    assertKeepDeps();
+    return isDone()
+        ? GroupedList.create(directDeps)
+        : Preconditions.checkNotNull(dirtyBuildingState.getLastBuildDirectDeps(), this);
+  }
+
+  /** Returns the version at which this entry was last evaluated, changed or not. */
+  synchronized Version getLastEvaluatedVersion() {
+    return lastEvaluatedVersion;
+  }
+
   /**
    * Do not use except in custom evaluator implementations! Added only temporarily.
    *
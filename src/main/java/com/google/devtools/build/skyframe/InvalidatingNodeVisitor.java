@@ -16,10 +16,13 @@ package com.google.devtools.build.skyframe;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.flogger.GoogleLogger;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
@@ -31,12 +34,14 @@ import com.google.devtools.build.skyframe.ThinNodeEntry.DirtyType;
 import com.google.devtools.build.skyframe.ThinNodeEntry.MarkedDirtyResult;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.Nullable;
 
 /**
@@ -59,6 +64,7 @@ import javax.annotation.Nullable;
  * <p>This is intended only for use in alternative {@code MemoizingEvaluator} implementations.
  */
 public abstract class InvalidatingNodeVisitor<GraphT extends QueryableGraph> {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
   // Default thread count is equal to the number of cores to exploit
   // that level of hardware parallelism, since invalidation should be CPU-bound.
@@ -117,16 +123,7 @@ public abstract class InvalidatingNodeVisitor<GraphT extends QueryableGraph> {
     // Make a copy to avoid concurrent modification confusing us as to which nodes were passed by
     // the caller, and which are added by other threads during the run. Since no tasks have been
     // started yet (the queueDirtying calls start them), this is thread-safe.
-    for (final Pair<SkyKey, InvalidationType> visitData :
-        ImmutableList.copyOf(pendingVisitations)) {
-      executor.execute(
-          new Runnable() {
-            @Override
-            public void run() {
-              visit(ImmutableList.of(visitData.first), visitData.second);
-            }
-          });
-    }
+    visitInitialKeys(ImmutableList.copyOf(pendingVisitations));
     try {
       executor.awaitQuiescence(/*interruptWorkers=*/ true);
     } catch (IllegalStateException e) {
@@ -140,6 +137,19 @@ public abstract class InvalidatingNodeVisitor<GraphT extends QueryableGraph> {
         "All dirty nodes should have been processed: %s", pendingVisitations);
   }
 
+  /** Starts the visitation of the nodes that were pending when {@link #run} was called. */
+  protected void visitInitialKeys(ImmutableList<Pair<SkyKey, InvalidationType>> visitations) {
+    for (final Pair<SkyKey, InvalidationType> visitData : visitations) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              visit(ImmutableList.of(visitData.first), visitData.second);
+            }
+          });
+    }
+  }
+
   protected abstract boolean getSupportInterruptions();
 
   @VisibleForTesting
@@ -502,4 +512,177 @@ public abstract class InvalidatingNodeVisitor<GraphT extends QueryableGraph> {
       }
     }
   }
+
+  /**
+   * A node-dirtying implementation for large diffs. Instead of a task per node, each task dirties a
+   * chunk of up to {@link #CHUNK_SIZE} nodes and then looks up the reverse deps of all of them at
+   * once, which are split into the chunks of the next tasks. The tasks run on a {@link
+   * ForkJoinPool}, so that a worker keeps the chunks it forks unless other workers run out of work.
+   *
+   * <p>The nodes of a chunk stay in {@link #pendingVisitations} until their reverse deps have been
+   * added to it, which keeps the invariant that makes interrupting the visitation safe. Visited
+   * nodes are remembered in a {@link VisitedKeySet}, which is much smaller than a concurrent set
+   * when millions of nodes are dirtied. The number of dirtied nodes and the time it took are
+   * reported to {@link EvaluationProgressReceiver#invalidationFinished}.
+   */
+  static class BatchedDirtyingNodeVisitor extends InvalidatingNodeVisitor<QueryableGraph> {
+    private static final int CHUNK_SIZE = 256;
+
+    private final VisitedKeySet changed =
+        new VisitedKeySet(DEFAULT_THREAD_COUNT, EXPECTED_VISITED_SET_SIZE);
+    private final VisitedKeySet dirtied =
+        new VisitedKeySet(DEFAULT_THREAD_COUNT, EXPECTED_VISITED_SET_SIZE);
+    private final LongAdder invalidatedNodes = new LongAdder();
+
+    BatchedDirtyingNodeVisitor(
+        QueryableGraph graph,
+        DirtyTrackingProgressReceiver progressReceiver,
+        InvalidationState state) {
+      super(graph, progressReceiver, state, new ForkJoinPool(DEFAULT_THREAD_COUNT));
+    }
+
+    @Override
+    protected boolean getSupportInterruptions() {
+      return true;
+    }
+
+    @Override
+    void run() throws InterruptedException {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      try {
+        super.run();
+      } finally {
+        long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        long nodes = invalidatedNodes.sum();
+        logger.atInfo().log(
+            "Invalidated %s nodes in %s ms (%s nodes/s)",
+            nodes, millis, nodes * 1000 / Math.max(millis, 1));
+        progressReceiver.invalidationFinished(nodes, nanos);
+      }
+    }
+
+    @Override
+    protected void visitInitialKeys(ImmutableList<Pair<SkyKey, InvalidationType>> visitations) {
+      for (InvalidationType invalidationType :
+          ImmutableList.of(InvalidationType.CHANGED, InvalidationType.DIRTIED)) {
+        List<SkyKey> keys = new ArrayList<>();
+        for (Pair<SkyKey, InvalidationType> visitation : visitations) {
+          if (visitation.second == invalidationType) {
+            keys.add(visitation.first);
+          }
+        }
+        for (List<SkyKey> chunk : Lists.partition(keys, CHUNK_SIZE)) {
+          executor.execute(() -> visit(chunk, invalidationType));
+        }
+      }
+    }
+
+    @Override
+    void visit(Iterable<SkyKey> keys, InvalidationType invalidationType) {
+      Preconditions.checkState(invalidationType != InvalidationType.DELETED, keys);
+      visit(keys, invalidationType, /*enqueuedAsReverseDeps=*/ false);
+    }
+
+    /**
+     * Adds the nodes named by {@code keys} that weren't visited with {@code invalidationType} yet
+     * to {@link #pendingVisitations}, and enqueues tasks to dirty them. {@code keys} may contain
+     * duplicates. Returns false if interrupted before the nodes were looked up.
+     */
+    @ThreadSafe
+    private boolean visit(
+        Iterable<SkyKey> keys, InvalidationType invalidationType, boolean enqueuedAsReverseDeps) {
+      boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      VisitedKeySet setToCheck = isChanged ? changed : dirtied;
+      List<SkyKey> keysToGet = new ArrayList<>();
+      for (SkyKey key : keys) {
+        if (setToCheck.add(key)) {
+          Preconditions.checkState(
+              !isChanged || key.functionName().getHermeticity() != FunctionHermeticity.HERMETIC,
+              key);
+          keysToGet.add(key);
+        }
+      }
+      for (SkyKey key : keysToGet) {
+        pendingVisitations.add(Pair.of(key, invalidationType));
+      }
+      Map<SkyKey, ? extends ThinNodeEntry> entries;
+      try {
+        entries = graph.getBatch(null, Reason.INVALIDATION, keysToGet);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // The nodes are still pending, so we can resume next time.
+        return false;
+      }
+      List<SkyKey> unvisitedKeys = new ArrayList<>(keysToGet.size());
+      List<ThinNodeEntry> unvisitedEntries = new ArrayList<>(keysToGet.size());
+      for (SkyKey key : keysToGet) {
+        ThinNodeEntry entry = entries.get(key);
+        if (entry == null) {
+          Preconditions.checkState(
+              !enqueuedAsReverseDeps,
+              "key %s not in the graph, but enqueued for dirtying as a reverse dep",
+              key);
+          pendingVisitations.remove(Pair.of(key, invalidationType));
+        } else {
+          unvisitedKeys.add(key);
+          unvisitedEntries.add(entry);
+        }
+      }
+      for (int start = 0; start < unvisitedKeys.size(); start += CHUNK_SIZE) {
+        int end = Math.min(start + CHUNK_SIZE, unvisitedKeys.size());
+        List<SkyKey> chunkKeys = unvisitedKeys.subList(start, end);
+        List<ThinNodeEntry> chunkEntries = unvisitedEntries.subList(start, end);
+        executor.execute(() -> dirty(chunkKeys, chunkEntries, invalidationType));
+      }
+      return true;
+    }
+
+    /**
+     * Dirties a chunk of nodes and visits their reverse deps. See {@link DirtyingNodeVisitor} for
+     * why a node may already be dirty.
+     */
+    private void dirty(
+        List<SkyKey> keys, List<ThinNodeEntry> entries, InvalidationType invalidationType) {
+      boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      List<SkyKey> markedKeys = new ArrayList<>();
+      List<SkyKey> reverseDeps = new ArrayList<>();
+      int processed = 0;
+      for (; processed < keys.size(); processed++) {
+        SkyKey key = keys.get(processed);
+        ThinNodeEntry entry = entries.get(processed);
+        if (entry.isChanged() || (!isChanged && entry.isDirty())) {
+          continue;
+        }
+        MarkedDirtyResult markedDirtyResult;
+        try {
+          markedDirtyResult = entry.markDirty(isChanged ? DirtyType.CHANGE : DirtyType.DIRTY);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          // This node and the rest of the chunk stay pending. The nodes dirtied so far still need
+          // their reverse deps visited.
+          break;
+        } catch (IllegalStateException e) {
+          // Debugging for #10912.
+          throw new IllegalStateException("Crash caused by " + key, e);
+        }
+        if (markedDirtyResult != null) {
+          Iterables.addAll(reverseDeps, markedDirtyResult.getReverseDepsUnsafe());
+          markedKeys.add(key);
+        }
+      }
+      // Reverse deps should only be marked dirty, because only a dependency of theirs has changed.
+      if (!visit(reverseDeps, InvalidationType.DIRTIED, /*enqueuedAsReverseDeps=*/ true)) {
+        return;
+      }
+      for (SkyKey key : markedKeys) {
+        progressReceiver.invalidated(key, EvaluationProgressReceiver.InvalidationState.DIRTY);
+      }
+      invalidatedNodes.add(markedKeys.size());
+      // Remove the nodes from the set as the last operation.
+      for (SkyKey key : keys.subList(0, processed)) {
+        pendingVisitations.remove(Pair.of(key, invalidationType));
+      }
+    }
+  }
 }
@@ -112,6 +112,22 @@ public interface MemoizingEvaluator {
    */
   default void postLoggingStats(ExtendedEventHandler eventHandler) {}
 
+  /**
+   * Frees the edges of the done nodes for which {@code immutable} holds to their deps for which
+   * {@code keptDep} doesn't hold. A node may only be immutable if its transitive deps can only
+   * change together with one of its kept deps, through which it is still invalidated. May be called
+   * while an evaluation is running. Returns the number of freed edges.
+   */
+  default long compactEdges(Predicate<SkyKey> immutable, Predicate<SkyKey> keptDep) {
+    return 0;
+  }
+
+  /**
+   * Sets the {@link EvaluationAdmissionController} of subsequent evaluations. Evaluators that can't
+   * hold back evaluations ignore it.
+   */
+  default void setAdmissionController(EvaluationAdmissionController admissionController) {}
+
   /**
    * Returns the done (without error) values in the graph.
    *
@@ -0,0 +1,137 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.GoogleLogger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+/**
+ * An {@link EvaluationAdmissionController} that throttles evaluations when the heap is nearly full,
+ * so that a build that would otherwise run out of memory gets slower instead.
+ *
+ * <p>The heap occupancy is the fraction of the maximum heap that was in use after the last full
+ * GC, which only changes when there is a new full GC. The occupancy when the controller is created
+ * is only a baseline, since it may be left over from an earlier command. Each time the occupancy
+ * changes and is above the threshold, the number of evaluations that may be in flight at once is
+ * halved, starting from the number of evaluation threads. Once a full GC finds the occupancy below
+ * the threshold again, the limit is lifted.
+ *
+ * <p>Evaluations of partially evaluated nodes are always admitted: they hold memory for their
+ * already requested deps that is only released once they are done, so they should finish rather
+ * than wait for new nodes. Since waiting evaluations don't count as in flight, the others can
+ * always make progress.
+ */
+public final class MemoryPressureAdmissionController implements EvaluationAdmissionController {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** How long a waiting evaluation sleeps before it checks the heap occupancy again. */
+  private static final long POLL_MILLIS = 100;
+
+  private final DoubleSupplier heapOccupancy;
+  private final double threshold;
+  private final int maxInFlight;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final Object lock = new Object();
+
+  // Written under lock.
+  private volatile double lastOccupancy;
+  private volatile int limit = Integer.MAX_VALUE;
+
+  /**
+   * Creates a controller that throttles evaluations while {@code heapOccupancy}, a fraction between
+   * 0 and 1, is at least {@code threshold}. {@code maxInFlight} is the number of evaluations that
+   * run at once without throttling, i.e. the number of evaluation threads.
+   */
+  public MemoryPressureAdmissionController(
+      DoubleSupplier heapOccupancy, double threshold, int maxInFlight) {
+    Preconditions.checkArgument(threshold > 0 && threshold <= 1, threshold);
+    Preconditions.checkArgument(maxInFlight > 0, maxInFlight);
+    this.heapOccupancy = heapOccupancy;
+    this.threshold = threshold;
+    this.maxInFlight = maxInFlight;
+    this.lastOccupancy = heapOccupancy.getAsDouble();
+  }
+
+  @Override
+  public void admit(SkyKey key, boolean partiallyEvaluated) {
+    updateLimit();
+    if (!partiallyEvaluated && inFlight.get() >= limit) {
+      waitForCapacity(key);
+    }
+    inFlight.incrementAndGet();
+  }
+
+  @Override
+  public void done() {
+    inFlight.decrementAndGet();
+    if (limit != Integer.MAX_VALUE) {
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void waitForCapacity(SkyKey key) {
+    synchronized (lock) {
+      while (inFlight.get() >= limit) {
+        try {
+          lock.wait(POLL_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        updateLimit();
+      }
+    }
+    logger.atFine().log("Admitted %s after waiting for memory", key);
+  }
+
+  private void updateLimit() {
+    double occupancy = heapOccupancy.getAsDouble();
+    if (occupancy == lastOccupancy) {
+      return;
+    }
+    synchronized (lock) {
+      if (occupancy == lastOccupancy) {
+        return;
+      }
+      lastOccupancy = occupancy;
+      if (occupancy >= threshold) {
+        int newLimit = Math.max(1, Math.min(limit, maxInFlight) / 2);
+        logger.atWarning().log(
+            "Heap %.0f%% full after GC, limiting in-flight Skyframe evaluations to %d",
+            occupancy * 100, newLimit);
+        limit = newLimit;
+      } else if (limit != Integer.MAX_VALUE) {
+        logger.atInfo().log(
+            "Heap %.0f%% full after GC, no longer limiting Skyframe evaluations", occupancy * 100);
+        limit = Integer.MAX_VALUE;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int getLimit() {
+    return limit;
+  }
+
+  @VisibleForTesting
+  int getInFlight() {
+    return inFlight.get();
+  }
+}
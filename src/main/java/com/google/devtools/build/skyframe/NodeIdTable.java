@@ -0,0 +1,194 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns dense int ids to the nodes of an {@link InMemoryGraphImpl}, so that {@link
+ * CompactReverseDepsNodeEntry} can store reverse deps as ids instead of {@link SkyKey} references.
+ *
+ * <p>The id to key direction is a table of fixed-size chunks, so that it grows without copying the
+ * keys. The key to id direction goes through the graph: each node entry knows its own id. Keys
+ * without a node have no id.
+ *
+ * <p>The id of a removed node can't be reused right away: the reverse deps of its deps may still
+ * hold it, since the removal of a reverse dep from a done node is usually applied later, in bulk.
+ * Ids of removed nodes are thus only {@linkplain #release released}, and nodes that get a pending
+ * removal of a reverse dep are remembered. {@link #recycle}, which runs after the deletion, applies
+ * those removals and makes the released ids that no reverse deps hold anymore available again.
+ */
+final class NodeIdTable {
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int[] NO_IDS = new int[0];
+
+  private final Map<SkyKey, ? extends NodeEntry> nodeMap;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private volatile SkyKey[][] chunks = new SkyKey[16][];
+
+  private final Set<CompactReverseDepsNodeEntry> nodesWithPendingRemovals =
+      Sets.newConcurrentHashSet();
+
+  // Guarded by this. Written last, so that assign() can check for free ids without the lock.
+  private volatile int freeCount = 0;
+  private int[] freeIds = NO_IDS;
+  private int[] releasedIds = NO_IDS;
+  private int releasedCount = 0;
+
+  NodeIdTable(Map<SkyKey, ? extends NodeEntry> nodeMap) {
+    this.nodeMap = nodeMap;
+  }
+
+  /** Returns the id for a node that is about to be added to the graph. */
+  int assign(SkyKey key) {
+    int id = freeCount > 0 ? pollFreeId() : -1;
+    if (id < 0) {
+      id = nextId.getAndIncrement();
+    }
+    // Readers get the id through the node entry, which the graph publishes after this write.
+    chunkFor(id)[id & CHUNK_MASK] = key;
+    return id;
+  }
+
+  private synchronized int pollFreeId() {
+    if (freeCount == 0) {
+      return -1;
+    }
+    int id = freeIds[freeCount - 1];
+    freeCount--;
+    return id;
+  }
+
+  /**
+   * Marks the id of a node that was removed from the graph for reuse by {@link #recycle}. Until
+   * then, the id still maps to the node's key.
+   */
+  synchronized void release(int id) {
+    if (releasedCount == releasedIds.length) {
+      releasedIds = Arrays.copyOf(releasedIds, Math.max(16, releasedCount * 2));
+    }
+    releasedIds[releasedCount++] = id;
+  }
+
+  /**
+   * Remembers that {@code entry} has a pending removal of a reverse dep, whose id may be released
+   * before the removal is applied.
+   */
+  void reverseDepRemovalPending(CompactReverseDepsNodeEntry entry) {
+    nodesWithPendingRemovals.add(entry);
+  }
+
+  /**
+   * Applies the pending reverse dep removals of done nodes, and makes the released ids that are no
+   * longer held by any reverse deps available to {@link #assign}. Nodes that aren't done apply
+   * their pending removals when they are, so the released ids that they still hold are kept until
+   * a later call.
+   *
+   * <p>Must not run concurrently with the removal of nodes from the graph.
+   */
+  void recycle() {
+    int[] released;
+    synchronized (this) {
+      if (releasedCount == 0) {
+        nodesWithPendingRemovals.clear();
+        return;
+      }
+      released = Arrays.copyOf(releasedIds, releasedCount);
+    }
+    BitSet releasedSet = new BitSet();
+    for (int id : released) {
+      releasedSet.set(id);
+    }
+    BitSet stillHeld = new BitSet();
+    for (Iterator<CompactReverseDepsNodeEntry> it = nodesWithPendingRemovals.iterator();
+        it.hasNext(); ) {
+      CompactReverseDepsNodeEntry entry = it.next();
+      // The key of a removed node is still known here, since its id is released at the earliest
+      // at the end of this call.
+      SkyKey key = key(entry.getId());
+      if (key == null
+          || nodeMap.get(key) != entry
+          || !entry.applyRemovalsAndFindReleasedIds(releasedSet, stillHeld)) {
+        it.remove();
+      }
+    }
+    synchronized (this) {
+      int stillReleased = 0;
+      for (int i = 0; i < releasedCount; i++) {
+        int id = releasedIds[i];
+        if (i >= released.length || stillHeld.get(id)) {
+          releasedIds[stillReleased++] = id;
+        } else {
+          chunks[id >>> CHUNK_BITS][id & CHUNK_MASK] = null;
+          if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, Math.max(16, freeCount * 2));
+          }
+          freeIds[freeCount] = id;
+          freeCount++;
+        }
+      }
+      releasedCount = stillReleased;
+      if (releasedCount == 0) {
+        releasedIds = NO_IDS;
+      }
+    }
+  }
+
+  SkyKey key(int id) {
+    return chunks[id >>> CHUNK_BITS][id & CHUNK_MASK];
+  }
+
+  /** Returns the id of the node of {@code key}, or -1 if there is no such node. */
+  int id(SkyKey key) {
+    NodeEntry entry = nodeMap.get(key);
+    return entry instanceof CompactReverseDepsNodeEntry
+        ? ((CompactReverseDepsNodeEntry) entry).getId()
+        : -1;
+  }
+
+  /** Returns the number of ids handed out so far, including those that are free again. */
+  @VisibleForTesting
+  int size() {
+    return nextId.get();
+  }
+
+  private SkyKey[] chunkFor(int id) {
+    int index = id >>> CHUNK_BITS;
+    SkyKey[][] current = chunks;
+    if (index < current.length && current[index] != null) {
+      return current[index];
+    }
+    synchronized (this) {
+      current = chunks;
+      if (index >= current.length) {
+        current = Arrays.copyOf(current, Math.max(current.length * 2, index + 1));
+      }
+      if (current[index] == null) {
+        current[index] = new SkyKey[CHUNK_SIZE];
+      }
+      chunks = current;
+      return current[index];
+    }
+  }
+}
@@ -0,0 +1,441 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A concurrent map from {@link SkyKey} to {@link NodeEntry} that stores keys and entries in
+ * parallel arrays with linear probing, for use as the node map of an {@link InMemoryGraphImpl}.
+ *
+ * <p>Unlike {@link java.util.concurrent.ConcurrentHashMap}, there is no node object per mapping,
+ * so a mapping costs two array slots, about 16 bytes with compressed oops at the average load
+ * factor, instead of about 40. Growing the map also never needs more than one new table per
+ * segment at a time, and no per-mapping allocation.
+ *
+ * <p>The map is split into segments by the high bits of the hash. Writes lock their segment, and
+ * resizing a segment only blocks writes to that segment. Reads don't lock: they probe the current
+ * table of the segment and retry if a writer replaced the table or removed a mapping in the
+ * meantime. Removed mappings leave a tombstone behind, which is reused by the next insertion that
+ * probes past it or dropped the next time the segment is rehashed.
+ *
+ * <p>As for {@link java.util.concurrent.ConcurrentHashMap}, iteration is weakly consistent and
+ * {@link #computeIfAbsent} is atomic: the function is called at most once per absent key, while
+ * the segment is locked, so it must not modify this map.
+ */
+final class OpenAddressingNodeMap extends AbstractMap<SkyKey, NodeEntry>
+    implements ConcurrentMap<SkyKey, NodeEntry> {
+
+  private static final Object TOMBSTONE = new Object();
+  private static final int MIN_CAPACITY = 8;
+
+  private final Segment[] segments;
+  private final int segmentShift;
+  private Set<Map.Entry<SkyKey, NodeEntry>> entrySet;
+
+  /**
+   * @param concurrencyLevel the number of segments, rounded up to a power of two
+   * @param initialCapacity the number of mappings the map holds before it needs to grow
+   */
+  OpenAddressingNodeMap(int concurrencyLevel, int initialCapacity) {
+    Preconditions.checkArgument(concurrencyLevel > 0, concurrencyLevel);
+    int numSegments = Integer.highestOneBit(concurrencyLevel - 1) << 1;
+    numSegments = Math.max(numSegments, 1);
+    this.segments = new Segment[numSegments];
+    this.segmentShift = Integer.SIZE - Integer.numberOfTrailingZeros(numSegments);
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(capacityFor(initialCapacity / numSegments));
+    }
+  }
+
+  /** Returns a table capacity that is at most a third full with {@code size} mappings. */
+  private static int capacityFor(int size) {
+    return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(size * 3, 1)) << 1);
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private Segment segmentFor(int hash) {
+    // Tables are indexed by the low bits of the hash.
+    return segmentShift == Integer.SIZE ? segments[0] : segments[hash >>> segmentShift];
+  }
+
+  /** The slots of a segment. Only ever modified with the segment locked. */
+  private static final class Table {
+    final AtomicReferenceArray<Object> keys;
+    final AtomicReferenceArray<NodeEntry> values;
+    final int mask;
+
+    Table(int capacity) {
+      this.keys = new AtomicReferenceArray<>(capacity);
+      this.values = new AtomicReferenceArray<>(capacity);
+      this.mask = capacity - 1;
+    }
+
+    /** Returns the slot holding {@code key}, or -1. */
+    int find(Object key, int hash) {
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        Object k = keys.get(i);
+        if (k == null) {
+          return -1;
+        }
+        if (k == key || (k != TOMBSTONE && k.equals(key))) {
+          return i;
+        }
+      }
+    }
+
+    /** Returns the slot holding {@code key}, or the slot to insert it at as {@code -slot - 1}. */
+    int findForInsert(Object key, int hash) {
+      int tombstone = -1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        Object k = keys.get(i);
+        if (k == null) {
+          return -(tombstone >= 0 ? tombstone : i) - 1;
+        }
+        if (k == TOMBSTONE) {
+          if (tombstone < 0) {
+            tombstone = i;
+          }
+        } else if (k == key || k.equals(key)) {
+          return i;
+        }
+      }
+    }
+  }
+
+  private static final class Segment {
+    private volatile Table table;
+    private volatile int size;
+    // Incremented after each removal. Because a tombstone can be reused for another key, a reader
+    // that found a key in a slot can otherwise read the value of a later mapping in that slot.
+    private volatile int removals;
+    // Slots that are not null, i.e. mappings and tombstones. Guarded by this.
+    private int used;
+
+    Segment(int capacity) {
+      this.table = new Table(capacity);
+    }
+
+    @Nullable
+    NodeEntry get(Object key, int hash) {
+      while (true) {
+        int removalsBefore = removals;
+        Table current = table;
+        int slot = current.find(key, hash);
+        // The key is written after the value, so a null value means the mapping was removed.
+        NodeEntry value = slot < 0 ? null : current.values.get(slot);
+        if (current == table && removalsBefore == removals) {
+          return value;
+        }
+      }
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, or to the result of {@code function} if it's non-null. If
+     * {@code onlyIfAbsent}, an existing mapping is kept and its value returned.
+     */
+    @Nullable
+    synchronized NodeEntry put(
+        SkyKey key,
+        int hash,
+        @Nullable NodeEntry value,
+        @Nullable Function<? super SkyKey, ? extends NodeEntry> function,
+        boolean onlyIfAbsent) {
+      Table current = table;
+      int slot = current.findForInsert(key, hash);
+      if (slot >= 0) {
+        NodeEntry oldValue = current.values.get(slot);
+        if (!onlyIfAbsent) {
+          current.values.set(slot, value);
+        }
+        return oldValue;
+      }
+      if (function != null) {
+        value = function.apply(key);
+        if (value == null) {
+          return null;
+        }
+      }
+      slot = -slot - 1;
+      boolean reusesTombstone = current.keys.get(slot) == TOMBSTONE;
+      if (!reusesTombstone && (used + 1) * 3 > (current.mask + 1) * 2) {
+        current = rehash(size + 1);
+        slot = -current.findForInsert(key, hash) - 1;
+        reusesTombstone = false;
+      }
+      current.values.set(slot, value);
+      current.keys.set(slot, key);
+      if (!reusesTombstone) {
+        used++;
+      }
+      size++;
+      return function != null ? value : null;
+    }
+
+    /**
+     * Removes the mapping for {@code key} if its value is {@code expectedValue}, or if {@code
+     * expectedValue} is null. Replaces the value with {@code newValue} instead if that is non-null.
+     */
+    @Nullable
+    synchronized NodeEntry removeOrReplace(
+        Object key, int hash, @Nullable Object expectedValue, @Nullable NodeEntry newValue) {
+      Table current = table;
+      int slot = current.find(key, hash);
+      if (slot < 0) {
+        return null;
+      }
+      NodeEntry oldValue = current.values.get(slot);
+      if (expectedValue != null && !expectedValue.equals(oldValue)) {
+        return null;
+      }
+      if (newValue != null) {
+        current.values.set(slot, newValue);
+      } else {
+        current.values.set(slot, null);
+        current.keys.set(slot, TOMBSTONE);
+        size--;
+        removals++;
+      }
+      return oldValue;
+    }
+
+    synchronized void clear() {
+      table = new Table(MIN_CAPACITY);
+      used = 0;
+      size = 0;
+    }
+
+    /** Replaces the table with one that has room for {@code newSize} mappings. */
+    private Table rehash(int newSize) {
+      Table old = table;
+      Table fresh = new Table(capacityFor(newSize));
+      for (int i = 0; i <= old.mask; i++) {
+        Object key = old.keys.get(i);
+        if (key != null && key != TOMBSTONE) {
+          int slot = -fresh.findForInsert(key, hash(key)) - 1;
+          fresh.values.set(slot, old.values.get(i));
+          fresh.keys.set(slot, key);
+        }
+      }
+      used = size;
+      table = fresh;
+      return fresh;
+    }
+  }
+
+  @Override
+  public NodeEntry get(Object key) {
+    int hash = hash(key);
+    return segmentFor(hash).get(key, hash);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public NodeEntry put(SkyKey key, NodeEntry value) {
+    Preconditions.checkNotNull(value, key);
+    int hash = hash(key);
+    return segmentFor(hash).put(key, hash, value, null, /*onlyIfAbsent=*/ false);
+  }
+
+  @Override
+  public NodeEntry putIfAbsent(SkyKey key, NodeEntry value) {
+    Preconditions.checkNotNull(value, key);
+    int hash = hash(key);
+    return segmentFor(hash).put(key, hash, value, null, /*onlyIfAbsent=*/ true);
+  }
+
+  @Override
+  public NodeEntry computeIfAbsent(
+      SkyKey key, Function<? super SkyKey, ? extends NodeEntry> mappingFunction) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    NodeEntry value = segment.get(key, hash);
+    if (value != null) {
+      return value;
+    }
+    return segment.put(key, hash, null, mappingFunction, /*onlyIfAbsent=*/ true);
+  }
+
+  @Override
+  public NodeEntry remove(Object key) {
+    int hash = hash(key);
+    return segmentFor(hash).removeOrReplace(key, hash, null, null);
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (value == null) {
+      return false;
+    }
+    int hash = hash(key);
+    return segmentFor(hash).removeOrReplace(key, hash, value, null) != null;
+  }
+
+  @Override
+  public boolean replace(SkyKey key, NodeEntry oldValue, NodeEntry newValue) {
+    Preconditions.checkNotNull(oldValue, key);
+    Preconditions.checkNotNull(newValue, key);
+    int hash = hash(key);
+    return segmentFor(hash).removeOrReplace(key, hash, oldValue, newValue) != null;
+  }
+
+  @Override
+  public NodeEntry replace(SkyKey key, NodeEntry value) {
+    Preconditions.checkNotNull(value, key);
+    int hash = hash(key);
+    return segmentFor(hash).removeOrReplace(key, hash, null, value);
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.size;
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (Segment segment : segments) {
+      if (segment.size > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<SkyKey, NodeEntry>> entrySet() {
+    if (entrySet == null) {
+      entrySet =
+          new AbstractSet<Map.Entry<SkyKey, NodeEntry>>() {
+            @Override
+            public Iterator<Map.Entry<SkyKey, NodeEntry>> iterator() {
+              return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+              return OpenAddressingNodeMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+              OpenAddressingNodeMap.this.clear();
+            }
+          };
+    }
+    return entrySet;
+  }
+
+  /** Weakly consistent iterator over the table of each segment at the time it is reached. */
+  private final class EntryIterator implements Iterator<Map.Entry<SkyKey, NodeEntry>> {
+    private int segmentIndex = -1;
+    private Table table;
+    private int slot;
+    @Nullable private Map.Entry<SkyKey, NodeEntry> next;
+    @Nullable private Map.Entry<SkyKey, NodeEntry> last;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      next = null;
+      while (true) {
+        if (table == null || slot > table.mask) {
+          if (++segmentIndex == segments.length) {
+            return;
+          }
+          table = segments[segmentIndex].table;
+          slot = 0;
+          continue;
+        }
+        Segment segment = segments[segmentIndex];
+        int removalsBefore = segment.removals;
+        Object key = table.keys.get(slot);
+        NodeEntry value = table.values.get(slot);
+        if (removalsBefore != segment.removals) {
+          // The slot may have been reused for another key between the two reads.
+          continue;
+        }
+        slot++;
+        if (key != null && key != TOMBSTONE && value != null) {
+          next = new WriteThroughEntry((SkyKey) key, value);
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<SkyKey, NodeEntry> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      advance();
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      Preconditions.checkState(last != null);
+      OpenAddressingNodeMap.this.remove(last.getKey(), last.getValue());
+      last = null;
+    }
+  }
+
+  private final class WriteThroughEntry extends AbstractMap.SimpleEntry<SkyKey, NodeEntry> {
+    WriteThroughEntry(SkyKey key, NodeEntry value) {
+      super(key, value);
+    }
+
+    @Override
+    public NodeEntry setValue(NodeEntry value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+}
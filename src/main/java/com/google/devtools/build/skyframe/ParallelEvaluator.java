@@ -51,6 +51,40 @@ public class ParallelEvaluator extends AbstractExceptionalParallelEvaluator<Runt
       Supplier<ExecutorService> executorService,
       CycleDetector cycleDetector,
       EvaluationVersionBehavior evaluationVersionBehavior) {
+    this(
+        graph,
+        graphVersion,
+        skyFunctions,
+        reporter,
+        emittedEventState,
+        storedEventFilter,
+        errorInfoManager,
+        keepGoing,
+        progressReceiver,
+        graphInconsistencyReceiver,
+        executorService,
+        cycleDetector,
+        evaluationVersionBehavior,
+        SchedulingPolicy.DEPTH_FIRST,
+        EvaluationAdmissionController.UNLIMITED);
+  }
+
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final ExtendedEventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      ErrorInfoManager errorInfoManager,
+      boolean keepGoing,
+      DirtyTrackingProgressReceiver progressReceiver,
+      GraphInconsistencyReceiver graphInconsistencyReceiver,
+      Supplier<ExecutorService> executorService,
+      CycleDetector cycleDetector,
+      EvaluationVersionBehavior evaluationVersionBehavior,
+      SchedulingPolicy schedulingPolicy,
+      EvaluationAdmissionController admissionController) {
     super(
         graph,
         graphVersion,
@@ -64,7 +98,9 @@ public class ParallelEvaluator extends AbstractExceptionalParallelEvaluator<Runt
         graphInconsistencyReceiver,
         executorService,
         cycleDetector,
-        evaluationVersionBehavior);
+        evaluationVersionBehavior,
+        schedulingPolicy,
+        admissionController);
   }
 
   /**
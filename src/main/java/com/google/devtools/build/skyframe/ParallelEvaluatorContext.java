@@ -23,7 +23,9 @@ import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
 /**
@@ -62,6 +64,13 @@ class ParallelEvaluatorContext {
    */
   private final Supplier<NodeEntryVisitor> visitorSupplier;
 
+  /**
+   * The {@link SkyKeyComputeState}s of the nodes whose {@link SkyFunction#compute} calls were
+   * restarted for missing deps. Each is only accessed by the thread evaluating its node.
+   */
+  private final ConcurrentHashMap<SkyKey, SkyKeyComputeState> computeStates =
+      new ConcurrentHashMap<>();
+
   /**
    * Returns a {@link Runnable} given a {@code key} to evaluate and an {@code evaluationPriority}
    * indicating whether it should be scheduled for evaluation soon (higher is better). The returned
@@ -205,6 +214,20 @@ class ParallelEvaluatorContext {
     return graphInconsistencyReceiver.restartPermitted();
   }
 
+  @Nullable
+  SkyKeyComputeState getComputeState(SkyKey key) {
+    return computeStates.get(key);
+  }
+
+  void putComputeState(SkyKey key, SkyKeyComputeState state) {
+    computeStates.put(key, state);
+  }
+
+  /** Forgets the state of {@code key}, once its next {@link SkyFunction#compute} can't use it. */
+  void discardComputeState(SkyKey key) {
+    computeStates.remove(key);
+  }
+
   /** Receives the events from the NestedSet and delegates to the reporter. */
   private static class NestedSetEventReceiver implements NestedSetVisitor.Receiver<TaggedEvents> {
 
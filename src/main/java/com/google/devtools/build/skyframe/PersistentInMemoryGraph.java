@@ -0,0 +1,104 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link InMemoryGraphImpl} that starts out with the nodes of a {@link GraphSnapshot} written
+ * by a previous server. Nodes are moved from the snapshot into the graph the first time they are
+ * looked up, so that only the part of the graph that's actually used is deserialized. Accessors
+ * that return the graph as a whole load all remaining nodes first, so that callers that scan or
+ * delete nodes see the same graph as without a snapshot.
+ */
+final class PersistentInMemoryGraph extends InMemoryGraphImpl {
+
+  private final GraphSnapshot snapshot;
+
+  PersistentInMemoryGraph(GraphSnapshot snapshot, boolean openAddressingNodeMap) {
+    super(/*keepEdges=*/ true, openAddressingNodeMap);
+    this.snapshot = snapshot;
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    snapshot.remove(skyKey);
+    super.remove(skyKey);
+  }
+
+  @Override
+  public NodeEntry get(@Nullable SkyKey requestor, Reason reason, SkyKey skyKey) {
+    NodeEntry entry = nodeMap.get(skyKey);
+    if (entry == null && snapshot.contains(skyKey)) {
+      entry = nodeMap.computeIfAbsent(skyKey, snapshot::load);
+    }
+    return entry;
+  }
+
+  @Override
+  protected NodeEntry newNodeEntry(SkyKey key) {
+    NodeEntry entry = snapshot.load(key);
+    return entry != null ? entry : super.newNodeEntry(key);
+  }
+
+  @Override
+  public Map<SkyKey, SkyValue> getValues() {
+    loadAll();
+    return super.getValues();
+  }
+
+  @Override
+  public Map<SkyKey, SkyValue> getDoneValues() {
+    loadAll();
+    return super.getDoneValues();
+  }
+
+  @Override
+  public Map<SkyKey, NodeEntry> getAllValues() {
+    loadAll();
+    return super.getAllValues();
+  }
+
+  @Override
+  public Map<SkyKey, ? extends NodeEntry> getAllValuesMutable() {
+    loadAll();
+    return super.getAllValuesMutable();
+  }
+
+  @Override
+  protected ConcurrentMap<SkyKey, ? extends NodeEntry> getNodeMap() {
+    loadAll();
+    return super.getNodeMap();
+  }
+
+  /** Returns the nodes that have been loaded from the snapshot or created since, and no others. */
+  Map<SkyKey, NodeEntry> getLoadedNodes() {
+    return Collections.unmodifiableMap(nodeMap);
+  }
+
+  GraphSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  private void loadAll() {
+    for (SkyKey key : snapshot.getUnloadedKeys()) {
+      if (!nodeMap.containsKey(key)) {
+        nodeMap.computeIfAbsent(key, snapshot::load);
+      }
+    }
+  }
+}
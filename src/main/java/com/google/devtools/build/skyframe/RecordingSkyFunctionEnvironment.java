@@ -17,8 +17,10 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.util.GroupedList;
 import com.google.devtools.build.skyframe.SkyFunction.Environment;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /** An environment that can observe the deps requested through getValue(s) calls. */
@@ -294,4 +296,9 @@ public class RecordingSkyFunctionEnvironment implements Environment {
   public boolean restartPermitted() {
     return delegate.restartPermitted();
   }
+
+  @Override
+  public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    return delegate.getState(stateSupplier);
+  }
 }
@@ -0,0 +1,106 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.RandomAccess;
+import javax.annotation.Nullable;
+
+/**
+ * A list of reverse deps stored as the ids of a {@link NodeIdTable} in a growable int array. Only
+ * supports the operations that {@link ReverseDepsUtility} performs on the reverse deps of a node:
+ * reading and appending.
+ *
+ * <p>Compared to an {@link java.util.ArrayList} of keys, this needs 4 instead of 8 bytes per
+ * element without compressed oops, and the garbage collector doesn't have to trace the elements.
+ * With compressed oops, the elements take as much space as references.
+ */
+final class ReverseDepIdList extends AbstractList<SkyKey> implements RandomAccess {
+
+  private final NodeIdTable ids;
+  private int[] elements;
+  private int size;
+
+  private ReverseDepIdList(NodeIdTable ids, int[] elements) {
+    this.ids = ids;
+    this.elements = elements;
+    this.size = elements.length;
+  }
+
+  /** Returns a list of {@code keys}, or null if one of them has no node and thus no id. */
+  @Nullable
+  static ReverseDepIdList copyOf(NodeIdTable ids, Collection<SkyKey> keys) {
+    int[] elements = new int[keys.size()];
+    return copyIds(ids, keys, elements, 0) ? new ReverseDepIdList(ids, elements) : null;
+  }
+
+  /**
+   * Appends {@code keys} and returns true, or returns false without changing this list if one of
+   * them has no node and thus no id.
+   */
+  boolean tryAddAll(Collection<SkyKey> keys) {
+    int newSize = size + keys.size();
+    if (newSize > elements.length) {
+      elements = Arrays.copyOf(elements, Math.max(newSize, size + (size >> 1)));
+    }
+    if (!copyIds(ids, keys, elements, size)) {
+      return false;
+    }
+    size = newSize;
+    modCount++;
+    return true;
+  }
+
+  private static boolean copyIds(
+      NodeIdTable ids, Collection<SkyKey> keys, int[] elements, int offset) {
+    for (SkyKey key : keys) {
+      int id = ids.id(key);
+      if (id < 0) {
+        return false;
+      }
+      elements[offset++] = id;
+    }
+    return true;
+  }
+
+  /**
+   * Sets the bits of {@code held} for the ids in this list whose bits are set in {@code released},
+   * and returns whether there were any.
+   */
+  boolean findIds(BitSet released, BitSet held) {
+    boolean found = false;
+    for (int i = 0; i < size; i++) {
+      if (released.get(elements[i])) {
+        held.set(elements[i]);
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public SkyKey get(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return ids.key(elements[index]);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+}
@@ -129,7 +129,7 @@ abstract class ReverseDepsUtility {
       newList.addAll(newReverseDeps);
       entry.setReverseDepsForReverseDepsUtil(newList);
     } else {
-      ((List<SkyKey>) reverseDeps).addAll(newReverseDeps);
+      entry.appendReverseDepsForReverseDepsUtil(newReverseDeps);
     }
   }
 
@@ -268,7 +268,7 @@ abstract class ReverseDepsUtility {
   }
 
   @SuppressWarnings("unchecked") // Casts to SkyKey and List.
-  private static void consolidateData(InMemoryNodeEntry entry) {
+  static void consolidateData(InMemoryNodeEntry entry) {
     List<Object> dataToConsolidate = entry.getReverseDepsDataToConsolidateForReverseDepsUtil();
     if (dataToConsolidate == null) {
       return;
@@ -0,0 +1,48 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.util.GroupedList;
+
+/**
+ * Decides which of the nodes that are ready to be evaluated are evaluated first. Nodes with a
+ * higher {@link #priority} go first. Among nodes of the same priority, nodes that were enqueued
+ * later go first, which is a depth-first traversal, except that restarted nodes always go first.
+ *
+ * <p>Only applies to evaluations on a priority queue, i.e. not on a {@link
+ * java.util.concurrent.ForkJoinPool}, which can't order its work.
+ */
+public interface SchedulingPolicy {
+
+  /** Schedules nodes depth-first only. */
+  SchedulingPolicy DEPTH_FIRST =
+      new SchedulingPolicy() {
+        @Override
+        public long priority(SkyKey key) {
+          return 0;
+        }
+
+        @Override
+        public void evaluated(SkyKey key, long computeNanos, GroupedList<SkyKey> directDeps) {}
+      };
+
+  /** Returns the priority of {@code key}, which is about to be enqueued for evaluation. */
+  long priority(SkyKey key);
+
+  /**
+   * Called when {@code key} has been evaluated to a value, with the time its {@link SkyFunction}
+   * took on its last, successful, call.
+   */
+  void evaluated(SkyKey key, long computeNanos, GroupedList<SkyKey> directDeps);
+}
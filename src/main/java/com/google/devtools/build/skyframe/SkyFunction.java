@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.util.GroupedList;
 import java.util.Map;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /**
@@ -385,5 +386,29 @@ public interface SkyFunction {
      * true}.
      */
     boolean restartPermitted();
+
+    /**
+     * Returns the {@link SkyKeyComputeState} of the {@link SkyFunction#compute} call for the key
+     * being evaluated, creating it with {@code stateSupplier} on the first call for the key.
+     *
+     * <p>The state outlives the call if it returns {@code null} because deps were missing: the
+     * restarted call gets the same object back, and may skip whatever work the previous calls
+     * already stashed in it. The state is discarded as soon as the key is done, is restarted from
+     * scratch, or the evaluation ends, so a restarted call must still be prepared to recompute
+     * everything. A {@link SkyFunction} must always ask for the same type of state.
+     *
+     * <p>Environments that can't keep state just return a new object every time.
+     */
+    default <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+      return stateSupplier.get();
+    }
   }
+
+  /**
+   * Partial results of a {@link #compute} call that a later call for the same key may reuse after
+   * a restart for missing deps. See {@link Environment#getState}.
+   *
+   * <p>Only the thread evaluating the key ever accesses the state, so it need not be thread-safe.
+   */
+  interface SkyKeyComputeState {}
 }
@@ -37,6 +37,7 @@ import com.google.devtools.build.skyframe.EvaluationProgressReceiver.EvaluationS
 import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
 import com.google.devtools.build.skyframe.ParallelEvaluatorContext.EnqueueParentBehavior;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.proto.GraphInconsistency.Inconsistency;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -48,6 +49,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /** A {@link SkyFunction.Environment} implementation for {@link ParallelEvaluator}. */
@@ -59,6 +61,7 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
           System.getProperty("skyframe.ParallelEvaluator.PrefetchOldDeps", "true"));
 
   private boolean building = true;
+  private boolean computeStateReused = false;
   private SkyKey depErrorKey = null;
   private final SkyKey skyKey;
   /**
@@ -881,6 +884,20 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
     return evaluatorContext.restartPermitted();
   }
 
+  @Override
+  @SuppressWarnings("unchecked") // A SkyFunction always asks for the same type of state.
+  public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    SkyKeyComputeState state = evaluatorContext.getComputeState(skyKey);
+    if (state == null) {
+      state = stateSupplier.get();
+      evaluatorContext.putComputeState(skyKey, state);
+    } else if (!computeStateReused) {
+      computeStateReused = true;
+      evaluatorContext.getProgressReceiver().computeStateReused(skyKey);
+    }
+    return (T) state;
+  }
+
   /** Thrown during environment construction if previously requested deps are no longer done. */
   static class UndonePreviouslyRequestedDeps extends Exception {
     private final ImmutableList<SkyKey> depKeys;
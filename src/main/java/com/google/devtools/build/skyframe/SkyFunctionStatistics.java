@@ -0,0 +1,201 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.MetricData;
+import com.google.devtools.build.lib.profiler.SingleStatRecorder;
+import java.io.PrintStream;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link EvaluationProgressReceiver} that keeps per-{@link SkyFunctionName} statistics of the
+ * {@link SkyFunction#compute} calls of evaluations: how long they took, how many of them were
+ * restarted for missing deps, how many deps those requested, how many nodes were restarted from
+ * scratch, how much time they wasted, and how many calls resumed from the {@link
+ * SkyFunction.SkyKeyComputeState} of a restarted call. Also keeps how many nodes the invalidations
+ * of large diffs dirtied, and how long that took.
+ */
+public final class SkyFunctionStatistics
+    extends EvaluationProgressReceiver.NullEvaluationProgressReceiver {
+
+  /** Number of buckets of the histograms: [0, 1), [1, 2), [2, 4), ..., [2^30, ...). */
+  private static final int HISTOGRAM_BUCKETS = 32;
+
+  private final ConcurrentHashMap<SkyFunctionName, FunctionStatistics> statistics =
+      new ConcurrentHashMap<>();
+  private final LongAdder invalidatedNodes = new LongAdder();
+  private final LongAdder invalidationNanos = new LongAdder();
+
+  /** The statistics of one {@link SkyFunction}. */
+  public static final class FunctionStatistics {
+    private final SkyFunctionName functionName;
+    private final SingleStatRecorder computeMillis;
+    private final SingleStatRecorder depsPerRestart;
+    private final LongAdder computeNanos = new LongAdder();
+    private final LongAdder wastedNanos = new LongAdder();
+    private final LongAdder depsRequestedByRestarts = new LongAdder();
+    private final LongAdder nodeRestarts = new LongAdder();
+    private final LongAdder resumedCalls = new LongAdder();
+
+    private FunctionStatistics(SkyFunctionName functionName) {
+      this.functionName = functionName;
+      this.computeMillis = new SingleStatRecorder(functionName, HISTOGRAM_BUCKETS);
+      this.depsPerRestart = new SingleStatRecorder(functionName, HISTOGRAM_BUCKETS);
+    }
+
+    public SkyFunctionName getFunctionName() {
+      return functionName;
+    }
+
+    /** Returns the histogram of the durations of all calls in milliseconds. */
+    public MetricData getComputeTime() {
+      return computeMillis.snapshot();
+    }
+
+    public long getComputeNanos() {
+      return computeNanos.sum();
+    }
+
+    /** Returns the histogram of the number of deps requested by calls that were restarted. */
+    public MetricData getDepsPerRestart() {
+      return depsPerRestart.snapshot();
+    }
+
+    public long getDepsRequestedByRestarts() {
+      return depsRequestedByRestarts.sum();
+    }
+
+    /**
+     * Returns the number of calls that returned a {@link SkyFunction.Restart}, which aren't part of
+     * {@link #getDepsPerRestart}.
+     */
+    public long getNodeRestarts() {
+      return nodeRestarts.sum();
+    }
+
+    /** Returns the total time of calls that were restarted, including node restarts. */
+    public long getWastedNanos() {
+      return wastedNanos.sum();
+    }
+
+    /** Returns the number of calls that reused the compute state of a restarted call. */
+    public long getResumedCalls() {
+      return resumedCalls.sum();
+    }
+  }
+
+  @Override
+  public void stateEnding(SkyKey skyKey, NodeState nodeState, long elapsedTimeNanos) {
+    if (nodeState != NodeState.COMPUTE || elapsedTimeNanos < 0) {
+      return;
+    }
+    FunctionStatistics function = get(skyKey.functionName());
+    function.computeMillis.addStat(toMillis(elapsedTimeNanos), skyKey);
+    function.computeNanos.add(elapsedTimeNanos);
+  }
+
+  @Override
+  public void restarting(SkyKey skyKey, int newlyRequestedDeps, long elapsedTimeNanos) {
+    FunctionStatistics function = get(skyKey.functionName());
+    function.depsPerRestart.addStat(newlyRequestedDeps, skyKey);
+    function.depsRequestedByRestarts.add(newlyRequestedDeps);
+    function.wastedNanos.add(elapsedTimeNanos);
+  }
+
+  @Override
+  public void nodeRestarted(SkyKey skyKey, long elapsedTimeNanos) {
+    FunctionStatistics function = get(skyKey.functionName());
+    function.nodeRestarts.increment();
+    function.wastedNanos.add(elapsedTimeNanos);
+  }
+
+  @Override
+  public void computeStateReused(SkyKey skyKey) {
+    get(skyKey.functionName()).resumedCalls.increment();
+  }
+
+  @Override
+  public void invalidationFinished(long dirtiedNodes, long elapsedTimeNanos) {
+    invalidatedNodes.add(dirtiedNodes);
+    invalidationNanos.add(elapsedTimeNanos);
+  }
+
+  private FunctionStatistics get(SkyFunctionName functionName) {
+    FunctionStatistics function = statistics.get(functionName);
+    return function != null
+        ? function
+        : statistics.computeIfAbsent(functionName, FunctionStatistics::new);
+  }
+
+  private static int toMillis(long nanos) {
+    return (int) Math.min(TimeUnit.NANOSECONDS.toMillis(nanos), Integer.MAX_VALUE);
+  }
+
+  /** Returns the statistics of all functions that were called, by descending total time. */
+  public ImmutableList<FunctionStatistics> getStatistics() {
+    return statistics.values().stream()
+        .sorted(Comparator.comparingLong(FunctionStatistics::getComputeNanos).reversed())
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Returns the number of nodes that invalidations of large diffs dirtied. */
+  public long getInvalidatedNodes() {
+    return invalidatedNodes.sum();
+  }
+
+  /** Returns the total time of the invalidations counted by {@link #getInvalidatedNodes}. */
+  public long getInvalidationNanos() {
+    return invalidationNanos.sum();
+  }
+
+  /** Forgets all calls and invalidations so far. */
+  public void reset() {
+    statistics.clear();
+    invalidatedNodes.reset();
+    invalidationNanos.reset();
+  }
+
+  /** Writes the statistics in a human-readable form to {@code out}. */
+  public void dump(PrintStream out) {
+    long invalidationMillis = TimeUnit.NANOSECONDS.toMillis(getInvalidationNanos());
+    if (invalidationMillis > 0 || getInvalidatedNodes() > 0) {
+      out.format(
+          "Invalidation: %d nodes dirtied in %d ms (%d nodes/s)%n",
+          getInvalidatedNodes(),
+          invalidationMillis,
+          getInvalidatedNodes() * 1000 / Math.max(invalidationMillis, 1));
+    }
+    for (FunctionStatistics function : getStatistics()) {
+      MetricData computeTime = function.getComputeTime();
+      MetricData depsPerRestart = function.getDepsPerRestart();
+      out.format(
+          "%s: %d calls in %d ms, %d restarts and %d node restarts wasting %d ms, restarts "
+              + "requesting %d deps (max %d), %d resumed calls%n",
+          function.getFunctionName(),
+          computeTime.getCount(),
+          TimeUnit.NANOSECONDS.toMillis(function.getComputeNanos()),
+          depsPerRestart.getCount(),
+          function.getNodeRestarts(),
+          TimeUnit.NANOSECONDS.toMillis(function.getWastedNanos()),
+          function.getDepsRequestedByRestarts(),
+          Math.max(depsPerRestart.getMax(), 0),
+          function.getResumedCalls());
+      out.println("  Compute time " + computeTime);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * A concurrent set of {@link SkyKey}s that can only grow, used by {@link
+ * InvalidatingNodeVisitor.BatchedDirtyingNodeVisitor} to remember the nodes it visited.
+ *
+ * <p>Keys are stored in open-addressed tables with linear probing, so a key costs a single array
+ * slot, 5 to 11 bytes with compressed oops depending on the load factor, instead of the node of
+ * about 40 bytes of a set backed by a {@link java.util.concurrent.ConcurrentHashMap}. The set is
+ * split into stripes by the high bits of the hash, each of which is locked while a key is added to
+ * it. Like in {@link OpenAddressingNodeMap}, keys are compared with {@link Object#equals}, so that
+ * keys that aren't interned are visited only once.
+ */
+@ThreadSafe
+final class VisitedKeySet {
+
+  private static final int MIN_CAPACITY = 8;
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  /**
+   * @param concurrencyLevel the number of stripes, rounded up to a power of two
+   * @param expectedSize the number of keys the set holds before it needs to grow
+   */
+  VisitedKeySet(int concurrencyLevel, int expectedSize) {
+    Preconditions.checkArgument(concurrencyLevel > 0, concurrencyLevel);
+    int numStripes = Math.max(Integer.highestOneBit(concurrencyLevel - 1) << 1, 1);
+    this.stripes = new Stripe[numStripes];
+    this.stripeShift = Integer.SIZE - Integer.numberOfTrailingZeros(numStripes);
+    for (int i = 0; i < numStripes; i++) {
+      stripes[i] = new Stripe(capacityFor(expectedSize / numStripes));
+    }
+  }
+
+  /** Returns a table capacity that is at most half full with {@code size} keys. */
+  private static int capacityFor(int size) {
+    return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(size * 2, 1)) << 1);
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** Adds {@code key} and returns true if it wasn't in the set yet. */
+  boolean add(SkyKey key) {
+    int hash = hash(key);
+    // Tables are indexed by the low bits of the hash.
+    Stripe stripe = stripeShift == Integer.SIZE ? stripes[0] : stripes[hash >>> stripeShift];
+    return stripe.add(key, hash);
+  }
+
+  /** Returns the number of keys in the set. Not atomic with respect to concurrent additions. */
+  int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  private static final class Stripe {
+    // Guarded by this.
+    private Object[] table;
+    private int size;
+
+    Stripe(int capacity) {
+      this.table = new Object[capacity];
+    }
+
+    synchronized boolean add(Object key, int hash) {
+      int mask = table.length - 1;
+      int i = hash & mask;
+      for (Object k = table[i]; k != null; i = (i + 1) & mask, k = table[i]) {
+        if (k == key || k.equals(key)) {
+          return false;
+        }
+      }
+      if ((size + 1) * 4 > table.length * 3) {
+        rehash();
+        mask = table.length - 1;
+        i = hash & mask;
+        while (table[i] != null) {
+          i = (i + 1) & mask;
+        }
+      }
+      table[i] = key;
+      size++;
+      return true;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    private void rehash() {
+      Object[] oldTable = table;
+      table = new Object[oldTable.length * 2];
+      int mask = table.length - 1;
+      for (Object key : oldTable) {
+        if (key != null) {
+          int i = hash(key) & mask;
+          while (table[i] != null) {
+            i = (i + 1) & mask;
+          }
+          table[i] = key;
+        }
+      }
+    }
+  }
+}
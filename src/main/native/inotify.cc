@@ -0,0 +1,293 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// JNI code of LinuxInotifyDiffAwareness. A thread blocked in the run() method
+// drains the inotify queue as soon as events arrive, so that the kernel queue
+// (fs.inotify.max_queued_events) doesn't overflow while nobody is polling. The
+// events are kept in the raw format of inotify(7) until poll() hands them to
+// Java, which does all the bookkeeping of watched directories.
+//
+// inotify events carry no timestamp, so run() notes when it first read events
+// after the last poll(). Since it reads them as soon as the kernel queues them,
+// that is a close bound of when the oldest event of the next poll() happened.
+
+#include <errno.h>
+#include <jni.h>
+#include <poll.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <string.h>
+#include <sys/eventfd.h>
+#include <sys/inotify.h>
+#include <time.h>
+#include <unistd.h>
+
+#include <string>
+
+#include "src/main/native/latin1_jni_path.h"
+#include "src/main/native/unix_jni.h"
+
+namespace blaze_jni {
+
+namespace {
+
+// Everything that changes a directory listing or a file's metadata. Symlinks
+// are not followed, like by the Java WatchService.
+const uint32_t kWatchMask = IN_CREATE | IN_DELETE | IN_MODIFY | IN_ATTRIB |
+                            IN_MOVED_FROM | IN_MOVED_TO | IN_DELETE_SELF |
+                            IN_MOVE_SELF | IN_ONLYDIR | IN_DONT_FOLLOW |
+                            IN_EXCL_UNLINK;
+
+struct JNIInotifyDiffAwareness {
+  // The inotify instance.
+  int inotify_fd;
+
+  // Written to by doClose() to wake up and stop run().
+  int wakeup_fd;
+
+  // Events read from inotify_fd but not polled yet, as struct inotify_events.
+  std::string events;
+
+  // Beyond this size, further events are dropped and overflowed is set.
+  size_t max_pending_bytes;
+
+  // If true, events were dropped since the last poll().
+  bool overflowed;
+
+  // CLOCK_MONOTONIC time in nanoseconds at which the first of the pending
+  // events was read, or 0 if there are none. This is the clock of
+  // System.nanoTime() on Linux.
+  int64_t oldest_event_nanos;
+
+  // True while run() is running.
+  bool running;
+
+  // Protects events, overflowed, oldest_event_nanos and running.
+  pthread_mutex_t mutex;
+
+  // Signalled when run() returns.
+  pthread_cond_t stopped;
+
+  JNIInotifyDiffAwareness(int inotify_fd, int wakeup_fd,
+                          size_t max_pending_bytes)
+      : inotify_fd(inotify_fd),
+        wakeup_fd(wakeup_fd),
+        max_pending_bytes(max_pending_bytes),
+        overflowed(false),
+        oldest_event_nanos(0),
+        running(false) {
+    pthread_mutex_init(&mutex, nullptr);
+    pthread_cond_init(&stopped, nullptr);
+  }
+
+  ~JNIInotifyDiffAwareness() {
+    pthread_cond_destroy(&stopped);
+    pthread_mutex_destroy(&mutex);
+  }
+};
+
+JNIInotifyDiffAwareness *GetInfo(JNIEnv *env, jobject diff_awareness) {
+  jclass clazz = env->GetObjectClass(diff_awareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  jlong field = env->GetLongField(diff_awareness, fid);
+  return reinterpret_cast<JNIInotifyDiffAwareness *>(field);
+}
+
+int64_t MonotonicNanos() {
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return static_cast<int64_t>(now.tv_sec) * 1000000000LL + now.tv_nsec;
+}
+
+// Reads all events that are queued on the inotify instance. Must be called
+// with info->mutex held.
+void DrainLocked(JNIInotifyDiffAwareness *info) {
+  // Large enough for at least one event with a name of NAME_MAX bytes.
+  alignas(struct inotify_event) char buf[64 * 1024];
+  for (;;) {
+    ssize_t len = read(info->inotify_fd, buf, sizeof buf);
+    if (len == -1 && errno == EINTR) {
+      continue;
+    }
+    if (len == -1 && errno != EAGAIN) {
+      // Errors other than an empty queue can't be reported from here; they
+      // lose events just like an overflow.
+      info->overflowed = true;
+    }
+    if (len <= 0) {
+      return;
+    }
+    if (info->oldest_event_nanos == 0) {
+      info->oldest_event_nanos = MonotonicNanos();
+    }
+    if (info->events.size() + len > info->max_pending_bytes) {
+      info->overflowed = true;
+    } else {
+      info->events.append(buf, len);
+    }
+  }
+}
+
+}  // namespace
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_create(
+    JNIEnv *env, jobject diff_awareness, jlong max_pending_bytes) {
+  int inotify_fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+  if (inotify_fd == -1) {
+    PostException(env, errno, "inotify_init1");
+    return;
+  }
+  int wakeup_fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+  if (wakeup_fd == -1) {
+    int saved_errno = errno;
+    close(inotify_fd);
+    PostException(env, saved_errno, "eventfd");
+    return;
+  }
+  JNIInotifyDiffAwareness *info = new JNIInotifyDiffAwareness(
+      inotify_fd, wakeup_fd, static_cast<size_t>(max_pending_bytes));
+  jclass clazz = env->GetObjectClass(diff_awareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  env->SetLongField(diff_awareness, fid, reinterpret_cast<jlong>(info));
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_addWatch(
+    JNIEnv *env, jobject diff_awareness, jstring path) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, diff_awareness);
+  const char *path_chars = GetStringLatin1Chars(env, path);
+  int wd = inotify_add_watch(info->inotify_fd, path_chars, kWatchMask);
+  if (wd == -1) {
+    if (errno == ENOENT || errno == ENOTDIR) {
+      // The directory is gone or was replaced in the meantime; its parent's
+      // watch reports that.
+    } else if (errno == ENOSPC) {
+      PostException(env, errno,
+                    std::string(path_chars) +
+                        " (inotify watch limit reached, see "
+                        "/proc/sys/fs/inotify/max_user_watches)");
+    } else {
+      PostException(env, errno, path_chars);
+    }
+  }
+  ReleaseStringLatin1Chars(path_chars);
+  return wd;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_removeWatch(
+    JNIEnv *env, jobject diff_awareness, jint wd) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, diff_awareness);
+  // Fails if the kernel already removed the watch, which is fine.
+  inotify_rm_watch(info->inotify_fd, wd);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_run(
+    JNIEnv *env, jobject diff_awareness, jobject listening) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, diff_awareness);
+  pthread_mutex_lock(&info->mutex);
+  info->running = true;
+  pthread_mutex_unlock(&info->mutex);
+
+  jclass countDownLatchClass = env->GetObjectClass(listening);
+  jmethodID countDownMethod =
+      env->GetMethodID(countDownLatchClass, "countDown", "()V");
+  env->CallVoidMethod(listening, countDownMethod);
+
+  struct pollfd fds[2];
+  fds[0].fd = info->inotify_fd;
+  fds[0].events = POLLIN;
+  fds[1].fd = info->wakeup_fd;
+  fds[1].events = POLLIN;
+  for (;;) {
+    if (poll(fds, 2, -1) == -1) {
+      if (errno == EINTR) {
+        continue;
+      }
+      // Polling can't fail with valid descriptors, but make sure that events
+      // aren't silently lost if it does.
+      pthread_mutex_lock(&info->mutex);
+      info->overflowed = true;
+      pthread_mutex_unlock(&info->mutex);
+      break;
+    }
+    if (fds[1].revents != 0) {
+      break;
+    }
+    pthread_mutex_lock(&info->mutex);
+    DrainLocked(info);
+    pthread_mutex_unlock(&info->mutex);
+  }
+
+  pthread_mutex_lock(&info->mutex);
+  info->running = false;
+  pthread_cond_broadcast(&info->stopped);
+  pthread_mutex_unlock(&info->mutex);
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_poll(
+    JNIEnv *env, jobject diff_awareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, diff_awareness);
+  pthread_mutex_lock(&info->mutex);
+  // Events are queued by the time the syscall that caused them returns, so
+  // this sees every change made before poll() was called.
+  DrainLocked(info);
+  if (info->overflowed) {
+    // Report dropped events the same way as the kernel does.
+    struct inotify_event overflow;
+    memset(&overflow, 0, sizeof overflow);
+    overflow.wd = -1;
+    overflow.mask = IN_Q_OVERFLOW;
+    info->events.append(reinterpret_cast<const char *>(&overflow),
+                        sizeof overflow);
+  }
+  jbyteArray result = env->NewByteArray(info->events.size());
+  if (result != nullptr) {
+    env->SetByteArrayRegion(result, 0, info->events.size(),
+                            reinterpret_cast<const jbyte *>(info->events.data()));
+    // Release the memory of a large batch of events.
+    std::string().swap(info->events);
+    info->overflowed = false;
+    jclass clazz = env->GetObjectClass(diff_awareness);
+    jfieldID fid = env->GetFieldID(clazz, "oldestEventNanos", "J");
+    env->SetLongField(diff_awareness, fid, info->oldest_event_nanos);
+    info->oldest_event_nanos = 0;
+  }
+  pthread_mutex_unlock(&info->mutex);
+  return result;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_doClose(
+    JNIEnv *env, jobject diff_awareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, diff_awareness);
+  uint64_t one = 1;
+  if (write(info->wakeup_fd, &one, sizeof one) == -1) {
+    // Can only fail if the counter overflows, in which case run() is woken up
+    // anyway.
+  }
+  pthread_mutex_lock(&info->mutex);
+  while (info->running) {
+    pthread_cond_wait(&info->stopped, &info->mutex);
+  }
+  pthread_mutex_unlock(&info->mutex);
+  close(info->inotify_fd);
+  close(info->wakeup_fd);
+  delete info;
+}
+
+}  // namespace blaze_jni
@@ -22,10 +22,12 @@
 #include <stdlib.h>
 #include <string.h>
 #include <sys/resource.h>
+#include <sys/socket.h>
 #include <sys/stat.h>
 #include <sys/syscall.h>
 #include <sys/time.h>
 #include <sys/types.h>
+#include <sys/un.h>
 #include <unistd.h>
 #include <utime.h>
 
@@ -382,6 +384,53 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return StatCommon(env, path, portable_lstat, false);
 }
 
+// Keep in sync with NativePosixFiles.STAT_BATCH_FIELDS and the offsets there.
+static const int kStatBatchFields = 9;
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    statBatch
+ * Signature: ([Ljava/lang/String;Z)[J
+ */
+extern "C" JNIEXPORT jlongArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_statBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths, jboolean follow_symlinks) {
+  jsize num_paths = env->GetArrayLength(paths);
+  std::vector<jlong> result(static_cast<size_t>(num_paths) * kStatBatchFields);
+  for (jsize i = 0; i < num_paths; i++) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+    const char *path_chars = GetStringLatin1Chars(env, path);
+    portable_stat_struct statbuf;
+    int r;
+    while ((r = follow_symlinks ? portable_stat(path_chars, &statbuf)
+                                : portable_lstat(path_chars, &statbuf)) == -1 &&
+           errno == EINTR) {
+    }
+    jlong *fields = &result[static_cast<size_t>(i) * kStatBatchFields];
+    if (r == -1) {
+      // The other fields stay 0.
+      fields[0] = errno;
+    } else {
+      fields[1] = statbuf.st_mode;
+      fields[2] = statbuf.st_size;
+      fields[3] = StatSeconds(statbuf, STAT_MTIME);
+      fields[4] = StatNanoSeconds(statbuf, STAT_MTIME);
+      fields[5] = StatSeconds(statbuf, STAT_CTIME);
+      fields[6] = StatNanoSeconds(statbuf, STAT_CTIME);
+      fields[7] = statbuf.st_dev;
+      fields[8] = statbuf.st_ino;
+    }
+    ReleaseStringLatin1Chars(path_chars);
+    // Don't run out of local references in large batches.
+    env->DeleteLocalRef(path);
+  }
+  jlongArray array = env->NewLongArray(result.size());
+  if (array != nullptr) {
+    env->SetLongArrayRegion(array, 0, result.size(), result.data());
+  }
+  return array;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
@@ -1078,6 +1127,81 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_write(
   free(buf);
 }
 
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_read(
+    JNIEnv *env, jclass clazz, jint fd, jbyteArray data, jint off, jint len) {
+  int data_len = env->GetArrayLength(data);
+  if (off < 0 || len < 0 || off > data_len || data_len - off < len) {
+    jclass oob = env->FindClass("java/lang/IndexOutOfBoundsException");
+    if (oob != nullptr) {
+      env->ThrowNew(oob, nullptr);
+    }
+    return -1;
+  }
+  if (len == 0) {
+    return 0;
+  }
+  jbyte *buf = static_cast<jbyte *>(malloc(len));
+  if (buf == nullptr) {
+    PostException(env, ENOMEM, "read");
+    return -1;
+  }
+  ssize_t res;
+  while ((res = read(fd, buf, len)) == -1 && errno == EINTR) {
+  }
+  if (res == -1) {
+    // SO_RCVTIMEO makes a read that timed out fail with EAGAIN.
+    bool timed_out = errno == EAGAIN || errno == EWOULDBLOCK;
+    PostException(env, timed_out ? ETIMEDOUT : errno, "read");
+  } else if (res == 0) {
+    // End of input.
+    res = -1;
+  } else {
+    env->SetByteArrayRegion(data, off, res, buf);
+  }
+  free(buf);
+  return res;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_connectUnixSocket(
+    JNIEnv *env, jclass clazz, jstring path, jint timeout_millis) {
+  const char *path_chars = GetStringLatin1Chars(env, path);
+  struct sockaddr_un addr;
+  memset(&addr, 0, sizeof addr);
+  addr.sun_family = AF_UNIX;
+  if (strlen(path_chars) >= sizeof addr.sun_path) {
+    PostException(env, ENAMETOOLONG, path_chars);
+    ReleaseStringLatin1Chars(path_chars);
+    return -1;
+  }
+  strncpy(addr.sun_path, path_chars, sizeof addr.sun_path - 1);
+  int fd = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (fd == -1) {
+    PostException(env, errno, path_chars);
+    ReleaseStringLatin1Chars(path_chars);
+    return -1;
+  }
+  struct timeval timeout;
+  timeout.tv_sec = timeout_millis / 1000;
+  timeout.tv_usec = (timeout_millis % 1000) * 1000;
+  if (fcntl(fd, F_SETFD, FD_CLOEXEC) == -1 ||
+      setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof timeout) ==
+          -1 ||
+      setsockopt(fd, SOL_SOCKET, SO_SNDTIMEO, &timeout, sizeof timeout) ==
+          -1 ||
+      connect(fd, reinterpret_cast<struct sockaddr *>(&addr), sizeof addr) ==
+          -1) {
+    int saved_errno = errno;
+    close(fd);
+    PostException(env, saved_errno, path_chars);
+    ReleaseStringLatin1Chars(path_chars);
+    return -1;
+  }
+  ReleaseStringLatin1Chars(path_chars);
+  return fd;
+}
+
 extern "C" JNIEXPORT jlong JNICALL
 Java_com_google_devtools_build_lib_unix_NativePosixSystem_sysctlbynameGetLong(
     JNIEnv *env, jclass clazz, jstring name) {
@@ -0,0 +1,104 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.unix.UnixFileSystem;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Microbenchmarks for concurrent lookups in a {@link CompactPersistentActionCache}, as done by the
+ * action cache checker from all evaluation threads during a null build.
+ */
+public class CompactPersistentActionCacheBenchmark {
+  private static final int KEYS = 10000;
+
+  @Param({"1", "8", "64"})
+  int threads;
+
+  @Param({"false", "true"})
+  boolean mappedLog;
+
+  private CompactPersistentActionCache cache;
+  private ExecutorService executor;
+
+  @BeforeExperiment
+  void createCache() throws Exception {
+    Path cacheRoot;
+    if (mappedLog) {
+      // The mapped log needs a real file to map.
+      cacheRoot =
+          new UnixFileSystem(DigestHashFunction.SHA256, /*hashAttributeName=*/ "")
+              .getPath(TestUtils.tmpDir())
+              .getChild("action_cache_benchmark");
+    } else {
+      cacheRoot =
+          new InMemoryFileSystem(DigestHashFunction.SHA256).getPath("/action_cache_benchmark");
+    }
+    cacheRoot.createDirectoryAndParents();
+    cache = new CompactPersistentActionCache(cacheRoot, BlazeClock.instance(), mappedLog);
+    for (int i = 0; i < KEYS; i++) {
+      String key = "key" + i;
+      ActionCache.Entry entry =
+          new ActionCache.Entry(key, ImmutableMap.of("k", "v"), /* discoversInputs= */ false);
+      entry.getFileDigest();
+      cache.put(key, entry);
+    }
+    cache.save();
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @AfterExperiment
+  void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  int concurrentGets(int reps) throws Exception {
+    List<Callable<Integer>> tasks = new ArrayList<>(threads);
+    for (int t = 0; t < threads; t++) {
+      int offset = t;
+      tasks.add(
+          () -> {
+            int found = 0;
+            for (int i = 0; i < reps; i++) {
+              if (cache.get("key" + ((offset + i) % KEYS)) != null) {
+                cache.accountHit();
+                found++;
+              }
+            }
+            return found;
+          });
+    }
+    int found = 0;
+    for (Future<Integer> future : executor.invokeAll(tasks)) {
+      found += future.get();
+    }
+    return found;
+  }
+}
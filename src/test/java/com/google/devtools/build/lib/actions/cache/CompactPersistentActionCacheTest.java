@@ -23,6 +23,11 @@ import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -137,6 +142,38 @@ public class CompactPersistentActionCacheTest {
     assertFullSave();
   }
 
+  @Test
+  public void testConcurrentPutsAndGets() throws Exception {
+    int threads = 8;
+    int keysPerThread = 200;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      String prefix = "thread" + t + "_";
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < keysPerThread; i++) {
+                  putKey(prefix + i);
+                  assertThat(cache.get(prefix + i)).isNotNull();
+                  assertThat(cache.get(prefix + (i / 2))).isNotNull();
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    cache.save();
+
+    CompactPersistentActionCache newcache = new CompactPersistentActionCache(dataRoot, clock);
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < keysPerThread; i++) {
+        assertKeyEquals(cache, newcache, "thread" + t + "_" + i);
+      }
+    }
+  }
+
   // Regression test to check that CompactActionCacheEntry.toString does not mutate the object.
   // Mutations may result in IllegalStateException.
   @Test
@@ -0,0 +1,257 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MappedActionLog}. */
+@RunWith(JUnit4.class)
+public class MappedActionLogTest {
+
+  private static final long VERSION = 12;
+  private static final int KEY_LIMIT = 1000;
+
+  private final ManualClock clock = new ManualClock();
+  private Path logFile;
+  private MappedActionLog log;
+
+  @Before
+  public void createLog() throws IOException {
+    Path dir = Files.createTempDirectory(Paths.get(TestUtils.tmpDir()), "mapped_action_log");
+    logFile = dir.resolve("action_log.blaze");
+    log = new MappedActionLog(logFile, VERSION, KEY_LIMIT, clock);
+  }
+
+  @After
+  public void closeLog() throws IOException {
+    log.close();
+  }
+
+  private void reload() throws IOException {
+    log.close();
+    log = new MappedActionLog(logFile, VERSION, KEY_LIMIT, clock);
+  }
+
+  private static byte[] value(int key, int length) {
+    byte[] value = new byte[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = (byte) (key + i);
+    }
+    return value;
+  }
+
+  @Test
+  public void putGetAndRemove() {
+    log.put(1, value(1, 10));
+    log.put(-1, value(-1, 10));
+    assertThat(log.get(1)).isEqualTo(value(1, 10));
+    assertThat(log.get(-1)).isEqualTo(value(-1, 10));
+    assertThat(log.get(2)).isNull();
+    assertThat(log.size()).isEqualTo(2);
+
+    log.remove(1);
+    log.remove(2);
+    assertThat(log.get(1)).isNull();
+    assertThat(log.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void entriesSurviveReload() throws IOException {
+    log.put(1, value(1, 10));
+    log.put(2, value(2, 20));
+    log.put(1, value(3, 30));
+    log.put(-1, value(-1, 5));
+    log.remove(2);
+    log.save();
+
+    reload();
+
+    assertThat(log.get(1)).isEqualTo(value(3, 30));
+    assertThat(log.get(2)).isNull();
+    assertThat(log.get(-1)).isEqualTo(value(-1, 5));
+    assertThat(log.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void entriesAreReadableAfterPeriodicFlush() {
+    log.put(1, value(1, 10));
+    clock.advanceMillis(10_000);
+    log.put(2, value(2, 10));
+
+    assertThat(log.getFileSize()).isGreaterThan(16L);
+    assertThat(log.get(1)).isEqualTo(value(1, 10));
+    assertThat(log.get(2)).isEqualTo(value(2, 10));
+  }
+
+  @Test
+  public void truncatedRecordIsDiscarded() throws IOException {
+    log.put(1, value(1, 10));
+    log.save();
+    log.put(2, value(2, 10));
+    long sizeWithBothRecords = log.save();
+    log.close();
+    try (RandomAccessFile file = new RandomAccessFile(logFile.toFile(), "rw")) {
+      file.setLength(sizeWithBothRecords - 3);
+    }
+
+    log = new MappedActionLog(logFile, VERSION, KEY_LIMIT, clock);
+
+    assertThat(log.get(1)).isEqualTo(value(1, 10));
+    assertThat(log.get(2)).isNull();
+    assertThat(log.getFileSize()).isLessThan(sizeWithBothRecords);
+  }
+
+  @Test
+  public void corruptedKeyIsRejected() throws IOException {
+    log.put(1, value(1, 10));
+    log.save();
+    log.close();
+    try (RandomAccessFile file = new RandomAccessFile(logFile.toFile(), "rw")) {
+      // The key of the first record, right after the file header.
+      file.seek(16);
+      file.writeInt(Integer.MAX_VALUE);
+    }
+
+    assertThrows(IOException.class, () -> new MappedActionLog(logFile, VERSION, KEY_LIMIT, clock));
+    Files.delete(logFile);
+    log = new MappedActionLog(logFile, VERSION, KEY_LIMIT, clock);
+  }
+
+  @Test
+  public void keyOfIndexerSizeIsRejected() throws IOException {
+    log.put(KEY_LIMIT - 1, value(1, 10));
+    log.save();
+    log.close();
+
+    assertThrows(
+        IOException.class, () -> new MappedActionLog(logFile, VERSION, KEY_LIMIT - 1, clock));
+    log = new MappedActionLog(logFile, VERSION, KEY_LIMIT, clock);
+    assertThat(log.get(KEY_LIMIT - 1)).isEqualTo(value(1, 10));
+  }
+
+  @Test
+  public void differentVersionIsDiscarded() throws IOException {
+    log.put(1, value(1, 10));
+    log.save();
+    log.close();
+
+    log = new MappedActionLog(logFile, VERSION + 1, KEY_LIMIT, clock);
+
+    assertThat(log.get(1)).isNull();
+    assertThat(log.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void saveCompactsSupersededRecords() throws IOException {
+    for (int round = 0; round < 10; round++) {
+      for (int key = 0; key < 100; key++) {
+        log.put(key, value(key + round, 10_000));
+      }
+      log.save();
+    }
+
+    assertThat(log.getFileSize()).isLessThan(3L * 100 * (10_000 + 8));
+    for (int key = 0; key < 100; key++) {
+      assertThat(log.get(key)).isEqualTo(value(key + 9, 10_000));
+    }
+    reload();
+    assertThat(log.size()).isEqualTo(100);
+    assertThat(log.get(42)).isEqualTo(value(42 + 9, 10_000));
+  }
+
+  @Test
+  public void readsDuringCompactionSeeLiveValues() throws Exception {
+    for (int key = 0; key < 50; key++) {
+      log.put(key, value(key, 1000));
+    }
+    log.save();
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread reader =
+        new Thread(
+            () -> {
+              try {
+                while (!done.get()) {
+                  for (int key = 0; key < 50; key++) {
+                    assertThat(log.get(key)).isEqualTo(value(key, 1000));
+                  }
+                }
+              } catch (Throwable t) {
+                failure.set(t);
+              }
+            });
+    reader.start();
+
+    long sizeBefore = log.getFileSize();
+    for (int round = 0; round < 10; round++) {
+      for (int key = 100; key < 200; key++) {
+        log.put(key, value(key + round, 10_000));
+      }
+      log.save();
+    }
+    done.set(true);
+    reader.join();
+
+    assertThat(failure.get()).isNull();
+    assertThat(log.getFileSize()).isLessThan(sizeBefore + 3L * 100 * (10_000 + 8));
+  }
+
+  @Test
+  public void clearRemovesEverything() throws IOException {
+    log.put(1, value(1, 10));
+    log.save();
+    log.put(2, value(2, 10));
+
+    log.clear();
+
+    assertThat(log.size()).isEqualTo(0);
+    assertThat(log.get(1)).isNull();
+    assertThat(log.get(2)).isNull();
+    reload();
+    assertThat(log.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void forEachVisitsFlushedAndPendingEntries() throws IOException {
+    log.put(1, value(1, 10));
+    log.put(-3, value(-3, 10));
+    log.save();
+    log.put(2, value(2, 10));
+    log.put(1, value(4, 10));
+
+    Map<Integer, byte[]> entries = new HashMap<>();
+    log.forEach(entries::put);
+
+    assertThat(entries.keySet()).containsExactly(1, 2, -3);
+    assertThat(entries.get(1)).isEqualTo(value(4, 10));
+  }
+}
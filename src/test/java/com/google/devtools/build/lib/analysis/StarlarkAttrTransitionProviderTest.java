@@ -235,6 +235,46 @@ public class StarlarkAttrTransitionProviderTest extends BuildViewTestCase {
         .containsExactly("crepe");
   }
 
+  @Test
+  public void testTransitionEventsAreReportedOnceAcrossRestarts() throws Exception {
+    setBuildLanguageOptions("--experimental_starlark_config_transitions=true");
+    writeAllowlistFile();
+    scratch.file(
+        "test/starlark/rules.bzl",
+        "def transition_func(settings, attr):",
+        "  print('applying my_transition')",
+        "  return {'//command_line_option:test_arg': ['stroopwafel']}",
+        "my_transition = transition(",
+        "  implementation = transition_func,",
+        "  inputs = [],",
+        "  outputs = ['//command_line_option:test_arg']",
+        ")",
+        "def _impl(ctx): ",
+        "  return []",
+        "my_rule = rule(",
+        "  implementation = _impl,",
+        "  attrs = {",
+        "    'dep':  attr.label(cfg = my_transition),",
+        "    '_allowlist_function_transition': attr.label(",
+        "        default = '//tools/allowlists/function_transition_allowlist',",
+        "    ),",
+        "  }",
+        ")",
+        "def _s_impl_e(ctx):",
+        "  return []",
+        "simple_rule = rule(_s_impl_e)");
+    scratch.file(
+        "test/starlark/BUILD",
+        "load('//test/starlark:rules.bzl', 'simple_rule', 'my_rule')",
+        "my_rule(name = 'test', dep = ':dep')",
+        "simple_rule(name = 'dep')");
+
+    // The configured target is restarted for its dep, which reuses the resolved configurations
+    // and replays the transition's events instead of applying it again.
+    getConfiguredTarget("//test/starlark:test");
+    assertContainsEventWithFrequency("applying my_transition", 1);
+  }
+
   @Test
   public void testStarlarkPatchTransitionSplitAttr() throws Exception {
     setBuildLanguageOptions("--experimental_starlark_config_transitions=true");
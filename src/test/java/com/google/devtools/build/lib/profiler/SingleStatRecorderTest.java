@@ -15,6 +15,9 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.devtools.build.lib.profiler.MetricData.HistogramElement;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -34,4 +37,34 @@ public class SingleStatRecorderTest {
     assertThat(metrics.getAvg()).isWithin(.01).of(50);
     assertThat(metrics.getStdDev()).isWithin(.01).of(5);
   }
+
+  @Test
+  public void concurrentStatsAreAllRecorded() throws Exception {
+    SingleStatRecorder recorder = new SingleStatRecorder(null, 4);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 10000; i++) {
+                  recorder.addStat(i % 10, null);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    MetricData metrics = recorder.snapshot();
+    assertThat(metrics.getCount()).isEqualTo(40000);
+    assertThat(metrics.getMax()).isEqualTo(9);
+    assertThat(metrics.getAvg()).isWithin(.01).of(4.5);
+    int histogramCount = 0;
+    for (HistogramElement element : metrics.getHistogram()) {
+      histogramCount += element.getCount();
+    }
+    assertThat(histogramCount).isEqualTo(40000);
+  }
 }
@@ -0,0 +1,211 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
+import io.grpc.Context;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/** Tests for {@link BatchingMissingDigestsFinder}. */
+@RunWith(JUnit4.class)
+public class BatchingMissingDigestsFinderTest {
+
+  private static final Digest A = digest("a");
+  private static final Digest B = digest("b");
+  private static final Digest C = digest("c");
+
+  /** Records the queries and lets the test answer them. */
+  private static class FakeFinder implements MissingDigestsFinder {
+    final List<ImmutableList<Digest>> queries = new ArrayList<>();
+    final List<SettableFuture<ImmutableSet<Digest>>> responses = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<ImmutableSet<Digest>> findMissingDigests(Iterable<Digest> digests) {
+      queries.add(ImmutableList.copyOf(digests));
+      SettableFuture<ImmutableSet<Digest>> response = SettableFuture.create();
+      responses.add(response);
+      return response;
+    }
+  }
+
+  private final FakeFinder delegate = new FakeFinder();
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = mock(ScheduledExecutorService.class);
+  }
+
+  private BatchingMissingDigestsFinder newFinder(int maxBatchSize) {
+    return new BatchingMissingDigestsFinder(
+        delegate,
+        scheduler,
+        Duration.ofMillis(10),
+        maxBatchSize,
+        Context.ROOT,
+        new KnownPresentDigests());
+  }
+
+  private void runScheduledFlushes(int expectedFlushes) {
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler, times(expectedFlushes))
+        .schedule(flush.capture(), anyLong(), eq(TimeUnit.NANOSECONDS));
+    Iterables.getLast(flush.getAllValues()).run();
+  }
+
+  @Test
+  public void concurrentQueriesAreBatched() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 100);
+
+    ListenableFuture<ImmutableSet<Digest>> first =
+        finder.findMissingDigests(ImmutableList.of(A, B));
+    ListenableFuture<ImmutableSet<Digest>> second =
+        finder.findMissingDigests(ImmutableList.of(B, C));
+    assertThat(delegate.queries).isEmpty();
+
+    runScheduledFlushes(1);
+    assertThat(delegate.queries).containsExactly(ImmutableList.of(A, B, C));
+    delegate.responses.get(0).set(ImmutableSet.of(B));
+
+    assertThat(first.get()).containsExactly(B);
+    assertThat(second.get()).containsExactly(B);
+    assertThat(finder.getStats().getRequests()).isEqualTo(2);
+    assertThat(finder.getStats().getRequestedDigests()).isEqualTo(4);
+    assertThat(finder.getStats().getBatches()).isEqualTo(1);
+    assertThat(finder.getStats().getQueriedDigests()).isEqualTo(3);
+    assertThat(finder.getStats().getSavedRoundTrips()).isEqualTo(1);
+  }
+
+  @Test
+  public void digestsBeingQueriedAreNotQueriedAgain() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 100);
+
+    ListenableFuture<ImmutableSet<Digest>> first = finder.findMissingDigests(ImmutableList.of(A));
+    runScheduledFlushes(1);
+    ListenableFuture<ImmutableSet<Digest>> second = finder.findMissingDigests(ImmutableList.of(A));
+    delegate.responses.get(0).set(ImmutableSet.of(A));
+
+    assertThat(first.get()).containsExactly(A);
+    assertThat(second.get()).containsExactly(A);
+    assertThat(delegate.queries).hasSize(1);
+  }
+
+  @Test
+  public void presentDigestsAreNotQueriedAgain() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 100);
+    finder.findMissingDigests(ImmutableList.of(A, B));
+    runScheduledFlushes(1);
+    delegate.responses.get(0).set(ImmutableSet.of(B));
+
+    ListenableFuture<ImmutableSet<Digest>> present =
+        finder.findMissingDigests(ImmutableList.of(A));
+    ListenableFuture<ImmutableSet<Digest>> missing =
+        finder.findMissingDigests(ImmutableList.of(A, B));
+
+    assertThat(present.isDone()).isTrue();
+    assertThat(present.get()).isEmpty();
+    runScheduledFlushes(2);
+    assertThat(delegate.queries).containsExactly(ImmutableList.of(A, B), ImmutableList.of(B));
+    delegate.responses.get(1).set(ImmutableSet.of(B));
+    assertThat(missing.get()).containsExactly(B);
+  }
+
+  @Test
+  public void fullBatchesAreSentImmediately() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 2);
+
+    ListenableFuture<ImmutableSet<Digest>> result =
+        finder.findMissingDigests(ImmutableList.of(A, B, C));
+
+    assertThat(delegate.queries).containsExactly(ImmutableList.of(A, B));
+    runScheduledFlushes(1);
+    assertThat(delegate.queries)
+        .containsExactly(ImmutableList.of(A, B), ImmutableList.of(C))
+        .inOrder();
+    delegate.responses.get(0).set(ImmutableSet.of(A));
+    delegate.responses.get(1).set(ImmutableSet.of());
+    assertThat(result.get()).containsExactly(A);
+  }
+
+  @Test
+  public void failuresArePropagatedAndRetried() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 100);
+    ListenableFuture<ImmutableSet<Digest>> result = finder.findMissingDigests(ImmutableList.of(A));
+    runScheduledFlushes(1);
+
+    delegate.responses.get(0).setException(new IOException("unavailable"));
+
+    ExecutionException e = assertThrows(ExecutionException.class, result::get);
+    assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+    finder.findMissingDigests(ImmutableList.of(A));
+    runScheduledFlushes(2);
+    assertThat(delegate.queries).hasSize(2);
+  }
+
+  @Test
+  public void cancellingOneQueryDoesNotAffectOthers() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 100);
+    ListenableFuture<ImmutableSet<Digest>> cancelled =
+        finder.findMissingDigests(ImmutableList.of(A));
+    ListenableFuture<ImmutableSet<Digest>> other = finder.findMissingDigests(ImmutableList.of(A));
+
+    cancelled.cancel(/* mayInterruptIfRunning= */ true);
+    runScheduledFlushes(1);
+    delegate.responses.get(0).set(ImmutableSet.of(A));
+
+    assertThat(other.get()).containsExactly(A);
+  }
+
+  @Test
+  public void emptyQueryCompletesImmediately() throws Exception {
+    BatchingMissingDigestsFinder finder = newFinder(/* maxBatchSize= */ 100);
+
+    ListenableFuture<ImmutableSet<Digest>> result = finder.findMissingDigests(ImmutableList.of());
+
+    assertThat(Futures.getDone(result)).isEmpty();
+    verify(scheduler, times(0)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  private static Digest digest(String hexChar) {
+    return Digest.newBuilder().setHash(Strings.repeat(hexChar, 64)).setSizeBytes(1).build();
+  }
+}
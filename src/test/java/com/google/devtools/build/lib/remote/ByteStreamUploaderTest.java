@@ -61,9 +61,11 @@ import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -75,6 +77,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
@@ -219,6 +223,88 @@ public class ByteStreamUploaderTest {
     withEmptyMetadata.detach(prevContext);
   }
 
+  @Test
+  public void compressedUploadShouldWork() throws Exception {
+    Context prevContext = withEmptyMetadata.attach();
+    RemoteRetrier retrier =
+        TestUtils.newRemoteRetrier(() -> mockBackoff, (e) -> true, retryService);
+    ByteStreamUploader uploader =
+        new ByteStreamUploader(
+            INSTANCE_NAME,
+            new ReferenceCountedChannel(channel),
+            CallCredentialsProvider.NO_CREDENTIALS,
+            /* callTimeoutSecs= */ 60,
+            retrier);
+
+    byte[] blob = new byte[CHUNK_SIZE * 100];
+    Arrays.fill(blob, (byte) 'x');
+
+    Chunker chunker =
+        Chunker.builder().setInput(blob).setChunkSize(CHUNK_SIZE).setCompressed(true).build();
+    HashCode hash = HashCode.fromString(DIGEST_UTIL.compute(blob).getHash());
+
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> streamObserver) {
+            return new StreamObserver<WriteRequest>() {
+
+              ByteArrayOutputStream receivedData = new ByteArrayOutputStream();
+
+              @Override
+              public void onNext(WriteRequest writeRequest) {
+                if (receivedData.size() == 0) {
+                  assertThat(writeRequest.getResourceName())
+                      .matches(
+                          INSTANCE_NAME
+                              + "/uploads/[^/]+/compressed-blobs/deflate/"
+                              + hash
+                              + "/"
+                              + blob.length);
+                }
+                assertThat(writeRequest.getWriteOffset()).isEqualTo(receivedData.size());
+                writeRequest.getData().writeTo(receivedData);
+              }
+
+              @Override
+              public void onError(Throwable throwable) {
+                fail("onError should never be called.");
+              }
+
+              @Override
+              public void onCompleted() {
+                byte[] compressed = receivedData.toByteArray();
+                assertThat(compressed.length).isLessThan(blob.length);
+                Inflater inflater = new Inflater(/* nowrap= */ true);
+                inflater.setInput(compressed);
+                byte[] uncompressed = new byte[blob.length];
+                try {
+                  assertThat(inflater.inflate(uncompressed)).isEqualTo(blob.length);
+                } catch (DataFormatException e) {
+                  throw new AssertionError(e);
+                }
+                assertThat(inflater.finished()).isTrue();
+                assertThat(uncompressed).isEqualTo(blob);
+
+                WriteResponse response =
+                    WriteResponse.newBuilder().setCommittedSize(compressed.length).build();
+                streamObserver.onNext(response);
+                streamObserver.onCompleted();
+              }
+            };
+          }
+        });
+
+    uploader.uploadBlob(hash, chunker, true);
+
+    // This test should not have triggered any retries.
+    Mockito.verifyZeroInteractions(mockBackoff);
+
+    blockUntilInternalStateConsistent(uploader);
+
+    withEmptyMetadata.detach(prevContext);
+  }
+
   @Test
   public void progressiveUploadShouldWork() throws Exception {
     Context prevContext = withEmptyMetadata.attach();
@@ -22,10 +22,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -173,6 +176,61 @@ public class ChunkerTest {
     assertThat(next.getData()).hasSize(8);
   }
 
+  @Test
+  public void compressedChunkingShouldWork() throws Exception {
+    // Random data repeated twice, so that it compresses to a few chunks.
+    byte[] expectedData = new byte[1000];
+    new Random().nextBytes(expectedData);
+    System.arraycopy(expectedData, 0, expectedData, 500, 500);
+
+    Chunker chunker =
+        Chunker.builder().setInput(expectedData).setChunkSize(10).setCompressed(true).build();
+    assertThat(chunker.isCompressed()).isTrue();
+    assertThat(chunker.getSize()).isEqualTo(expectedData.length);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    while (chunker.hasNext()) {
+      Chunk next = chunker.next();
+      assertThat(next.getOffset()).isEqualTo(compressed.size());
+      assertThat(next.getData().size()).isAtMost(10);
+      next.getData().writeTo(compressed);
+    }
+    assertThat(compressed.size()).isLessThan(expectedData.length);
+    assertThat(chunker.getOffset()).isEqualTo(compressed.size());
+
+    assertThat(inflate(compressed.toByteArray(), expectedData.length)).isEqualTo(expectedData);
+
+    // Seeking compresses the data again and resumes at the same compressed offset.
+    chunker.seek(12);
+    Chunk next = chunker.next();
+    assertThat(next.getOffset()).isEqualTo(12);
+    assertThat(next.getData().toByteArray())
+        .isEqualTo(Arrays.copyOfRange(compressed.toByteArray(), 12, 22));
+  }
+
+  @Test
+  public void compressedEmptyInput() throws Exception {
+    Chunker chunker =
+        Chunker.builder().setInput(new byte[0]).setChunkSize(10).setCompressed(true).build();
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    while (chunker.hasNext()) {
+      chunker.next().getData().writeTo(compressed);
+    }
+
+    assertThat(inflate(compressed.toByteArray(), 0)).isEmpty();
+  }
+
+  private static byte[] inflate(byte[] compressed, int size) throws DataFormatException {
+    Inflater inflater = new Inflater(/* nowrap= */ true);
+    inflater.setInput(compressed);
+    byte[] uncompressed = new byte[size];
+    assertThat(inflater.inflate(uncompressed)).isEqualTo(size);
+    assertThat(inflater.finished()).isTrue();
+    inflater.end();
+    return uncompressed;
+  }
+
   private void assertNextEquals(Chunker chunker, byte... data) throws IOException {
     assertThat(chunker.hasNext()).isTrue();
     ByteString next = chunker.next().getData();
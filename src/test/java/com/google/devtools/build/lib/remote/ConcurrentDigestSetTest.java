@@ -0,0 +1,101 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.remote.util.ConcurrentDigestSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ConcurrentDigestSet}. */
+@RunWith(JUnit4.class)
+public class ConcurrentDigestSetTest {
+
+  private static byte[] hash(int i) {
+    return Hashing.sha256().hashInt(i).asBytes();
+  }
+
+  @Test
+  public void addContainsRemove() {
+    ConcurrentDigestSet set = new ConcurrentDigestSet(32);
+
+    assertThat(set.add(hash(1))).isTrue();
+    assertThat(set.add(hash(1))).isFalse();
+    assertThat(set.contains(hash(1))).isTrue();
+    assertThat(set.contains(hash(2))).isFalse();
+    assertThat(set.size()).isEqualTo(1);
+
+    assertThat(set.remove(hash(1))).isTrue();
+    assertThat(set.remove(hash(1))).isFalse();
+    assertThat(set.contains(hash(1))).isFalse();
+    assertThat(set.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void growsAndReusesRemovedSlots() {
+    ConcurrentDigestSet set = new ConcurrentDigestSet(32);
+    for (int i = 0; i < 100_000; i++) {
+      set.add(hash(i));
+    }
+    for (int i = 0; i < 100_000; i += 2) {
+      set.remove(hash(i));
+    }
+    for (int i = 100_000; i < 150_000; i++) {
+      set.add(hash(i));
+    }
+
+    assertThat(set.size()).isEqualTo(100_000);
+    for (int i = 0; i < 150_000; i++) {
+      assertThat(set.contains(hash(i))).isEqualTo(i >= 100_000 || i % 2 == 1);
+    }
+  }
+
+  @Test
+  public void concurrentAdds() throws Exception {
+    ConcurrentDigestSet set = new ConcurrentDigestSet(32);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 10_000; i++) {
+                  set.add(hash(i));
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    assertThat(set.size()).isEqualTo(10_000);
+  }
+
+  @Test
+  public void rejectsHashOfWrongLength() {
+    ConcurrentDigestSet set = new ConcurrentDigestSet(32);
+
+    assertThrows(IllegalArgumentException.class, () -> set.add(new byte[20]));
+  }
+}
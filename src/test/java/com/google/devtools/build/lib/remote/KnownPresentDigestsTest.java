@@ -0,0 +1,101 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link KnownPresentDigests}. */
+@RunWith(JUnit4.class)
+public class KnownPresentDigestsTest {
+
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+
+  private final Digest foo = DIGEST_UTIL.computeAsUtf8("foo");
+  private final Digest bar = DIGEST_UTIL.computeAsUtf8("bar");
+  private final ManualClock clock = new ManualClock();
+
+  @Test
+  public void invocationSetNeverForgets() {
+    KnownPresentDigests known = new KnownPresentDigests();
+
+    known.add(foo);
+
+    assertThat(known.contains(foo)).isTrue();
+    assertThat(known.contains(HashCode.fromString(foo.getHash()))).isTrue();
+    assertThat(known.contains(bar)).isFalse();
+  }
+
+  @Test
+  public void digestsOfOtherLengthAreNeverPresent() {
+    KnownPresentDigests known = new KnownPresentDigests();
+    Digest sha1Foo = new DigestUtil(DigestHashFunction.SHA1).computeAsUtf8("foo");
+
+    known.add(foo);
+    known.add(sha1Foo);
+
+    assertThat(known.contains(foo)).isTrue();
+    assertThat(known.contains(sha1Foo)).isFalse();
+    assertThat(known.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void digestsExpireAfterTtl() {
+    KnownPresentDigests known = new KnownPresentDigests(clock, Duration.ofMinutes(10), "cache");
+    known.add(foo);
+
+    clock.advanceMillis(Duration.ofMinutes(6).toMillis());
+    known.add(bar);
+    assertThat(known.contains(foo)).isTrue();
+    assertThat(known.contains(bar)).isTrue();
+
+    clock.advanceMillis(Duration.ofMinutes(4).toMillis());
+    assertThat(known.contains(foo)).isFalse();
+    assertThat(known.contains(bar)).isTrue();
+
+    clock.advanceMillis(Duration.ofMinutes(6).toMillis());
+    assertThat(known.contains(bar)).isFalse();
+  }
+
+  @Test
+  public void digestsExpireAfterIdlePeriod() {
+    KnownPresentDigests known = new KnownPresentDigests(clock, Duration.ofMinutes(10), "cache");
+    known.addAll(ImmutableList.of(foo, bar));
+
+    clock.advanceMillis(Duration.ofDays(1).toMillis());
+
+    assertThat(known.contains(foo)).isFalse();
+    assertThat(known.contains(bar)).isFalse();
+  }
+
+  @Test
+  public void compatibility() {
+    KnownPresentDigests known = new KnownPresentDigests(clock, Duration.ofMinutes(10), "cache");
+
+    assertThat(known.isCompatible("cache", Duration.ofMinutes(10))).isTrue();
+    assertThat(known.isCompatible("other", Duration.ofMinutes(10))).isFalse();
+    assertThat(known.isCompatible("cache", Duration.ofMinutes(5))).isFalse();
+    assertThat(new KnownPresentDigests().isCompatible("", Duration.ofMinutes(10))).isFalse();
+  }
+}
@@ -204,7 +204,8 @@ public class RemoteSpawnCacheTest {
         "command-id",
         reporter,
         digestUtil,
-        /* filesToDownload= */ ImmutableSet.of());
+        /* filesToDownload= */ ImmutableSet.of(),
+        /* merkleTreeCache= */ null);
   }
 
   @Before
@@ -843,7 +843,8 @@ public class RemoteSpawnRunnerTest {
             retryService,
             digestUtil,
             logDir,
-            /* filesToDownload= */ ImmutableSet.of());
+            /* filesToDownload= */ ImmutableSet.of(),
+            /* merkleTreeCache= */ null);
 
     ExecuteResponse succeeded =
         ExecuteResponse.newBuilder()
@@ -1261,6 +1262,7 @@ public class RemoteSpawnRunnerTest {
         retryService,
         digestUtil,
         logDir,
-        topLevelOutputs);
+        topLevelOutputs,
+        /* merkleTreeCache= */ null);
   }
 }
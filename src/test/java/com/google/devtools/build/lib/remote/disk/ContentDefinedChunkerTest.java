@@ -0,0 +1,144 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ContentDefinedChunker}. */
+@RunWith(JUnit4.class)
+public class ContentDefinedChunkerTest {
+
+  private static final int AVERAGE_SIZE = 4096;
+
+  private final ContentDefinedChunker chunker = new ContentDefinedChunker(AVERAGE_SIZE);
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private List<byte[]> chunk(byte[] data) throws IOException {
+    return chunk(new ByteArrayInputStream(data));
+  }
+
+  private List<byte[]> chunk(InputStream in) throws IOException {
+    List<byte[]> chunks = new ArrayList<>();
+    chunker.chunk(
+        in,
+        (buffer, offset, length) -> chunks.add(Arrays.copyOfRange(buffer, offset, offset + length)));
+    return chunks;
+  }
+
+  private static Set<String> asSet(List<byte[]> chunks) {
+    Set<String> set = new HashSet<>();
+    for (byte[] chunk : chunks) {
+      set.add(Arrays.toString(chunk));
+    }
+    return set;
+  }
+
+  @Test
+  public void chunksConcatenateToInput() throws Exception {
+    byte[] data = randomBytes(1 << 20, 1);
+
+    List<byte[]> chunks = chunk(data);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < chunks.size(); i++) {
+      byte[] chunk = chunks.get(i);
+      assertThat(chunk.length).isAtMost(chunker.getMaxSize());
+      if (i < chunks.size() - 1) {
+        assertThat(chunk.length).isAtLeast(AVERAGE_SIZE / 4);
+      }
+      out.write(chunk);
+    }
+    assertThat(out.toByteArray()).isEqualTo(data);
+    // Roughly the average size, allowing for the minimum size offset.
+    assertThat(chunks.size()).isGreaterThan((1 << 20) / (AVERAGE_SIZE * 4));
+    assertThat(chunks.size()).isLessThan((1 << 20) / (AVERAGE_SIZE / 4));
+  }
+
+  @Test
+  public void emptyInputHasNoChunks() throws Exception {
+    assertThat(chunk(new byte[0])).isEmpty();
+  }
+
+  @Test
+  public void uniformInputIsCutAtMaxSize() throws Exception {
+    byte[] data = new byte[3 * chunker.getMaxSize() + 17];
+
+    List<byte[]> chunks = chunk(data);
+
+    assertThat(chunks).hasSize(4);
+    assertThat(chunks.get(0)).hasLength(chunker.getMaxSize());
+    assertThat(chunks.get(3)).hasLength(17);
+  }
+
+  @Test
+  public void insertionOnlyChangesNearbyChunks() throws Exception {
+    byte[] data = randomBytes(1 << 20, 2);
+    byte[] modified = new byte[data.length + 100];
+    int insertAt = data.length / 2;
+    System.arraycopy(data, 0, modified, 0, insertAt);
+    System.arraycopy(randomBytes(100, 3), 0, modified, insertAt, 100);
+    System.arraycopy(data, insertAt, modified, insertAt + 100, data.length - insertAt);
+
+    Set<String> original = asSet(chunk(data));
+    List<byte[]> modifiedChunks = chunk(modified);
+
+    int changed = 0;
+    for (byte[] chunk : modifiedChunks) {
+      if (!original.contains(Arrays.toString(chunk))) {
+        changed++;
+      }
+    }
+    assertThat(changed).isAtLeast(1);
+    assertThat(changed).isAtMost(3);
+  }
+
+  @Test
+  public void chunkingIsIndependentOfReadSizes() throws Exception {
+    byte[] data = randomBytes(1 << 18, 4);
+    List<byte[]> expected = chunk(data);
+
+    List<byte[]> actual =
+        chunk(
+            new ByteArrayInputStream(data) {
+              @Override
+              public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+              }
+            });
+
+    assertThat(actual).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(actual.get(i)).isEqualTo(expected.get(i));
+    }
+  }
+}
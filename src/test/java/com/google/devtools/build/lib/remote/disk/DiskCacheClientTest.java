@@ -0,0 +1,219 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.Utils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheClient}. */
+@RunWith(JUnit4.class)
+public class DiskCacheClientTest {
+
+  private final DigestUtil digestUtil = new DigestUtil(DigestHashFunction.SHA256);
+  private Path root;
+
+  @Before
+  public void setUp() throws IOException {
+    FileSystem fs = new InMemoryFileSystem(new JavaClock(), DigestHashFunction.SHA256);
+    root = fs.getPath("/disk_cache");
+    root.createDirectoryAndParents();
+  }
+
+  private Path casPath(Digest digest) {
+    String hash = digest.getHash();
+    return root.getChild("cas").getChild(hash.substring(0, 2)).getChild(hash);
+  }
+
+  @Test
+  public void blobDeletedOutsideOfBazelIsMissing() throws Exception {
+    DiskCacheClient client = new DiskCacheClient(root, /* verifyDownloads= */ true, digestUtil);
+    ByteString data = ByteString.copyFromUtf8("contents");
+    Digest digest = digestUtil.compute(data.toByteArray());
+    Utils.getFromFuture(client.uploadBlob(digest, data));
+    assertThat(Utils.getFromFuture(client.findMissingDigests(ImmutableList.of(digest)))).isEmpty();
+
+    casPath(digest).delete();
+
+    assertThat(Utils.getFromFuture(client.findMissingDigests(ImmutableList.of(digest))))
+        .containsExactly(digest);
+  }
+
+  private static ByteString randomBlob(int size, long seed) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return ByteString.copyFrom(data);
+  }
+
+  private DiskCacheClient newChunkingClient() {
+    return new DiskCacheClient(
+        root,
+        /* maxSizeBytes= */ 0,
+        /* chunkingThresholdBytes= */ 1024 * 1024,
+        /* writerThreads= */ 0,
+        /* verifyDownloads= */ true,
+        digestUtil);
+  }
+
+  private ByteString download(DiskCacheClient client, Digest digest) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Utils.getFromFuture(client.downloadBlob(digest, out));
+    return ByteString.copyFrom(out.toByteArray());
+  }
+
+  private Path chunkManifest(Digest digest) {
+    return casPath(digest).getParentDirectory().getChild(digest.getHash() + ".chunks");
+  }
+
+  private ImmutableList<String> chunkHashes(Digest digest) throws IOException {
+    return ImmutableList.copyOf(FileSystemUtils.readLines(chunkManifest(digest), UTF_8));
+  }
+
+  @Test
+  public void chunkedBlobRoundTrip() throws Exception {
+    DiskCacheClient client = newChunkingClient();
+    ByteString data = randomBlob(4 * 1024 * 1024, /* seed= */ 1);
+    Digest digest = digestUtil.compute(data.toByteArray());
+
+    Utils.getFromFuture(client.uploadBlob(digest, data));
+
+    assertThat(casPath(digest).exists()).isFalse();
+    assertThat(chunkHashes(digest).size()).isGreaterThan(1);
+    assertThat(client.getStats().getChunkedBytes()).isEqualTo(data.size());
+    assertThat(Utils.getFromFuture(client.findMissingDigests(ImmutableList.of(digest)))).isEmpty();
+    assertThat(download(client, digest)).isEqualTo(data);
+  }
+
+  @Test
+  public void chunksAreSharedBetweenBlobs() throws Exception {
+    DiskCacheClient client = newChunkingClient();
+    ByteString data1 = randomBlob(4 * 1024 * 1024, /* seed= */ 1);
+    byte[] modified = data1.toByteArray();
+    modified[modified.length / 2] ^= 1;
+    ByteString data2 = ByteString.copyFrom(modified);
+    Digest digest1 = digestUtil.compute(data1.toByteArray());
+    Digest digest2 = digestUtil.compute(data2.toByteArray());
+
+    Utils.getFromFuture(client.uploadBlob(digest1, data1));
+    assertThat(client.getStats().getDeduplicatedBytes()).isEqualTo(0);
+    Utils.getFromFuture(client.uploadBlob(digest2, data2));
+
+    // Only the chunk containing the modified byte is stored again.
+    assertThat(client.getStats().getDeduplicatedBytes()).isGreaterThan(data2.size() / 2L);
+    assertThat(download(client, digest1)).isEqualTo(data1);
+    assertThat(download(client, digest2)).isEqualTo(data2);
+  }
+
+  @Test
+  public void blobWithEvictedChunkIsMissing() throws Exception {
+    DiskCacheClient client = newChunkingClient();
+    ByteString data = randomBlob(4 * 1024 * 1024, /* seed= */ 1);
+    Digest digest = digestUtil.compute(data.toByteArray());
+    Utils.getFromFuture(client.uploadBlob(digest, data));
+    String chunkHash = chunkHashes(digest).get(1);
+    root.getChild("cas").getChild(chunkHash.substring(0, 2)).getChild(chunkHash).delete();
+
+    assertThrows(CacheNotFoundException.class, () -> download(client, digest));
+
+    assertThat(chunkManifest(digest).exists()).isFalse();
+    assertThat(Utils.getFromFuture(client.findMissingDigests(ImmutableList.of(digest))))
+        .containsExactly(digest);
+    // Uploading the blob again repairs it.
+    Utils.getFromFuture(client.uploadBlob(digest, data));
+    assertThat(download(client, digest)).isEqualTo(data);
+  }
+
+  private DiskCacheClient newAsyncClient(long chunkingThresholdBytes) {
+    return new DiskCacheClient(
+        root,
+        /* maxSizeBytes= */ 0,
+        chunkingThresholdBytes,
+        /* writerThreads= */ 1,
+        /* verifyDownloads= */ true,
+        digestUtil);
+  }
+
+  @Test
+  public void asyncUploadOfModifiedFileIsDropped() throws Exception {
+    DiskCacheClient client = newAsyncClient(/* chunkingThresholdBytes= */ 0);
+    Path file = root.getRelative("../out/file");
+    file.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(file, "modified");
+    Digest digest = digestUtil.computeAsUtf8("original");
+
+    Utils.getFromFuture(client.uploadFile(digest, file));
+    client.close();
+
+    assertThat(client.getStats().getFailedWrites()).isEqualTo(1);
+    assertThat(casPath(digest).exists()).isFalse();
+    assertThat(Utils.getFromFuture(client.findMissingDigests(ImmutableList.of(digest))))
+        .containsExactly(digest);
+  }
+
+  @Test
+  public void asyncUploadOfModifiedChunkedFileIsDropped() throws Exception {
+    DiskCacheClient client = newAsyncClient(/* chunkingThresholdBytes= */ 1024 * 1024);
+    ByteString data = randomBlob(4 * 1024 * 1024, /* seed= */ 1);
+    Digest digest = digestUtil.compute(data.toByteArray());
+    byte[] modified = data.toByteArray();
+    modified[modified.length / 2] ^= 1;
+    Path file = root.getRelative("../out/file");
+    file.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(file, modified);
+
+    Utils.getFromFuture(client.uploadFile(digest, file));
+    client.close();
+
+    assertThat(client.getStats().getFailedWrites()).isEqualTo(1);
+    assertThat(chunkManifest(digest).exists()).isFalse();
+    assertThat(Utils.getFromFuture(client.findMissingDigests(ImmutableList.of(digest))))
+        .containsExactly(digest);
+  }
+
+  @Test
+  public void asyncUploadedFileIsCopied() throws Exception {
+    DiskCacheClient client = newAsyncClient(/* chunkingThresholdBytes= */ 0);
+    Path file = root.getRelative("../out/file");
+    file.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(file, "original");
+    Digest digest = digestUtil.computeAsUtf8("original");
+
+    Utils.getFromFuture(client.uploadFile(digest, file));
+    client.close();
+    FileSystemUtils.writeContentAsLatin1(file, "modified");
+
+    assertThat(client.getStats().getFailedWrites()).isEqualTo(0);
+    assertThat(download(client, digest)).isEqualTo(ByteString.copyFromUtf8("original"));
+  }
+}
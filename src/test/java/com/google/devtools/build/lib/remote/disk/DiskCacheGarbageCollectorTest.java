@@ -0,0 +1,249 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheGarbageCollector} and {@link DiskCacheIndex}. */
+@RunWith(JUnit4.class)
+public class DiskCacheGarbageCollectorTest {
+
+  private final ManualClock clock = new ManualClock();
+  private Path root;
+
+  @Before
+  public void setUp() throws IOException {
+    // Files are timestamped with the clock of the garbage collector, so that it can tell their age.
+    FileSystem fs = new InMemoryFileSystem(clock, DigestHashFunction.SHA256);
+    root = fs.getPath("/disk_cache");
+    root.createDirectoryAndParents();
+  }
+
+  private DiskCacheGarbageCollector newGarbageCollector(long maxSizeBytes) {
+    return new DiskCacheGarbageCollector(root, maxSizeBytes, /* presenceIndex= */ null, clock);
+  }
+
+  private String writeEntry(String hash, int size) throws IOException {
+    Path path = root.getChild("cas").getChild(hash.substring(0, 2)).getChild(hash);
+    path.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(path, new byte[size]);
+    return path.relativeTo(root).getPathString();
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws Exception {
+    DiskCacheGarbageCollector gc = newGarbageCollector(/* maxSizeBytes= */ 100);
+    DiskCacheStats stats = new DiskCacheStats();
+
+    String first = writeEntry("aa01", 40);
+    gc.recordWrite(first, 40, stats);
+    clock.advanceMillis(1);
+    String second = writeEntry("bb02", 40);
+    gc.recordWrite(second, 40, stats);
+    clock.advanceMillis(1);
+    gc.recordAccess(first);
+    clock.advanceMillis(1);
+    String third = writeEntry("cc03", 40);
+    gc.recordWrite(third, 40, stats);
+    gc.awaitIdle();
+
+    assertThat(root.getRelative(first).exists()).isTrue();
+    assertThat(root.getRelative(second).exists()).isFalse();
+    assertThat(root.getRelative(third).exists()).isTrue();
+    assertThat(gc.getIndex().getTotalSize()).isEqualTo(80);
+    assertThat(stats.getEvictedEntries()).isEqualTo(1);
+    assertThat(stats.getEvictedBytes()).isEqualTo(40);
+  }
+
+  @Test
+  public void evictedBlobsAreRemovedFromPresenceIndex() throws Exception {
+    DiskCachePresenceIndex presenceIndex = new DiskCachePresenceIndex(root, /* hashLength= */ 32);
+    presenceIndex.populate();
+    DiskCacheGarbageCollector gc =
+        new DiskCacheGarbageCollector(root, /* maxSizeBytes= */ 100, presenceIndex, clock);
+    DiskCacheStats stats = new DiskCacheStats();
+    String hash1 = Hashing.sha256().hashInt(1).toString();
+    String hash2 = Hashing.sha256().hashInt(2).toString();
+
+    String first = writeEntry(hash1, 60);
+    presenceIndex.add(hash1);
+    gc.recordWrite(first, 60, stats);
+    clock.advanceMillis(1);
+    String second = writeEntry(hash2, 60);
+    presenceIndex.add(hash2);
+    gc.recordWrite(second, 60, stats);
+    gc.awaitIdle();
+
+    assertThat(root.getRelative(first).exists()).isFalse();
+    assertThat(presenceIndex.mayContain(hash1)).isFalse();
+    assertThat(presenceIndex.mayContain(hash2)).isTrue();
+  }
+
+  @Test
+  public void entriesAccessedSinceCollectionStartedAreKept() throws Exception {
+    DiskCacheGarbageCollector gc = newGarbageCollector(/* maxSizeBytes= */ 100);
+    DiskCacheStats stats = new DiskCacheStats();
+
+    // Neither entry has been accessed before the collection that the second write triggers.
+    gc.recordWrite(writeEntry("aa01", 60), 60, stats);
+    gc.recordWrite(writeEntry("bb02", 60), 60, stats);
+    gc.awaitIdle();
+
+    assertThat(gc.getIndex().size()).isEqualTo(2);
+    assertThat(stats.getEvictedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void doesNotCollectBelowMaxSize() throws Exception {
+    DiskCacheGarbageCollector gc = newGarbageCollector(/* maxSizeBytes= */ 100);
+    DiskCacheStats stats = new DiskCacheStats();
+
+    gc.recordWrite(writeEntry("aa01", 50), 50, stats);
+    gc.recordWrite(writeEntry("bb02", 50), 50, stats);
+    gc.awaitIdle();
+
+    assertThat(gc.getIndex().size()).isEqualTo(2);
+    assertThat(stats.getEvictedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void indexIsRebuiltFromCacheDirectory() throws Exception {
+    writeEntry("aa01", 10);
+    writeEntry("bb02", 20);
+
+    DiskCacheGarbageCollector gc = newGarbageCollector(/* maxSizeBytes= */ 100);
+    gc.awaitIdle();
+
+    assertThat(gc.getIndex().size()).isEqualTo(2);
+    assertThat(gc.getIndex().getTotalSize()).isEqualTo(30);
+    assertThat(root.getChild(DiskCacheIndex.INDEX_FILENAME).exists()).isTrue();
+  }
+
+  @Test
+  public void indexIsReloaded() throws Exception {
+    DiskCacheIndex index = new DiskCacheIndex(root);
+    index.add("cas/aa/aa01", 10, 1);
+    index.add("ac/bb/bb02", 20, 2);
+    index.save();
+
+    DiskCacheIndex reloaded = new DiskCacheIndex(root);
+    assertThat(reloaded.load()).isTrue();
+
+    assertThat(reloaded.contains("cas/aa/aa01")).isTrue();
+    assertThat(reloaded.contains("ac/bb/bb02")).isTrue();
+    assertThat(reloaded.getTotalSize()).isEqualTo(30);
+    assertThat(reloaded.getEntriesByLastAccess().get(0).getKey()).isEqualTo("cas/aa/aa01");
+  }
+
+  @Test
+  public void loadedIndexIsReconciledWithCacheDirectory() throws Exception {
+    DiskCacheIndex index = new DiskCacheIndex(root);
+    index.add(writeEntry("aa01", 10), 10, 0);
+    index.add("cas/bb/bb02", 20, 0);
+    index.save();
+    // Written after the index was saved, e.g. by a server that crashed before saving it.
+    String unsaved = writeEntry("cc03", 30);
+    clock.advanceMillis(1);
+
+    DiskCacheGarbageCollector gc = newGarbageCollector(/* maxSizeBytes= */ 100);
+    gc.awaitIdle();
+
+    assertThat(gc.getIndex().contains("cas/aa/aa01")).isTrue();
+    assertThat(gc.getIndex().contains("cas/bb/bb02")).isFalse();
+    assertThat(gc.getIndex().contains(unsaved)).isTrue();
+    assertThat(gc.getIndex().getTotalSize()).isEqualTo(40);
+  }
+
+  @Test
+  public void indexIsReconciledPeriodically() throws Exception {
+    DiskCacheGarbageCollector gc = newGarbageCollector(/* maxSizeBytes= */ 100);
+    gc.awaitIdle();
+    String written = writeEntry("aa01", 10);
+
+    gc.flush();
+    gc.awaitIdle();
+    assertThat(gc.getIndex().contains(written)).isFalse();
+
+    clock.advanceMillis(DiskCacheGarbageCollector.RECONCILE_INTERVAL_MILLIS);
+    gc.flush();
+    gc.awaitIdle();
+    assertThat(gc.getIndex().contains(written)).isTrue();
+  }
+
+  @Test
+  public void orphanedTemporaryFilesAreDeleted() throws Exception {
+    Path orphanedBlob = root.getChild(UUID.randomUUID().toString());
+    Path orphanedIndex = root.getChild(DiskCacheIndex.INDEX_FILENAME + "." + UUID.randomUUID());
+    Path other = root.getChild("README");
+    FileSystemUtils.writeContent(orphanedBlob, new byte[1]);
+    FileSystemUtils.writeContent(orphanedIndex, new byte[1]);
+    FileSystemUtils.writeContent(other, new byte[1]);
+    clock.advanceMillis(DiskCacheGarbageCollector.ORPHANED_FILE_AGE_MILLIS);
+    // May still be written to.
+    Path recent = root.getChild(UUID.randomUUID().toString());
+    FileSystemUtils.writeContent(recent, new byte[1]);
+
+    newGarbageCollector(/* maxSizeBytes= */ 100).awaitIdle();
+
+    assertThat(orphanedBlob.exists()).isFalse();
+    assertThat(orphanedIndex.exists()).isFalse();
+    assertThat(other.exists()).isTrue();
+    assertThat(recent.exists()).isTrue();
+  }
+
+  @Test
+  public void saveMergesEntriesSavedByOtherServers() throws Exception {
+    DiskCacheIndex index = new DiskCacheIndex(root);
+    index.add("cas/aa/aa01", 10, 1);
+    index.add("cas/bb/bb02", 20, 2);
+    index.save();
+    DiskCacheIndex other = new DiskCacheIndex(root);
+    assertThat(other.load()).isTrue();
+
+    index.add("cas/cc/cc03", 30, 2);
+    index.touch("cas/aa/aa01", 5);
+    index.save();
+    // Evicts bb02.
+    other.remove(other.getEntriesByLastAccess().get(1));
+    other.save();
+
+    DiskCacheIndex reloaded = new DiskCacheIndex(root);
+    assertThat(reloaded.load()).isTrue();
+    assertThat(reloaded.size()).isEqualTo(2);
+    assertThat(reloaded.getTotalSize()).isEqualTo(40);
+    assertThat(reloaded.getEntriesByLastAccess().get(1).getKey()).isEqualTo("cas/aa/aa01");
+    assertThat(reloaded.getEntriesByLastAccess().get(1).getLastAccessMillis()).isEqualTo(5);
+  }
+
+  @Test
+  public void corruptIndexIsIgnored() throws Exception {
+    FileSystemUtils.writeContent(root.getChild(DiskCacheIndex.INDEX_FILENAME), new byte[3]);
+
+    assertThat(new DiskCacheIndex(root).load()).isFalse();
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCachePresenceIndex}. */
+@RunWith(JUnit4.class)
+public class DiskCachePresenceIndexTest {
+
+  private Path root;
+
+  @Before
+  public void setUp() throws IOException {
+    FileSystem fs = new InMemoryFileSystem(new JavaClock(), DigestHashFunction.SHA256);
+    root = fs.getPath("/disk_cache");
+    root.createDirectoryAndParents();
+  }
+
+  private static String hash(int i) {
+    return Hashing.sha256().hashInt(i).toString();
+  }
+
+  private Path casPath(String hash) {
+    return root.getChild("cas").getChild(hash.substring(0, 2)).getChild(hash);
+  }
+
+  private Path writeBlob(String hash) throws IOException {
+    Path path = casPath(hash);
+    path.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(path, new byte[] {1});
+    return path;
+  }
+
+  private DiskCachePresenceIndex populatedIndex() {
+    DiskCachePresenceIndex index = new DiskCachePresenceIndex(root, 32);
+    index.populate();
+    return index;
+  }
+
+  @Test
+  public void populatedFromCasDirectory() throws Exception {
+    writeBlob(hash(1));
+    writeBlob(hash(2));
+
+    DiskCachePresenceIndex index = populatedIndex();
+
+    assertThat(index.isComplete()).isTrue();
+    assertThat(index.mayContain(hash(1))).isTrue();
+    assertThat(index.mayContain(hash(2))).isTrue();
+    assertThat(index.mayContain(hash(3))).isFalse();
+  }
+
+  @Test
+  public void incompleteIndexMayContainAnything() {
+    DiskCachePresenceIndex index = new DiskCachePresenceIndex(root, 32);
+
+    assertThat(index.isComplete()).isFalse();
+    assertThat(index.mayContain(hash(1))).isTrue();
+  }
+
+  @Test
+  public void completeIndexDoesNotCheckFileSystem() throws Exception {
+    DiskCachePresenceIndex index = populatedIndex();
+
+    // Written behind the back of the index, e.g. by another server sharing the cache.
+    writeBlob(hash(1));
+
+    assertThat(index.mayContain(hash(1))).isFalse();
+  }
+
+  @Test
+  public void addAndRemove() throws Exception {
+    DiskCachePresenceIndex index = populatedIndex();
+
+    index.add(hash(1));
+    assertThat(index.mayContain(hash(1))).isTrue();
+
+    index.remove(hash(1));
+    assertThat(index.mayContain(hash(1))).isFalse();
+  }
+
+  @Test
+  public void removalDuringPopulationIsNotUndone() throws Exception {
+    writeBlob(hash(1));
+    writeBlob(hash(2));
+    DiskCachePresenceIndex index = new DiskCachePresenceIndex(root, 32);
+
+    // Evicted after the listing saw the files, but before it added them.
+    index.remove(hash(1));
+    index.remove(hash(2));
+    index.add(hash(2));
+    index.populate();
+
+    assertThat(index.mayContain(hash(1))).isFalse();
+    assertThat(index.mayContain(hash(2))).isTrue();
+  }
+
+  @Test
+  public void populatedFromChunkManifests() throws Exception {
+    writeBlob(hash(1) + DiskCacheClient.CHUNK_MANIFEST_SUFFIX);
+
+    DiskCachePresenceIndex index = populatedIndex();
+
+    assertThat(index.mayContain(hash(1))).isTrue();
+  }
+
+  @Test
+  public void ignoresUnrelatedFiles() throws Exception {
+    writeBlob("not-a-hash");
+
+    DiskCachePresenceIndex index = populatedIndex();
+
+    assertThat(index.isComplete()).isTrue();
+    assertThat(index.mayContain("not-a-hash")).isTrue();
+  }
+}
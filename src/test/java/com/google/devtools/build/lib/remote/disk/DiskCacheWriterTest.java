@@ -0,0 +1,133 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheWriter}. */
+@RunWith(JUnit4.class)
+public class DiskCacheWriterTest {
+
+  private final DiskCacheStats stats = new DiskCacheStats();
+
+  private DiskCacheWriter newWriter(int threads, int maxPendingWrites) {
+    return new DiskCacheWriter(threads, maxPendingWrites, stats);
+  }
+
+  @Test
+  public void writesRunInBackground() throws Exception {
+    DiskCacheWriter writer = newWriter(/* threads= */ 1, /* maxPendingWrites= */ 2);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> written = new CopyOnWriteArrayList<>();
+
+    writer.submit("a", () -> awaitAndAdd(release, written, "a"));
+    assertThat(written).isEmpty();
+
+    release.countDown();
+    writer.drain();
+    assertThat(written).containsExactly("a");
+    assertThat(stats.getAsyncWrites()).isEqualTo(1);
+    writer.close();
+  }
+
+  @Test
+  public void submitBlocksWhileTooManyWritesArePending() throws Exception {
+    DiskCacheWriter writer = newWriter(/* threads= */ 1, /* maxPendingWrites= */ 1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> written = new CopyOnWriteArrayList<>();
+    writer.submit("a", () -> awaitAndAdd(release, written, "a"));
+
+    CountDownLatch submitted = new CountDownLatch(1);
+    Thread submitter =
+        new Thread(
+            () -> {
+              try {
+                writer.submit("b", () -> written.add("b"));
+                submitted.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    submitter.start();
+
+    assertThat(submitted.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    release.countDown();
+    assertThat(submitted.await(10, TimeUnit.SECONDS)).isTrue();
+    submitter.join();
+    writer.close();
+    assertThat(written).containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  public void writesAfterPendingWaitForEarlierWrites() throws Exception {
+    DiskCacheWriter writer = newWriter(/* threads= */ 4, /* maxPendingWrites= */ 8);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> written = new CopyOnWriteArrayList<>();
+
+    writer.submit("cas", () -> awaitAndAdd(release, written, "cas"));
+    writer.submitAfterPending("ac", () -> written.add("ac"));
+    Thread.sleep(50);
+    assertThat(written).isEmpty();
+
+    release.countDown();
+    writer.close();
+    assertThat(written).containsExactly("cas", "ac").inOrder();
+  }
+
+  @Test
+  public void failedWritesAreCounted() throws Exception {
+    DiskCacheWriter writer = newWriter(/* threads= */ 1, /* maxPendingWrites= */ 1);
+
+    writer.submit(
+        "a",
+        () -> {
+          throw new IOException("disk full");
+        });
+    writer.submit("b", () -> {});
+    writer.close();
+
+    assertThat(stats.getAsyncWrites()).isEqualTo(2);
+    assertThat(stats.getFailedWrites()).isEqualTo(1);
+  }
+
+  @Test
+  public void closedWriterRejectsWrites() throws Exception {
+    DiskCacheWriter writer = newWriter(/* threads= */ 1, /* maxPendingWrites= */ 1);
+    writer.close();
+
+    assertThrows(RejectedExecutionException.class, () -> writer.submit("a", () -> {}));
+    assertThrows(RejectedExecutionException.class, () -> writer.submitAfterPending("a", () -> {}));
+  }
+
+  private static void awaitAndAdd(CountDownLatch latch, List<String> written, String entry)
+      throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    written.add(entry);
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.merkletree;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.StaticMetadataProvider;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MerkleTreeCache}. */
+@RunWith(JUnit4.class)
+public class MerkleTreeCacheTest {
+
+  private static final ArtifactExpander NO_EXPANSION = (artifact, output) -> {};
+
+  private final Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+  private Path execRoot;
+  private ArtifactRoot artifactRoot;
+  private DigestUtil digestUtil;
+
+  @Before
+  public void setup() {
+    FileSystem fs = new InMemoryFileSystem(new JavaClock(), DigestHashFunction.SHA256);
+    execRoot = fs.getPath("/exec");
+    artifactRoot = ArtifactRoot.asDerivedRoot(execRoot, "srcs");
+    digestUtil = new DigestUtil(fs.getDigestFunction());
+  }
+
+  @Test
+  public void reusesTreesOfSharedNodes() throws IOException {
+    NestedSet<Artifact> toolchain =
+        NestedSetBuilder.create(
+            Order.STABLE_ORDER,
+            addFile("srcs/toolchain/bin/cc", "cc"),
+            addFile("srcs/toolchain/lib/libc.a", "libc"));
+    NestedSet<Artifact> firstInputs =
+        NestedSetBuilder.<Artifact>stableOrder()
+            .addTransitive(toolchain)
+            .add(addFile("srcs/foo.cc", "foo"))
+            .build();
+    NestedSet<Artifact> secondInputs =
+        NestedSetBuilder.<Artifact>stableOrder()
+            .addTransitive(toolchain)
+            .add(addFile("srcs/bar.cc", "bar"))
+            .add(addFile("srcs/toolchain/bin/bar", "bar"))
+            .build();
+    MerkleTreeCache cache = new MerkleTreeCache(digestUtil, /* maxSize= */ 100);
+
+    MerkleTree first = build(cache, firstInputs, new TreeMap<>());
+    MerkleTree second = build(cache, secondInputs, new TreeMap<>());
+
+    assertEqualTrees(first, buildFlat(firstInputs, new TreeMap<>()));
+    assertEqualTrees(second, buildFlat(secondInputs, new TreeMap<>()));
+    // The toolchain and the inputs of both spawns.
+    assertThat(cache.size()).isEqualTo(3);
+
+    build(cache, firstInputs, new TreeMap<>());
+    assertThat(cache.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void otherInputsTakePrecedence() throws IOException {
+    NestedSet<Artifact> inputs =
+        NestedSetBuilder.create(
+            Order.STABLE_ORDER, addFile("srcs/foo.cc", "foo"), addFile("srcs/bar.cc", "bar"));
+    SortedMap<PathFragment, ActionInput> runfiles = new TreeMap<>();
+    Artifact runfile = addFile("srcs/bin.runfiles/foo.cc", "runfile");
+    runfiles.put(PathFragment.create("srcs/foo.cc"), runfile);
+    runfiles.put(PathFragment.create("srcs/bin.runfiles/foo.cc"), runfile);
+    MerkleTreeCache cache = new MerkleTreeCache(digestUtil, /* maxSize= */ 100);
+
+    MerkleTree tree = build(cache, inputs, runfiles);
+
+    assertEqualTrees(tree, buildFlat(inputs, runfiles));
+    assertThat(tree.getFileByDigest(digestUtil.computeAsUtf8("foo"))).isNull();
+  }
+
+  private MerkleTree build(
+      MerkleTreeCache cache,
+      NestedSet<Artifact> inputs,
+      SortedMap<PathFragment, ActionInput> otherInputs)
+      throws IOException {
+    return cache.build(
+        inputs, otherInputs, NO_EXPANSION, new StaticMetadataProvider(metadata), execRoot);
+  }
+
+  /** Builds the tree the way it is built without a cache. */
+  private MerkleTree buildFlat(
+      NestedSet<Artifact> inputs, SortedMap<PathFragment, ActionInput> otherInputs)
+      throws IOException {
+    SortedMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+    for (Artifact input : inputs.toList()) {
+      inputMap.put(input.getExecPath(), input);
+    }
+    inputMap.putAll(otherInputs);
+    return MerkleTree.build(inputMap, new StaticMetadataProvider(metadata), execRoot, digestUtil);
+  }
+
+  private static void assertEqualTrees(MerkleTree actual, MerkleTree expected) {
+    assertThat(actual.getRootDigest()).isEqualTo(expected.getRootDigest());
+    assertThat(actual.getAllDigests()).containsExactlyElementsIn(expected.getAllDigests());
+    assertThat(actual.getInputFiles()).isEqualTo(expected.getInputFiles());
+    assertThat(actual.getInputBytes()).isEqualTo(expected.getInputBytes());
+  }
+
+  private Artifact addFile(String path, String content) throws IOException {
+    Path p = execRoot.getRelative(path);
+    Preconditions.checkNotNull(p.getParentDirectory()).createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(p, content);
+    Artifact a = ActionsTestUtil.createArtifact(artifactRoot, p);
+    metadata.put(a, FileArtifactValue.createForTesting(a));
+    return a;
+  }
+}
@@ -20,6 +20,7 @@ import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.Artifact;
@@ -137,6 +138,55 @@ public class MerkleTreeTest {
     assertThat(allDigests).asList().containsAtLeastElementsIn(inputDigests);
   }
 
+  @Test
+  public void mergeMerkleTrees() throws IOException {
+    SortedMap<PathFragment, ActionInput> firstInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> secondInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> allInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    addFile("srcs/foo.cc", "foo", firstInputs, metadata);
+    addFile("srcs/toolchain/bin/cc", "cc", firstInputs, metadata);
+    addFile("srcs/bar.cc", "bar", secondInputs, metadata);
+    addFile("srcs/toolchain/bin/cc", "cc", secondInputs, metadata);
+    addFile("srcs/fizz/buzz.cc", "buzz", secondInputs, metadata);
+    allInputs.putAll(firstInputs);
+    allInputs.putAll(secondInputs);
+    StaticMetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+
+    MerkleTree first = MerkleTree.build(firstInputs, metadataProvider, execRoot, digestUtil);
+    MerkleTree second = MerkleTree.build(secondInputs, metadataProvider, execRoot, digestUtil);
+    MerkleTree merged = MerkleTree.merge(ImmutableList.of(first, second), digestUtil);
+    MerkleTree expected = MerkleTree.build(allInputs, metadataProvider, execRoot, digestUtil);
+
+    assertThat(merged.getRootDigest()).isEqualTo(expected.getRootDigest());
+    assertThat(merged.getAllDigests()).containsExactlyElementsIn(expected.getAllDigests());
+    assertThat(merged.getInputFiles()).isEqualTo(expected.getInputFiles());
+    assertThat(merged.getInputBytes()).isEqualTo(expected.getInputBytes());
+  }
+
+  @Test
+  public void mergeMerkleTreesKeepsLastFile() throws IOException {
+    SortedMap<PathFragment, ActionInput> firstInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> secondInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    addFile("srcs/foo.cc", "foo", firstInputs, metadata);
+    StaticMetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    MerkleTree first = MerkleTree.build(firstInputs, metadataProvider, execRoot, digestUtil);
+    addFile("srcs/foo.cc", "changed", secondInputs, metadata);
+    metadataProvider = new StaticMetadataProvider(metadata);
+    MerkleTree second = MerkleTree.build(secondInputs, metadataProvider, execRoot, digestUtil);
+    MerkleTree empty =
+        MerkleTree.build(Collections.emptySortedMap(), metadataProvider, execRoot, digestUtil);
+
+    assertThat(MerkleTree.merge(ImmutableList.of(first, second), digestUtil).getRootDigest())
+        .isEqualTo(second.getRootDigest());
+    assertThat(MerkleTree.merge(ImmutableList.of(second, first), digestUtil).getRootDigest())
+        .isEqualTo(first.getRootDigest());
+    assertThat(MerkleTree.merge(ImmutableList.of(empty, first), digestUtil)).isSameInstanceAs(first);
+    assertThat(MerkleTree.merge(ImmutableList.of(empty), digestUtil).getRootDigest())
+        .isEqualTo(empty.getRootDigest());
+  }
+
   private Artifact addFile(
       String path,
       String content,
@@ -154,14 +154,7 @@ public class ExternalPackageHelperTest extends BuildViewTestCase {
     skyFunctions.put(
         SkyFunctions.PACKAGE,
         new PackageFunction(
-            null,
-            null,
-            null,
-            null,
-            null,
-            null,
-            null,
-            BazelSkyframeExecutorConstants.EXTERNAL_PACKAGE_HELPER));
+            null, null, null, null, null, BazelSkyframeExecutorConstants.EXTERNAL_PACKAGE_HELPER));
     skyFunctions.put(
         SkyFunctions.EXTERNAL_PACKAGE,
         new ExternalPackageFunction(BazelSkyframeExecutorConstants.EXTERNAL_PACKAGE_HELPER));
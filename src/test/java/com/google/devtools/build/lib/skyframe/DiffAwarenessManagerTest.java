@@ -131,6 +131,32 @@ public class DiffAwarenessManagerTest {
     events.assertContainsWarning("error");
   }
 
+  @Test
+  public void testDiffsAgainstPersistedViewInitially() throws Exception {
+    Root pathEntry = Root.fromPath(fs.getPath("/pathEntry"));
+    ModifiedFileSet diff1 = ModifiedFileSet.builder().modify(PathFragment.create("file1")).build();
+    ModifiedFileSet diff2 = ModifiedFileSet.builder().modify(PathFragment.create("file2")).build();
+    DiffAwarenessStub diffAwareness = new DiffAwarenessStub(ImmutableList.of(diff1, diff2));
+    DiffAwarenessFactoryStub factory = new DiffAwarenessFactoryStub();
+    factory.inject(pathEntry, diffAwareness);
+    DiffAwarenessManager manager = new DiffAwarenessManager(ImmutableList.of(factory));
+    manager.getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY).markProcessed();
+    ProcessableModifiedFileSet processableDiff1 =
+        manager.getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY);
+    assertThat(processableDiff1.getModifiedFileSet()).isEqualTo(diff1);
+    processableDiff1.markProcessed();
+    manager.persistBaselineViews();
+
+    // Like the manager of the next server.
+    DiffAwarenessManager nextManager = new DiffAwarenessManager(ImmutableList.of(factory));
+    assertThat(
+            nextManager
+                .getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY)
+                .getModifiedFileSet())
+        .isEqualTo(diff2);
+    events.assertNoWarningsOrErrors();
+  }
+
   @Test
   public void testHandlesBrokenDiffs() throws Exception {
     Root pathEntry = Root.fromPath(fs.getPath("/pathEntry"));
@@ -195,6 +221,44 @@ public class DiffAwarenessManagerTest {
     processableDiff.markProcessed();
   }
 
+  @Test
+  public void testEarlierFactoryThatAcceptsLaterReplacesDiffAwareness() throws Exception {
+    Root pathEntry = Root.fromPath(fs.getPath("/pathEntry"));
+    ModifiedFileSet diff = ModifiedFileSet.builder().modify(PathFragment.create("file")).build();
+    DiffAwarenessFactoryStub factory1 = new DiffAwarenessFactoryStub();
+    DiffAwarenessStub diffAwareness1 = new DiffAwarenessStub(ImmutableList.of(diff));
+    DiffAwarenessFactoryStub factory2 = new DiffAwarenessFactoryStub();
+    DiffAwarenessStub diffAwareness2 = new DiffAwarenessStub(ImmutableList.of(diff));
+    factory2.inject(pathEntry, diffAwareness2);
+    DiffAwarenessManager manager =
+        new DiffAwarenessManager(ImmutableList.of(factory1, factory2));
+
+    manager.getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY).markProcessed();
+    assertThat(
+            manager
+                .getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY)
+                .getModifiedFileSet())
+        .isEqualTo(diff);
+
+    // Like a factory that only accepts once an option is set.
+    factory1.inject(pathEntry, diffAwareness1);
+    ProcessableModifiedFileSet processableDiff =
+        manager.getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY);
+    assertWithMessage("Expected EVERYTHING_MODIFIED on first call to getDiff for diffAwareness1")
+        .that(processableDiff.getModifiedFileSet())
+        .isEqualTo(ModifiedFileSet.EVERYTHING_MODIFIED);
+    assertThat(diffAwareness2.closed()).isTrue();
+    processableDiff.markProcessed();
+
+    assertThat(
+            manager
+                .getDiff(events.reporter(), pathEntry, OptionsProvider.EMPTY)
+                .getModifiedFileSet())
+        .isEqualTo(diff);
+    assertThat(diffAwareness1.closed()).isFalse();
+    events.assertNoWarningsOrErrors();
+  }
+
   private static class DiffAwarenessFactoryStub implements DiffAwareness.Factory {
 
     private final Map<Root, DiffAwareness> diffAwarenesses = Maps.newHashMap();
@@ -209,7 +273,7 @@ public class DiffAwarenessManagerTest {
 
     @Override
     @Nullable
-    public DiffAwareness maybeCreate(Root pathEntry) {
+    public DiffAwareness maybeCreate(Root pathEntry, OptionsProvider options) {
       return diffAwarenesses.get(pathEntry);
     }
   }
@@ -221,6 +285,7 @@ public class DiffAwarenessManagerTest {
 
     private boolean closed = false;
     private int curSequenceNum = 0;
+    @Nullable private View persistedView;
     private final List<ModifiedFileSet> sequentialDiffs;
     private final int brokenViewNum;
 
@@ -267,6 +332,17 @@ public class DiffAwarenessManagerTest {
       return diff;
     }
 
+    @Override
+    @Nullable
+    public View getPersistedView() {
+      return persistedView;
+    }
+
+    @Override
+    public void persistView(View view) {
+      persistedView = view;
+    }
+
     @Override
     public String name() {
       return "testingstub";
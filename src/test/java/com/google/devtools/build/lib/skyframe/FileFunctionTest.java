@@ -42,11 +42,13 @@ import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
 import com.google.devtools.build.lib.analysis.ServerDirectories;
 import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.cmdline.LabelConstants;
+import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.events.NullEventHandler;
 import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.WorkspaceFileValue;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.rules.repository.RepositoryDelegatorFunction;
+import com.google.devtools.build.lib.rules.repository.RepositoryDirectoryValue;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFileAction;
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
 import com.google.devtools.build.lib.skyframe.serialization.testutils.FsUtils;
@@ -140,6 +142,12 @@ public class FileFunctionTest {
   }
 
   private SequentialBuildDriver makeDriver(ExternalFileAction externalFileAction) {
+    return makeDriver(externalFileAction, ImmutableMap.of());
+  }
+
+  private SequentialBuildDriver makeDriver(
+      ExternalFileAction externalFileAction,
+      ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions) {
     AtomicReference<PathPackageLocator> pkgLocatorRef = new AtomicReference<>(pkgLocator);
     BlazeDirectories directories =
         new BlazeDirectories(
@@ -168,9 +176,7 @@ public class FileFunctionTest {
                     SkyFunctions.FILE_SYMLINK_INFINITE_EXPANSION_UNIQUENESS,
                     new FileSymlinkInfiniteExpansionUniquenessFunction())
                 .put(FileValue.FILE, new FileFunction(pkgLocatorRef))
-                .put(
-                    SkyFunctions.PACKAGE,
-                    new PackageFunction(null, null, null, null, null, null, null, null))
+                .put(SkyFunctions.PACKAGE, new PackageFunction(null, null, null, null, null, null))
                 .put(
                     SkyFunctions.PACKAGE_LOOKUP,
                     new PackageLookupFunction(
@@ -195,6 +201,7 @@ public class FileFunctionTest {
                     SkyFunctions.LOCAL_REPOSITORY_LOOKUP,
                     new LocalRepositoryLookupFunction(
                         BazelSkyframeExecutorConstants.EXTERNAL_PACKAGE_HELPER))
+                .putAll(extraSkyFunctions)
                 .build(),
             differencer);
     PrecomputedValue.BUILD_ID.set(differencer, UUID.randomUUID());
@@ -418,6 +425,48 @@ public class FileFunctionTest {
             RootedPath.toRootedPath(root, PathFragment.create("/output_base/external/a/b")));
   }
 
+  @Test
+  public void testFileInRefetchedRepositoryIsReread() throws Exception {
+    file("WORKSPACE", "local_repository(name = 'a', path = '/a')");
+    Path repositoryDirectory =
+        outputBase.getRelative(LabelConstants.EXTERNAL_REPOSITORY_LOCATION).getRelative("a");
+    Path externalFile = file(repositoryDirectory.getRelative("b").getPathString(), "old");
+    AtomicInteger fetches = new AtomicInteger();
+    SkyFunction repositoryDirectoryFunction =
+        new SkyFunction() {
+          @Override
+          public SkyValue compute(SkyKey skyKey, Environment env) {
+            // Each fetch leaves a different marker file behind.
+            return RepositoryDirectoryValue.builder()
+                .setPath(repositoryDirectory)
+                .setDigest(new byte[] {(byte) fetches.incrementAndGet()})
+                .build();
+          }
+
+          @Nullable
+          @Override
+          public String extractTag(SkyKey skyKey) {
+            return null;
+          }
+        };
+    SequentialBuildDriver driver =
+        makeDriver(
+            ExternalFileAction.DEPEND_ON_EXTERNAL_PKG_FOR_EXTERNAL_REPO_PATHS,
+            ImmutableMap.of(SkyFunctions.REPOSITORY_DIRECTORY, repositoryDirectoryFunction));
+    Root root = Root.absoluteRoot(fs);
+    FileValue before = valueForPathHelper(root, externalFile, driver);
+    assertThat(fetches.get()).isEqualTo(1);
+
+    FileSystemUtils.writeContentAsLatin1(externalFile, "refetched");
+    differencer.invalidate(
+        ImmutableList.of(RepositoryDirectoryValue.key(RepositoryName.create("@a"))));
+    FileValue after = valueForPathHelper(root, externalFile, driver);
+
+    assertThat(fetches.get()).isEqualTo(2);
+    assertThat(after).isNotEqualTo(before);
+    assertThat(after.getSize()).isEqualTo("refetched".length());
+  }
+
   @Test
   public void testSymlinkAsAncestor() throws Exception {
     file("a/b/c/d");
@@ -80,10 +80,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 import org.junit.Before;
@@ -141,8 +147,7 @@ public final class FilesystemValueCheckerTest extends FilesystemValueCheckerTest
     skyFunctions.put(
         SkyFunctions.FILE_SYMLINK_INFINITE_EXPANSION_UNIQUENESS,
         new FileSymlinkInfiniteExpansionUniquenessFunction());
-    skyFunctions.put(
-        SkyFunctions.PACKAGE, new PackageFunction(null, null, null, null, null, null, null, null));
+    skyFunctions.put(SkyFunctions.PACKAGE, new PackageFunction(null, null, null, null, null, null));
     skyFunctions.put(
         SkyFunctions.PACKAGE_LOOKUP,
         new PackageLookupFunction(
@@ -209,6 +214,124 @@ public final class FilesystemValueCheckerTest extends FilesystemValueCheckerTest
     assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
   }
 
+  @Test
+  public void testSourceFilesBatchStat() throws Exception {
+    List<Path> batchStatRoots = Collections.synchronizedList(new ArrayList<>());
+    fs.batchStatterFactory =
+        root ->
+            (useDigest, includeLinks, paths) -> {
+              batchStatRoots.add(root);
+              List<FileStatusWithDigest> stats = new ArrayList<>();
+              for (PathFragment path : paths) {
+                stats.add(
+                    FileStatusWithDigestAdapter.adapt(
+                        root.getRelative(path).statIfFound(Symlinks.NOFOLLOW)));
+              }
+              return stats;
+            };
+    FilesystemValueChecker checker =
+        new FilesystemValueChecker(
+            /* tsgm= */ null, /* lastExecutionTimeRange= */ null, FSVC_THREADS_FOR_TEST);
+
+    Path file = pkgRoot.getRelative("file");
+    FileSystemUtils.createEmptyFile(file);
+    Path deleted = pkgRoot.getRelative("deleted");
+    FileSystemUtils.createEmptyFile(deleted);
+    SkyKey fileKey =
+        FileStateValue.key(RootedPath.toRootedPath(Root.fromPath(pkgRoot), file.asFragment()));
+    SkyKey deletedKey =
+        FileStateValue.key(RootedPath.toRootedPath(Root.fromPath(pkgRoot), deleted.asFragment()));
+    SkyKey unchangedKey =
+        FileStateValue.key(
+            RootedPath.toRootedPath(Root.fromPath(pkgRoot), PathFragment.create("WORKSPACE")));
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(ImmutableList.of(fileKey, deletedKey, unchangedKey), EVALUATION_OPTIONS);
+    assertThat(result.hasError()).isFalse();
+
+    assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
+    assertThat(batchStatRoots).containsExactly(pkgRoot);
+
+    FileSystemUtils.writeContentAsLatin1(file, "hello");
+    deleted.delete();
+    assertDiffWithNewValues(getDirtyFilesystemKeys(evaluator, checker), fileKey, deletedKey);
+    assertThat(batchStatRoots).containsExactly(pkgRoot, pkgRoot);
+  }
+
+  @Test
+  public void testSourceFilesBatchStatFallback() throws Exception {
+    AtomicInteger batchStatCalls = new AtomicInteger();
+    fs.batchStatterFactory =
+        root ->
+            (useDigest, includeLinks, paths) -> {
+              batchStatCalls.incrementAndGet();
+              throw new IOException("try again");
+            };
+    FilesystemValueChecker checker =
+        new FilesystemValueChecker(
+            /* tsgm= */ null, /* lastExecutionTimeRange= */ null, FSVC_THREADS_FOR_TEST);
+
+    Path file = pkgRoot.getRelative("file");
+    FileSystemUtils.createEmptyFile(file);
+    SkyKey fileKey =
+        FileStateValue.key(RootedPath.toRootedPath(Root.fromPath(pkgRoot), file.asFragment()));
+    SkyKey unchangedKey =
+        FileStateValue.key(
+            RootedPath.toRootedPath(Root.fromPath(pkgRoot), PathFragment.create("WORKSPACE")));
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(ImmutableList.of(fileKey, unchangedKey), EVALUATION_OPTIONS);
+    assertThat(result.hasError()).isFalse();
+
+    assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
+    assertThat(batchStatCalls.get()).isEqualTo(1);
+
+    FileSystemUtils.writeContentAsLatin1(file, "hello");
+    assertDiffWithNewValues(getDirtyFilesystemKeys(evaluator, checker), fileKey);
+    assertThat(batchStatCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testDirtyValuesExecutorIsSharedPerThreadCount() {
+    ExecutorService executor = FilesystemValueChecker.getDirtyValuesExecutor(3);
+
+    assertThat(FilesystemValueChecker.getDirtyValuesExecutor(3)).isSameInstanceAs(executor);
+    assertThat(FilesystemValueChecker.getDirtyValuesExecutor(5)).isNotSameInstanceAs(executor);
+    // Checks with another thread count don't resize the pool of a concurrent check.
+    assertThat(((ThreadPoolExecutor) executor).getMaximumPoolSize()).isEqualTo(3);
+  }
+
+  @Test
+  public void testConcurrentChecksWithDifferentThreadCounts() throws Exception {
+    List<SkyKey> keys = new ArrayList<>();
+    List<SkyKey> changedKeys = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Path file = pkgRoot.getRelative("file" + i);
+      FileSystemUtils.createEmptyFile(file);
+      keys.add(
+          FileStateValue.key(RootedPath.toRootedPath(Root.fromPath(pkgRoot), file.asFragment())));
+    }
+    assertThat(driver.evaluate(keys, EVALUATION_OPTIONS).hasError()).isFalse();
+    for (int i = 0; i < 20; i += 2) {
+      FileSystemUtils.writeContentAsLatin1(pkgRoot.getRelative("file" + i), "hello");
+      changedKeys.add(keys.get(i));
+    }
+
+    ExecutorService callers = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<Diff>> diffs = new ArrayList<>();
+      for (int numThreads : new int[] {1, 7}) {
+        FilesystemValueChecker checker =
+            new FilesystemValueChecker(
+                /* tsgm= */ null, /* lastExecutionTimeRange= */ null, numThreads);
+        diffs.add(callers.submit(() -> getDirtyFilesystemKeys(evaluator, checker)));
+      }
+      for (Future<Diff> diff : diffs) {
+        assertDiffWithNewValues(diff.get(), changedKeys.toArray(new SkyKey[0]));
+      }
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
   /**
    * Tests that an already-invalidated value can still be marked changed: symlink points at sym1.
    * Invalidate symlink by changing sym1 from pointing at path to point to sym2. This only dirties
@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
@@ -38,6 +39,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import javax.annotation.Nullable;
 
 /**
@@ -124,6 +126,7 @@ public class FilesystemValueCheckerTestBase {
   static final class MockFileSystem extends InMemoryFileSystem {
     boolean statThrowsRuntimeException;
     boolean readlinkThrowsIoException;
+    @Nullable Function<Path, BatchStat> batchStatterFactory;
 
     MockFileSystem() {
       this(new ManualClock());
@@ -149,6 +152,12 @@ public class FilesystemValueCheckerTestBase {
       return super.readSymbolicLink(path);
     }
 
+    @Nullable
+    @Override
+    public BatchStat getBatchStatter(Path root) {
+      return batchStatterFactory == null ? null : batchStatterFactory.apply(root);
+    }
+
     void advanceClockMillis(int millis) {
       ((ManualClock) clock).advanceMillis(millis);
     }
@@ -0,0 +1,196 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.testing.common.FakeOptions;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LinuxInotifyDiffAwareness}. */
+@RunWith(JUnit4.class)
+public class LinuxInotifyDiffAwarenessTest {
+  private LinuxInotifyDiffAwareness underTest;
+  private Path watchedPath;
+  private OptionsProvider watchFsEnabledProvider;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(OS.getCurrent() == OS.LINUX);
+    watchedPath = Files.createTempDirectory("inotify").toRealPath();
+    underTest = new LinuxInotifyDiffAwareness(watchedPath.toString());
+    LocalDiffAwareness.Options localDiffOptions = new LocalDiffAwareness.Options();
+    localDiffOptions.watchFS = true;
+    watchFsEnabledProvider = FakeOptions.of(localDiffOptions);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (underTest != null) {
+      underTest.close();
+      MoreFiles.deleteRecursively(watchedPath, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  private void scratchDir(String path) throws IOException {
+    Files.createDirectories(watchedPath.resolve(path));
+  }
+
+  private void scratchFile(String path, String contents) throws IOException {
+    Files.write(watchedPath.resolve(path), contents.getBytes(UTF_8));
+  }
+
+  private void scratchFile(String path) throws IOException {
+    scratchFile(path, "");
+  }
+
+  /**
+   * Checks that the diff between the given view and the current one is exactly the given files.
+   * inotify queues events before the syscalls that cause them return, so unlike for FSEvents, a
+   * single view sees all of them.
+   *
+   * @return the new view
+   */
+  private View assertDiff(View view1, String... rawPaths) throws Exception {
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    ImmutableSet.Builder<PathFragment> expected = ImmutableSet.builder();
+    for (String path : rawPaths) {
+      expected.add(PathFragment.create(path));
+    }
+    assertThat(underTest.getDiff(view1, view2).modifiedSourceFiles())
+        .containsExactlyElementsIn(expected.build());
+    return view2;
+  }
+
+  @Test
+  public void testSimple() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    scratchDir("a/b");
+    scratchFile("a/b/c");
+    scratchDir("b/c");
+    scratchFile("b/c/d");
+    View view2 = assertDiff(view1, "a", "a/b", "a/b/c", "b", "b/c", "b/c/d");
+
+    scratchFile("a/b/c", "modified");
+    View view3 = assertDiff(view2, "a/b/c");
+
+    MoreFiles.deleteRecursively(watchedPath.resolve("a"));
+    MoreFiles.deleteRecursively(watchedPath.resolve("b"));
+    assertDiff(view3, "a", "a/b", "a/b/c", "b", "b/c", "b/c/d");
+  }
+
+  @Test
+  public void testRenameDirectory() throws Exception {
+    scratchDir("dir1");
+    scratchFile("dir1/file.c", "first");
+    scratchDir("dir2");
+    scratchFile("dir2/file.c", "second");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    Files.move(watchedPath.resolve("dir1"), watchedPath.resolve("dir3"));
+    Files.move(watchedPath.resolve("dir2"), watchedPath.resolve("dir1"));
+    View view2 = assertDiff(view1, "dir1", "dir1/file.c", "dir2", "dir3", "dir3/file.c");
+
+    // Both directories are watched at their new paths.
+    scratchFile("dir1/file.c", "modified");
+    scratchFile("dir3/new.c");
+    assertDiff(view2, "dir1/file.c", "dir3/new.c");
+  }
+
+  @Test
+  public void testWatchCount() throws Exception {
+    scratchDir("a/b/c");
+    scratchDir("d");
+    scratchFile("a/file");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertThat(underTest.getWatchCount()).isEqualTo(5);
+
+    scratchDir("d/e/f");
+    View view2 = assertDiff(view1, "d/e", "d/e/f");
+    assertThat(underTest.getWatchCount()).isEqualTo(7);
+
+    MoreFiles.deleteRecursively(watchedPath.resolve("a"));
+    assertDiff(view2, "a", "a/b", "a/b/c", "a/file");
+    assertThat(underTest.getWatchCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void testDirectoryMovedOutOfTreeIsNoLongerWatched() throws Exception {
+    scratchDir("a/b/c");
+    scratchDir("d");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertThat(underTest.getWatchCount()).isEqualTo(5);
+
+    // The kernel keeps the watches of moved directories, so only the diff awareness drops them.
+    Path outside = Files.createTempDirectory("inotify-outside").toRealPath();
+    try {
+      Files.move(watchedPath.resolve("a"), outside.resolve("a"));
+      View view2 = assertDiff(view1, "a");
+      assertThat(underTest.getWatchCount()).isEqualTo(2);
+
+      scratchFile("d/file");
+      Files.write(outside.resolve("a/b/c/file"), new byte[0]);
+      assertDiff(view2, "d/file");
+    } finally {
+      MoreFiles.deleteRecursively(outside, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  @Test
+  public void testEventLatency() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    long beforeChange = System.nanoTime();
+    scratchFile("file");
+    Thread.sleep(100);
+    // Changing the file again doesn't make the latency shorter.
+    scratchFile("file", "modified");
+    View view2 = assertDiff(view1, "file");
+    long sinceChange = System.nanoTime() - beforeChange;
+    assertThat(underTest.getLastEventLatencyNanos())
+        .isIn(Range.closed(TimeUnit.MILLISECONDS.toNanos(100), sinceChange));
+
+    assertDiff(view2);
+    assertThat(underTest.getLastEventLatencyNanos()).isEqualTo(-1);
+  }
+
+  @Test
+  public void testDiffIsUnknownAcrossNonSequentialViews() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    underTest.getCurrentView(watchFsEnabledProvider);
+    View view3 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    assertThat(underTest.getDiff(view1, view3)).isEqualTo(ModifiedFileSet.EVERYTHING_MODIFIED);
+  }
+}
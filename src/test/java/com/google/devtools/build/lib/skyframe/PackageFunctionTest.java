@@ -22,9 +22,11 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 
 import com.google.common.base.Predicates;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
@@ -689,6 +691,25 @@ public class PackageFunctionTest extends BuildViewTestCase {
         errorInfo.getException(), PackageLoading.Code.IMPORT_STARLARK_FILE_ERROR);
   }
 
+  @Test
+  public void testBuildFileIsParsedOnceWhenRestartedForLoads() throws Exception {
+    scratch.file("test/starlark/extension.bzl", "a = 'a'");
+    Path buildFile =
+        scratch.file(
+            "test/starlark/BUILD",
+            "load('//test/starlark:extension.bzl', 'a')",
+            "genrule(name = 'gr',",
+            "    outs = ['out.txt'],",
+            "    cmd = 'echo ' + a)");
+    invalidatePackages();
+    fs.clearInputStreamCounts();
+
+    // The first call is restarted for the .bzl load, and the restarted call reuses its parsed
+    // BUILD file instead of reading and parsing it again.
+    validPackageWithoutErrors(PackageValue.key(PackageIdentifier.parse("@//test/starlark")));
+    assertThat(fs.getInputStreamCount(buildFile)).isEqualTo(1);
+  }
+
   @Test
   public void testIOErrorLookingForSubpackageForLabelIsHandled() throws Exception {
     reporter.removeHandler(failFastHandler);
@@ -1600,6 +1621,7 @@ public class PackageFunctionTest extends BuildViewTestCase {
     private final Map<Path, FileStatusOrException> stubbedStats = Maps.newHashMap();
     private final Set<Path> makeUnreadableAfterReaddir = Sets.newHashSet();
     private final Map<Path, IOException> pathsToErrorOnGetInputStream = Maps.newHashMap();
+    private final Multiset<Path> inputStreamCounts = ConcurrentHashMultiset.create();
 
     public CustomInMemoryFs(ManualClock manualClock) {
       super(manualClock, DigestHashFunction.SHA256);
@@ -1638,8 +1660,17 @@ public class PackageFunctionTest extends BuildViewTestCase {
       pathsToErrorOnGetInputStream.put(path, exn);
     }
 
+    public int getInputStreamCount(Path path) {
+      return inputStreamCounts.count(path);
+    }
+
+    public void clearInputStreamCounts() {
+      inputStreamCounts.clear();
+    }
+
     @Override
     protected InputStream getInputStream(Path path) throws IOException {
+      inputStreamCounts.add(path);
       IOException exnToThrow = pathsToErrorOnGetInputStream.get(path);
       if (exnToThrow != null) {
         throw exnToThrow;
@@ -118,8 +118,7 @@ public abstract class PackageLookupFunctionTest extends FoundationTestCase {
             crossRepositoryLabelViolationStrategy(),
             BazelSkyframeExecutorConstants.BUILD_FILES_BY_PRIORITY,
             BazelSkyframeExecutorConstants.EXTERNAL_PACKAGE_HELPER));
-    skyFunctions.put(
-        SkyFunctions.PACKAGE, new PackageFunction(null, null, null, null, null, null, null, null));
+    skyFunctions.put(SkyFunctions.PACKAGE, new PackageFunction(null, null, null, null, null, null));
     skyFunctions.put(
         FileStateValue.FILE_STATE,
         new FileStateFunction(
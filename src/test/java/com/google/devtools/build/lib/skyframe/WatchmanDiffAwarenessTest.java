@@ -0,0 +1,332 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.testing.common.FakeOptions;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.OptionsProvider;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WatchmanDiffAwareness}, against a stand-in for the daemon. */
+@RunWith(JUnit4.class)
+public class WatchmanDiffAwarenessTest {
+  private static final String SOCKET = "/fake/watchman.sock";
+
+  /**
+   * Serves the requests of {@link WatchmanDiffAwareness} for a single watched project. Its clock is
+   * the number of changes so far.
+   */
+  private static final class FakeWatchmanDaemon {
+    private final String project;
+    private final List<String> changes = new ArrayList<>();
+    private boolean freshInstance;
+
+    private FakeWatchmanDaemon(String project) {
+      this.project = project;
+    }
+
+    synchronized void change(String... paths) {
+      for (String path : paths) {
+        changes.add(path);
+      }
+    }
+
+    synchronized void forgetChanges() {
+      freshInstance = true;
+    }
+
+    WatchmanClient connect(String socketPath) throws IOException {
+      assertThat(socketPath).isEqualTo(SOCKET);
+      PipedOutputStream requests = new PipedOutputStream();
+      PipedInputStream responses = new PipedInputStream();
+      PipedInputStream requestsIn = new PipedInputStream(requests);
+      PipedOutputStream responsesOut = new PipedOutputStream(responses);
+      Thread thread = new Thread(() -> serve(requestsIn, responsesOut));
+      thread.setDaemon(true);
+      thread.start();
+      return new WatchmanClient(responses, requests, requests::close);
+    }
+
+    private void serve(PipedInputStream requests, OutputStream responses) {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(requests, UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          JsonArray request = new JsonParser().parse(line).getAsJsonArray();
+          // Real daemons may interleave logs with the responses.
+          JsonObject log = new JsonObject();
+          log.addProperty("log", "handling " + request.get(0).getAsString());
+          responses.write((log + "\n" + handle(request) + "\n").getBytes(UTF_8));
+          responses.flush();
+        }
+      } catch (IOException e) {
+        // The client disconnected.
+      }
+    }
+
+    private synchronized JsonObject handle(JsonArray request) {
+      JsonObject response = new JsonObject();
+      String command = request.get(0).getAsString();
+      String root = request.get(1).getAsString();
+      if (command.equals("watch-project")) {
+        if (!root.startsWith(project)) {
+          response.addProperty("error", root + " is not watched");
+          return response;
+        }
+        response.addProperty("watch", project);
+        if (!root.equals(project)) {
+          response.addProperty("relative_path", root.substring(project.length() + 1));
+        }
+        return response;
+      }
+      assertThat(root).isEqualTo(project);
+      response.addProperty("clock", "c:" + changes.size());
+      if (command.equals("query")) {
+        JsonObject query = request.get(2).getAsJsonObject();
+        assertThat(query.get("empty_on_fresh_instance").getAsBoolean()).isTrue();
+        int since = Integer.parseInt(query.get("since").getAsString().substring(2));
+        String prefix =
+            query.has("relative_root") ? query.get("relative_root").getAsString() + "/" : "";
+        Set<String> files = new LinkedHashSet<>();
+        if (freshInstance) {
+          freshInstance = false;
+          response.addProperty("is_fresh_instance", true);
+        } else {
+          for (String change : changes.subList(since, changes.size())) {
+            if (change.startsWith(prefix)) {
+              files.add(change.substring(prefix.length()));
+            }
+          }
+        }
+        JsonArray filesArray = new JsonArray();
+        files.forEach(filesArray::add);
+        response.add("files", filesArray);
+      }
+      return response;
+    }
+  }
+
+  private final FakeWatchmanDaemon daemon = new FakeWatchmanDaemon("/ws");
+  private WatchmanDiffAwareness underTest;
+
+  @After
+  public void closeDiffAwareness() {
+    if (underTest != null) {
+      underTest.close();
+    }
+  }
+
+  private static OptionsProvider options(String socket) {
+    WatchmanDiffAwareness.Options options = new WatchmanDiffAwareness.Options();
+    options.watchmanSocket = socket;
+    return FakeOptions.of(options);
+  }
+
+  private View getCurrentView() throws Exception {
+    return underTest.getCurrentView(options(SOCKET));
+  }
+
+  private static ModifiedFileSet modified(String... paths) {
+    ModifiedFileSet.Builder builder = ModifiedFileSet.builder();
+    for (String path : paths) {
+      builder.modify(PathFragment.create(path));
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void reportsChangesSinceOldView() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    View view1 = getCurrentView();
+
+    daemon.change("foo/bar.txt", "baz", "foo/bar.txt");
+    View view2 = getCurrentView();
+    View view3 = getCurrentView();
+
+    assertThat(underTest.getDiff(view1, view2)).isEqualTo(modified("foo/bar.txt", "baz"));
+    assertThat(underTest.getDiff(view2, view3)).isEqualTo(modified());
+  }
+
+  @Test
+  public void reportsNonAsciiNamesInInternalEncoding() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    View view1 = getCurrentView();
+
+    daemon.change("dir/\u00fcber.txt");
+    View view2 = getCurrentView();
+
+    assertThat(underTest.getDiff(view1, view2))
+        .isEqualTo(modified(new String("dir/\u00fcber.txt".getBytes(UTF_8), ISO_8859_1)));
+  }
+
+  @Test
+  public void nextInstanceDiffsAgainstPersistedClock() throws Exception {
+    Path clocksFile = new InMemoryFileSystem(DigestHashFunction.SHA256).getPath("/clocks");
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, clocksFile);
+    daemon.change("a");
+    View view = getCurrentView();
+    assertThat(underTest.getPersistedView()).isNull();
+    underTest.persistView(view);
+    underTest.close();
+
+    daemon.change("b");
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, clocksFile);
+    View newView = getCurrentView();
+
+    assertThat(underTest.getDiff(underTest.getPersistedView(), newView)).isEqualTo(modified("b"));
+  }
+
+  @Test
+  public void persistedClockOfOtherSocketIsIgnored() throws Exception {
+    Path clocksFile = new InMemoryFileSystem(DigestHashFunction.SHA256).getPath("/clocks");
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, clocksFile);
+    underTest.persistView(getCurrentView());
+    underTest.close();
+
+    String otherSocket = "/other/watchman.sock";
+    underTest =
+        new WatchmanDiffAwareness(
+            "/ws", otherSocket, socketPath -> daemon.connect(SOCKET), clocksFile);
+    underTest.getCurrentView(options(otherSocket));
+
+    assertThat(underTest.getPersistedView()).isNull();
+  }
+
+  @Test
+  public void diffsNonSequentialViews() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    View view1 = getCurrentView();
+    daemon.change("a");
+    getCurrentView();
+    daemon.change("b");
+    View view3 = getCurrentView();
+
+    assertThat(underTest.getDiff(view1, view3)).isEqualTo(modified("a", "b"));
+  }
+
+  @Test
+  public void watchRootBelowProject() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws/sub", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    View view1 = getCurrentView();
+
+    daemon.change("sub/a", "other/b", "sub/dir/c");
+    View view2 = getCurrentView();
+
+    assertThat(underTest.getDiff(view1, view2)).isEqualTo(modified("a", "dir/c"));
+  }
+
+  @Test
+  public void freshInstanceModifiesEverything() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    View view1 = getCurrentView();
+
+    daemon.change("a");
+    daemon.forgetChanges();
+    View view2 = getCurrentView();
+
+    assertThat(underTest.getDiff(view1, view2)).isEqualTo(ModifiedFileSet.EVERYTHING_MODIFIED);
+  }
+
+  @Test
+  public void daemonErrorBreaksDiffAwareness() throws Exception {
+    underTest =
+        new WatchmanDiffAwareness("/elsewhere", SOCKET, daemon::connect, /*clocksFile=*/ null);
+
+    BrokenDiffAwarenessException e =
+        assertThrows(BrokenDiffAwarenessException.class, this::getCurrentView);
+    assertThat(e).hasMessageThat().contains("/elsewhere is not watched");
+  }
+
+  @Test
+  public void timedOutResponseBreaksDiffAwareness() throws Exception {
+    // Like the socket of a daemon that doesn't answer within the read timeout.
+    InputStream hungDaemon =
+        new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new SocketTimeoutException("read (Connection timed out)");
+          }
+        };
+    underTest =
+        new WatchmanDiffAwareness(
+            "/ws",
+            SOCKET,
+            socketPath -> new WatchmanClient(hungDaemon, new ByteArrayOutputStream(), () -> {}),
+            /*clocksFile=*/ null);
+
+    BrokenDiffAwarenessException e =
+        assertThrows(BrokenDiffAwarenessException.class, this::getCurrentView);
+    assertThat(e).hasMessageThat().contains("Connection timed out");
+  }
+
+  @Test
+  public void changedSocketBreaksDiffAwareness() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    getCurrentView();
+
+    assertThrows(
+        BrokenDiffAwarenessException.class, () -> underTest.getCurrentView(options("")));
+  }
+
+  @Test
+  public void factoryRequiresSocket() {
+    assertThat(
+            new WatchmanDiffAwareness.Factory(/*clocksFile=*/ null)
+                .maybeCreate(/*pathEntry=*/ null, options(/*socket=*/ "")))
+        .isNull();
+  }
+
+  @Test
+  public void viewsOfOtherInstancesAreIncompatible() throws Exception {
+    underTest = new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    WatchmanDiffAwareness other =
+        new WatchmanDiffAwareness("/ws", SOCKET, daemon::connect, /*clocksFile=*/ null);
+    try {
+      View view = getCurrentView();
+      View otherView = other.getCurrentView(options(SOCKET));
+
+      assertThrows(IncompatibleViewException.class, () -> underTest.getDiff(view, otherView));
+    } finally {
+      other.close();
+    }
+  }
+}
@@ -17,6 +17,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNoException;
 import static org.junit.Assume.assumeTrue;
 
 import com.google.devtools.build.lib.testutil.TestUtils;
@@ -24,10 +25,14 @@ import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -136,4 +141,92 @@ public class NativePosixFilesTest {
     NativePosixFiles.close(fd2, null);
     assertThat(Files.readAllBytes(myfile)).isEqualTo(new byte[] {0, 1, 2, 3, 6, 7, 8});
   }
+
+  /**
+   * Starts a python3 process that listens on a Unix domain socket at {@code socketPath}, since Java
+   * can't. It accepts one connection, answers the first bytes it receives reversed, and exits once
+   * the client disconnects. Skips the test if python3 isn't available.
+   */
+  private static Process startReversingServer(String socketPath) throws Exception {
+    assumeTrue(OS.getCurrent() == OS.LINUX || OS.getCurrent() == OS.DARWIN);
+    String script =
+        String.join(
+            "\n",
+            "import socket, sys",
+            "s = socket.socket(socket.AF_UNIX)",
+            "s.bind(sys.argv[1])",
+            "s.listen(1)",
+            "print('listening', flush=True)",
+            "c, _ = s.accept()",
+            "data = c.recv(64)",
+            "if data:",
+            "  c.sendall(data[::-1])",
+            "  c.recv(64)",
+            "c.close()");
+    Process server;
+    try {
+      server = new ProcessBuilder("python3", "-c", script, socketPath).start();
+    } catch (IOException e) {
+      assumeNoException(e);
+      throw e;
+    }
+    BufferedReader serverOutput =
+        new BufferedReader(new InputStreamReader(server.getInputStream(), UTF_8));
+    assertThat(serverOutput.readLine()).isEqualTo("listening");
+    return server;
+  }
+
+  /** Returns a path for a socket that is short enough for {@code sockaddr_un}. */
+  private static String newSocketPath() throws IOException {
+    return Files.createTempDirectory(Paths.get("/tmp"), "sock").resolve("s").toString();
+  }
+
+  @Test
+  public void unixSocketReadsAndWrites() throws Exception {
+    String socketPath = newSocketPath();
+    Process server = startReversingServer(socketPath);
+    int fd = NativePosixFiles.connectUnixSocket(socketPath, /*timeoutMillis=*/ 10_000);
+    try {
+      NativePosixFiles.write(fd, "hello".getBytes(UTF_8), 0, 5);
+      byte[] buf = new byte[7];
+      int off = 1;
+      while (off < 6) {
+        int n = NativePosixFiles.read(fd, buf, off, 6 - off);
+        assertThat(n).isGreaterThan(0);
+        off += n;
+      }
+      assertThat(new String(buf, 1, 5, UTF_8)).isEqualTo("olleh");
+      assertThrows(
+          IndexOutOfBoundsException.class, () -> NativePosixFiles.read(fd, buf, 5, 3));
+
+      NativePosixFiles.write(fd, "bye".getBytes(UTF_8), 0, 3);
+      // The server closes its end.
+      assertThat(NativePosixFiles.read(fd, buf, 0, 7)).isEqualTo(-1);
+    } finally {
+      NativePosixFiles.close(fd, null);
+    }
+    assertThat(server.waitFor()).isEqualTo(0);
+  }
+
+  @Test
+  public void unixSocketReadTimesOut() throws Exception {
+    String socketPath = newSocketPath();
+    Process server = startReversingServer(socketPath);
+    int fd = NativePosixFiles.connectUnixSocket(socketPath, /*timeoutMillis=*/ 100);
+    try {
+      // The server waits for data first.
+      assertThrows(
+          SocketTimeoutException.class, () -> NativePosixFiles.read(fd, new byte[1], 0, 1));
+    } finally {
+      NativePosixFiles.close(fd, null);
+    }
+    assertThat(server.waitFor()).isEqualTo(0);
+  }
+
+  @Test
+  public void unixSocketWithoutServer() throws Exception {
+    assertThrows(
+        FileNotFoundException.class,
+        () -> NativePosixFiles.connectUnixSocket(newSocketPath(), /*timeoutMillis=*/ 0));
+  }
 }
@@ -16,13 +16,19 @@ package com.google.devtools.build.lib.unix;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.SymlinkAwareFileSystemTest;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.List;
 import org.junit.Test;
 
 /** Tests for the {@link com.google.devtools.build.lib.unix.UnixFileSystem} class. */
@@ -70,4 +76,84 @@ public class UnixFileSystemTest extends SymlinkAwareFileSystemTest {
     assertThat(fifo.stat().isFile()).isTrue();
     assertThat(fifo.stat().isSpecialFile()).isTrue();
   }
+
+  @Test
+  public void testBatchStat() throws Exception {
+    Path file = absolutize("file");
+    FileSystemUtils.writeContentAsLatin1(file, "contents");
+    Path dir = absolutize("dir");
+    dir.createDirectory();
+    Path link = absolutize("link");
+    link.createSymbolicLink(file);
+    NativePosixFiles.mkfifo(absolutize("fifo").toString(), 0777);
+
+    BatchStat batchStatter = testFS.getBatchStatter(workingDir);
+    List<FileStatusWithDigest> stats =
+        batchStatter.batchStat(
+            /*includeDigest=*/ false,
+            /*includeLinks=*/ true,
+            ImmutableList.of(
+                PathFragment.create("file"),
+                PathFragment.create("dir"),
+                link.asFragment(),
+                PathFragment.create("fifo"),
+                PathFragment.create("missing"),
+                PathFragment.create("file/child")));
+
+    assertThat(stats).hasSize(6);
+    for (int i = 0; i < 2; i++) {
+      FileStatus expected = (i == 0 ? file : dir).stat();
+      assertThat(stats.get(i).isFile()).isEqualTo(expected.isFile());
+      assertThat(stats.get(i).isDirectory()).isEqualTo(expected.isDirectory());
+      assertThat(stats.get(i).getSize()).isEqualTo(expected.getSize());
+      assertThat(stats.get(i).getLastModifiedTime()).isEqualTo(expected.getLastModifiedTime());
+      assertThat(stats.get(i).getLastChangeTime()).isEqualTo(expected.getLastChangeTime());
+      assertThat(stats.get(i).getNodeId()).isEqualTo(expected.getNodeId());
+      assertThat(stats.get(i).getDigest()).isNull();
+    }
+    assertThat(stats.get(0).getSize()).isEqualTo(8);
+    assertThat(stats.get(2).isSymbolicLink()).isTrue();
+    assertThat(stats.get(2).isFile()).isFalse();
+    assertThat(stats.get(3).isSpecialFile()).isTrue();
+    assertThat(stats.get(4)).isNull();
+    assertThat(stats.get(5)).isNull();
+
+    List<FileStatusWithDigest> followed =
+        batchStatter.batchStat(
+            /*includeDigest=*/ false,
+            /*includeLinks=*/ false,
+            ImmutableList.of(PathFragment.create("link")));
+    assertThat(followed.get(0).isFile()).isTrue();
+    assertThat(followed.get(0).getNodeId()).isEqualTo(file.stat().getNodeId());
+  }
+
+  @Test
+  public void testBatchStatThrowsOnErrorsOtherThanMissingFiles() throws Exception {
+    Path linkA = absolutize("link-a");
+    Path linkB = absolutize("link-b");
+    linkA.createSymbolicLink(linkB);
+    linkB.createSymbolicLink(linkA);
+    BatchStat batchStatter = testFS.getBatchStatter(workingDir);
+
+    assertThrows(
+        IOException.class,
+        () ->
+            batchStatter.batchStat(
+                /*includeDigest=*/ false,
+                /*includeLinks=*/ false,
+                ImmutableList.of(PathFragment.create("link-a"))));
+  }
+
+  @Test
+  public void testNoBatchStatForSubclasses() {
+    FileSystem subclassFs =
+        new UnixFileSystem(DigestHashFunction.SHA256, /*hashAttributeName=*/ "") {
+          @Override
+          protected UnixFileStatus statInternal(Path path, boolean followSymlinks) {
+            throw new UnsupportedOperationException();
+          }
+        };
+
+    assertThat(subclassFs.getBatchStatter(subclassFs.getPath(workingDir.asFragment()))).isNull();
+  }
 }
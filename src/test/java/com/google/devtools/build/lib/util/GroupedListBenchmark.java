@@ -0,0 +1,84 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+
+/**
+ * Microbenchmarks for recording the direct deps of a node the way Skyframe does: each call to
+ * {@code getValue} or {@code getValues} is a group of a {@link GroupedListHelper}, which is
+ * appended to the node's {@link GroupedList} after each restart and compressed once the node is
+ * done. Run with Caliper's allocation instrument ({@code -i allocation}) to see the garbage
+ * produced per node.
+ */
+public class GroupedListBenchmark {
+
+  /** Typical shapes of the deps requested by one node, as the sizes of its groups per restart. */
+  enum DepShape {
+    /** A file-like node, which requests one dep. */
+    LEAF(new int[][] {{1}}),
+    /**
+     * A configured target: its package and configuration, then its toolchains and config
+     * conditions, then its deps.
+     */
+    CONFIGURED_TARGET(new int[][] {{1, 1}, {1, 3}, {12, 1, 4}}),
+    /** A node that requests all of its many deps at once, like a glob or a test suite. */
+    WIDE(new int[][] {{200}});
+
+    private final int[][] groupSizesPerRestart;
+
+    DepShape(int[][] groupSizesPerRestart) {
+      this.groupSizesPerRestart = groupSizesPerRestart;
+    }
+  }
+
+  @Param DepShape shape;
+
+  private ImmutableList<String> keys;
+
+  @BeforeExperiment
+  void createKeys() {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (int i = 0; i < 256; i++) {
+      builder.add("key" + i);
+    }
+    keys = builder.build();
+  }
+
+  @Benchmark
+  int recordDeps(int reps) {
+    int numElements = 0;
+    for (int r = 0; r < reps; r++) {
+      GroupedList<String> directDeps = new GroupedList<>();
+      int nextKey = 0;
+      for (int[] groupSizes : shape.groupSizesPerRestart) {
+        GroupedListHelper<String> helper = new GroupedListHelper<>();
+        for (int groupSize : groupSizes) {
+          helper.startGroup();
+          for (int i = 0; i < groupSize; i++) {
+            helper.add(keys.get(nextKey++));
+          }
+          helper.endGroup();
+        }
+        directDeps.append(helper);
+      }
+      numElements += GroupedList.numElements(directDeps.compress());
+    }
+    return numElements;
+  }
+}
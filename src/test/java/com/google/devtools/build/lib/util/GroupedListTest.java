@@ -317,6 +317,51 @@ public class GroupedListTest {
     assertThat(groupedList.isEmpty()).isTrue();
   }
 
+  @Test
+  public void helperGroupsAreIndependent() {
+    GroupedListHelper<String> helper = new GroupedListHelper<>();
+    helper.startGroup();
+    helper.add("1a");
+    helper.add("1b");
+    helper.endGroup();
+    helper.startGroup();
+    helper.add("2");
+    helper.endGroup();
+    helper.startGroup();
+    helper.add("3a");
+    helper.add("3b");
+    helper.add("3c");
+    helper.endGroup();
+    assertThat(helper).containsExactly("1a", "1b", "2", "3a", "3b", "3c").inOrder();
+    assertThat(helper.contains("3b")).isTrue();
+    assertThat(helper.contains("4")).isFalse();
+
+    GroupedList<String> groupedList = new GroupedList<>();
+    assertThat(groupedList.append(helper)).containsExactly("1a", "1b", "2", "3a", "3b", "3c");
+    assertElementsEqualInGroups(
+        groupedList,
+        ImmutableList.of(
+            ImmutableList.of("1a", "1b"),
+            ImmutableList.of("2"),
+            ImmutableList.of("3a", "3b", "3c")));
+  }
+
+  @Test
+  public void appendSmallHelpers() {
+    GroupedList<String> groupedList = new GroupedList<>();
+    assertThat(groupedList.append(new GroupedListHelper<>())).isEmpty();
+    assertThat(groupedList.isEmpty()).isTrue();
+    assertThat(groupedList.append(GroupedListHelper.create("a"))).containsExactly("a");
+    GroupedListHelper<String> helper = new GroupedListHelper<>();
+    helper.startGroup();
+    helper.add("b");
+    helper.endGroup();
+    assertThat(groupedList.append(helper)).containsExactly("b");
+    assertThat(groupedList.numElements()).isEqualTo(2);
+    assertElementsEqualInGroups(
+        groupedList, ImmutableList.of(ImmutableList.of("a"), ImmutableList.of("b")));
+  }
+
   private static Object createAndCompress(Collection<String> list) {
     GroupedList<String> result = new GroupedList<>();
     GroupedListHelper<String> helper = new GroupedListHelper<>();
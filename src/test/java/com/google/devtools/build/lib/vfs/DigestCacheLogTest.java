@@ -0,0 +1,116 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestUtils.CacheKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DigestCacheLog}. */
+@RunWith(JUnit4.class)
+public class DigestCacheLogTest {
+
+  private static final String DIGEST_FUNCTION = "SHA-256";
+
+  private Path path;
+
+  @Before
+  public final void createPath() throws Exception {
+    path = TestUtils.tmpDirFile().toPath().resolve("digests");
+    Files.deleteIfExists(path);
+  }
+
+  private static CacheKey key(int i) {
+    return new CacheKey(PathFragment.create("/file" + i), i, 1, 2, 3);
+  }
+
+  private static byte[] digest(int i) {
+    return new byte[] {(byte) i, 42};
+  }
+
+  private static Map<CacheKey, byte[]> entries(int... indices) {
+    Map<CacheKey, byte[]> entries = new HashMap<>();
+    for (int i : indices) {
+      entries.put(key(i), digest(i));
+    }
+    return entries;
+  }
+
+  private Map<CacheKey, byte[]> reload() throws Exception {
+    Map<CacheKey, byte[]> loaded = new HashMap<>();
+    DigestCacheLog.load(path, DIGEST_FUNCTION, loaded::put).close();
+    return loaded;
+  }
+
+  @Test
+  public void compactsOnceMoreThanTwiceAsManyRecordsAsEntries() throws Exception {
+    DigestCacheLog log =
+        DigestCacheLog.load(
+            path, DIGEST_FUNCTION, (key, digest) -> {}, /*minCompactionRecords=*/ 4);
+    for (int i = 0; i < 6; i++) {
+      log.append(key(i), digest(i));
+    }
+
+    log.save(entries(4, 5));
+    assertThat(log.getRecordCount()).isEqualTo(2);
+    assertThat(Files.exists(path.resolveSibling("digests.compacting"))).isFalse();
+
+    // Records are appended to the compacted file.
+    log.append(key(6), digest(6));
+    log.save(entries(4, 5, 6));
+    assertThat(log.getRecordCount()).isEqualTo(3);
+    log.close();
+
+    Map<CacheKey, byte[]> loaded = reload();
+    assertThat(loaded.keySet()).containsExactlyElementsIn(entries(4, 5, 6).keySet());
+    assertThat(loaded.get(key(6))).isEqualTo(digest(6));
+  }
+
+  @Test
+  public void doesNotCompactBelowMinimumRecords() throws Exception {
+    DigestCacheLog log =
+        DigestCacheLog.load(
+            path, DIGEST_FUNCTION, (key, digest) -> {}, /*minCompactionRecords=*/ 10);
+    for (int i = 0; i < 6; i++) {
+      log.append(key(i), digest(i));
+    }
+
+    log.save(entries(5));
+    assertThat(log.getRecordCount()).isEqualTo(6);
+    log.close();
+
+    assertThat(reload().keySet()).containsExactlyElementsIn(entries(0, 1, 2, 3, 4, 5).keySet());
+  }
+
+  @Test
+  public void loadCountsRecords() throws Exception {
+    DigestCacheLog log = DigestCacheLog.load(path, DIGEST_FUNCTION, (key, digest) -> {});
+    log.append(key(0), digest(0));
+    log.append(key(1), digest(1));
+    log.close();
+
+    log = DigestCacheLog.load(path, DIGEST_FUNCTION, (key, digest) -> {});
+    assertThat(log.getRecordCount()).isEqualTo(2);
+    log.close();
+  }
+}
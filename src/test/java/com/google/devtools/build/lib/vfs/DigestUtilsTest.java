@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -225,4 +226,112 @@ public class DigestUtilsTest {
 
     assertThat(DigestUtils.manuallyComputeDigest(file, /*fileSize=*/ 8)).isEqualTo(digest);
   }
+
+  private static FileSystem countingFileSystem(
+      DigestHashFunction digestFunction, AtomicInteger getDigestCounter) {
+    return new InMemoryFileSystem(digestFunction) {
+      @Override
+      protected byte[] getFastDigest(Path path) {
+        return null;
+      }
+
+      @Override
+      protected byte[] getDigest(Path path) throws IOException {
+        getDigestCounter.incrementAndGet();
+        return super.getDigest(path);
+      }
+    };
+  }
+
+  /** Simulates a server restart by starting over with an empty cache. */
+  private static void restart(java.nio.file.Path cacheFile, DigestHashFunction digestFunction)
+      throws IOException {
+    DigestUtils.closePersistentCache();
+    DigestUtils.configureCache(100);
+    DigestUtils.configurePersistentCache(cacheFile, digestFunction);
+  }
+
+  @Test
+  public void persistentCacheSurvivesRestart() throws Exception {
+    java.nio.file.Path cacheFile = TestUtils.tmpDirFile().toPath().resolve("digests");
+    Files.deleteIfExists(cacheFile);
+    AtomicInteger getDigestCounter = new AtomicInteger();
+    FileSystem fs = countingFileSystem(DigestHashFunction.SHA256, getDigestCounter);
+    Path file1 = fs.getPath("/1.txt");
+    Path file2 = fs.getPath("/2.txt");
+    FileSystemUtils.writeContentAsLatin1(file1, "some contents");
+    FileSystemUtils.writeContentAsLatin1(file2, "some other contents");
+
+    restart(cacheFile, DigestHashFunction.SHA256);
+    byte[] digest1 = DigestUtils.getDigestWithManualFallback(file1, file1.getFileSize());
+    byte[] digest2 = DigestUtils.getDigestWithManualFallback(file2, file2.getFileSize());
+    DigestUtils.savePersistentCache();
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+
+    restart(cacheFile, DigestHashFunction.SHA256);
+    assertThat(DigestUtils.getDigestWithManualFallback(file1, file1.getFileSize()))
+        .isEqualTo(digest1);
+    assertThat(DigestUtils.getDigestWithManualFallback(file2, file2.getFileSize()))
+        .isEqualTo(digest2);
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+
+    // A changed file misses the persisted entry.
+    FileSystemUtils.writeContentAsLatin1(file2, "changed contents");
+    DigestUtils.getDigestWithManualFallback(file2, file2.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void persistentCacheIgnoresOtherDigestFunction() throws Exception {
+    java.nio.file.Path cacheFile = TestUtils.tmpDirFile().toPath().resolve("digests");
+    Files.deleteIfExists(cacheFile);
+    AtomicInteger getDigestCounter = new AtomicInteger();
+    FileSystem fs = countingFileSystem(DigestHashFunction.SHA256, getDigestCounter);
+    Path file = fs.getPath("/f.txt");
+    FileSystemUtils.writeContentAsLatin1(file, "contents");
+
+    restart(cacheFile, DigestHashFunction.SHA256);
+    DigestUtils.getDigestWithManualFallback(file, file.getFileSize());
+    DigestUtils.savePersistentCache();
+
+    restart(cacheFile, DigestHashFunction.SHA1);
+    assertThat(DigestUtils.getCacheStats().requestCount()).isEqualTo(0);
+    DigestUtils.getDigestWithManualFallback(file, file.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void persistentCacheDropsCorruptedTail() throws Exception {
+    java.nio.file.Path cacheFile = TestUtils.tmpDirFile().toPath().resolve("digests");
+    Files.deleteIfExists(cacheFile);
+    AtomicInteger getDigestCounter = new AtomicInteger();
+    FileSystem fs = countingFileSystem(DigestHashFunction.SHA256, getDigestCounter);
+    Path file1 = fs.getPath("/1.txt");
+    Path file2 = fs.getPath("/2.txt");
+    FileSystemUtils.writeContentAsLatin1(file1, "some contents");
+    FileSystemUtils.writeContentAsLatin1(file2, "some other contents");
+
+    restart(cacheFile, DigestHashFunction.SHA256);
+    DigestUtils.getDigestWithManualFallback(file1, file1.getFileSize());
+    DigestUtils.getDigestWithManualFallback(file2, file2.getFileSize());
+    DigestUtils.closePersistentCache();
+
+    // Flip the last byte, which belongs to the record of the second file.
+    byte[] contents = Files.readAllBytes(cacheFile);
+    contents[contents.length - 1] ^= 1;
+    Files.write(cacheFile, contents);
+
+    restart(cacheFile, DigestHashFunction.SHA256);
+    DigestUtils.getDigestWithManualFallback(file1, file1.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+    DigestUtils.getDigestWithManualFallback(file2, file2.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(3);
+
+    // The recomputed digest is appended after the valid records.
+    DigestUtils.savePersistentCache();
+    restart(cacheFile, DigestHashFunction.SHA256);
+    DigestUtils.getDigestWithManualFallback(file1, file1.getFileSize());
+    DigestUtils.getDigestWithManualFallback(file2, file2.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(3);
+  }
 }
@@ -0,0 +1,183 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactReverseDepsNodeEntry} and {@link NodeIdTable}. */
+@RunWith(JUnit4.class)
+public class CompactReverseDepsNodeEntryTest {
+
+  private final InMemoryGraphImpl graph =
+      new InMemoryGraphImpl(
+          /*keepEdges=*/ true, /*openAddressingNodeMap=*/ false, /*compactReverseDeps=*/ true);
+
+  private CompactReverseDepsNodeEntry create(SkyKey key) {
+    return (CompactReverseDepsNodeEntry)
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+  }
+
+  private List<SkyKey> createParents(int count) {
+    List<SkyKey> parents = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      parents.add(skyKey("parent" + i));
+      create(parents.get(i));
+    }
+    return parents;
+  }
+
+  private CompactReverseDepsNodeEntry createDone(SkyKey key, List<SkyKey> reverseDeps) {
+    CompactReverseDepsNodeEntry entry = create(key);
+    entry.restoreDone(new StringValue("value"), new GroupedList<>(), reverseDeps);
+    return entry;
+  }
+
+  @Test
+  public void reverseDepsAreStoredAsIds() throws Exception {
+    CompactReverseDepsNodeEntry entry = create(skyKey("child"));
+    List<SkyKey> parents = createParents(10);
+
+    ReverseDepsUtility.addReverseDeps(entry, parents.subList(0, 1));
+    assertThat(entry.getReverseDepsRawForReverseDepsUtil()).isEqualTo(parents.get(0));
+    ReverseDepsUtility.addReverseDeps(entry, parents.subList(1, 5));
+    ReverseDepsUtility.addReverseDeps(entry, parents.subList(5, 10));
+    assertThat(entry.getReverseDepsRawForReverseDepsUtil()).isInstanceOf(ReverseDepIdList.class);
+
+    ReverseDepsUtility.removeReverseDep(entry, parents.get(3));
+    ReverseDepsUtility.checkReverseDep(entry, parents.get(4));
+    parents.remove(3);
+    assertThat(ReverseDepsUtility.getReverseDeps(entry)).containsExactlyElementsIn(parents);
+    assertThat(entry.getReverseDepsRawForReverseDepsUtil()).isInstanceOf(ReverseDepIdList.class);
+  }
+
+  @Test
+  public void reverseDepsWithoutNodeAreStoredAsKeys() throws Exception {
+    CompactReverseDepsNodeEntry entry = create(skyKey("child"));
+    List<SkyKey> parents = createParents(2);
+    ReverseDepsUtility.addReverseDeps(entry, parents);
+
+    ReverseDepsUtility.addReverseDeps(entry, ImmutableList.of(skyKey("orphan")));
+
+    assertThat(entry.getReverseDepsRawForReverseDepsUtil())
+        .isNotInstanceOf(ReverseDepIdList.class);
+    assertThat(ReverseDepsUtility.getReverseDeps(entry))
+        .containsExactly(parents.get(0), parents.get(1), skyKey("orphan"));
+  }
+
+  @Test
+  public void idOfDeletedNodeIsReusedOnceItsRemovalIsApplied() throws Exception {
+    List<SkyKey> parents = createParents(3);
+    CompactReverseDepsNodeEntry child = createDone(skyKey("child"), parents);
+    int deletedId = create(parents.get(0)).getId();
+
+    child.removeReverseDep(parents.get(0));
+    graph.remove(parents.get(0));
+    assertThat(child.getReverseDepsDataToConsolidateForReverseDepsUtil()).isNotNull();
+    graph.deletionFinished();
+
+    assertThat(child.getReverseDepsDataToConsolidateForReverseDepsUtil()).isNull();
+    assertThat(create(skyKey("new")).getId()).isEqualTo(deletedId);
+    assertThat(child.getReverseDepsForDoneEntry()).containsExactly(parents.get(1), parents.get(2));
+    assertThat(graph.getNodeIdsForTesting().size()).isEqualTo(4);
+  }
+
+  @Test
+  public void idHeldByNodeThatIsNotDoneIsKept() throws Exception {
+    List<SkyKey> parents = createParents(3);
+    CompactReverseDepsNodeEntry child = create(skyKey("child"));
+    ReverseDepsUtility.addReverseDeps(child, parents);
+    int deletedId = create(parents.get(0)).getId();
+
+    // The removal is only applied when the child is done.
+    child.removeReverseDep(parents.get(0));
+    graph.remove(parents.get(0));
+    graph.deletionFinished();
+
+    int newId = create(skyKey("new")).getId();
+    assertThat(newId).isNotEqualTo(deletedId);
+    assertThat(child.getAllReverseDepsForNodeBeingDeleted())
+        .containsExactly(parents.get(1), parents.get(2));
+
+    graph.remove(skyKey("child"));
+    graph.deletionFinished();
+    assertThat(create(skyKey("newer")).getId()).isLessThan(newId);
+    assertThat(create(skyKey("newest")).getId()).isLessThan(newId);
+  }
+
+  @Test
+  public void idsAreRecycledAcrossEvaluations() throws Exception {
+    GraphTester tester = new GraphTester();
+    SkyKey top = skyKey("top");
+    SkyKey leaf = skyKey("leaf");
+    tester.set(leaf, new StringValue("leaf"));
+    List<SkyKey> parents = new ArrayList<>();
+    GraphTester.TestFunction topFunction = tester.getOrCreate(top);
+    for (int i = 0; i < 20; i++) {
+      SkyKey parent = skyKey("parent" + i);
+      parents.add(parent);
+      tester.getOrCreate(parent).addDependency(leaf).setComputedValue(CONCATENATE);
+      topFunction.addDependency(parent);
+    }
+    topFunction.setComputedValue(CONCATENATE);
+    InMemoryMemoizingEvaluator evaluator =
+        new InMemoryMemoizingEvaluator(
+            tester.getSkyFunctionMap(),
+            new SequencedRecordingDifferencer(),
+            /*progressReceiver=*/ null,
+            GraphInconsistencyReceiver.THROWING,
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            new EmittedEventState(),
+            /*keepEdges=*/ true,
+            /*openAddressingNodeMap=*/ false,
+            /*compactReverseDeps=*/ true);
+    InMemoryGraphImpl evaluatorGraph = (InMemoryGraphImpl) evaluator.getGraphForTesting();
+
+    for (int version = 0; version < 5; version++) {
+      // Deleting a few parents leaves their removal from the leaf's reverse deps pending.
+      evaluator.delete(key -> parents.subList(0, 5).contains(key));
+      EvaluationResult<StringValue> result =
+          evaluator.evaluate(
+              ImmutableList.of(top),
+              IntVersion.of(version),
+              EvaluationContext.newBuilder()
+                  .setKeepGoing(false)
+                  .setNumThreads(4)
+                  .setEventHandler(NullEventHandler.INSTANCE)
+                  .build());
+      assertThat(result.hasError()).isFalse();
+    }
+
+    // Each deleted node's id was reused by the node that replaced it.
+    assertThat(evaluatorGraph.getNodeIdsForTesting().size())
+        .isEqualTo(evaluatorGraph.getAllValues().size());
+    NodeEntry leafEntry = evaluator.getExistingEntryAtCurrentlyEvaluatingVersion(leaf);
+    assertThat(leafEntry.getReverseDepsForDoneEntry()).containsExactlyElementsIn(parents);
+    assertThat(((InMemoryNodeEntry) leafEntry).getReverseDepsRawForReverseDepsUtil())
+        .isInstanceOf(ReverseDepIdList.class);
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CriticalPathSchedulingPolicy}. */
+@RunWith(JUnit4.class)
+public class CriticalPathSchedulingPolicyTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final CriticalPathSchedulingPolicy policy = new CriticalPathSchedulingPolicy();
+
+  private static GroupedList<SkyKey> deps(SkyKey... keys) {
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    for (SkyKey key : keys) {
+      deps.appendGroup(ImmutableList.of(key));
+    }
+    return deps;
+  }
+
+  @Test
+  public void criticalPathIncludesLongestDep() {
+    policy.evaluated(skyKey("slow"), 100 * MS, deps());
+    policy.evaluated(skyKey("fast"), 2 * MS, deps());
+    policy.evaluated(skyKey("parent"), 5 * MS, deps(skyKey("fast"), skyKey("slow")));
+
+    assertThat(policy.priority(skyKey("slow"))).isEqualTo(100 * MS);
+    assertThat(policy.priority(skyKey("fast"))).isEqualTo(2 * MS);
+    assertThat(policy.priority(skyKey("parent"))).isEqualTo(105 * MS);
+    assertThat(policy.priority(skyKey("unknown"))).isEqualTo(0);
+  }
+
+  @Test
+  public void shortCriticalPathsAreNotKept() {
+    policy.evaluated(skyKey("a"), 5 * MS, deps());
+    policy.evaluated(skyKey("b"), 10, deps());
+    assertThat(policy.size()).isEqualTo(1);
+
+    policy.evaluated(skyKey("a"), 10, deps());
+    assertThat(policy.priority(skyKey("a"))).isEqualTo(0);
+    assertThat(policy.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void forgottenCriticalPathsAreNotKept() {
+    policy.evaluated(skyKey("a"), 5 * MS, deps());
+    policy.evaluated(skyKey("b"), 5 * MS, deps());
+
+    policy.forget(skyKey("a"));
+    assertThat(policy.priority(skyKey("a"))).isEqualTo(0);
+    assertThat(policy.size()).isEqualTo(1);
+
+    policy.clear();
+    assertThat(policy.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void evaluatorSchedulesLongerCriticalPathFirst() throws Exception {
+    policy.evaluated(skyKey("slow"), 100 * MS, deps());
+    policy.evaluated(skyKey("medium"), 10 * MS, deps());
+
+    // Siblings are enqueued with the same depth-first priority, so only the policy orders them.
+    assertThat(evaluateTopAndGetDepOrder(policy))
+        .containsExactly(skyKey("slow"), skyKey("medium"), skyKey("fast"))
+        .inOrder();
+  }
+
+  /**
+   * Evaluates a node that requests the deps "fast", "medium" and "slow" on a single thread, and
+   * returns the order in which the deps were evaluated.
+   */
+  private static List<SkyKey> evaluateTopAndGetDepOrder(SchedulingPolicy schedulingPolicy)
+      throws InterruptedException {
+    SkyKey top = skyKey("top");
+    ImmutableList<SkyKey> deps = ImmutableList.of(skyKey("fast"), skyKey("medium"), skyKey("slow"));
+    List<SkyKey> evaluated = Collections.synchronizedList(new ArrayList<>());
+    SkyFunction function =
+        new SkyFunction() {
+          @Nullable
+          @Override
+          public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+            if (skyKey.equals(top)) {
+              env.getValues(deps);
+              return env.valuesMissing() ? null : new StringValue("top");
+            }
+            evaluated.add(skyKey);
+            return new StringValue(skyKey.argument().toString());
+          }
+
+          @Nullable
+          @Override
+          public String extractTag(SkyKey skyKey) {
+            return null;
+          }
+        };
+    ParallelEvaluator evaluator =
+        new ParallelEvaluator(
+            new InMemoryGraphImpl(),
+            IntVersion.of(0),
+            ImmutableMap.of(GraphTester.NODE_TYPE, function),
+            NullEventHandler.INSTANCE,
+            new MemoizingEvaluator.EmittedEventState(),
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+            /*keepGoing=*/ false,
+            new DirtyTrackingProgressReceiver(null),
+            GraphInconsistencyReceiver.THROWING,
+            // A single thread, so that all deps are enqueued before the first one is evaluated.
+            () -> AbstractQueueVisitor.createExecutorService(1, "test-pool"),
+            new SimpleCycleDetector(),
+            EvaluationVersionBehavior.MAX_CHILD_VERSIONS,
+            schedulingPolicy,
+            EvaluationAdmissionController.UNLIMITED);
+    assertThat(evaluator.eval(ImmutableList.of(top)).hasError()).isFalse();
+    return evaluated;
+  }
+}
@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.BatchedDirtyingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingNodeVisitor;
@@ -37,11 +38,14 @@ import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationTy
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import java.lang.ref.WeakReference;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -625,4 +629,101 @@ public class EagerInvalidatorTest {
       assertThat(receiver.getUnenqueuedDirtyKeys()).hasSize(2);
     }
   }
+
+  /** Test suite for the batched dirtying invalidator. */
+  @RunWith(JUnit4.class)
+  public static class BatchedDirtyingInvalidatorTest extends DirtyingInvalidatorTest {
+    @Override
+    protected void invalidate(
+        InMemoryGraph graph, DirtyTrackingProgressReceiver progressReceiver, SkyKey... keys)
+        throws InterruptedException {
+      Iterable<SkyKey> diff = ImmutableList.copyOf(keys);
+      BatchedDirtyingNodeVisitor batchedDirtyingNodeVisitor =
+          EagerInvalidator.createBatchedInvalidatingVisitorIfNeeded(
+              graph, diff, progressReceiver, state);
+      if (batchedDirtyingNodeVisitor != null) {
+        visitor.set(batchedDirtyingNodeVisitor);
+        batchedDirtyingNodeVisitor.run();
+      }
+    }
+
+    @Test
+    public void wideGraph() throws Exception {
+      graph = new InMemoryGraphImpl();
+      SkyKey child = GraphTester.nonHermeticKey("child");
+      tester.set(child, new StringValue("child"));
+      SkyKey top = skyKey("top");
+      Set<SkyKey> expected = new HashSet<>();
+      expected.add(child);
+      expected.add(top);
+      for (int i = 0; i < 1000; i++) {
+        SkyKey parent = skyKey("parent" + i);
+        tester.getOrCreate(parent).addDependency(child).setComputedValue(CONCATENATE);
+        tester.getOrCreate(top).addDependency(parent);
+        expected.add(parent);
+      }
+      tester.getOrCreate(top).setComputedValue(CONCATENATE);
+      eval(/*keepGoing=*/ false, top);
+
+      Set<SkyKey> invalidated = Sets.newConcurrentHashSet();
+      DirtyTrackingProgressReceiver receiver =
+          new DirtyTrackingProgressReceiver(
+              new EvaluationProgressReceiver.NullEvaluationProgressReceiver() {
+                @Override
+                public void invalidated(SkyKey skyKey, InvalidationState state) {
+                  assertThat(invalidated.add(skyKey)).isTrue();
+                }
+              });
+      invalidateWithoutError(receiver, child);
+
+      assertThat(invalidated).containsExactlyElementsIn(expected);
+      assertThat(graph.get(null, Reason.OTHER, child).isChanged()).isTrue();
+      assertThat(graph.get(null, Reason.OTHER, top).isDirty()).isTrue();
+    }
+
+    @Test
+    public void reverseDepsStayPendingIfTheirLookupIsInterrupted() throws Exception {
+      graph = new InMemoryGraphImpl();
+      SkyKey child = GraphTester.nonHermeticKey("child");
+      SkyKey parent = skyKey("parent");
+      tester.set(child, new StringValue("child"));
+      tester.getOrCreate(parent).addDependency(child).setComputedValue(CONCATENATE);
+      eval(/*keepGoing=*/ false, parent);
+      Thread mainThread = Thread.currentThread();
+      AtomicInteger lookups = new AtomicInteger();
+      QueryableGraph interruptingGraph =
+          new QueryableGraph() {
+            @Override
+            public NodeEntry get(@Nullable SkyKey requestor, Reason reason, SkyKey key) {
+              return graph.get(requestor, reason, key);
+            }
+
+            @Override
+            public Map<SkyKey, ? extends NodeEntry> getBatch(
+                @Nullable SkyKey requestor, Reason reason, Iterable<? extends SkyKey> keys)
+                throws InterruptedException {
+              // The first lookup is the one of the changed node, the second one of its rdeps.
+              if (lookups.incrementAndGet() == 2) {
+                mainThread.interrupt();
+                throw new InterruptedException();
+              }
+              return graph.getBatch(requestor, reason, keys);
+            }
+          };
+
+      BatchedDirtyingNodeVisitor batchedDirtyingNodeVisitor =
+          EagerInvalidator.createBatchedInvalidatingVisitorIfNeeded(
+              interruptingGraph,
+              ImmutableList.of(child),
+              new DirtyTrackingProgressReceiver(
+                  new EvaluationProgressReceiver.NullEvaluationProgressReceiver()),
+              state);
+      assertThrows(InterruptedException.class, batchedDirtyingNodeVisitor::run);
+
+      assertThat(graph.get(null, Reason.OTHER, child).isChanged()).isTrue();
+      assertThat(state.getInvalidationsForTesting())
+          .containsExactly(
+              Pair.of(child, InvalidationType.CHANGED), Pair.of(parent, InvalidationType.DIRTIED));
+    }
+  }
 }
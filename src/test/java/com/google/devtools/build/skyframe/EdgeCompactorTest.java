@@ -0,0 +1,167 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.nonHermeticKey;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link EdgeCompactor} and {@link InMemoryMemoizingEvaluator#compactEdges}. */
+@RunWith(JUnit4.class)
+public class EdgeCompactorTest {
+
+  private static final SkyKey TOP = skyKey("top");
+  private static final SkyKey MID = nonHermeticKey("mid");
+  private static final SkyKey LEAF = nonHermeticKey("leaf");
+  private static final SkyKey REPO = nonHermeticKey("repo");
+
+  private final GraphTester tester = new GraphTester();
+  private final SequencedRecordingDifferencer differencer = new SequencedRecordingDifferencer();
+  private final InMemoryMemoizingEvaluator evaluator =
+      new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+  private int version = 0;
+
+  @Before
+  public void setUpGraph() {
+    tester.set(LEAF, new StringValue("hello"));
+    tester.set(REPO, new StringValue(""));
+    tester
+        .getOrCreate(MID)
+        .addDependency(LEAF)
+        .addDependency(REPO)
+        .setComputedValue(CONCATENATE);
+    tester
+        .getOrCreate(TOP)
+        .addDependency(MID)
+        .addDependency("other")
+        .setComputedValue(CONCATENATE);
+    tester.set("other", new StringValue("!"));
+  }
+
+  private StringValue eval() throws InterruptedException {
+    EvaluationResult<StringValue> result =
+        evaluator.evaluate(
+            ImmutableList.of(TOP),
+            IntVersion.of(version++),
+            EvaluationContext.newBuilder()
+                .setKeepGoing(false)
+                .setNumThreads(1)
+                .setEventHandler(NullEventHandler.INSTANCE)
+                .build());
+    assertThat(result.hasError()).isFalse();
+    return result.get(TOP);
+  }
+
+  private NodeEntry entry(SkyKey key) {
+    return evaluator.getExistingEntryAtCurrentlyEvaluatingVersion(key);
+  }
+
+  @Test
+  public void compactedNodeKeepsValueAndReverseDeps() throws Exception {
+    eval();
+
+    assertThat(evaluator.compactEdges(MID::equals, REPO::equals)).isEqualTo(1);
+
+    assertThat(entry(MID).getValue()).isEqualTo(new StringValue("hello"));
+    assertThat(entry(MID).getDirectDeps()).containsExactly(REPO);
+    assertThat(entry(MID).getReverseDepsForDoneEntry()).containsExactly(TOP);
+    assertThat(entry(LEAF).getReverseDepsForDoneEntry()).isEmpty();
+    assertThat(entry(REPO).getReverseDepsForDoneEntry()).containsExactly(MID);
+    assertThat(entry(TOP).getDirectDeps()).containsExactly(MID, skyKey("other"));
+    assertThat(eval()).isEqualTo(new StringValue("hello!"));
+  }
+
+  @Test
+  public void changedCompactedNodeIsRebuilt() throws Exception {
+    eval();
+    evaluator.compactEdges(MID::equals, REPO::equals);
+
+    tester.set(LEAF, new StringValue("bye"));
+    differencer.invalidate(ImmutableList.of(LEAF, MID));
+
+    assertThat(eval()).isEqualTo(new StringValue("bye!"));
+    assertThat(entry(MID).getDirectDeps()).containsExactly(LEAF, REPO);
+    assertThat(entry(LEAF).getReverseDepsForDoneEntry()).containsExactly(MID);
+  }
+
+  @Test
+  public void compactedNodeIsInvalidatedThroughKeptDep() throws Exception {
+    eval();
+    evaluator.compactEdges(MID::equals, REPO::equals);
+
+    tester.set(REPO, new StringValue("2"));
+    differencer.invalidate(ImmutableList.of(REPO));
+
+    assertThat(eval()).isEqualTo(new StringValue("hello2!"));
+    assertThat(entry(MID).getDirectDeps()).containsExactly(LEAF, REPO);
+    assertThat(entry(LEAF).getReverseDepsForDoneEntry()).containsExactly(MID);
+  }
+
+  @Test
+  public void compactedNodeIsCleanIfKeptDepIsUnchanged() throws Exception {
+    eval();
+    evaluator.compactEdges(MID::equals, REPO::equals);
+
+    differencer.invalidate(ImmutableList.of(REPO));
+
+    assertThat(eval()).isEqualTo(new StringValue("hello!"));
+    assertThat(entry(MID).getDirectDeps()).containsExactly(REPO);
+    assertThat(entry(LEAF).getReverseDepsForDoneEntry()).isEmpty();
+  }
+
+  @Test
+  public void compactionIsIdempotent() throws Exception {
+    eval();
+
+    assertThat(evaluator.compactEdges(MID::equals, REPO::equals)).isEqualTo(1);
+    assertThat(evaluator.compactEdges(MID::equals, REPO::equals)).isEqualTo(0);
+    assertThat(entry(MID).getDirectDeps()).containsExactly(REPO);
+  }
+
+  @Test
+  public void deletedCompactedNodeIsRebuilt() throws Exception {
+    eval();
+    evaluator.compactEdges(MID::equals, REPO::equals);
+
+    evaluator.delete(MID::equals);
+
+    assertThat(eval()).isEqualTo(new StringValue("hello!"));
+    assertThat(entry(LEAF).getReverseDepsForDoneEntry()).containsExactly(MID);
+  }
+
+  @Test
+  public void nodesWithErrorsAreNotCompacted() throws Exception {
+    tester.getOrCreate(MID).setHasError(true);
+    evaluator.evaluate(
+        ImmutableList.of(MID),
+        IntVersion.of(version++),
+        EvaluationContext.newBuilder()
+            .setKeepGoing(true)
+            .setNumThreads(1)
+            .setEventHandler(NullEventHandler.INSTANCE)
+            .build());
+
+    assertThat(evaluator.compactEdges(key -> true, REPO::equals)).isEqualTo(0);
+    assertThat(entry(LEAF).getReverseDepsForDoneEntry()).containsExactly(MID);
+  }
+}
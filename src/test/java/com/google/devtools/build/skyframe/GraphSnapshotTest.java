@@ -0,0 +1,359 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.nonHermeticKey;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GraphSnapshot} and {@link InMemoryMemoizingEvaluator#loadSnapshot}. */
+@RunWith(JUnit4.class)
+public class GraphSnapshotTest {
+
+  private static final String COMPATIBILITY_KEY = "v1";
+
+  private static final ObjectCodecs CODECS =
+      new ObjectCodecs(
+          AutoRegistry.get()
+              .getBuilder()
+              .add(new StringValueCodec())
+              .add(new UnserializableValueCodec())
+              .build(),
+          ImmutableMap.of());
+
+  /** Codec for {@link StringValue}, which has none of its own. */
+  private static class StringValueCodec implements ObjectCodec<StringValue> {
+    @Override
+    public Class<StringValue> getEncodedClass() {
+      return StringValue.class;
+    }
+
+    @Override
+    public void serialize(
+        SerializationContext context, StringValue obj, CodedOutputStream codedOut)
+        throws IOException {
+      codedOut.writeStringNoTag(obj.getValue());
+    }
+
+    @Override
+    public StringValue deserialize(DeserializationContext context, CodedInputStream codedIn)
+        throws IOException {
+      return new StringValue(codedIn.readString());
+    }
+  }
+
+  private static class UnserializableValue implements SkyValue {}
+
+  /** Codec for {@link UnserializableValue}, which always fails. */
+  private static class UnserializableValueCodec implements ObjectCodec<UnserializableValue> {
+    @Override
+    public Class<UnserializableValue> getEncodedClass() {
+      return UnserializableValue.class;
+    }
+
+    @Override
+    public void serialize(
+        SerializationContext context, UnserializableValue obj, CodedOutputStream codedOut)
+        throws SerializationException {
+      throw new SerializationException("Not serializable");
+    }
+
+    @Override
+    public UnserializableValue deserialize(
+        DeserializationContext context, CodedInputStream codedIn) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** A server: a {@link GraphTester} whose function computations are recorded. */
+  private static class Server {
+    private final GraphTester tester = new GraphTester();
+    private final List<SkyKey> computed = new ArrayList<>();
+    private final InMemoryMemoizingEvaluator evaluator;
+    private int version = 0;
+
+    Server() {
+      ImmutableMap.Builder<SkyFunctionName, SkyFunction> functions = ImmutableMap.builder();
+      for (Map.Entry<SkyFunctionName, ? extends SkyFunction> e :
+          tester.getSkyFunctionMap().entrySet()) {
+        functions.put(e.getKey(), new RecordingFunction(e.getValue()));
+      }
+      evaluator =
+          new InMemoryMemoizingEvaluator(functions.build(), new SequencedRecordingDifferencer());
+    }
+
+    private class RecordingFunction implements SkyFunction {
+      private final SkyFunction delegate;
+
+      RecordingFunction(SkyFunction delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env)
+          throws SkyFunctionException, InterruptedException {
+        synchronized (computed) {
+          computed.add(skyKey);
+        }
+        return delegate.compute(skyKey, env);
+      }
+
+      @Nullable
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return delegate.extractTag(skyKey);
+      }
+    }
+
+    StringValue eval(SkyKey key) throws InterruptedException {
+      computed.clear();
+      EvaluationResult<StringValue> result =
+          evaluator.evaluate(
+              ImmutableList.of(key),
+              IntVersion.of(version++),
+              EvaluationContext.newBuilder()
+                  .setKeepGoing(false)
+                  .setNumThreads(1)
+                  .setEventHandler(NullEventHandler.INSTANCE)
+                  .build());
+      assertThat(result.hasError()).isFalse();
+      return result.get(key);
+    }
+
+    byte[] writeSnapshot() throws IOException, InterruptedException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      evaluator.writeSnapshot(CODECS, COMPATIBILITY_KEY, out);
+      return out.toByteArray();
+    }
+
+    void loadSnapshot(byte[] bytes) throws IOException {
+      evaluator.loadSnapshot(readSnapshot(bytes, COMPATIBILITY_KEY));
+    }
+  }
+
+  private static GraphSnapshot readSnapshot(byte[] bytes, String compatibilityKey)
+      throws IOException {
+    return GraphSnapshot.read(CODECS, compatibilityKey, new ByteArrayInputStream(bytes));
+  }
+
+  private static void setUpGraph(Server server, SkyKey leaf, String leafValue) {
+    server.tester.set(leaf, new StringValue(leafValue));
+    server.tester.getOrCreate("mid").addDependency(leaf).setComputedValue(CONCATENATE);
+    server.tester
+        .getOrCreate("top")
+        .addDependency("mid")
+        .addDependency("other")
+        .setComputedValue(CONCATENATE);
+    server.tester.set("other", new StringValue("!"));
+  }
+
+  @Test
+  public void unchangedNodesAreNotRecomputed() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    assertThat(first.eval(skyKey("top"))).isEqualTo(new StringValue("hello!"));
+    byte[] snapshot = first.writeSnapshot();
+    assertThat(readSnapshot(snapshot, COMPATIBILITY_KEY).size()).isEqualTo(4);
+
+    Server second = new Server();
+    setUpGraph(second, skyKey("leaf"), "hello");
+    second.loadSnapshot(snapshot);
+
+    assertThat(second.eval(skyKey("top"))).isEqualTo(new StringValue("hello!"));
+    assertThat(second.computed).isEmpty();
+  }
+
+  @Test
+  public void changedNonHermeticNodesAreRecomputed() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, nonHermeticKey("leaf"), "hello");
+    assertThat(first.eval(skyKey("top"))).isEqualTo(new StringValue("hello!"));
+    byte[] snapshot = first.writeSnapshot();
+
+    Server second = new Server();
+    setUpGraph(second, nonHermeticKey("leaf"), "bye");
+    second.loadSnapshot(snapshot);
+
+    assertThat(second.eval(skyKey("top"))).isEqualTo(new StringValue("bye!"));
+    // top restarts once if "other" wasn't verified yet when it was requested.
+    assertThat(ImmutableSet.copyOf(second.computed))
+        .containsExactly(nonHermeticKey("leaf"), skyKey("mid"), skyKey("top"));
+  }
+
+  @Test
+  public void unchangedNonHermeticNodesAreChangePruned() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, nonHermeticKey("leaf"), "hello");
+    first.eval(skyKey("top"));
+    byte[] snapshot = first.writeSnapshot();
+
+    Server second = new Server();
+    setUpGraph(second, nonHermeticKey("leaf"), "hello");
+    second.loadSnapshot(snapshot);
+
+    assertThat(second.eval(skyKey("top"))).isEqualTo(new StringValue("hello!"));
+    assertThat(second.computed).containsExactly(nonHermeticKey("leaf"));
+  }
+
+  @Test
+  public void nodesDependingOnUnserializableValuesAreNotWritten() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    first.tester.set("other", new UnserializableValue());
+    first
+        .tester
+        .getOrCreate("top")
+        .unsetComputedValue()
+        .setComputedValue((deps, env) -> new StringValue("top"));
+    first.eval(skyKey("top"));
+
+    GraphSnapshot snapshot = readSnapshot(first.writeSnapshot(), COMPATIBILITY_KEY);
+
+    assertThat(snapshot.size()).isEqualTo(2);
+    assertThat(snapshot.contains(skyKey("mid"))).isTrue();
+    assertThat(snapshot.contains(skyKey("top"))).isFalse();
+  }
+
+  @Test
+  public void incompatibleSnapshotIsIgnored() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    first.eval(skyKey("top"));
+
+    assertThat(readSnapshot(first.writeSnapshot(), "v2")).isNull();
+  }
+
+  @Test
+  public void wholeGraphAccessorsIncludeUnloadedNodes() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    first.eval(skyKey("top"));
+    byte[] snapshot = first.writeSnapshot();
+
+    Server second = new Server();
+    setUpGraph(second, skyKey("leaf"), "hello");
+    second.loadSnapshot(snapshot);
+
+    assertThat(second.evaluator.getValues().keySet())
+        .containsExactly(skyKey("leaf"), skyKey("mid"), skyKey("top"), skyKey("other"));
+    // All nodes are loaded as dirty, including those without deps.
+    assertThat(second.evaluator.getDoneValues()).isEmpty();
+  }
+
+  @Test
+  public void nodesWithoutDepsAreVerifiedClean() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    first.eval(skyKey("mid"));
+    byte[] snapshot = first.writeSnapshot();
+
+    Server second = new Server();
+    setUpGraph(second, skyKey("leaf"), "hello");
+    second.loadSnapshot(snapshot);
+    NodeEntry leaf = second.evaluator.getExistingEntryAtCurrentlyEvaluatingVersion(skyKey("leaf"));
+    assertThat(leaf.isDirty()).isTrue();
+
+    assertThat(second.eval(skyKey("leaf"))).isEqualTo(new StringValue("hello"));
+    assertThat(second.computed).isEmpty();
+    assertThat(second.evaluator.getDoneValues()).containsKey(skyKey("leaf"));
+    assertThat(second.evaluator.getDoneValues()).doesNotContainKey(skyKey("mid"));
+  }
+
+  @Test
+  public void deleteRemovesUnloadedNodes() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    first.eval(skyKey("top"));
+    byte[] snapshot = first.writeSnapshot();
+
+    Server second = new Server();
+    setUpGraph(second, skyKey("leaf"), "bye");
+    second.loadSnapshot(snapshot);
+    // Dirty nodes are always deleted, and all loaded nodes are dirty.
+    second.evaluator.delete(key -> key.equals(skyKey("leaf")));
+
+    assertThat(second.eval(skyKey("top"))).isEqualTo(new StringValue("bye!"));
+    assertThat(ImmutableSet.copyOf(second.computed))
+        .containsExactly(skyKey("leaf"), skyKey("mid"), skyKey("top"), skyKey("other"));
+  }
+
+  @Test
+  public void unloadedNodesAreCarriedOver() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, skyKey("leaf"), "hello");
+    first.eval(skyKey("top"));
+
+    Server second = new Server();
+    setUpGraph(second, skyKey("leaf"), "hello");
+    second.loadSnapshot(first.writeSnapshot());
+    assertThat(second.eval(skyKey("mid"))).isEqualTo(new StringValue("hello"));
+    byte[] snapshot = second.writeSnapshot();
+    assertThat(readSnapshot(snapshot, COMPATIBILITY_KEY).size()).isEqualTo(4);
+
+    Server third = new Server();
+    setUpGraph(third, skyKey("leaf"), "hello");
+    third.loadSnapshot(snapshot);
+
+    assertThat(third.eval(skyKey("top"))).isEqualTo(new StringValue("hello!"));
+    assertThat(third.computed).isEmpty();
+  }
+
+  @Test
+  public void nodesDependingOnChangedNodesAreNotCarriedOver() throws Exception {
+    Server first = new Server();
+    setUpGraph(first, nonHermeticKey("leaf"), "hello");
+    first.eval(skyKey("top"));
+
+    Server second = new Server();
+    setUpGraph(second, nonHermeticKey("leaf"), "bye");
+    second.loadSnapshot(first.writeSnapshot());
+    assertThat(second.eval(skyKey("mid"))).isEqualTo(new StringValue("bye"));
+    GraphSnapshot snapshot = readSnapshot(second.writeSnapshot(), COMPATIBILITY_KEY);
+    assertThat(snapshot.contains(skyKey("mid"))).isTrue();
+    assertThat(snapshot.contains(skyKey("top"))).isFalse();
+
+    Server third = new Server();
+    setUpGraph(third, nonHermeticKey("leaf"), "bye");
+    third.loadSnapshot(second.writeSnapshot());
+
+    assertThat(third.eval(skyKey("top"))).isEqualTo(new StringValue("bye!"));
+    assertThat(ImmutableSet.copyOf(third.computed))
+        .containsExactly(nonHermeticKey("leaf"), skyKey("top"));
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MemoryPressureAdmissionController}. */
+@RunWith(JUnit4.class)
+public class MemoryPressureAdmissionControllerTest {
+
+  private volatile double heapOccupancy = 0.5;
+
+  private final MemoryPressureAdmissionController controller =
+      new MemoryPressureAdmissionController(() -> heapOccupancy, 0.9, /*maxInFlight=*/ 8);
+
+  private void admit(int count) {
+    for (int i = 0; i < count; i++) {
+      controller.admit(skyKey("key" + i), /*partiallyEvaluated=*/ false);
+    }
+  }
+
+  @Test
+  public void unlimitedBelowThreshold() {
+    admit(100);
+    heapOccupancy = 0.6;
+    admit(100);
+
+    assertThat(controller.getInFlight()).isEqualTo(200);
+    assertThat(controller.getLimit()).isEqualTo(Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void limitHalvesOnEachGcAboveThreshold() {
+    admit(8);
+
+    heapOccupancy = 0.95;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+    assertThat(controller.getLimit()).isEqualTo(4);
+    assertThat(controller.getInFlight()).isEqualTo(9);
+
+    heapOccupancy = 0.96;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+    assertThat(controller.getLimit()).isEqualTo(2);
+
+    heapOccupancy = 0.99;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+    heapOccupancy = 0.98;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+    assertThat(controller.getLimit()).isEqualTo(1);
+    assertThat(controller.getInFlight()).isEqualTo(12);
+  }
+
+  @Test
+  public void occupancyAtCreationIsOnlyABaseline() {
+    heapOccupancy = 0.95;
+    MemoryPressureAdmissionController controller =
+        new MemoryPressureAdmissionController(() -> heapOccupancy, 0.9, /*maxInFlight=*/ 8);
+
+    controller.admit(skyKey("first"), /*partiallyEvaluated=*/ false);
+    assertThat(controller.getLimit()).isEqualTo(Integer.MAX_VALUE);
+
+    // The limit is based on the number of threads, not on the few evaluations in flight so far.
+    heapOccupancy = 0.96;
+    controller.admit(skyKey("second"), /*partiallyEvaluated=*/ false);
+    assertThat(controller.getLimit()).isEqualTo(4);
+    assertThat(controller.getInFlight()).isEqualTo(2);
+  }
+
+  @Test
+  public void newEvaluationWaitsForInFlightEvaluations() throws Exception {
+    admit(6);
+    heapOccupancy = 0.95;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+    assertThat(controller.getLimit()).isEqualTo(4);
+
+    CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              controller.admit(skyKey("new"), /*partiallyEvaluated=*/ false);
+              admitted.countDown();
+            });
+    thread.start();
+    for (int i = 0; i < 3; i++) {
+      assertThat(admitted.await(50, TimeUnit.MILLISECONDS)).isFalse();
+      controller.done();
+    }
+    assertThat(admitted.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    controller.done();
+    assertThat(admitted.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+    assertThat(controller.getInFlight()).isEqualTo(4);
+  }
+
+  @Test
+  public void limitIsLiftedOnGcBelowThreshold() throws Exception {
+    admit(4);
+    heapOccupancy = 0.95;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+
+    Thread thread = new Thread(() -> admit(10));
+    thread.start();
+    heapOccupancy = 0.7;
+    thread.join();
+
+    assertThat(controller.getLimit()).isEqualTo(Integer.MAX_VALUE);
+    assertThat(controller.getInFlight()).isEqualTo(15);
+  }
+
+  @Test
+  public void interruptedWaitAdmits() {
+    admit(4);
+    heapOccupancy = 0.95;
+    controller.admit(skyKey("partial"), /*partiallyEvaluated=*/ true);
+
+    Thread.currentThread().interrupt();
+    controller.admit(skyKey("new"), /*partiallyEvaluated=*/ false);
+
+    assertThat(Thread.interrupted()).isTrue();
+    assertThat(controller.getInFlight()).isEqualTo(6);
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Microbenchmarks for the node map of {@link InMemoryGraphImpl}. Run with Caliper's allocation
+ * instrument ({@code -i allocation}) to compare the memory needed by both maps, and with the
+ * default instrument to compare their speed.
+ */
+public class NodeMapBenchmark {
+  /** The maps that {@link InMemoryGraphImpl} can use. */
+  public enum MapType {
+    CONCURRENT_HASH_MAP {
+      @Override
+      ConcurrentMap<SkyKey, NodeEntry> create() {
+        return new ConcurrentHashMap<>(1024);
+      }
+    },
+    OPEN_ADDRESSING {
+      @Override
+      ConcurrentMap<SkyKey, NodeEntry> create() {
+        return new OpenAddressingNodeMap(16, 1024);
+      }
+    };
+
+    abstract ConcurrentMap<SkyKey, NodeEntry> create();
+  }
+
+  @Param MapType mapType;
+
+  @Param({"1000", "100000"})
+  int nodes;
+
+  // Shared by all keys, so that the allocation instrument only measures the maps.
+  private final NodeEntry entry = new InMemoryNodeEntry();
+  private ImmutableList<SkyKey> keys;
+  private ConcurrentMap<SkyKey, NodeEntry> filledMap;
+
+  @BeforeExperiment
+  void createKeys() {
+    ImmutableList.Builder<SkyKey> builder = ImmutableList.builderWithExpectedSize(nodes);
+    for (int i = 0; i < nodes; i++) {
+      builder.add(GraphTester.skyKey("node" + i));
+    }
+    keys = builder.build();
+    filledMap = fill(mapType.create());
+  }
+
+  private ConcurrentMap<SkyKey, NodeEntry> fill(ConcurrentMap<SkyKey, NodeEntry> map) {
+    for (SkyKey key : keys) {
+      map.putIfAbsent(key, entry);
+    }
+    return map;
+  }
+
+  @Benchmark
+  int insert(int reps) {
+    int size = 0;
+    for (int r = 0; r < reps; r++) {
+      size += fill(mapType.create()).size();
+    }
+    return size;
+  }
+
+  @Benchmark
+  int lookup(int reps) {
+    int found = 0;
+    for (int r = 0; r < reps; r++) {
+      for (SkyKey key : keys) {
+        if (filledMap.get(key) != null) {
+          found++;
+        }
+      }
+    }
+    return found;
+  }
+}
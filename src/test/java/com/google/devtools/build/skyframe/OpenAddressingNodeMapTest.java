@@ -0,0 +1,212 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OpenAddressingNodeMap}. */
+@RunWith(JUnit4.class)
+public class OpenAddressingNodeMapTest {
+
+  private final OpenAddressingNodeMap map = new OpenAddressingNodeMap(4, 0);
+
+  @Test
+  public void putGetRemove() {
+    NodeEntry entry1 = new InMemoryNodeEntry();
+    NodeEntry entry2 = new InMemoryNodeEntry();
+
+    assertThat(map.put(skyKey("a"), entry1)).isNull();
+    assertThat(map.put(skyKey("a"), entry2)).isSameInstanceAs(entry1);
+    assertThat(map.get(skyKey("a"))).isSameInstanceAs(entry2);
+    assertThat(map.get(skyKey("b"))).isNull();
+    assertThat(map).hasSize(1);
+
+    assertThat(map.remove(skyKey("a"), entry1)).isFalse();
+    assertThat(map.remove(skyKey("a"))).isSameInstanceAs(entry2);
+    assertThat(map.containsKey(skyKey("a"))).isFalse();
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void matchesHashMapThroughGrowthAndRemovals() {
+    Map<SkyKey, NodeEntry> expected = new HashMap<>();
+    for (int i = 0; i < 10000; i++) {
+      NodeEntry entry = new InMemoryNodeEntry();
+      expected.put(skyKey("key" + i), entry);
+      map.put(skyKey("key" + i), entry);
+      if (i % 3 == 0) {
+        expected.remove(skyKey("key" + (i / 2)));
+        map.remove(skyKey("key" + (i / 2)));
+      }
+    }
+
+    assertThat(map).containsExactlyEntriesIn(expected);
+    assertThat(map.keySet()).containsExactlyElementsIn(expected.keySet());
+  }
+
+  @Test
+  public void computeIfAbsent() {
+    NodeEntry entry = new InMemoryNodeEntry();
+    assertThat(map.computeIfAbsent(skyKey("a"), k -> null)).isNull();
+    assertThat(map).isEmpty();
+    assertThat(map.computeIfAbsent(skyKey("a"), k -> entry)).isSameInstanceAs(entry);
+    assertThat(map.computeIfAbsent(skyKey("a"), k -> new InMemoryNodeEntry()))
+        .isSameInstanceAs(entry);
+    assertThat(map.putIfAbsent(skyKey("a"), new InMemoryNodeEntry())).isSameInstanceAs(entry);
+  }
+
+  @Test
+  public void replace() {
+    NodeEntry entry1 = new InMemoryNodeEntry();
+    NodeEntry entry2 = new InMemoryNodeEntry();
+    assertThat(map.replace(skyKey("a"), entry1)).isNull();
+    assertThat(map).isEmpty();
+
+    map.put(skyKey("a"), entry1);
+    assertThat(map.replace(skyKey("a"), entry2, entry1)).isFalse();
+    assertThat(map.replace(skyKey("a"), entry1, entry2)).isTrue();
+    assertThat(map.get(skyKey("a"))).isSameInstanceAs(entry2);
+  }
+
+  @Test
+  public void iteratorRemove() {
+    for (int i = 0; i < 100; i++) {
+      map.put(skyKey("key" + i), new InMemoryNodeEntry());
+    }
+
+    Iterator<SkyKey> it = map.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().hashCode() % 2 == 0) {
+        it.remove();
+      }
+    }
+
+    assertThat(map).hasSize(100 - countEvenHashes());
+    for (SkyKey key : map.keySet()) {
+      assertThat(key.hashCode() % 2).isNotEqualTo(0);
+    }
+  }
+
+  private static int countEvenHashes() {
+    int count = 0;
+    for (int i = 0; i < 100; i++) {
+      if (skyKey("key" + i).hashCode() % 2 == 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void concurrentComputeIfAbsentCallsFunctionOncePerKey() throws Exception {
+    int threads = 8;
+    int keys = 5000;
+    AtomicInteger calls = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < keys; i++) {
+                  NodeEntry entry =
+                      map.computeIfAbsent(
+                          skyKey("key" + i),
+                          k -> {
+                            calls.incrementAndGet();
+                            return new InMemoryNodeEntry();
+                          });
+                  assertThat(map.get(skyKey("key" + i))).isSameInstanceAs(entry);
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+
+    assertThat(calls.get()).isEqualTo(keys);
+    assertThat(map).hasSize(keys);
+  }
+
+  @Test
+  public void concurrentReadsNeverSeeTheValueOfAnotherKey() throws Exception {
+    // A single small segment, so that removed slots are reused for other keys all the time.
+    OpenAddressingNodeMap smallMap = new OpenAddressingNodeMap(1, 0);
+    int keys = 4;
+    Map<NodeEntry, SkyKey> owners = new ConcurrentHashMap<>();
+    AtomicBoolean done = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 2; t++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                while (!done.get()) {
+                  for (int i = 0; i < keys; i++) {
+                    SkyKey key = skyKey("key" + i);
+                    NodeEntry value = smallMap.get(key);
+                    if (value != null) {
+                      assertThat(owners.get(value)).isEqualTo(key);
+                    }
+                  }
+                  for (Map.Entry<SkyKey, NodeEntry> entry : smallMap.entrySet()) {
+                    assertThat(owners.get(entry.getValue())).isEqualTo(entry.getKey());
+                  }
+                }
+              }));
+    }
+    for (int t = 0; t < 2; t++) {
+      int offset = t;
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int n = 0; n < 200000; n++) {
+                  SkyKey key = skyKey("key" + ((n + offset) % keys));
+                  NodeEntry value = new InMemoryNodeEntry();
+                  owners.put(value, key);
+                  smallMap.put(key, value);
+                  smallMap.remove(skyKey("key" + ((n + offset + 1) % keys)));
+                }
+              }));
+    }
+    for (Future<?> future : futures.subList(2, 4)) {
+      future.get();
+    }
+    done.set(true);
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+  }
+}
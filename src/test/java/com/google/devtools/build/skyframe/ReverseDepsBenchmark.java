@@ -0,0 +1,85 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.Map;
+
+/**
+ * Microbenchmarks for the reverse deps of {@link InMemoryGraphImpl} with and without compact
+ * reverse deps. Run with Caliper's allocation instrument ({@code -i allocation}) to compare the
+ * memory needed by the nodes and their reverse deps in both representations, once with and once
+ * without {@code -XX:-UseCompressedOops}, and with the default instrument to compare their speed.
+ */
+public class ReverseDepsBenchmark {
+  private static final int NODES = 10000;
+
+  @Param({"false", "true"})
+  boolean compactReverseDeps;
+
+  @Param({"2", "16", "256"})
+  int reverseDepsPerNode;
+
+  private ImmutableList<SkyKey> keys;
+  private InMemoryGraphImpl filledGraph;
+
+  @BeforeExperiment
+  void createKeysAndGraph() {
+    ImmutableList.Builder<SkyKey> builder = ImmutableList.builderWithExpectedSize(NODES);
+    for (int i = 0; i < NODES; i++) {
+      builder.add(GraphTester.skyKey("node" + i));
+    }
+    keys = builder.build();
+    filledGraph = createGraph();
+  }
+
+  private InMemoryGraphImpl createGraph() {
+    InMemoryGraphImpl graph =
+        new InMemoryGraphImpl(
+            /*keepEdges=*/ true, /*openAddressingNodeMap=*/ false, compactReverseDeps);
+    Map<SkyKey, ? extends NodeEntry> entries = graph.createIfAbsentBatch(null, Reason.OTHER, keys);
+    for (int i = 0; i < NODES; i++) {
+      InMemoryNodeEntry entry = (InMemoryNodeEntry) entries.get(keys.get(i));
+      // Like an evaluation, which adds the reverse deps of a node one parent at a time.
+      for (int j = 1; j <= reverseDepsPerNode; j++) {
+        ReverseDepsUtility.addReverseDeps(entry, ImmutableList.of(keys.get((i + j) % NODES)));
+      }
+    }
+    return graph;
+  }
+
+  @Benchmark
+  int addReverseDeps(int reps) {
+    int nodes = 0;
+    for (int r = 0; r < reps; r++) {
+      nodes += createGraph().getAllValues().size();
+    }
+    return nodes;
+  }
+
+  @Benchmark
+  int readReverseDeps(int reps) {
+    int reverseDeps = 0;
+    for (int r = 0; r < reps; r++) {
+      for (NodeEntry entry : filledGraph.getAllValues().values()) {
+        reverseDeps += ReverseDepsUtility.getReverseDeps((InMemoryNodeEntry) entry).size();
+      }
+    }
+    return reverseDeps;
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver.NodeState;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics.FunctionStatistics;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SkyFunctionStatistics}. */
+@RunWith(JUnit4.class)
+public class SkyFunctionStatisticsTest {
+
+  private static final SkyFunctionName FAST = SkyFunctionName.createHermetic("FAST");
+  private static final SkyFunctionName SLOW = SkyFunctionName.createHermetic("SLOW");
+
+  private final SkyFunctionStatistics statistics = new SkyFunctionStatistics();
+
+  private static SkyKey key(SkyFunctionName functionName, String argument) {
+    return new AbstractSkyKey<String>(argument) {
+      @Override
+      public SkyFunctionName functionName() {
+        return functionName;
+      }
+    };
+  }
+
+  private void compute(SkyKey key, long millis) {
+    statistics.stateEnding(key, NodeState.COMPUTE, TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  @Test
+  public void recordsComputeTimePerFunction() {
+    compute(key(FAST, "a"), 1);
+    compute(key(FAST, "b"), 2);
+    compute(key(SLOW, "a"), 100);
+    statistics.stateEnding(key(SLOW, "b"), NodeState.CHECK_DIRTY, -1);
+
+    assertThat(statistics.getStatistics()).hasSize(2);
+    FunctionStatistics slow = statistics.getStatistics().get(0);
+    FunctionStatistics fast = statistics.getStatistics().get(1);
+    assertThat(slow.getFunctionName()).isEqualTo(SLOW);
+    assertThat(slow.getComputeTime().getCount()).isEqualTo(1);
+    assertThat(slow.getComputeNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(fast.getFunctionName()).isEqualTo(FAST);
+    assertThat(fast.getComputeTime().getCount()).isEqualTo(2);
+    assertThat(fast.getComputeTime().getHistogram().get(1).getCount()).isEqualTo(1);
+    assertThat(fast.getComputeTime().getHistogram().get(2).getCount()).isEqualTo(1);
+    assertThat(fast.getComputeTime().getMax()).isEqualTo(2);
+  }
+
+  @Test
+  public void recordsRestarts() {
+    SkyKey key = key(SLOW, "a");
+    compute(key, 5);
+    statistics.restarting(key, 3, TimeUnit.MILLISECONDS.toNanos(5));
+    compute(key, 7);
+    statistics.restarting(key, 0, TimeUnit.MILLISECONDS.toNanos(7));
+    statistics.computeStateReused(key);
+    compute(key, 2);
+    statistics.nodeRestarted(key, TimeUnit.MILLISECONDS.toNanos(2));
+    compute(key, 1);
+
+    FunctionStatistics slow = statistics.getStatistics().get(0);
+    assertThat(slow.getComputeTime().getCount()).isEqualTo(4);
+    assertThat(slow.getDepsPerRestart().getCount()).isEqualTo(2);
+    assertThat(slow.getDepsPerRestart().getMax()).isEqualTo(3);
+    assertThat(slow.getDepsRequestedByRestarts()).isEqualTo(3);
+    assertThat(slow.getNodeRestarts()).isEqualTo(1);
+    assertThat(slow.getWastedNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(14));
+    assertThat(slow.getResumedCalls()).isEqualTo(1);
+  }
+
+  @Test
+  public void recordsInvalidations() {
+    statistics.invalidationFinished(1000, TimeUnit.MILLISECONDS.toNanos(4));
+    statistics.invalidationFinished(500, TimeUnit.MILLISECONDS.toNanos(1));
+
+    assertThat(statistics.getInvalidatedNodes()).isEqualTo(1500);
+    assertThat(statistics.getInvalidationNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(5));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    statistics.dump(new PrintStream(bytes, /*autoFlush=*/ true));
+    assertThat(bytes.toString())
+        .startsWith("Invalidation: 1500 nodes dirtied in 5 ms (300000 nodes/s)");
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    compute(key(FAST, "a"), 1);
+    statistics.invalidationFinished(1000, 1);
+    statistics.reset();
+    assertThat(statistics.getStatistics()).isEmpty();
+    assertThat(statistics.getInvalidatedNodes()).isEqualTo(0);
+    assertThat(statistics.getInvalidationNanos()).isEqualTo(0);
+  }
+
+  @Test
+  public void dumpListsFunctions() {
+    compute(key(FAST, "a"), 1);
+    statistics.restarting(key(FAST, "a"), 2, TimeUnit.MILLISECONDS.toNanos(1));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    statistics.dump(new PrintStream(bytes, /*autoFlush=*/ true));
+    assertThat(bytes.toString())
+        .startsWith(
+            "FAST: 1 calls in 1 ms, 1 restarts and 0 node restarts wasting 1 ms, restarts "
+                + "requesting 2 deps (max 2), 0 resumed calls");
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
+import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
+import com.google.devtools.build.skyframe.proto.GraphInconsistency.Inconsistency;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SkyFunction.Environment#getState} as implemented by the evaluator. */
+@RunWith(JUnit4.class)
+public class SkyKeyComputeStateTest {
+
+  private static final SkyKey TOP = skyKey("top");
+  private static final SkyKey DEP1 = skyKey("dep1");
+  private static final SkyKey DEP2 = skyKey("dep2");
+
+  private static final class State implements SkyKeyComputeState {
+    private int calls;
+  }
+
+  /** The body of the {@link SkyFunction#compute} call for {@link #TOP}. */
+  private interface TopFunction {
+    @Nullable
+    SkyValue compute(SkyFunction.Environment env, State state)
+        throws SkyFunctionException, InterruptedException;
+  }
+
+  /** The states seen by each {@link SkyFunction#compute} call for {@link #TOP}, in order. */
+  private final List<State> states = Collections.synchronizedList(new ArrayList<>());
+
+  private final AtomicInteger reuses = new AtomicInteger();
+
+  private ParallelEvaluator evaluator;
+
+  private EvaluationResult<SkyValue> evalTop(
+      TopFunction topFunction, boolean keepGoing, GraphInconsistencyReceiver inconsistencyReceiver)
+      throws InterruptedException {
+    SkyFunction function =
+        new SkyFunction() {
+          @Nullable
+          @Override
+          public SkyValue compute(SkyKey skyKey, Environment env)
+              throws SkyFunctionException, InterruptedException {
+            if (!skyKey.equals(TOP)) {
+              return new StringValue(skyKey.argument().toString());
+            }
+            State state = env.getState(State::new);
+            states.add(state);
+            state.calls++;
+            return topFunction.compute(env, state);
+          }
+
+          @Nullable
+          @Override
+          public String extractTag(SkyKey skyKey) {
+            return null;
+          }
+        };
+    evaluator =
+        new ParallelEvaluator(
+            new InMemoryGraphImpl(),
+            IntVersion.of(0),
+            ImmutableMap.of(GraphTester.NODE_TYPE, function),
+            NullEventHandler.INSTANCE,
+            new MemoizingEvaluator.EmittedEventState(),
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+            keepGoing,
+            new DirtyTrackingProgressReceiver(
+                new EvaluationProgressReceiver.NullEvaluationProgressReceiver() {
+                  @Override
+                  public void computeStateReused(SkyKey skyKey) {
+                    reuses.incrementAndGet();
+                  }
+                }),
+            inconsistencyReceiver,
+            () -> AbstractQueueVisitor.createExecutorService(1, "test-pool"),
+            new SimpleCycleDetector(),
+            EvaluationVersionBehavior.MAX_CHILD_VERSIONS,
+            SchedulingPolicy.DEPTH_FIRST,
+            EvaluationAdmissionController.UNLIMITED);
+    return evaluator.eval(ImmutableList.of(TOP));
+  }
+
+  @Test
+  public void stateIsReusedAcrossRestartsForMissingDeps() throws Exception {
+    EvaluationResult<SkyValue> result =
+        evalTop(
+            (env, state) -> {
+              if (env.getValue(DEP1) == null || env.getValue(DEP2) == null) {
+                return null;
+              }
+              return new StringValue("top");
+            },
+            /*keepGoing=*/ false,
+            GraphInconsistencyReceiver.THROWING);
+
+    assertThat(result.hasError()).isFalse();
+    assertThat(states).hasSize(3);
+    assertThat(states.get(1)).isSameInstanceAs(states.get(0));
+    assertThat(states.get(2)).isSameInstanceAs(states.get(0));
+    assertThat(states.get(0).calls).isEqualTo(3);
+    // Reported once per restarted call that found a state, not once per getState call.
+    assertThat(reuses.get()).isEqualTo(2);
+    assertThat(evaluator.evaluatorContext.getComputeState(TOP)).isNull();
+  }
+
+  @Test
+  public void stateIsDiscardedOnError() throws Exception {
+    EvaluationResult<SkyValue> result =
+        evalTop(
+            (env, state) -> {
+              if (env.getValue(DEP1) == null) {
+                return null;
+              }
+              throw new GenericFunctionException(
+                  new SomeErrorException("top"), Transience.PERSISTENT);
+            },
+            /*keepGoing=*/ true,
+            GraphInconsistencyReceiver.THROWING);
+
+    assertThat(result.hasError()).isTrue();
+    assertThat(result.getError(TOP).getException()).isInstanceOf(SomeErrorException.class);
+    assertThat(states).hasSize(2);
+    assertThat(states.get(1)).isSameInstanceAs(states.get(0));
+    assertThat(evaluator.evaluatorContext.getComputeState(TOP)).isNull();
+  }
+
+  @Test
+  public void stateIsDiscardedOnRestartFromScratch() throws Exception {
+    GraphInconsistencyReceiver restartPermittingReceiver =
+        new GraphInconsistencyReceiver() {
+          @Override
+          public void noteInconsistencyAndMaybeThrow(
+              SkyKey key, @Nullable Collection<SkyKey> otherKeys, Inconsistency inconsistency) {
+            assertThat(inconsistency).isEqualTo(Inconsistency.RESET_REQUESTED);
+          }
+
+          @Override
+          public boolean restartPermitted() {
+            return true;
+          }
+        };
+
+    EvaluationResult<SkyValue> result =
+        evalTop(
+            (env, state) -> {
+              if (env.getValue(DEP1) == null) {
+                return null;
+              }
+              // The second call restarts from scratch; the third must start from a fresh state.
+              if (state.calls == 2) {
+                return SkyFunction.Restart.SELF;
+              }
+              return new StringValue("top");
+            },
+            /*keepGoing=*/ false,
+            restartPermittingReceiver);
+
+    assertThat(result.hasError()).isFalse();
+    assertThat(states).hasSize(3);
+    assertThat(states.get(1)).isSameInstanceAs(states.get(0));
+    assertThat(states.get(2)).isNotSameInstanceAs(states.get(1));
+    assertThat(states.get(2).calls).isEqualTo(1);
+    assertThat(evaluator.evaluatorContext.getComputeState(TOP)).isNull();
+  }
+}
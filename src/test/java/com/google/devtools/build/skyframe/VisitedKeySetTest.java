@@ -0,0 +1,83 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link VisitedKeySet}. */
+@RunWith(JUnit4.class)
+public class VisitedKeySetTest {
+
+  @Test
+  public void addsEachKeyOnce() {
+    VisitedKeySet set = new VisitedKeySet(4, 0);
+
+    assertThat(set.add(skyKey("a"))).isTrue();
+    assertThat(set.add(skyKey("b"))).isTrue();
+    assertThat(set.add(skyKey("a"))).isFalse();
+    assertThat(set.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void growsPastExpectedSize() {
+    VisitedKeySet set = new VisitedKeySet(3, 4);
+
+    for (int i = 0; i < 10000; i++) {
+      assertThat(set.add(skyKey("key" + i))).isTrue();
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertThat(set.add(skyKey("key" + i))).isFalse();
+    }
+    assertThat(set.size()).isEqualTo(10000);
+  }
+
+  @Test
+  public void concurrentAddsOfTheSameKeysSucceedOnce() throws Exception {
+    VisitedKeySet set = new VisitedKeySet(8, 16);
+    AtomicInteger added = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 5000; i++) {
+                    if (set.add(skyKey("key" + i))) {
+                      added.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(added.get()).isEqualTo(5000);
+    assertThat(set.size()).isEqualTo(5000);
+  }
+}
@@ -169,6 +169,41 @@ EOF
   assert_cache_stats "miss count" 1  # volatile-status.txt
 }
 
+function test_persisted_file_digests_are_reloaded_on_cache_resize() {
+  local -r pkg="${FUNCNAME}"
+  mkdir -p "$pkg" || fail "could not create \"$pkg\""
+
+  mkdir -p $pkg/package || fail "mkdir failed"
+  cat >$pkg/package/BUILD <<EOF
+genrule(
+  name = "foo",
+  srcs = ["foo.in"],
+  outs = ["foo.out"],
+  cmd = "cat \$(location foo.in) >\$@",
+)
+
+genrule(
+  name = "bar",
+  srcs = ["bar.in", ":foo"],
+  outs = ["bar.out"],
+  cmd = "cat \$(location bar.in) \$(location :foo) >\$@",
+)
+EOF
+  touch $pkg/package/foo.in $pkg/package/bar.in
+
+  bazel build --experimental_persist_computed_file_digests $pkg/package:bar \
+      >>"${TEST_log}" 2>&1 || fail "Should build"
+
+  # Resizing the cache throws away its contents, but they are reloaded from the
+  # output base.  Also throw away the in-memory Skyframe state by flipping a
+  # flag, so that the previous outputs are digested again.
+  bazel build --experimental_persist_computed_file_digests \
+      --cache_computed_file_digests=100 --nocheck_visibility \
+      $pkg/package:bar >>"${TEST_log}" 2>&1 || fail "Should build"
+  assert_cache_stats "hit count" 3  # stable-status.txt foo.out bar.out
+  assert_cache_stats "miss count" 1  # volatile-status.txt
+}
+
 function DISABLED_test_cache_computed_file_digests_uncaught_changes() {
   # Does not work on Windows, https://github.com/bazelbuild/bazel/issues/6098
   local timestamp=201703151112.13  # Fixed timestamp to mark our file with.